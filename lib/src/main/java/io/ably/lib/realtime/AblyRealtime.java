@@ -1,10 +1,12 @@
 package io.ably.lib.realtime;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import io.ably.lib.rest.AblyRest;
+import io.ably.lib.transport.Defaults;
 import io.ably.lib.transport.ITransport;
 import io.ably.lib.types.AblyException;
 import io.ably.lib.types.ChannelOptions;
@@ -12,6 +14,7 @@ import io.ably.lib.types.ClientOptions;
 import io.ably.lib.types.ErrorInfo;
 import io.ably.lib.types.ProtocolMessage;
 import io.ably.lib.util.Log;
+import io.ably.lib.util.TimerWheel;
 
 /**
  * AblyRealtime
@@ -89,9 +92,13 @@ public class AblyRealtime extends AblyRest {
 	 * A collection of the Channels associated with this Realtime
 	 * instance.
 	 *
+	 * The collection may be used concurrently from any number of threads.
+	 * Lookups, including the lookup of the channel for each received
+	 * message, do not take a lock, and each name maps to a single Channel
+	 * however many threads request it at once.
 	 */
 	@SuppressWarnings("serial")
-	public class Channels extends HashMap<String, Channel> {
+	public class Channels extends ConcurrentHashMap<String, Channel> {
 		public Channels() {
 			/* remove all channels when the connection is closed, to avoid stalled state */
 			connection.on(ConnectionEvent.closed, new ConnectionStateListener() {
@@ -111,8 +118,11 @@ public class AblyRealtime extends AblyRest {
 		public Channel get(String channelName) {
 			Channel channel = super.get(channelName);
 			if(channel == null) {
-				channel = new Channel(AblyRealtime.this, channelName);
-				put(channelName, channel);
+				/* if another thread created the channel first, use that one */
+				Channel created = new Channel(AblyRealtime.this, channelName);
+				channel = putIfAbsent(channelName, created);
+				if(channel == null)
+					channel = created;
 			}
 			return channel;
 		}
@@ -148,10 +158,57 @@ public class AblyRealtime extends AblyRest {
 			}
 		}
 
+		/**
+		 * Attach to a number of channels, creating any that do not already
+		 * exist. The ATTACH requests for all of the channels are sent at
+		 * once, and a single timeout applies to the whole operation; a
+		 * channel that is not attached by then is suspended, and will retry
+		 * the attach, as if it had been attached individually.
+		 * @param channelNames the names of the channels
+		 * @param listener called once the attach has succeeded or failed for
+		 * every channel, with the reason for each failure
+		 */
+		public void attach(Collection<String> channelNames, BulkCompletionListener listener) {
+			BulkChannelOperation operation = startBulkOperation(true, listener);
+			for(String channelName : new LinkedHashSet<String>(channelNames))
+				get(channelName).attachInBulk(operation);
+			operation.started();
+		}
+
+		/**
+		 * Detach from a number of channels. The DETACH requests for all of the
+		 * channels are sent at once, and a single timeout applies to the
+		 * whole operation. Channels that do not exist are counted as detached.
+		 * @param channelNames the names of the channels
+		 * @param listener called once the detach has succeeded or failed for
+		 * every channel, with the reason for each failure
+		 */
+		public void detach(Collection<String> channelNames, BulkCompletionListener listener) {
+			BulkChannelOperation operation = startBulkOperation(false, listener);
+			for(String channelName : new LinkedHashSet<String>(channelNames)) {
+				Channel channel = super.get(channelName);
+				if(channel == null)
+					operation.addCompleted();
+				else
+					channel.detachInBulk(operation);
+			}
+			operation.started();
+		}
+
+		/**
+		 * Create a bulk operation whose listener is called on the callback
+		 * executor, or else on a library callback thread, and start its timer.
+		 */
+		private BulkChannelOperation startBulkOperation(boolean attach, BulkCompletionListener listener) {
+			Executor executor = (options.callbackExecutor != null) ? options.callbackExecutor : TimerWheel.getCallbackExecutor();
+			BulkChannelOperation operation = new BulkChannelOperation(attach, listener, executor);
+			operation.start(Defaults.realtimeRequestTimeout);
+			return operation;
+		}
+
 		public void onChannelMessage(ITransport transport, ProtocolMessage msg) {
 			String channelName = msg.channel;
-			Channel channel;
-			synchronized(this) { channel = channels.get(channelName); }
+			Channel channel = (channelName == null) ? null : super.get(channelName);
 			if(channel == null) {
 				Log.e(TAG, "Received channel message for non-existent channel");
 				return;
@@ -160,9 +217,8 @@ public class AblyRealtime extends AblyRest {
 		}
 
 		public void suspendAll(ErrorInfo error, boolean notifyStateChange) {
-			for(Iterator<Map.Entry<String, Channel>> it = entrySet().iterator(); it.hasNext(); ) {
-				Map.Entry<String, Channel> entry = it.next();
-				entry.getValue().setSuspended(error, notifyStateChange);
+			for(Channel channel : values()) {
+				channel.setSuspended(error, notifyStateChange);
 			}
 		}
 	}
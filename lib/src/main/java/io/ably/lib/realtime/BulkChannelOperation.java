@@ -0,0 +1,158 @@
+package io.ably.lib.realtime;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.util.Log;
+import io.ably.lib.util.TimerWheel;
+
+/**
+ * An attach or detach of a number of channels.
+ *
+ * The ATTACH or DETACH requests for all of the channels are sent without
+ * waiting for any response. Each channel reports its outcome to the
+ * operation directly, instead of through a listener registered on the
+ * channel, and a single timer bounds the whole operation in place of a
+ * timer per channel. The operation's listener is called once, on the
+ * given executor, when every channel has succeeded, failed or timed out.
+ */
+class BulkChannelOperation {
+
+	private static final String TAG = BulkChannelOperation.class.getName();
+
+	/**
+	 * @param attach true to attach the channels, false to detach them
+	 * @param listener the listener to call on completion, or null
+	 * @param executor the executor on which to call the listener
+	 */
+	BulkChannelOperation(boolean attach, BulkCompletionListener listener, Executor executor) {
+		this.attach = attach;
+		this.listener = listener;
+		this.executor = executor;
+	}
+
+	/**
+	 * Start the timer, before the request for any channel is made, so that
+	 * it is in place however soon the channels resolve.
+	 * @param timeout the time, in milliseconds, allowed for the whole operation
+	 */
+	void start(long timeout) {
+		timer = TimerWheel.getInstance().schedule(new TimerWheel.Task() {
+			@Override
+			public void run(TimerWheel.Timeout timeout) {
+				expired = true;
+				timeoutPending();
+			}
+		}, timeout);
+	}
+
+	/**
+	 * Count the operation as started, once the requests for all channels
+	 * have been made. Channels added after the timer expired time out now.
+	 */
+	void started() {
+		if(expired)
+			timeoutPending();
+		resolved();
+	}
+
+	/**
+	 * Add a channel to the operation, before its request is made.
+	 * @param originalState the state of the channel before the request
+	 */
+	void add(Channel channel, ChannelState originalState) {
+		if(pending.put(channel, originalState) == null)
+			outstanding.incrementAndGet();
+	}
+
+	/**
+	 * Count a channel for which there is nothing to do.
+	 */
+	void addCompleted() {
+		succeeded.incrementAndGet();
+	}
+
+	/**
+	 * Whether a change to the given state completes the operation for a channel.
+	 */
+	boolean resolves(ChannelState state) {
+		return state != (attach ? ChannelState.attaching : ChannelState.detaching);
+	}
+
+	void onChannelStateChanged(Channel channel, ChannelState state, ErrorInfo reason) {
+		if(state == (attach ? ChannelState.attached : ChannelState.detached))
+			succeeded(channel);
+		else
+			failed(channel, (reason != null) ? reason : new ErrorInfo("Channel " + (attach ? "attach" : "detach") + " failed; state = " + state, 400, 90000));
+	}
+
+	void succeeded(Channel channel) {
+		if(pending.remove(channel) != null) {
+			succeeded.incrementAndGet();
+			resolved();
+		}
+	}
+
+	void failed(Channel channel, ErrorInfo reason) {
+		if(pending.remove(channel) != null) {
+			failures.put(channel.name, reason);
+			resolved();
+		}
+	}
+
+	final boolean attach;
+
+	/******************
+	 * private
+	 ******************/
+
+	private void timeoutPending() {
+		if(pending.isEmpty())
+			return;
+		Log.v(TAG, (attach ? "Attach" : "Detach") + " timed out for " + pending.size() + " channels");
+		for(Map.Entry<Channel, ChannelState> entry : pending.entrySet()) {
+			final Channel channel = entry.getKey();
+			final ChannelState originalState = entry.getValue();
+			channel.onTimeout(new Runnable() {
+				@Override
+				public void run() {
+					channel.onBulkTimeout(BulkChannelOperation.this, originalState);
+				}
+			});
+		}
+	}
+
+	private void resolved() {
+		if(outstanding.decrementAndGet() != 0)
+			return;
+		timer.cancel();
+		if(listener != null) {
+			final Map<String, ErrorInfo> failed = new HashMap<String, ErrorInfo>(failures);
+			final BulkCompletionListener.Result result = new BulkCompletionListener.Result(succeeded.get() + failed.size(), succeeded.get(), failed);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						listener.onComplete(result);
+					} catch(Throwable t) {
+						Log.e(TAG, "Unexpected exception calling listener", t);
+					}
+				}
+			});
+		}
+	}
+
+	private final BulkCompletionListener listener;
+	private final Executor executor;
+	private final ConcurrentHashMap<Channel, ChannelState> pending = new ConcurrentHashMap<Channel, ChannelState>();
+	private final ConcurrentHashMap<String, ErrorInfo> failures = new ConcurrentHashMap<String, ErrorInfo>();
+	private final AtomicInteger succeeded = new AtomicInteger();
+	/* one for each pending channel, and one until the operation is started */
+	private final AtomicInteger outstanding = new AtomicInteger(1);
+	private volatile TimerWheel.Timeout timer;
+	private volatile boolean expired;
+}
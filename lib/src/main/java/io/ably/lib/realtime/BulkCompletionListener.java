@@ -0,0 +1,56 @@
+package io.ably.lib.realtime;
+
+import java.util.Map;
+
+import io.ably.lib.types.ErrorInfo;
+
+/**
+ * An interface allowing a client to be notified of the outcome
+ * of an operation on a number of channels.
+ */
+public interface BulkCompletionListener {
+	/**
+	 * Called once the operation has completed, or failed, for every channel.
+	 * @param result: the outcome for each channel.
+	 */
+	public void onComplete(Result result);
+
+	/**
+	 * The outcome of an operation on a number of channels.
+	 */
+	public static class Result {
+		/**
+		 * The number of channels in the operation.
+		 */
+		public final int count;
+
+		/**
+		 * The number of channels for which the operation succeeded.
+		 */
+		public final int succeeded;
+
+		/**
+		 * The reason for each channel for which the operation failed,
+		 * keyed by channel name.
+		 */
+		public final Map<String, ErrorInfo> failed;
+
+		Result(int count, int succeeded, Map<String, ErrorInfo> failed) {
+			this.count = count;
+			this.succeeded = succeeded;
+			this.failed = failed;
+		}
+
+		/**
+		 * Whether the operation succeeded for every channel.
+		 */
+		public boolean isSuccess() {
+			return failed.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return "count = " + count + "; succeeded = " + succeeded + "; failed = " + failed.size();
+		}
+	}
+}
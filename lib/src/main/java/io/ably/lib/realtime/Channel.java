@@ -7,13 +7,19 @@ import io.ably.lib.http.PaginatedQuery;
 import io.ably.lib.transport.ConnectionManager;
 import io.ably.lib.transport.ConnectionManager.QueuedMessage;
 import io.ably.lib.transport.Defaults;
+import io.ably.lib.transport.OfflineMessageQueue;
 import io.ably.lib.types.*;
 import io.ably.lib.types.ProtocolMessage.Action;
 import io.ably.lib.types.ProtocolMessage.Flag;
 import io.ably.lib.util.EventEmitter;
+import io.ably.lib.util.LibraryThread;
 import io.ably.lib.util.Log;
+import io.ably.lib.util.PatternTrie;
+import io.ably.lib.util.SerialExecutor;
+import io.ably.lib.util.TimerWheel;
 
 import java.util.*;
+import java.util.concurrent.Executor;
 
 
 /**
@@ -69,16 +75,33 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	private void setState(ChannelState newState, ErrorInfo reason, boolean resumed, boolean notifyStateChange) {
 		Log.v(TAG, "setState(): channel = " + name + "; setting " + newState);
 		ChannelStateListener.ChannelStateChange stateChange;
+		List<BulkChannelOperation> resolved = null;
 		synchronized(this) {
 			stateChange = new ChannelStateListener.ChannelStateChange(newState, this.state, reason, resumed);
 			this.state = stateChange.current;
 			this.reason = stateChange.reason;
+			for(Iterator<BulkChannelOperation> it = bulkOperations.iterator(); it.hasNext(); ) {
+				BulkChannelOperation operation = it.next();
+				if(operation.resolves(newState)) {
+					it.remove();
+					if(operation == bulkOwner)
+						bulkOwner = null;
+					if(resolved == null)
+						resolved = new ArrayList<BulkChannelOperation>();
+					resolved.add(operation);
+				}
+			}
 		}
 
 		if(notifyStateChange) {
 			/* broadcast state change */
 			emit(newState, stateChange);
 		}
+
+		if(resolved != null) {
+			for(BulkChannelOperation operation : resolved)
+				operation.onChannelStateChanged(this, newState, reason);
+		}
 	}
 
 	/************************************
@@ -112,7 +135,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 */
 	public void attach(CompletionListener listener) throws  AblyException {
 		clearAttachTimers();
-		attachWithTimeout(listener);
+		attachWithTimeout(dispatching(listener));
 	}
 
 	private void attachImpl(final CompletionListener listener) throws AblyException {
@@ -168,7 +191,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 */
 	public void detach(CompletionListener listener) throws AblyException {
 		clearAttachTimers();
-		detachWithTimeout(listener);
+		detachWithTimeout(dispatching(listener));
 	}
 
 	private void detachImpl(CompletionListener listener) throws AblyException {
@@ -207,6 +230,90 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 		}
 	}
 
+	/**
+	 * Attach as part of an attach of many channels. The outcome is reported
+	 * to the operation, and the operation's timer applies in place of
+	 * this channel's attach timer.
+	 */
+	synchronized void attachInBulk(BulkChannelOperation operation) {
+		operation.add(this, state);
+		switch(state) {
+			case attached:
+				operation.succeeded(this);
+				return;
+			case attaching:
+				bulkOperations.add(operation);
+				return;
+			default:
+		}
+		sendInBulk(operation, Action.attach, ChannelState.attaching);
+	}
+
+	/**
+	 * Detach as part of a detach of many channels; see {@link #attachInBulk}.
+	 */
+	synchronized void detachInBulk(BulkChannelOperation operation) {
+		operation.add(this, state);
+		switch(state) {
+			case initialized:
+			case detached:
+				operation.succeeded(this);
+				return;
+			case detaching:
+				bulkOperations.add(operation);
+				return;
+			default:
+		}
+		sendInBulk(operation, Action.detach, ChannelState.detaching);
+	}
+
+	private void sendInBulk(BulkChannelOperation operation, Action action, ChannelState pendingState) {
+		ConnectionManager connectionManager = ably.connection.connectionManager;
+		if(!connectionManager.isActive()) {
+			operation.failed(this, connectionManager.getStateErrorInfo());
+			return;
+		}
+		clearAttachTimers();
+		setState(pendingState, null);
+		bulkOperations.add(operation);
+		bulkOwner = operation;
+		try {
+			connectionManager.send(new ProtocolMessage(action, this.name), true, null);
+		} catch(AblyException e) {
+			bulkOperations.remove(operation);
+			bulkOwner = null;
+			operation.failed(this, e.errorInfo);
+		}
+	}
+
+	/**
+	 * Handle expiry of a bulk operation's timer while this channel was
+	 * still waiting. If the operation made the request that is pending, this
+	 * is handled in the same way as expiry of this channel's own timer;
+	 * otherwise the request belongs to someone else, whose own timer
+	 * applies, and only the operation is failed.
+	 */
+	synchronized void onBulkTimeout(BulkChannelOperation operation, ChannelState originalState) {
+		if(!bulkOperations.remove(operation))
+			return;
+		boolean owner = (operation == bulkOwner);
+		if(owner)
+			bulkOwner = null;
+		ErrorInfo reason;
+		if(operation.attach) {
+			reason = new ErrorInfo(String.format("Attach timed out for channel %s", name), 91200);
+			if(owner && state == ChannelState.attaching) {
+				setSuspended(reason, true);
+				reattachAfterTimeout();
+			}
+		} else {
+			reason = new ErrorInfo("Detach operation timed out", 90007);
+			if(owner && state == ChannelState.detaching)
+				setState(originalState, reason);
+		}
+		operation.failed(this, reason);
+	}
+
 	public void sync() throws AblyException {
 		Log.v(TAG, "sync(); channel = " + name);
 		/* check preconditions */
@@ -263,33 +370,72 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 		failQueuedMessages(reason);
 	}
 
-	/* Timer for attach operation */
-	private Timer attachTimer;
+	/* Timeout for attach or detach operation */
+	private TimerWheel.Timeout attachTimer;
+
+	/* Timeout for reattaching if attach failed */
+	private TimerWheel.Timeout reattachTimer;
 
-	/* Timer for reattaching if attach failed */
-	private Timer reattachTimer;
+	/* Executor for calls to listeners; null if called directly */
+	private Executor callbackExecutor;
+	/* Executor for the handling of expired timeouts */
+	private final Executor timeoutExecutor;
+
+	/* Bulk attaches or detaches awaiting the outcome for this channel */
+	private final List<BulkChannelOperation> bulkOperations = new ArrayList<BulkChannelOperation>(1);
+	/* the one of those, if any, that made the pending request */
+	private BulkChannelOperation bulkOwner;
 
 	/**
 	 * Cancel attach/reattach timers
 	 */
 	synchronized private void clearAttachTimers() {
-		Timer[] timers = new Timer[]{attachTimer, reattachTimer};
+		TimerWheel.Timeout[] timers = new TimerWheel.Timeout[]{attachTimer, reattachTimer};
 		attachTimer = reattachTimer = null;
-		for (Timer t: timers) {
-			if (t != null) {
+		for (TimerWheel.Timeout t: timers) {
+			if (t != null)
 				t.cancel();
-				t.purge();
-			}
 		}
 	}
 
+	/**
+	 * Set the attach/detach timeout, cancelling any existing one
+	 */
+	synchronized private void setAttachTimer(TimerWheel.Timeout timer) {
+		if (attachTimer != null)
+			attachTimer.cancel();
+		attachTimer = timer;
+	}
+
 	/**
 	 * Attach channel, if not attached within timeout set state to suspended and
 	 * set up timer to reattach it later
 	 */
 	synchronized private void attachWithTimeout(final CompletionListener listener) throws AblyException {
-		final Timer currentAttachTimer = new Timer();
-		attachTimer = currentAttachTimer;
+		/* the timeout can't run until we release the lock, and is
+		 * cancelled if the operation completes before then */
+		setAttachTimer(TimerWheel.getInstance().schedule(
+				new TimerWheel.Task() {
+					@Override
+					public void run(final TimerWheel.Timeout timeout) {
+						onTimeout(new Runnable() {
+							@Override
+							public void run() {
+								String errorMessage = String.format("Attach timed out for channel %s", name);
+								Log.v(TAG, errorMessage);
+								synchronized (Channel.this) {
+									if(attachTimer != timeout)
+										return;
+									attachTimer = null;
+									if(state == ChannelState.attaching) {
+										setSuspended(new ErrorInfo(errorMessage, 91200), true);
+										reattachAfterTimeout();
+									}
+								}
+							}
+						});
+					}
+				}, Defaults.realtimeRequestTimeout));
 
 		try {
 			attachImpl(new CompletionListener() {
@@ -308,30 +454,8 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 				}
 			});
 		} catch(AblyException e) {
-			attachTimer = null;
+			setAttachTimer(null);
 		}
-
-		if(attachTimer == null)
-			/* operation has already succeeded or failed, no need to set the timer */
-			return;
-
-		attachTimer.schedule(
-				new TimerTask() {
-					@Override
-					public void run() {
-						String errorMessage = String.format("Attach timed out for channel %s", name);
-						Log.v(TAG, errorMessage);
-						synchronized (Channel.this) {
-							if(attachTimer != currentAttachTimer)
-								return;
-							attachTimer = null;
-							if(state == ChannelState.attaching) {
-								setSuspended(new ErrorInfo(errorMessage, 91200), true);
-								reattachAfterTimeout();
-							}
-						}
-					}
-				}, Defaults.realtimeRequestTimeout);
 	}
 
 	/**
@@ -339,24 +463,28 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * try to attach the channel
 	 */
 	synchronized private void reattachAfterTimeout() {
-		final Timer currentReattachTimer = new Timer();
-		reattachTimer = currentReattachTimer;
-
-		reattachTimer.schedule(new TimerTask() {
+		if (reattachTimer != null)
+			reattachTimer.cancel();
+		reattachTimer = TimerWheel.getInstance().schedule(new TimerWheel.Task() {
 			@Override
-			public void run() {
-				synchronized (Channel.this) {
-					if (currentReattachTimer != reattachTimer)
-						return;
-					reattachTimer = null;
-					if (state == ChannelState.suspended) {
-						try {
-							attachWithTimeout(null);
-						} catch (AblyException e) {
-							Log.e(TAG, "Reattach channel failed; channel = " + name, e);
+			public void run(final TimerWheel.Timeout timeout) {
+				onTimeout(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (Channel.this) {
+							if (timeout != reattachTimer)
+								return;
+							reattachTimer = null;
+							if (state == ChannelState.suspended) {
+								try {
+									attachWithTimeout(null);
+								} catch (AblyException e) {
+									Log.e(TAG, "Reattach channel failed; channel = " + name, e);
+								}
+							}
 						}
 					}
-				}
+				});
 			}
 		}, ably.options.channelRetryTimeout);
 	}
@@ -367,8 +495,27 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 */
 	synchronized private void detachWithTimeout(final CompletionListener listener) throws AblyException {
 		final ChannelState originalState = state;
-		final Timer currentDetachTimer = new Timer();
-		attachTimer = currentDetachTimer;
+		setAttachTimer(TimerWheel.getInstance().schedule(new TimerWheel.Task() {
+			@Override
+			public void run(final TimerWheel.Timeout timeout) {
+				onTimeout(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (Channel.this) {
+							if (timeout != attachTimer)
+								return;
+							attachTimer = null;
+							if (state == ChannelState.detaching) {
+								ErrorInfo reason = new ErrorInfo("Detach operation timed out", 90007);
+								if(listener != null)
+									listener.onError(reason);
+								setState(originalState, reason);
+							}
+						}
+					}
+				});
+			}
+		}, Defaults.realtimeRequestTimeout));
 
 		try {
 			detachImpl(new CompletionListener() {
@@ -387,29 +534,8 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 				}
 			});
 		} catch (AblyException e) {
-			attachTimer = null;
+			setAttachTimer(null);
 		}
-
-		if(attachTimer == null)
-			/* operation has already succeeded or failed, no need to set the timer */
-			return;
-
-		attachTimer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				synchronized (Channel.this) {
-					if (currentDetachTimer != attachTimer)
-						return;
-					attachTimer = null;
-					if (state == ChannelState.detaching) {
-						ErrorInfo reason = new ErrorInfo("Detach operation timed out", 90007);
-						if(listener != null)
-							listener.onError(reason);
-						setState(originalState, reason);
-					}
-				}
-			}
-		}, Defaults.realtimeRequestTimeout);
 	}
 
 	/* State changes provoked by ConnectionManager state changes. */
@@ -500,7 +626,8 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	public synchronized void unsubscribe() {
 		Log.v(TAG, "unsubscribe(); channel = " + this.name);
 		listeners.clear();
-		eventListeners.clear();
+		eventListeners = new HashMap<String, MessageMulticaster>();
+		patternListeners.clear();
 	}
 
 	/**
@@ -525,6 +652,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 		for (MessageMulticaster multicaster: eventListeners.values()) {
 			multicaster.remove(listener);
 		}
+		patternListeners.removeAll(listener);
 	}
 
 	/**
@@ -575,35 +703,109 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 			unsubscribeImpl(name, listener);
 	}
 
+	/**
+	 * Subscribe for messages with event names matching a pattern on this channel.
+	 * Event names are treated as segments separated by '.'; in the pattern, a
+	 * segment "*" matches any single segment, and a segment "#" matches any
+	 * number of segments, including none. For example, "orders.*" matches
+	 * "orders.created", and "orders.eu.#" matches "orders.eu" and
+	 * "orders.eu.fr.created".
+	 * A listener is called once for each message, even if subscribed
+	 * with several matching patterns.
+	 * This implicitly attaches the channel if not already attached.
+	 * @param pattern: the event name pattern
+	 * @param listener: the MessageListener
+	 * @throws AblyException
+	 */
+	public synchronized void subscribePattern(String pattern, MessageListener listener) throws AblyException {
+		Log.v(TAG, "subscribePattern(); channel = " + this.name + "; pattern = " + pattern);
+		if(!PatternTrie.isValid(pattern))
+			throw AblyException.fromErrorInfo(new ErrorInfo("Invalid event name pattern: " + pattern, 400, 40000));
+		patternListeners.add(pattern, listener);
+		attach();
+	}
+
+	/**
+	 * Unsubscribe a previously subscribed pattern listener from this channel.
+	 * @param pattern: the event name pattern
+	 * @param listener: the previously subscribed listener.
+	 */
+	public synchronized void unsubscribePattern(String pattern, MessageListener listener) {
+		Log.v(TAG, "unsubscribePattern(); channel = " + this.name + "; pattern = " + pattern);
+		patternListeners.remove(pattern, listener);
+	}
+
 	/***
 	 * internal
 	 *
 	 */
-	private void onMessage(ProtocolMessage message) {
+	private void onMessage(final ProtocolMessage message) {
 		Log.v(TAG, "onMessage(); channel = " + name);
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				broadcastMessages(message);
+			}
+		});
+	}
+
+	/**
+	 * Deliver messages to listeners. Each message is decoded, and its
+	 * derived fields populated, only once it is known to have a listener;
+	 * messages for which there is no listener are discarded as received.
+	 */
+	private void broadcastMessages(ProtocolMessage message) {
 		Message[] messages = message.messages;
+		boolean broadcastAll = !this.listeners.isEmpty();
 		for(int i = 0; i < messages.length; i++) {
 			Message msg = messages[i];
-			try {
-				msg.decode(options);
-			} catch (MessageDecodeException e) {
-				Log.e(TAG, String.format("%s on channel %s", e.errorInfo.message, name));
-			}
-			/* populate fields derived from protocol message */
-			if(msg.connectionId == null) msg.connectionId = message.connectionId;
-			if(msg.timestamp == 0) msg.timestamp = message.timestamp;
-			if(msg.id == null) msg.id = message.id + ':' + i;
-			/* broadcast */
 			MessageMulticaster listeners = eventListeners.get(msg.name);
+			Set<MessageListener> matched = null;
+			if(!patternListeners.isEmpty()) {
+				matched = new LinkedHashSet<MessageListener>();
+				patternListeners.match(msg.name, matched);
+			}
+			boolean hasListeners = (listeners != null) || (matched != null && !matched.isEmpty());
+			if(!hasListeners && !broadcastAll)
+				continue;
+
+			prepareMessage(message, i);
 			if(listeners != null)
 				listeners.onMessage(msg);
+			if(matched != null) {
+				for(MessageListener listener : matched) {
+					try {
+						listener.onMessage(msg);
+					} catch (Throwable t) {
+						Log.e(TAG, "Unexpected exception calling listener", t);
+					}
+				}
+			}
 		}
 
-		for (Message msg : message.messages) {
-			this.listeners.onMessage(msg);
+		if(broadcastAll) {
+			for (Message msg : messages) {
+				this.listeners.onMessage(msg);
+			}
 		}
 	}
 
+	/**
+	 * Decode a received message, and populate fields derived from
+	 * its protocol message.
+	 */
+	private void prepareMessage(ProtocolMessage message, int index) {
+		Message msg = message.messages[index];
+		try {
+			msg.decode(options);
+		} catch (MessageDecodeException e) {
+			Log.e(TAG, String.format("%s on channel %s", e.errorInfo.message, name));
+		}
+		if(msg.connectionId == null) msg.connectionId = message.connectionId;
+		if(msg.timestamp == 0) msg.timestamp = message.timestamp;
+		if(msg.id == null) msg.id = message.id + ':' + index;
+	}
+
 	private void onPresence(ProtocolMessage message, String syncChannelSerial) {
 		Log.v(TAG, "onPresence(); channel = " + name + "; syncChannelSerial = " + syncChannelSerial);
 		PresenceMessage[] messages = message.presence;
@@ -629,7 +831,9 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	}
 
 	private MessageMulticaster listeners = new MessageMulticaster();
-	private HashMap<String, MessageMulticaster> eventListeners = new HashMap<String, MessageMulticaster>();
+	/* replaced, not modified, when changed, so that it is read without the lock */
+	private volatile Map<String, MessageMulticaster> eventListeners = new HashMap<String, MessageMulticaster>();
+	private final PatternTrie<MessageListener> patternListeners = new PatternTrie<MessageListener>();
 
 	private static class MessageMulticaster extends io.ably.lib.util.Multicaster<MessageListener> implements MessageListener {
 		@Override
@@ -647,7 +851,9 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 		MessageMulticaster listeners = eventListeners.get(name);
 		if(listeners == null) {
 			listeners = new MessageMulticaster();
-			eventListeners.put(name, listeners);
+			HashMap<String, MessageMulticaster> updated = new HashMap<String, MessageMulticaster>(eventListeners);
+			updated.put(name, listeners);
+			eventListeners = updated;
 		}
 		listeners.add(listener);
 	}
@@ -656,8 +862,11 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 		MessageMulticaster listeners = eventListeners.get(name);
 		if(listeners != null) {
 			listeners.remove(listener);
-			if(listeners.isEmpty())
-				eventListeners.remove(name);
+			if(listeners.isEmpty()) {
+				HashMap<String, MessageMulticaster> updated = new HashMap<String, MessageMulticaster>(eventListeners);
+				updated.remove(name);
+				eventListeners = updated;
+			}
 		}
 	}
 
@@ -728,16 +937,14 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * @param listener: a listener to be notified of the outcome of this message.
 	 * @throws AblyException
 	 */
-	public synchronized void publish(Message[] messages, CompletionListener listener) throws AblyException {
+	public void publish(Message[] messages, CompletionListener listener) throws AblyException {
 		Log.v(TAG, "publish(Message[]); channel = " + this.name);
+		listener = dispatching(listener);
 		boolean connected = (ably.connection.state == ConnectionState.connected);
 		try {
-			for(Message message : messages) {
-				/* RTL6g3: check validity of any clientId;
-				 * RTL6g4: be lenient with a null clientId if we're not connected */
-				ably.auth.checkClientId(message, true, connected);
-				message.encode(options);
-			}
+			/* encode without holding the lock, so that concurrent publishers
+			 * on this channel are not serialised while encoding */
+			MessageEncoder.encode(ably.auth, messages, options, connected);
 		} catch(AblyException e) {
 			if(listener != null) {
 				listener.onError(e.errorInfo);
@@ -746,22 +953,48 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 		}
 		ProtocolMessage msg = new ProtocolMessage(Action.message, this.name);
 		msg.messages = messages;
-		switch(state) {
-		case initialized:
-			attach();
-		case attaching:
-			/* queue the message for later send */
-			queuedMessages.add(new QueuedMessage(msg, listener));
+		/* wait for space in the connection's queue before taking the lock,
+		 * so that received messages for this channel can still be processed */
+		ably.connection.connectionManager.awaitQueueSpace(msg);
+		publishEncoded(msg, listener);
+	}
+
+	private synchronized void publishEncoded(ProtocolMessage msg, CompletionListener listener) throws AblyException {
+		QueuedMessage queued = new QueuedMessage(msg, listener);
+		List<OfflineMessageQueue.Failed> failed = null;
+		while(true) {
+			switch(state) {
+			case initialized:
+				attach();
+			case attaching:
+				if(!LibraryThread.isCurrent() && queuedMessages.mustWait(queued)) {
+					/* releases the lock while waiting, then check the state again */
+					queuedMessages.await();
+					continue;
+				}
+				/* queue the message for later send */
+				failed = queuedMessages.add(queued);
+				break;
+			case detaching:
+			case detached:
+			case failed:
+			case suspended:
+				throw AblyException.fromErrorInfo(new ErrorInfo("Unable to publish in detached, failed or suspended state", 400, 40000));
+			case attached:
+				ConnectionManager connectionManager = ably.connection.connectionManager;
+				connectionManager.send(msg, ably.options.queueMessages, listener);
+			}
 			break;
-		case detaching:
-		case detached:
-		case failed:
-		case suspended:
-			throw AblyException.fromErrorInfo(new ErrorInfo("Unable to publish in detached, failed or suspended state", 400, 40000));
-		case attached:
-			ConnectionManager connectionManager = ably.connection.connectionManager;
-			connectionManager.send(msg, ably.options.queueMessages, listener);
 		}
+		OfflineMessageQueue.notifyFailed(failed);
+	}
+
+	/**
+	 * Get the queue of messages published while the channel is attaching,
+	 * for access to its metrics.
+	 */
+	public OfflineMessageQueue getOfflineQueue() {
+		return queuedMessages;
 	}
 
 	/***
@@ -781,10 +1014,12 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	private void sendQueuedMessages() {
 		Log.v(TAG, "sendQueuedMessages()");
 		ArrayList<FailedMessage> failedMessages = new ArrayList<>();
+		ArrayList<OfflineMessageQueue.Failed> expiredMessages = new ArrayList<>();
 		synchronized (this) {
 			boolean queueMessages = ably.options.queueMessages;
 			ConnectionManager connectionManager = ably.connection.connectionManager;
-			for (QueuedMessage msg : queuedMessages)
+			QueuedMessage msg;
+			while ((msg = queuedMessages.poll(expiredMessages)) != null)
 				try {
 					connectionManager.send(msg.msg, queueMessages, msg.listener);
 				} catch (AblyException e) {
@@ -792,12 +1027,12 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 					if (msg.listener != null)
 						failedMessages.add(new FailedMessage(msg, e.errorInfo));
 				}
-			queuedMessages.clear();
 		}
 
 		/* Call completion callbacks for failed messages without holding the lock */
 		for (FailedMessage failed: failedMessages)
 			failed.msg.listener.onError(failed.reason);
+		OfflineMessageQueue.notifyFailed(expiredMessages);
 	}
 
 	private void failQueuedMessages(ErrorInfo reason) {
@@ -805,11 +1040,10 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 
 		ArrayList<FailedMessage> failedMessages = new ArrayList<>();
 		synchronized (this) {
-			for (QueuedMessage msg: queuedMessages) {
+			for (QueuedMessage msg: queuedMessages.clear()) {
 				if (msg.listener != null)
 					failedMessages.add(new FailedMessage(msg, reason));
 			}
-			queuedMessages.clear();
 		}
 
 		for(FailedMessage failed : failedMessages) {
@@ -856,7 +1090,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 
 	private static final String KEY_UNTIL_ATTACH = "untilAttach";
 	private static final String KEY_FROM_SERIAL = "fromSerial";
-	private List<QueuedMessage> queuedMessages;
+	private OfflineMessageQueue queuedMessages;
 
 	/************************************
 	 * Channel history 
@@ -887,7 +1121,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 		}
 
 		HttpCore.BodyHandler<Message> bodyHandler = MessageSerializer.getMessageResponseHandler(options);
-		return new BasePaginatedQuery<Message>(ably.http, basePath + "/history", HttpUtils.defaultAcceptHeaders(ably.options.useBinaryProtocol), params, bodyHandler).get();
+		return new BasePaginatedQuery<Message>(ably.http, getBasePath() + "/history", HttpUtils.defaultAcceptHeaders(ably.options.useBinaryProtocol), params, bodyHandler).get();
 	}
 
 	/************************************
@@ -931,10 +1165,73 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 		Log.v(TAG, "RealtimeChannel(); channel = " + name);
 		this.ably = ably;
 		this.name = name;
-		this.basePath = "/channels/" + HttpUtils.encodeURIComponent(name);
 		this.presence = new Presence(this);
 		state = ChannelState.initialized;
-		queuedMessages = new ArrayList<QueuedMessage>();
+		queuedMessages = new OfflineMessageQueue(this, ably.options);
+		if(ably.options.callbackExecutor != null)
+			callbackExecutor = new SerialExecutor(ably.options.callbackExecutor);
+		timeoutExecutor = (callbackExecutor != null) ? callbackExecutor : new SerialExecutor(TimerWheel.getCallbackExecutor());
+	}
+
+	/**
+	 * Handle an expired timeout of this channel off the timer's thread, as
+	 * handling it may call listeners; in order with other calls of this
+	 * channel's listeners if the client has a callback executor, or
+	 * otherwise in order with other timeouts of this channel.
+	 */
+	void onTimeout(Runnable handler) {
+		timeoutExecutor.execute(handler);
+	}
+
+	/**
+	 * Call listeners of this channel; if the client has a callback
+	 * executor, on that executor after any earlier calls for this
+	 * channel have completed, or otherwise on this thread.
+	 */
+	void dispatch(Runnable callback) {
+		if(callbackExecutor == null)
+			callback.run();
+		else
+			callbackExecutor.execute(callback);
+	}
+
+	/**
+	 * A listener that calls the given listener via {@link #dispatch}.
+	 */
+	CompletionListener dispatching(final CompletionListener listener) {
+		if(listener == null || callbackExecutor == null)
+			return listener;
+		return new CompletionListener() {
+			@Override
+			public void onSuccess() {
+				dispatch(new Runnable() {
+					@Override
+					public void run() {
+						listener.onSuccess();
+					}
+				});
+			}
+
+			@Override
+			public void onError(final ErrorInfo reason) {
+				dispatch(new Runnable() {
+					@Override
+					public void run() {
+						listener.onError(reason);
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * The path of this channel's REST resources.
+	 */
+	String getBasePath() {
+		String path = basePath;
+		if(path == null)
+			basePath = path = "/channels/" + HttpUtils.encodeURIComponent(name);
+		return path;
 	}
 
 	void onChannelMessage(ProtocolMessage msg) {
@@ -1015,7 +1312,8 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 
 	private static final String TAG = Channel.class.getName();
 	final AblyRealtime ably;
-	final String basePath;
 	ChannelOptions options;
+	/* computed when first used, as most channels never make REST requests */
+	private String basePath;
 	String syncChannelSerial;
 }
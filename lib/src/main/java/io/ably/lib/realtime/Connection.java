@@ -1,9 +1,14 @@
 package io.ably.lib.realtime;
 
+import java.util.concurrent.Executor;
+
 import io.ably.lib.realtime.ConnectionStateListener.ConnectionStateChange;
 import io.ably.lib.transport.ConnectionManager;
 import io.ably.lib.types.ErrorInfo;
 import io.ably.lib.util.EventEmitter;
+import io.ably.lib.util.LatencyHistogram;
+import io.ably.lib.util.SerialExecutor;
+import io.ably.lib.util.TimerWheel;
 
 /**
  * A class representing the connection associated with an AblyRealtime instance.
@@ -59,6 +64,15 @@ public class Connection extends EventEmitter<ConnectionEvent, ConnectionStateLis
 		connectionManager.ping(listener);
 	}
 
+	/**
+	 * Get the histogram of round-trip times measured by {@link #ping}
+	 * and, if enabled by {@link io.ably.lib.types.ClientOptions#latencyProbeInterval},
+	 * by periodic probes.
+	 */
+	public LatencyHistogram getLatency() {
+		return connectionManager.getLatencyHistogram();
+	}
+
 	/**
 	 * Causes the connection to close, entering the closed state, from any state except
 	 * the failed state. Once closed, the library will not attempt to re-establish the
@@ -77,13 +91,26 @@ public class Connection extends EventEmitter<ConnectionEvent, ConnectionStateLis
 	Connection(AblyRealtime ably) {
 		this.ably = ably;
 		this.state = ConnectionState.initialized;
+		this.listenerExecutor = new SerialExecutor((ably.options.callbackExecutor != null)
+				? ably.options.callbackExecutor
+				: TimerWheel.getCallbackExecutor());
 		this.connectionManager = new ConnectionManager(ably, this);
 	}
 
-	public void onConnectionStateChange(ConnectionStateChange stateChange) {
+	/**
+	 * Record a change of state, and broadcast it to listeners. The
+	 * listeners are called in order on this connection's listener executor,
+	 * not on the calling thread, which is shared with other clients.
+	 */
+	public void onConnectionStateChange(final ConnectionStateChange stateChange) {
 		state = stateChange.current;
 		reason = stateChange.reason;
-		emit(state, stateChange);
+		listenerExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				emit(stateChange.current, stateChange);
+			}
+		});
 	}
 
 	@Override
@@ -92,8 +119,15 @@ public class Connection extends EventEmitter<ConnectionEvent, ConnectionStateLis
 	}
 
 	public void emitUpdate(ErrorInfo errorInfo) {
-		if (state == ConnectionState.connected)
-			emit(ConnectionEvent.update, ConnectionStateListener.ConnectionStateChange.createUpdateEvent(errorInfo));
+		if (state == ConnectionState.connected) {
+			final ConnectionStateChange update = ConnectionStateListener.ConnectionStateChange.createUpdateEvent(errorInfo);
+			listenerExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					emit(ConnectionEvent.update, update);
+				}
+			});
+		}
 	}
 
 	@Deprecated
@@ -113,4 +147,6 @@ public class Connection extends EventEmitter<ConnectionEvent, ConnectionStateLis
 
 	final AblyRealtime ably;
 	public final ConnectionManager connectionManager;
+	/* the executor on which listeners are called, one at a time */
+	private final Executor listenerExecutor;
 }
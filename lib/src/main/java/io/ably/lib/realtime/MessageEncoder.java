@@ -0,0 +1,167 @@
+package io.ably.lib.realtime;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.ably.lib.rest.Auth;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ChannelOptions;
+import io.ably.lib.types.Message;
+import io.ably.lib.util.Log;
+
+/**
+ * Validation and encoding of messages for publishing, done without holding
+ * the channel's lock.
+ *
+ * If {@link Defaults#ENCODER_THREADS} is set, a large batch is divided into
+ * tasks of at least {@link Defaults#ENCODER_BATCH_SIZE} messages, which are
+ * taken in turn by the publishing thread and by threads of a pool shared by
+ * all clients.
+ * The publishing thread waits only for tasks already taken by the pool,
+ * so it is never held up by a busy pool.
+ *
+ * Encryption uses the channel's cipher, which has state carried from one
+ * message to the next; messages for an encrypted channel are therefore
+ * encoded in order, one at a time.
+ */
+class MessageEncoder {
+
+	private static final String TAG = MessageEncoder.class.getName();
+
+	/* the time, in milliseconds, for which an idle encoder thread is retained */
+	private static final long THREAD_KEEPALIVE = 60000L;
+
+	/**
+	 * Check the clientId of, and encode, each message.
+	 * @throws AblyException the error for the first message in the batch that is invalid
+	 */
+	static void encode(Auth auth, Message[] messages, ChannelOptions options, boolean connected) throws AblyException {
+		int batchSize = Math.max(1, Defaults.ENCODER_BATCH_SIZE);
+		int taskCount = Math.min(messages.length / batchSize, Defaults.ENCODER_THREADS + 1);
+		if(options != null && options.encrypted) {
+			synchronized(options) {
+				encode(auth, messages, 0, messages.length, options, connected);
+			}
+			return;
+		}
+		if(taskCount <= 1) {
+			encode(auth, messages, 0, messages.length, options, connected);
+			return;
+		}
+		new Batch(auth, messages, options, connected, taskCount).encode();
+	}
+
+	private static void encode(Auth auth, Message[] messages, int start, int end, ChannelOptions options, boolean connected) throws AblyException {
+		for(int i = start; i < end; i++) {
+			/* RTL6g3: check validity of any clientId;
+			 * RTL6g4: be lenient with a null clientId if we're not connected */
+			auth.checkClientId(messages[i], true, connected);
+			messages[i].encode(options);
+		}
+	}
+
+	/**
+	 * A batch of messages divided into tasks for encoding in parallel.
+	 */
+	private static class Batch implements Runnable {
+		private final Auth auth;
+		private final Message[] messages;
+		private final ChannelOptions options;
+		private final boolean connected;
+		private final int taskCount;
+		private final AtomicInteger nextTask = new AtomicInteger();
+		private final AblyException[] errors;
+		private int completed;
+
+		Batch(Auth auth, Message[] messages, ChannelOptions options, boolean connected, int taskCount) {
+			this.auth = auth;
+			this.messages = messages;
+			this.options = options;
+			this.connected = connected;
+			this.taskCount = taskCount;
+			this.errors = new AblyException[taskCount];
+		}
+
+		/**
+		 * Encode the batch, on the calling thread and on the shared pool.
+		 */
+		void encode() throws AblyException {
+			ExecutorService executor = getExecutor();
+			try {
+				for(int i = 1; i < taskCount; i++)
+					executor.execute(this);
+			} catch(RejectedExecutionException e) {
+				/* the remaining tasks are taken by this thread */
+			}
+			runTasks();
+			synchronized(this) {
+				boolean interrupted = false;
+				while(completed < taskCount) {
+					try {
+						wait();
+					} catch(InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if(interrupted)
+					Thread.currentThread().interrupt();
+			}
+			for(AblyException error : errors) {
+				if(error != null)
+					throw error;
+			}
+		}
+
+		@Override
+		public void run() {
+			runTasks();
+		}
+
+		private void runTasks() {
+			int task;
+			while((task = nextTask.getAndIncrement()) < taskCount) {
+				int start = (int)((long)messages.length * task / taskCount);
+				int end = (int)((long)messages.length * (task + 1) / taskCount);
+				try {
+					MessageEncoder.encode(auth, messages, start, end, options, connected);
+				} catch(AblyException e) {
+					errors[task] = e;
+				} catch(Throwable t) {
+					Log.e(TAG, "Unexpected exception encoding messages", t);
+					errors[task] = AblyException.fromThrowable(t);
+				}
+				synchronized(this) {
+					if(++completed == taskCount)
+						notifyAll();
+				}
+			}
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if(executor == null) {
+			int size = Math.max(1, Defaults.ENCODER_THREADS);
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, THREAD_KEEPALIVE, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger threadCount = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ably-encoder-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return executor;
+	}
+
+	private static ExecutorService executor;
+}
@@ -14,6 +14,7 @@ import io.ably.lib.types.Param;
 import io.ably.lib.types.PresenceMessage;
 import io.ably.lib.types.PresenceSerializer;
 import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.util.HashTrieMap;
 import io.ably.lib.util.Log;
 
 import java.util.*;
@@ -44,7 +45,7 @@ public class Presence {
 	 * @throws AblyException
 	 * @throws InterruptedException
 	 */
-	public synchronized PresenceMessage[] get(Param... params) throws AblyException {
+	public PresenceMessage[] get(Param... params) throws AblyException {
 		if (channel.state == ChannelState.failed) {
 			throw AblyException.fromErrorInfo(new ErrorInfo("channel operation failed (invalid channel state)", 90001));
 		}
@@ -66,7 +67,7 @@ public class Presence {
 	 * @return: the current present members.
 	 * @throws AblyException
 	 */
-	public synchronized PresenceMessage[] get(boolean wait) throws AblyException {
+	public PresenceMessage[] get(boolean wait) throws AblyException {
 		return get(new Param(GET_WAITFORSYNC, String.valueOf(wait)));
 	}
 
@@ -79,7 +80,7 @@ public class Presence {
 	 * @throws InterruptedException
 	 * @throws AblyException
 	 */
-	public synchronized PresenceMessage[] get(String clientId, boolean wait) throws AblyException {
+	public PresenceMessage[] get(String clientId, boolean wait) throws AblyException {
 		return get(new Param(GET_WAITFORSYNC, String.valueOf(wait)), new Param(GET_CLIENTID, clientId));
 	}
 
@@ -190,8 +191,10 @@ public class Presence {
 	 * Unsubscribe all subscribed presence lisceners for this channel.
 	 */
 	public void unsubscribe() {
-		listeners.clear();
-		eventListeners.clear();
+		synchronized(subscriptionLock) {
+			listeners.clear();
+			eventListeners = new EnumMap<>(PresenceMessage.Action.class);
+		}
 	}
 
 
@@ -241,12 +244,12 @@ public class Presence {
 		 */
 		if (syncAsResultOfAttach) {
 			syncAsResultOfAttach = false;
-			for (PresenceMessage item: internalPresence.values()) {
-				if (presence.put(item)) {
+			for (PresenceMember item: internalPresence.members()) {
+				if (item.action != PresenceMessage.Action.absent && presence.put(new PresenceMember(item.toMessage()))) {
 					/* Message is new to presence map, send it */
 					final String clientId = item.clientId;
 					try {
-						PresenceMessage itemToSend = (PresenceMessage)item.clone();
+						PresenceMessage itemToSend = item.toMessage();
 						itemToSend.action = PresenceMessage.Action.enter;
 						updatePresence(itemToSend, new CompletionListener() {
 							@Override
@@ -277,6 +280,7 @@ public class Presence {
 					}
 				}
 			}
+			presence.publish();
 			internalPresence.clear();
 		}
 	}
@@ -299,22 +303,23 @@ public class Presence {
 		for(PresenceMessage update : messages) {
 			boolean updateInternalPresence = update.connectionId.equals(channel.ably.connection.id);
 			boolean broadcastThisUpdate = broadcast;
-			PresenceMessage originalUpdate = update;
+			PresenceMember member;
 
 			switch(update.action) {
 			case enter:
 			case update:
-				update = (PresenceMessage)update.clone();
-				update.action = PresenceMessage.Action.present;
 			case present:
-				broadcastThisUpdate &= presence.put(update);
+				member = new PresenceMember(update, PresenceMessage.Action.present);
+				broadcastThisUpdate &= presence.put(member);
+				/* a member is held by one map only */
 				if(updateInternalPresence)
-					internalPresence.put(update);
+					internalPresence.put(new PresenceMember(update, PresenceMessage.Action.present));
 				break;
 			case leave:
-				broadcastThisUpdate &= presence.remove(update);
+				member = new PresenceMember(update);
+				broadcastThisUpdate &= presence.remove(member);
 				if(updateInternalPresence)
-					internalPresence.remove(update);
+					internalPresence.remove(member);
 				break;
 			case absent:
 			}
@@ -324,8 +329,10 @@ public class Presence {
 			 * Presence object, with an event name set to its original action.
 			 */
 			if (broadcastThisUpdate)
-				broadcastPresence(new PresenceMessage[]{originalUpdate});
+				broadcastPresence(new PresenceMessage[]{update});
 		}
+		presence.publish();
+		internalPresence.publish();
 
 		/* if this is the last message in a sequence of sync updates, end the sync */
 		if(syncChannelSerial == null || syncCursor.length() <= 1) {
@@ -333,7 +340,16 @@ public class Presence {
 		}
 	}
 
-	private void broadcastPresence(PresenceMessage[] messages) {
+	private void broadcastPresence(final PresenceMessage[] messages) {
+		channel.dispatch(new Runnable() {
+			@Override
+			public void run() {
+				broadcastPresenceImpl(messages);
+			}
+		});
+	}
+
+	private void broadcastPresenceImpl(PresenceMessage[] messages) {
 		for(PresenceMessage message : messages) {
 			listeners.onPresenceMessage(message);
 
@@ -344,7 +360,10 @@ public class Presence {
 	}
 
 	private final Multicaster listeners = new Multicaster();
-	private final EnumMap<PresenceMessage.Action, Multicaster> eventListeners = new EnumMap<>(PresenceMessage.Action.class);
+	/* replaced, not modified, when changed, so that it is read without a lock */
+	private volatile EnumMap<PresenceMessage.Action, Multicaster> eventListeners = new EnumMap<>(PresenceMessage.Action.class);
+	/* serialises changes to eventListeners; not this, which get() holds while waiting for sync */
+	private final Object subscriptionLock = new Object();
 
 	private static class Multicaster extends io.ably.lib.util.Multicaster<PresenceListener> implements PresenceListener {
 		@Override
@@ -357,20 +376,28 @@ public class Presence {
 	}
 
 	private void subscribeImpl(PresenceMessage.Action action, PresenceListener listener) {
-		Multicaster listeners = eventListeners.get(action);
-		if(listeners == null) {
-			listeners = new Multicaster();
-			eventListeners.put(action, listeners);
+		synchronized(subscriptionLock) {
+			Multicaster listeners = eventListeners.get(action);
+			if(listeners == null) {
+				listeners = new Multicaster();
+				EnumMap<PresenceMessage.Action, Multicaster> updated = new EnumMap<>(eventListeners);
+				updated.put(action, listeners);
+				eventListeners = updated;
+			}
+			listeners.add(listener);
 		}
-		listeners.add(listener);
 	}
 
 	private void unsubscribeImpl(PresenceMessage.Action action, PresenceListener listener) {
-		Multicaster listeners = eventListeners.get(action);
-		if(listeners != null) {
-			listeners.remove(listener);
-			if(listeners.isEmpty()) {
-				eventListeners.remove(action);
+		synchronized(subscriptionLock) {
+			Multicaster listeners = eventListeners.get(action);
+			if(listeners != null) {
+				listeners.remove(listener);
+				if(listeners.isEmpty()) {
+					EnumMap<PresenceMessage.Action, Multicaster> updated = new EnumMap<>(eventListeners);
+					updated.remove(action);
+					eventListeners = updated;
+				}
 			}
 		}
 	}
@@ -588,6 +615,7 @@ public class Presence {
 	 */
 	public void updatePresence(PresenceMessage msg, CompletionListener listener) throws AblyException {
 		Log.v(TAG, "update(); channel = " + channel.name);
+		listener = channel.dispatching(listener);
 
 		AblyRealtime ably = channel.ably;
 		boolean connected = (ably.connection.state == ConnectionState.connected);
@@ -602,6 +630,11 @@ public class Presence {
 		}
 
 		msg.encode(null);
+		ProtocolMessage message = new ProtocolMessage(ProtocolMessage.Action.presence, channel.name);
+		message.presence = new PresenceMessage[] { msg };
+		ConnectionManager connectionManager = ably.connection.connectionManager;
+		/* wait for space in the connection's queue before taking the channel's lock */
+		connectionManager.awaitQueueSpace(message);
 		synchronized(channel) {
 			switch(channel.state) {
 			case initialized:
@@ -611,9 +644,6 @@ public class Presence {
 				pendingPresence.put(clientId, queued);
 				break;
 			case attached:
-				ProtocolMessage message = new ProtocolMessage(ProtocolMessage.Action.presence, channel.name);
-				message.presence = new PresenceMessage[] { msg };
-				ConnectionManager connectionManager = ably.connection.connectionManager;
 				connectionManager.send(message, ably.options.queueMessages, listener);
 				break;
 			default:
@@ -652,7 +682,7 @@ public class Presence {
 
 		AblyRealtime ably = channel.ably;
 		HttpCore.BodyHandler<PresenceMessage> bodyHandler = PresenceSerializer.getPresenceResponseHandler(channel.options);
-		return new BasePaginatedQuery<PresenceMessage>(ably.http, channel.basePath + "/presence/history", HttpUtils.defaultAcceptHeaders(ably.options.useBinaryProtocol), params, bodyHandler).get();
+		return new BasePaginatedQuery<PresenceMessage>(ably.http, channel.getBasePath() + "/presence/history", HttpUtils.defaultAcceptHeaders(ably.options.useBinaryProtocol), params, bodyHandler).get();
 	}
 
 	/**
@@ -775,6 +805,13 @@ public class Presence {
 	 * this map keeps "witness" entries, with absent Action, to remember the
 	 * fact that a leave event has been seen for a member. These entries are
 	 * cleared once the last set of updates of a sync sequence have been received.
+	 * Members are also indexed by clientId and by connectionId, so that a get()
+	 * filtered by either examines only the members that match.
+	 *
+	 * Updates are applied under the map's lock, and published as an immutable
+	 * snapshot once each batch of updates is applied; reads use the latest
+	 * snapshot without taking the lock, so that readers and the writer never
+	 * wait for each other (except to wait for a sync to complete).
 	 *
 	 */
 	private class PresenceMap {
@@ -784,7 +821,16 @@ public class Presence {
 		 * complete as well. Return false if wait was interrupted because channel transitioned to
 		 * state other than attached or attaching
 		 */
-		synchronized void waitForSync() throws AblyException, InterruptedException {
+		void waitForSync() throws AblyException, InterruptedException {
+			/* if the published state is complete, there is nothing to wait for */
+			if(snapshot.synced && channel.state == ChannelState.attached)
+				return;
+			synchronized(this) {
+				waitForSyncLocked();
+			}
+		}
+
+		private void waitForSyncLocked() throws AblyException, InterruptedException {
 			boolean syncIsComplete = false;	/* temporary variable to avoid potential race conditions */
 			while((channel.state == ChannelState.attached || channel.state == ChannelState.attaching) &&
 					/* = (and not ==) is intentional */
@@ -811,7 +857,7 @@ public class Presence {
 			}
 		}
 
-		synchronized Collection<PresenceMessage> get(Param[] params) throws AblyException, InterruptedException {
+		Collection<PresenceMessage> get(Param[] params) throws AblyException, InterruptedException {
 			boolean waitForSync = true;
 			String clientId = null;
 			String connectionId = null;
@@ -830,15 +876,23 @@ public class Presence {
 				}
 			}
 
-			HashSet<PresenceMessage> result = new HashSet<>();
+			ArrayList<PresenceMessage> result = new ArrayList<>();
 			if (waitForSync)
 				waitForSync();
 
-			for (Map.Entry<String, PresenceMessage> entry: members.entrySet()) {
-				PresenceMessage member = entry.getValue();
+			/* scan only the members indexed under the given clientId or
+			 * connectionId, whichever has fewer */
+			Snapshot current = snapshot;
+			Collection<PresenceMember> candidates = current.members.values();
+			if (clientId != null)
+				candidates = smaller(candidates, indexed(current.clientIdIndex, clientId));
+			if (connectionId != null)
+				candidates = smaller(candidates, indexed(current.connectionIdIndex, connectionId));
+
+			for (PresenceMember member: candidates) {
 				if ((clientId == null || member.clientId.equals(clientId)) &&
 						(connectionId == null || member.connectionId.equals(connectionId)))
-					result.add(member);
+					result.add(member.toMessage());
 			}
 
 			return result;
@@ -850,73 +904,36 @@ public class Presence {
 		 * @return true if the given message represents a change;
 		 * false if the message is already superseded
 		 */
-		synchronized boolean put(PresenceMessage item) {
-			String key = item.memberKey();
-			/* we've seen this member, so do not remove it at the end of sync */
-			if(residualMembers != null)
-				residualMembers.remove(key);
+		synchronized boolean put(PresenceMember item) {
+			PresenceMember existingItem = members.get(item);
 
 			/* check if there is a newer existing member (or absent witness) */
-			if (hasNewerItem(key, item))
+			if (existingItem != null && existingItem.supersedes(item)) {
+				/* we've seen this member, so do not remove it at the end of sync */
+				if(syncInProgress)
+					markSeen(existingItem);
 				return false;
+			}
 
-			members.put(key, item);
+			putMember(item, existingItem);
 			return true;
 		}
 
 		/**
 		 * Determine if there is a newer item already in the map
-		 * @param key key used to search the item in the map
-		 * @param item new presence message to be added
+		 * @param item new presence member to be added
 		 * @return true if there is a newer item
 		 */
-		synchronized boolean hasNewerItem(String key, PresenceMessage item) {
-			PresenceMessage existingItem = members.get(key);
-			if(existingItem == null)
-				return false;
-
-			/*
-			 * (RTP2b1) If either presence message has a connectionId which is not an initial substring
-			 * of its id, compare them by timestamp numerically. (This will be the case when one of them
-			 * is a 'synthesized leave' event sent by realtime to indicate a connection disconnected
-			 * unexpectedly 15s ago. Such messages will have an id that does not correspond to its
-			 * connectionId, as it wasn't actually published by that connection
-			 */
-			if(item.connectionId != null && existingItem.connectionId != null &&
-					(!item.id.startsWith(item.connectionId) || !existingItem.id.startsWith(existingItem.connectionId)))
-				return existingItem.timestamp >= item.timestamp;
-
-			/*
-			 * (RTP2b2) Else split the id of both presence messages (which will be of the form
-			 * connid:msgSerial:index, e.g. aaaaaa:0:0) on the separator :, and parse the latter two as
-			 * integers. Compare them first by msgSerial numerically, then (if @msgSerial@s are equal) by
-			 * index numerically, larger being newer in both cases
-			 */
-			String[] itemComponents = item.id.split(":", 3);
-			String[] existingItemComponents = existingItem.id.split(":", 3);
-
-			if(itemComponents.length < 3 || existingItemComponents.length < 3)
-				return false;
-
-			try {
-				long messageSerial = Long.valueOf(itemComponents[1]);
-				long messageIndex = Long.valueOf(itemComponents[2]);
-				long existingMessageSerial = Long.valueOf(existingItemComponents[1]);
-				long existingMessageIndex = Long.valueOf(existingItemComponents[2]);
-
-				return existingMessageSerial > messageSerial ||
-						(existingMessageSerial == messageSerial && existingMessageIndex >= messageIndex);
-			}
-			catch(NumberFormatException e) {
-				return false;
-			}
+		synchronized boolean hasNewerItem(PresenceMember item) {
+			PresenceMember existingItem = members.get(item);
+			return existingItem != null && existingItem.supersedes(item);
 		}
 
 		/**
 		 * Get all members based on the current state (even if sync is in progress)
 		 * @return
 		 */
-		synchronized Collection<PresenceMessage> values() {
+		Collection<PresenceMessage> values() {
 			try { return values(false); } catch (InterruptedException|AblyException e) { return null; }
 		}
 
@@ -926,30 +943,35 @@ public class Presence {
 		 * @return
 		 * @throws InterruptedException
 		 */
-		synchronized Collection<PresenceMessage> values(boolean wait) throws AblyException, InterruptedException {
-			Set<PresenceMessage> result = new HashSet<PresenceMessage>();
+		Collection<PresenceMessage> values(boolean wait) throws AblyException, InterruptedException {
 			if(wait)
 				waitForSync();
-			result.addAll(members.values());
-			for(Iterator<PresenceMessage> it = result.iterator(); it.hasNext();) {
-				PresenceMessage entry = it.next();
-				if(entry.action == PresenceMessage.Action.absent) {
-					it.remove();
-				}
+			HashTrieMap<PresenceMember, PresenceMember> members = snapshot.members;
+			List<PresenceMessage> result = new ArrayList<PresenceMessage>(members.size());
+			for(PresenceMember member : members.values()) {
+				if(member.action != PresenceMessage.Action.absent)
+					result.add(member.toMessage());
 			}
 			return result;
 		}
 
+		/**
+		 * Get all members, including absent witnesses, in their compact form
+		 * @return
+		 */
+		Collection<PresenceMember> members() {
+			return snapshot.members.values();
+		}
+
 		/**
 		 * Remove a member.
 		 * @param item
 		 * @return
 		 */
-		synchronized boolean remove(PresenceMessage item) {
-			String key = item.memberKey();
-			if (hasNewerItem(key, item))
+		synchronized boolean remove(PresenceMember item) {
+			if (hasNewerItem(item))
 				return false;
-			PresenceMessage existingItem = members.remove(key);
+			PresenceMember existingItem = removeMember(item);
 			if(existingItem != null && existingItem.action == PresenceMessage.Action.absent)
 				return false;
 			return true;
@@ -964,8 +986,10 @@ public class Presence {
 			Log.v(TAG, "startSync(); channel = " + channel.name + "; syncInProgress = " + syncInProgress);
 			/* we might be called multiple times while a sync is in progress */
 			if(!syncInProgress) {
-				residualMembers = new HashSet<String>(members.keySet());
+				/* members not seen in this generation are residual at the end of the sync */
+				++syncGeneration;
 				syncInProgress = true;
+				publish();
 			}
 		}
 
@@ -978,25 +1002,21 @@ public class Presence {
 			if(syncInProgress) {
 				/* we can now strip out the absent members, as we have
 				 * received all of the out-of-order sync messages */
-				for(Iterator<Map.Entry<String, PresenceMessage>> it = members.entrySet().iterator(); it.hasNext();) {
-					Map.Entry<String, PresenceMessage> entry = it.next();
-					if(entry.getValue().action == PresenceMessage.Action.absent) {
-						it.remove();
-					}
+				if(!absentMembers.isEmpty()) {
+					for(PresenceMember item : new ArrayList<PresenceMember>(absentMembers))
+						removeMember(item);
 				}
 				/* any members that were present at the start of the sync,
-				 * and have not been seen in sync, can be removed */
-				for(String itemKey: residualMembers) {
-					/* clone presence message as it still can be in the internal presence map */
-					removedEntries.add((PresenceMessage)members.get(itemKey).clone());
-					members.remove(itemKey);
-				}
-				residualMembers = null;
+				 * and have not been seen in sync, can be removed; they are
+				 * at the head of the list, as seen members are moved to its tail */
+				while(leastRecentlySeen != null && leastRecentlySeen.syncGeneration != syncGeneration)
+					removedEntries.add(removeMember(leastRecentlySeen).toMessage());
 	
 				/* finish, notifying any waiters */
 				syncInProgress = false;
 			}
 			syncComplete = true;
+			publish();
 			notifyAll();
 			return removedEntries;
 		}
@@ -1006,13 +1026,156 @@ public class Presence {
 		 */
 		synchronized void clear() {
 			members.clear();
-			if(residualMembers != null)
-				residualMembers.clear();
+			clientIdIndex.clear();
+			connectionIdIndex.clear();
+			absentMembers.clear();
+			leastRecentlySeen = mostRecentlySeen = null;
+			publish();
+		}
+
+		/**
+		 * Make the updates applied so far visible to readers
+		 */
+		synchronized void publish() {
+			snapshot = new Snapshot(members.build(), clientIdIndex.build(), connectionIdIndex.build(),
+					!syncInProgress && syncComplete);
+		}
+
+		/**
+		 * Add or replace a member, keeping the indexes up to date
+		 */
+		private void putMember(PresenceMember item, PresenceMember existingItem) {
+			/* an existing member has the same clientId and connectionId, so
+			 * is replaced in the indexes */
+			members.put(item, item);
+			index(clientIdIndex, item.clientId, item);
+			index(connectionIdIndex, item.connectionId, item);
+			if(existingItem != null)
+				unlink(existingItem);
+			markSeen(item);
+			if(item.action == PresenceMessage.Action.absent)
+				absentMembers.add(item);
+			else if(existingItem != null && existingItem.action == PresenceMessage.Action.absent)
+				absentMembers.remove(existingItem);
+		}
+
+		/**
+		 * Remove a member, keeping the indexes up to date
+		 * @return the member removed, or null if there was none
+		 */
+		private PresenceMember removeMember(PresenceMember item) {
+			PresenceMember existingItem = members.get(item);
+			if(existingItem != null) {
+				members.remove(item);
+				unindex(existingItem);
+				unlink(existingItem);
+				if(existingItem.action == PresenceMessage.Action.absent)
+					absentMembers.remove(existingItem);
+			}
+			return existingItem;
+		}
+
+		/**
+		 * Record that a member has been seen in the current generation, by
+		 * moving it to the tail of the list
+		 */
+		private void markSeen(PresenceMember item) {
+			if(item.syncGeneration == syncGeneration && item == mostRecentlySeen)
+				return;
+			if(item.previous != null || item == leastRecentlySeen)
+				unlink(item);
+			item.syncGeneration = syncGeneration;
+			item.previous = mostRecentlySeen;
+			if(mostRecentlySeen != null)
+				mostRecentlySeen.next = item;
+			else
+				leastRecentlySeen = item;
+			mostRecentlySeen = item;
+		}
+
+		private void unlink(PresenceMember item) {
+			if(item.previous != null)
+				item.previous.next = item.next;
+			else
+				leastRecentlySeen = item.next;
+			if(item.next != null)
+				item.next.previous = item.previous;
+			else
+				mostRecentlySeen = item.previous;
+			item.previous = item.next = null;
+		}
+
+		private void unindex(PresenceMember item) {
+			unindex(clientIdIndex, item.clientId, item);
+			unindex(connectionIdIndex, item.connectionId, item);
+		}
+
+		private void index(HashTrieMap.Builder<String, HashTrieMap<PresenceMember, PresenceMember>> index, String value, PresenceMember item) {
+			if(value == null)
+				return;
+			HashTrieMap<PresenceMember, PresenceMember> entries = index.get(value);
+			if(entries == null)
+				entries = HashTrieMap.empty();
+			index.put(value, entries.plus(item, item));
+		}
+
+		private void unindex(HashTrieMap.Builder<String, HashTrieMap<PresenceMember, PresenceMember>> index, String value, PresenceMember item) {
+			HashTrieMap<PresenceMember, PresenceMember> entries = (value == null) ? null : index.get(value);
+			if(entries != null) {
+				entries = entries.minus(item);
+				if(entries.isEmpty())
+					index.remove(value);
+				else
+					index.put(value, entries);
+			}
+		}
+
+		private Collection<PresenceMember> indexed(HashTrieMap<String, HashTrieMap<PresenceMember, PresenceMember>> index, String value) {
+			HashTrieMap<PresenceMember, PresenceMember> entries = index.get(value);
+			return entries == null ? Collections.<PresenceMember>emptyList() : entries.values();
+		}
+
+		private Collection<PresenceMember> smaller(Collection<PresenceMember> a, Collection<PresenceMember> b) {
+			return b.size() < a.size() ? b : a;
 		}
 
 		private boolean syncInProgress;
-		private Collection<String> residualMembers;
-		private final HashMap<String, PresenceMessage> members = new HashMap<String, PresenceMessage>();
+		/* incremented at the start of each sync */
+		private int syncGeneration;
+		/* the list of members, in the order last seen, so in order of syncGeneration */
+		private PresenceMember leastRecentlySeen;
+		private PresenceMember mostRecentlySeen;
+		/* the members that are witnesses of a leave */
+		private final Set<PresenceMember> absentMembers = new HashSet<PresenceMember>();
+		/* the state being updated, guarded by this map's lock; each member is
+		 * its own key, by connectionId and clientId */
+		private final HashTrieMap.Builder<PresenceMember, PresenceMember> members = HashTrieMap.<PresenceMember, PresenceMember>empty().builder();
+		/* the members, by clientId and by connectionId */
+		private final HashTrieMap.Builder<String, HashTrieMap<PresenceMember, PresenceMember>> clientIdIndex = HashTrieMap.<String, HashTrieMap<PresenceMember, PresenceMember>>empty().builder();
+		private final HashTrieMap.Builder<String, HashTrieMap<PresenceMember, PresenceMember>> connectionIdIndex = HashTrieMap.<String, HashTrieMap<PresenceMember, PresenceMember>>empty().builder();
+		/* the state last published, read without the lock */
+		private volatile Snapshot snapshot = new Snapshot(members.build(), clientIdIndex.build(), connectionIdIndex.build(), false);
+	}
+
+	/**
+	 * An immutable state of a PresenceMap
+	 */
+	private static class Snapshot {
+		Snapshot(HashTrieMap<PresenceMember, PresenceMember> members,
+				HashTrieMap<String, HashTrieMap<PresenceMember, PresenceMember>> clientIdIndex,
+				HashTrieMap<String, HashTrieMap<PresenceMember, PresenceMember>> connectionIdIndex,
+				boolean synced) {
+			this.members = members;
+			this.clientIdIndex = clientIdIndex;
+			this.connectionIdIndex = connectionIdIndex;
+			this.synced = synced;
+		}
+
+		final HashTrieMap<PresenceMember, PresenceMember> members;
+		final HashTrieMap<String, HashTrieMap<PresenceMember, PresenceMember>> clientIdIndex;
+		final HashTrieMap<String, HashTrieMap<PresenceMember, PresenceMember>> connectionIdIndex;
+		/* whether the sync was complete when published */
+		final boolean synced;
 	}
 
 	private final PresenceMap presence = new PresenceMap();
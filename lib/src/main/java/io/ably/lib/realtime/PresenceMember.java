@@ -0,0 +1,204 @@
+package io.ably.lib.realtime;
+
+import io.ably.lib.types.PresenceMessage;
+
+/**
+ * The compact state of a member held in a presence map. The state is held
+ * in final fields, and does not change once the member is created; an
+ * update to a member replaces it with a new instance.
+ *
+ * The msgSerial and index of the member's id are parsed once, when the
+ * member is created, so that the comparison of two members for newness
+ * (RTP2b) does not allocate. The id itself is retained only if it cannot be
+ * reconstructed from the connectionId, msgSerial and index; clientId and
+ * connectionId are interned, so that they are shared by all members, and
+ * all presence maps, that refer to the same client or connection.
+ *
+ * Two members are equal if they have the same connectionId and clientId,
+ * whatever their state; a member is therefore its own key in a presence map.
+ *
+ * The member is not immutable, however: a member is held by at most one
+ * presence map, which keeps its sync bookkeeping in the member's mutable
+ * fields (syncGeneration, previous and next). These are read and written
+ * only under the map's lock, and are not part of the member's state. A
+ * member published in a snapshot is read without that lock, so readers of
+ * a snapshot must read only the final fields, which are safely published
+ * by the final field semantics; the mutable fields may be changed by the
+ * writer at any time and are not seen consistently without the lock.
+ */
+final class PresenceMember {
+
+	final String clientId;
+	final String connectionId;
+	final PresenceMessage.Action action;
+	final long timestamp;
+	final Object data;
+	final String encoding;
+
+	/* sync bookkeeping, guarded by the lock of the map holding this member;
+	 * not to be read from a snapshot */
+
+	/* the generation of the last sync in which this member was seen */
+	int syncGeneration;
+	/* neighbours in the map's list of members, in the order last seen */
+	PresenceMember previous;
+	PresenceMember next;
+
+	/**
+	 * Create a member from the given message, with the given action
+	 */
+	PresenceMember(PresenceMessage message, PresenceMessage.Action action) {
+		this.clientId = intern(message.clientId);
+		this.connectionId = intern(message.connectionId);
+		this.action = action;
+		this.timestamp = message.timestamp;
+		this.data = message.data;
+		this.encoding = message.encoding;
+		this.hash = hash(connectionId, clientId);
+
+		String id = message.id;
+		/* RTP2b1: a synthesized leave has an id that does not start with its connectionId */
+		synthesized = id != null && connectionId != null && !id.startsWith(connectionId);
+
+		/* RTP2b2: the id is otherwise of the form connid:msgSerial:index */
+		int serialStart = (id == null) ? -1 : id.indexOf(':') + 1;
+		int indexStart = (serialStart <= 0) ? -1 : id.indexOf(':', serialStart) + 1;
+		long serial = 0, index = 0;
+		boolean hasSerials = false, canonical = false;
+		if(indexStart > 0) {
+			serial = parseSerial(id, serialStart, indexStart - 1);
+			index = parseSerial(id, indexStart, id.length());
+			if(serial != INVALID && index != INVALID) {
+				hasSerials = true;
+				canonical = !synthesized && serialStart == connectionId.length() + 1;
+			} else {
+				/* not in canonical form; fall back to the general parse */
+				try {
+					serial = Long.valueOf(id.substring(serialStart, indexStart - 1));
+					index = Long.valueOf(id.substring(indexStart));
+					hasSerials = true;
+				} catch(NumberFormatException e) {}
+			}
+		}
+		this.msgSerial = serial;
+		this.index = index;
+		this.hasSerials = hasSerials;
+		this.id = canonical ? null : id;
+	}
+
+	/**
+	 * Create a member from the given message
+	 */
+	PresenceMember(PresenceMessage message) {
+		this(message, message.action);
+	}
+
+	/**
+	 * @return the id of the message from which this member was created
+	 */
+	String id() {
+		return (id != null || !hasSerials) ? id : connectionId + ':' + msgSerial + ':' + index;
+	}
+
+	/**
+	 * @return a new PresenceMessage with the state of this member
+	 */
+	PresenceMessage toMessage() {
+		PresenceMessage result = new PresenceMessage(action, clientId, data);
+		result.id = id();
+		result.timestamp = timestamp;
+		result.connectionId = connectionId;
+		result.encoding = encoding;
+		return result;
+	}
+
+	/**
+	 * Determine if this member is newer than, or the same as, the given member
+	 * for the same clientId and connectionId
+	 */
+	boolean supersedes(PresenceMember item) {
+		/*
+		 * (RTP2b1) If either presence message has a connectionId which is not an initial substring
+		 * of its id, compare them by timestamp numerically. (This will be the case when one of them
+		 * is a 'synthesized leave' event sent by realtime to indicate a connection disconnected
+		 * unexpectedly 15s ago. Such messages will have an id that does not correspond to its
+		 * connectionId, as it wasn't actually published by that connection
+		 */
+		if(item.connectionId != null && connectionId != null && (item.synthesized || synthesized))
+			return timestamp >= item.timestamp;
+
+		/*
+		 * (RTP2b2) Else compare the msgSerial and index parsed from the ids of both presence messages
+		 * (which will be of the form connid:msgSerial:index, e.g. aaaaaa:0:0); first by msgSerial
+		 * numerically, then (if @msgSerial@s are equal) by index numerically, larger being newer in both cases
+		 */
+		if(!item.hasSerials || !hasSerials)
+			return false;
+
+		return msgSerial > item.msgSerial || (msgSerial == item.msgSerial && index >= item.index);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(o == this)
+			return true;
+		if(!(o instanceof PresenceMember))
+			return false;
+		PresenceMember other = (PresenceMember)o;
+		return hash == other.hash && equal(connectionId, other.connectionId) && equal(clientId, other.clientId);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return "[PresenceMember connectionId=" + connectionId + " clientId=" + clientId + " action=" + action + ']';
+	}
+
+	/******************
+	 * private
+	 ******************/
+
+	private static String intern(String value) {
+		return (value == null) ? null : value.intern();
+	}
+
+	private static int hash(String connectionId, String clientId) {
+		return 31 * (connectionId == null ? 0 : connectionId.hashCode()) + (clientId == null ? 0 : clientId.hashCode());
+	}
+
+	private static boolean equal(String a, String b) {
+		/* the values are interned, so are usually identical */
+		return a == b || (a != null && a.equals(b));
+	}
+
+	/**
+	 * Parse the non-negative decimal in value[start, end), without allocating
+	 * @return the value, or INVALID if it is not in canonical form
+	 */
+	private static long parseSerial(String value, int start, int end) {
+		if(start >= end || (end - start > 1 && value.charAt(start) == '0'))
+			return INVALID;
+		long result = 0;
+		for(int i = start; i < end; i++) {
+			int digit = value.charAt(i) - '0';
+			if(digit < 0 || digit > 9 || result > (Long.MAX_VALUE - digit) / 10)
+				return INVALID;
+			result = result * 10 + digit;
+		}
+		return result;
+	}
+
+	private static final long INVALID = -1L;
+
+	/* null if the id is connectionId:msgSerial:index */
+	private final String id;
+	private final long msgSerial;
+	private final long index;
+	private final boolean hasSerials;
+	private final boolean synthesized;
+	private final int hash;
+}
@@ -0,0 +1,90 @@
+package io.ably.lib.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics on the effectiveness of websocket message compression
+ * (permessage-deflate) for a single connection.
+ *
+ * Byte counts relate to message payloads only; payload bytes are the
+ * sizes before compression or after decompression, and wire bytes are the
+ * sizes as transmitted.
+ */
+public class CompressionStats {
+
+	/**
+	 * Whether or not compression was negotiated with the server.
+	 */
+	public boolean isNegotiated() {
+		return negotiated;
+	}
+
+	public long getPayloadBytesIn() {
+		return payloadBytesIn.get();
+	}
+
+	public long getWireBytesIn() {
+		return wireBytesIn.get();
+	}
+
+	public long getPayloadBytesOut() {
+		return payloadBytesOut.get();
+	}
+
+	public long getWireBytesOut() {
+		return wireBytesOut.get();
+	}
+
+	/**
+	 * The compression ratio achieved for received messages: the
+	 * uncompressed size divided by the size received, or 1 if no
+	 * messages have been received.
+	 */
+	public double getInboundRatio() {
+		return ratio(payloadBytesIn.get(), wireBytesIn.get());
+	}
+
+	/**
+	 * The compression ratio achieved for sent messages: the uncompressed
+	 * size divided by the size sent, or 1 if no messages have been sent.
+	 */
+	public double getOutboundRatio() {
+		return ratio(payloadBytesOut.get(), wireBytesOut.get());
+	}
+
+	@Override
+	public String toString() {
+		return String.format("negotiated = %b; in = %d/%d (%.2f); out = %d/%d (%.2f)",
+				negotiated,
+				wireBytesIn.get(), payloadBytesIn.get(), getInboundRatio(),
+				wireBytesOut.get(), payloadBytesOut.get(), getOutboundRatio());
+	}
+
+	/******************
+	 * internal
+	 ******************/
+
+	void setNegotiated(boolean negotiated) {
+		this.negotiated = negotiated;
+	}
+
+	void addInbound(int wireBytes, int payloadBytes) {
+		wireBytesIn.addAndGet(wireBytes);
+		payloadBytesIn.addAndGet(payloadBytes);
+	}
+
+	void addOutbound(int wireBytes, int payloadBytes) {
+		wireBytesOut.addAndGet(wireBytes);
+		payloadBytesOut.addAndGet(payloadBytes);
+	}
+
+	private static double ratio(long payload, long wire) {
+		return (wire == 0) ? 1.0 : (double)payload / wire;
+	}
+
+	private volatile boolean negotiated;
+	private final AtomicLong payloadBytesIn = new AtomicLong();
+	private final AtomicLong wireBytesIn = new AtomicLong();
+	private final AtomicLong payloadBytesOut = new AtomicLong();
+	private final AtomicLong wireBytesOut = new AtomicLong();
+}
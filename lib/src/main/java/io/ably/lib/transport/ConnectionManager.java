@@ -13,12 +13,26 @@ import io.ably.lib.types.ErrorInfo;
 import io.ably.lib.types.ProtocolMessage;
 import io.ably.lib.types.ProtocolMessage.Action;
 import io.ably.lib.types.ProtocolSerializer;
+import io.ably.lib.util.LatencyHistogram;
+import io.ably.lib.util.LibraryThread;
 import io.ably.lib.util.Log;
+import io.ably.lib.util.TimerWheel;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class ConnectionManager implements ConnectListener {
@@ -39,6 +53,7 @@ public class ConnectionManager implements ConnectListener {
 	static ErrorInfo REASON_TOO_BIG = new ErrorInfo("Connection closed; message too large", 400, 40000);
 	static ErrorInfo REASON_NEVER_CONNECTED = new ErrorInfo("Unable to establish connection", 503, 80002);
 	static ErrorInfo REASON_TIMEDOUT = new ErrorInfo("Unable to establish connection", 503, 80014);
+	static ErrorInfo REASON_INBOUND_OVERFLOW = new ErrorInfo("Connection disconnected; received messages not processed in time", 503, 80003);
 
 	/***********************************
 	 * a class encapsulating information
@@ -153,6 +168,7 @@ public class ConnectionManager implements ConnectListener {
 
 	long maxIdleInterval = Defaults.maxIdleInterval;
 	long connectionStateTtl = Defaults.connectionStateTtl;
+	long maxMessageSize = Defaults.maxMessageSize;
 
 	public ErrorInfo getStateErrorInfo() {
 		return state.defaultErrorInfo;
@@ -170,8 +186,11 @@ public class ConnectionManager implements ConnectListener {
 		this.ably = ably;
 		this.options = ably.options;
 		this.connection = connection;
-		queuedMessages = new ArrayList<QueuedMessage>();
+		queuedMessages = new OfflineMessageQueue(this, options,
+				(options.offlineQueueJournal == null) ? null : new File(options.offlineQueueJournal));
 		pendingMessages = new PendingMessageQueue();
+		disconnectedBackoff = new RetryBackoff(options);
+		suspendedBackoff = new RetryBackoff(options);
 		state = states.get(ConnectionState.initialized);
 		String transportClass = Defaults.TRANSPORT;
 		try {
@@ -180,12 +199,17 @@ public class ConnectionManager implements ConnectListener {
 			if(options instanceof DebugOptions)
 				protocolListener = ((DebugOptions)options).protocolListener;
 
-			factory = ((ITransport.Factory)Class.forName(transportClass).newInstance());
+			factory = (options.transportFactory != null)
+					? options.transportFactory
+					: ((ITransport.Factory)Class.forName(transportClass).newInstance());
 		} catch(Exception e) {
 			String msg = "Unable to instance factory class";
 			Log.e(getClass().getName(), msg, e);
 			throw new RuntimeException(msg, e);
 		}
+		inboundQueue = (options.inboundQueueSize > 0)
+				? new InboundMessageQueue(this, options.inboundQueueSize, options.inboundQueueOverflowPolicy)
+				: null;
 		synchronized(this) {
 			setSuspendTime();
 		}
@@ -200,6 +224,36 @@ public class ConnectionManager implements ConnectListener {
 		return lastUsedHost;
 	}
 
+	/**
+	 * Get the queue of messages published while the connection is not
+	 * connected, for access to its metrics.
+	 */
+	public OfflineMessageQueue getOfflineQueue() {
+		return queuedMessages;
+	}
+
+	/**
+	 * Get the queue through which received messages are dispatched, for
+	 * access to its metrics, or null if messages are processed on the
+	 * transport thread.
+	 */
+	public InboundMessageQueue getInboundQueue() {
+		return inboundQueue;
+	}
+
+	/**
+	 * Get the websocket compression statistics for the current transport,
+	 * or null if there is no current websocket transport.
+	 */
+	public CompressionStats getCompressionStats() {
+		ITransport transport = this.transport;
+		if(transport instanceof WebSocketTransport)
+			return ((WebSocketTransport)transport).getCompressionStats();
+		if(transport instanceof NioWebSocketTransport)
+			return ((NioWebSocketTransport)transport).getCompressionStats();
+		return null;
+	}
+
 	/*********************
 	 * state management
 	 *********************/
@@ -210,7 +264,7 @@ public class ConnectionManager implements ConnectListener {
 				state.state == ConnectionState.connecting;
 
 		if(!connectionExist && !connectionAttemptInProgress) {
-			startThread(); // Start thread if not already started.
+			startActor(); // Start the state machine if not already started.
 			requestState(ConnectionState.connecting);
 		}
 	}
@@ -230,6 +284,7 @@ public class ConnectionManager implements ConnectListener {
 	 */
 	private boolean setState(StateIndication newState) {
 		ConnectionStateListener.ConnectionStateChange change;
+		List<OfflineMessageQueue.Failed> unsent = null;
 		StateInfo newStateInfo = states.get(newState.state);
 		synchronized(this) {
 			if(newState.state == state.state) {
@@ -241,9 +296,31 @@ public class ConnectionManager implements ConnectListener {
 				reason = newStateInfo.defaultErrorInfo;
 			}
 			Log.v(TAG, "setState(): setting " + newState.state + "; reason " + reason);
-			change = new ConnectionStateListener.ConnectionStateChange(state.state, newState.state, newStateInfo.timeout, reason);
+			/* the delay before retrying from the disconnected or suspended
+			 * state grows with each consecutive attempt in that state; each
+			 * state has its own sequence, so that retries from suspended do
+			 * not inherit the delay reached by earlier retries from
+			 * disconnected. Both start again once connected. On losing a
+			 * connection, the first retry is immediate unless jittered */
+			long timeout = newStateInfo.timeout;
+			if(newStateInfo.retry) {
+				RetryBackoff backoff = (newState.state == ConnectionState.suspended) ? suspendedBackoff : disconnectedBackoff;
+				if(state.state == ConnectionState.connected && newState.state == ConnectionState.disconnected)
+					timeout = Math.max(1, backoff.firstDelay(timeout));
+				else
+					timeout = Math.max(1, backoff.nextDelay(timeout));
+			} else if(newStateInfo.sendEvents) {
+				disconnectedBackoff.reset();
+				suspendedBackoff.reset();
+			}
+			change = new ConnectionStateListener.ConnectionStateChange(state.state, newState.state, timeout, reason);
 			newStateInfo.host = newState.currentHost;
 			state = newStateInfo;
+			/* any connectivity check in progress no longer applies */
+			connectivityCheck = null;
+			stateTimeout = timeout;
+			/* the timeout of the previous state no longer applies */
+			cancelStateTimer();
 
 			if(change.current != change.previous) {
 				/* any state change clears pending reauth flag */
@@ -251,13 +328,20 @@ public class ConnectionManager implements ConnectListener {
 			}
 			if(state.terminal) {
 				clearTransport();
-				stopThread();
+				stopActor();
+				/* release the journal, if any, to a later client */
+				unsent = queuedMessages.close(change.reason);
 			}
 		}
 
+		/* tell publishers of journaled messages that this client will not send them */
+		OfflineMessageQueue.notifyFailed(unsent);
+
 		/* broadcast state change */
 		connection.onConnectionStateChange(change);
 
+		updateLatencyProbe(state.state == ConnectionState.connected);
+
 		/* if now connected, send queued messages, etc */
 		if(state.sendEvents) {
 			sendQueuedMessages();
@@ -265,6 +349,8 @@ public class ConnectionManager implements ConnectListener {
 				channel.setConnected();
 			}
 		} else { 
+			/* queue or fail anything that was waiting to be sent */
+			drainOutbound();
 			if(!state.queueEvents) {
 				failQueuedMessages(state.defaultErrorInfo);
 			}
@@ -307,7 +393,7 @@ public class ConnectionManager implements ConnectListener {
 	public synchronized void requestState(StateIndication state) {
 		Log.v(TAG, "requestState(): requesting " + state.state + "; id = " + connection.key);
 		requestedState = state;
-		notify();
+		scheduleActor();
 	}
 
 	synchronized void notifyState(ITransport transport, StateIndication state) {
@@ -324,51 +410,129 @@ public class ConnectionManager implements ConnectListener {
 
 	synchronized void notifyState(StateIndication state) {
 		Log.v(TAG, "notifyState(): notifying " + state.state + "; id = " + connection.key);
-		if (Thread.currentThread() == mgrThread) {
+		if (Thread.currentThread() == actorThread) {
 			handleStateChange(state);
 		}
 		else {
 			indicatedState = state;
-			notify();
+			scheduleActor();
 		}
 	}
 
+	/**
+	 * Send a heartbeat with a unique id, and wait for the heartbeat with
+	 * the same id in response. The round-trip time is recorded in the
+	 * latency histogram. No thread is used while waiting; the timeout is
+	 * scheduled on the shared timer.
+	 */
 	public void ping(final CompletionListener listener) {
 		if(state.state != ConnectionState.connected) {
 			if(listener != null)
 				listener.onError(new ErrorInfo("Unable to ping service; not connected", 40000, 400));
 			return;
 		}
-		if(listener != null) {
-			Runnable waiter = new Runnable() {
-				public void run() {
-					boolean pending;
-					synchronized(heartbeatWaiters) {
-						pending = heartbeatWaiters.contains(this);
-						if(pending)
-							try { heartbeatWaiters.wait(HEARTBEAT_TIMEOUT); } catch(InterruptedException ie) {}
-
-						pending = heartbeatWaiters.remove(this);
+		final PendingPing ping = new PendingPing(pingIdPrefix + pingCount.incrementAndGet(), listener);
+		ping.timeout = TimerWheel.getInstance().schedule(new TimerWheel.Task() {
+			@Override
+			public void run(TimerWheel.Timeout timeout) {
+				if(removePendingPing(ping.id) != null) {
+					latency.recordTimeout();
+					if(ping.listener != null) {
+						TimerWheel.getCallbackExecutor().execute(new Runnable() {
+							@Override
+							public void run() {
+								ping.fail(new ErrorInfo("Timed out waiting for heartbeat response", 50000, 500));
+							}
+						});
 					}
-					if(pending)
-						listener.onError(new ErrorInfo("Timed out waiting for heartbeat response", 50000, 500));
-					else
-						listener.onSuccess();
 				}
-			};
-			synchronized(heartbeatWaiters) {
-				heartbeatWaiters.add(waiter);
-				(new Thread(waiter)).start();
 			}
+		}, HEARTBEAT_TIMEOUT);
+		ProtocolMessage heartbeat = new ProtocolMessage(ProtocolMessage.Action.heartbeat);
+		heartbeat.id = ping.id;
+		synchronized(pendingPings) {
+			pendingPings.put(ping.id, ping);
+			ping.sentAt = System.nanoTime();
 		}
 		try {
-			send(new ProtocolMessage(ProtocolMessage.Action.heartbeat), false, null);
+			send(heartbeat, false, null);
 		} catch (AblyException e) {
-			if(listener != null)
-				listener.onError(e.errorInfo);
+			if(removePendingPing(ping.id) != null) {
+				ping.timeout.cancel();
+				ping.fail(e.errorInfo);
+			}
+		}
+	}
+
+	/**
+	 * Get the histogram of connection round-trip times, measured by
+	 * {@link #ping} and by the periodic latency probe.
+	 */
+	public LatencyHistogram getLatencyHistogram() {
+		return latency;
+	}
+
+	private static class PendingPing {
+		final String id;
+		final CompletionListener listener;
+		long sentAt;
+		TimerWheel.Timeout timeout;
+		PendingPing(String id, CompletionListener listener) {
+			this.id = id;
+			this.listener = listener;
+		}
+		void succeed() {
+			if(listener != null) {
+				try {
+					listener.onSuccess();
+				} catch(Throwable t) {
+					Log.e(TAG, "ping(): Unexpected exception calling listener", t);
+				}
+			}
+		}
+		void fail(ErrorInfo reason) {
+			if(listener != null) {
+				try {
+					listener.onError(reason);
+				} catch(Throwable t) {
+					Log.e(TAG, "ping(): Unexpected exception calling listener", t);
+				}
+			}
+		}
+	}
+
+	private PendingPing removePendingPing(String id) {
+		synchronized(pendingPings) {
+			return pendingPings.remove(id);
+		}
+	}
+
+	/**
+	 * Start or stop the periodic latency probe, which pings while connected.
+	 */
+	private void updateLatencyProbe(boolean connected) {
+		synchronized(pendingPings) {
+			if(latencyProbeTimer != null) {
+				latencyProbeTimer.cancel();
+				latencyProbeTimer = null;
+			}
+			if(connected && options.latencyProbeInterval > 0)
+				latencyProbeTimer = TimerWheel.getInstance().schedule(latencyProbeTask, options.latencyProbeInterval);
 		}
 	}
 
+	private final TimerWheel.Task latencyProbeTask = new TimerWheel.Task() {
+		@Override
+		public void run(TimerWheel.Timeout timeout) {
+			synchronized(pendingPings) {
+				if(latencyProbeTimer != timeout)
+					return;
+				latencyProbeTimer = TimerWheel.getInstance().schedule(this, options.latencyProbeInterval);
+			}
+			ping(null);
+		}
+	};
+
 	/**
 	 * (RTC8) For a realtime client, Auth.authorize instructs the library to
 	 * obtain a token using the provided tokenParams and authOptions and upgrade
@@ -463,7 +627,34 @@ public class ConnectionManager implements ConnectListener {
 	 * @throws AblyException
 	 */
 	public void onMessage(ITransport transport, ProtocolMessage message) throws AblyException {
+		LibraryThread.mark();
+		if (transport != null && this.transport != transport) {
+			return;
+		}
+		if (transport != null && inboundQueue != null) {
+			/* hand off to the dispatcher thread */
+			if (!inboundQueue.offer(transport, message)) {
+				/* the message has been discarded; disconnect, so that
+				 * it is received again once the connection resumes */
+				notifyState(transport, new StateIndication(ConnectionState.disconnected, REASON_INBOUND_OVERFLOW));
+				transport.close(false);
+			}
+			return;
+		}
+		dispatchMessage(transport, message);
+	}
+
+	/**
+	 * Process a message received from the transport. This happens on the
+	 * transport thread, unless there is an inbound queue, in which case
+	 * it happens on the queue's dispatcher thread.
+	 */
+	void dispatchMessage(ITransport transport, ProtocolMessage message) throws AblyException {
+		LibraryThread.mark();
 		if (transport != null && this.transport != transport) {
+			/* the transport has been superseded while the message was queued;
+			 * as the connection serial hasn't been updated, the message
+			 * will be received again if the connection is resumed */
 			return;
 		}
 		if (Log.level <= Log.VERBOSE) {
@@ -509,7 +700,7 @@ public class ConnectionManager implements ConnectListener {
 				case auth:
 					synchronized (this) {
 						pendingReauth = true;
-						notify();
+						scheduleActor();
 					}
 					break;
 				default:
@@ -571,9 +762,11 @@ public class ConnectionManager implements ConnectListener {
 			/* The connection id has changed. Reset the message serial and the
 			 * pending message queue (which fails the messages currently in
 			 * there). */
-			pendingMessages.reset(msgSerial,
-					new ErrorInfo("Connection resume failed", 500, 50000));
-			msgSerial = 0;
+			synchronized(outboundLock) {
+				pendingMessages.reset(msgSerial,
+						new ErrorInfo("Connection resume failed", 500, 50000));
+				msgSerial = 0;
+			}
 		}
 		connection.id = message.connectionId;
 		if(message.connectionSerial != null) {
@@ -585,6 +778,8 @@ public class ConnectionManager implements ConnectListener {
 		/* Get any parameters from connectionDetails. */
 		maxIdleInterval = connectionDetails.maxIdleInterval;
 		connectionStateTtl = connectionDetails.connectionStateTtl;
+		maxMessageSize = (connectionDetails.maxMessageSize != null && connectionDetails.maxMessageSize > 0) ?
+				connectionDetails.maxMessageSize : Defaults.maxMessageSize;
 
 		/* set the clientId resolved from token, if any */
 		String clientId = connectionDetails.clientId;
@@ -627,40 +822,236 @@ public class ConnectionManager implements ConnectListener {
 	}
 
 	private void onHeartbeat(ProtocolMessage message) {
-		synchronized(heartbeatWaiters) {
-			heartbeatWaiters.clear();
-			heartbeatWaiters.notifyAll();
+		if(message.id == null) {
+			/* a heartbeat initiated by the server, or a response from a
+			 * server that does not echo the id; this cannot be attributed
+			 * to a ping, so completes them all without recording a sample */
+			List<PendingPing> pings;
+			synchronized(pendingPings) {
+				pings = new ArrayList<PendingPing>(pendingPings.values());
+				pendingPings.clear();
+			}
+			for(PendingPing ping : pings) {
+				ping.timeout.cancel();
+				ping.succeed();
+			}
+			return;
+		}
+		PendingPing ping = removePendingPing(message.id);
+		if(ping != null) {
+			latency.record(System.nanoTime() - ping.sentAt);
+			ping.timeout.cancel();
+			ping.succeed();
 		}
 	}
 
 	/**************************
-	 * ConnectionManager thread
+	 * ConnectionManager actor
 	 **************************/
 
-	private boolean startThread() {
-		boolean creating = false;
+	/*
+	 * State requests and indications are handled by an actor that runs
+	 * on an executor shared by all clients, so a client has no thread of
+	 * its own. At most one instance of the actor runs at a time for a
+	 * given ConnectionManager; it runs until there are no further events
+	 * to process, and is scheduled again when an event arrives or the
+	 * timeout of the current state expires.
+	 */
+
+	private void startActor() {
 		synchronized(this) {
-			if(mgrThread == null) {
-				mgrThread = new CMThread();
+			if(!actorStarted) {
+				actorStarted = true;
 				state = states.get(ConnectionState.initialized);
-				creating = true;
+				stateTimeout = state.timeout;
+			}
+		}
+	}
+
+	private void stopActor() {
+		actorStarted = false;
+		cancelStateTimer();
+	}
+
+	/**
+	 * Ensure that the actor is scheduled to process pending events.
+	 * Called with the lock held.
+	 */
+	private void scheduleActor() {
+		if(!actorStarted || actorScheduled) {
+			return;
+		}
+		actorScheduled = true;
+		getActorExecutor().execute(actor);
+	}
+
+	private void cancelStateTimer() {
+		if(stateTimer != null) {
+			stateTimer.cancel();
+			stateTimer = null;
+		}
+		stateTimerExpired = false;
+	}
+
+	/**
+	 * Schedule expiry of the current state, if it has a timeout, replacing
+	 * any timer already scheduled. Called with the lock held.
+	 */
+	private void scheduleStateTimer() {
+		cancelStateTimer();
+		if(stateTimeout > 0) {
+			stateTimer = TimerWheel.getInstance().schedule(stateTimerTask, stateTimeout);
+		}
+	}
+
+	private final TimerWheel.Task stateTimerTask = new TimerWheel.Task() {
+		@Override
+		public void run(TimerWheel.Timeout timeout) {
+			synchronized(ConnectionManager.this) {
+				if(stateTimer != timeout) {
+					return;
+				}
+				stateTimer = null;
+				stateTimerExpired = true;
+				scheduleActor();
 			}
 		}
-		if(creating) {
-			synchronized(mgrThread) {
-				mgrThread.start();
-				try { mgrThread.wait(); } catch(InterruptedException ie) {}
+	};
+
+	private final Runnable actor = new Runnable() {
+		@Override
+		public void run() {
+			LibraryThread.mark();
+			ConnectionManager cm = ConnectionManager.this;
+			while(true) {
+				/*
+				 * Until there are no more events we:
+				 * - get a state change;
+				 * - enact that change
+				 */
+				StateIndication stateChange = null;
+
+				/* Hold the lock until we obtain a state change */
+				synchronized(cm) {
+					actorThread = Thread.currentThread();
+					while(stateChange == null) {
+						if(!actorStarted) {
+							exitActor();
+							return;
+						}
+
+						/* if some action was requested, handle it */
+						if (requestedState != null) {
+							handleStateRequest();
+							continue;
+						}
+
+						/* if we were told that a transition needs to be
+						 * enacted, handle that (outside the lock) */
+						if (indicatedState != null) {
+							stateChange = indicatedState;
+							indicatedState = null;
+							break;
+						}
+
+						if (pendingReauth) {
+							handleReauth();
+							continue;
+						}
+
+						if (reauthError != null) {
+							/* report error in UPDATE event */
+							if (state.state == ConnectionState.connected)
+								connection.emitUpdate(reauthError);
+							reauthError = null;
+							continue;
+						}
+
+						if (connectivityCheck != null && connectivityCheck.done) {
+							ConnectivityCheck check = connectivityCheck;
+							connectivityCheck = null;
+							stateChange = onConnectivityChecked(check);
+							continue;
+						}
+
+						if (stateTimerExpired) {
+							stateTimerExpired = false;
+							/* if our state wants us to retry on timer expiry, do that */
+							if (state.retry && !suppressRetry) {
+								requestState(ConnectionState.connecting);
+								continue;
+							}
+
+							/* the timer expired while we were in the
+							 * connecting/closing state */
+							stateChange = checkSuspend(new StateIndication(ConnectionState.disconnected, REASON_TIMEDOUT));
+							continue;
+						}
+
+						/* nothing more to do; wait for the next event
+						 * or for expiry of the current state */
+						scheduleStateTimer();
+						exitActor();
+						return;
+					}
+					actorThread = null;
+				}
+
+				/* Enact the change without the lock */
+				handleStateChange(stateChange);
 			}
 		}
 
-		return creating;
+		private void exitActor() {
+			actorThread = null;
+			actorScheduled = false;
+		}
+	};
+
+	/**
+	 * Get the executor on which the actors of all ConnectionManagers run.
+	 * Its threads are created on demand, up to Defaults.CONNECTION_MANAGER_THREADS,
+	 * and exit when idle.
+	 */
+	private static synchronized ExecutorService getActorExecutor() {
+		if(actorExecutor == null) {
+			int size = Math.max(1, Defaults.CONNECTION_MANAGER_THREADS);
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, ACTOR_THREAD_KEEPALIVE, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger threadCount = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ably-connection-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			actorExecutor = executor;
+		}
+		return actorExecutor;
 	}
 
-	private void stopThread() {
-		if(mgrThread != null) {
-			mgrThread.setExiting();
-			mgrThread = null;
+	/**
+	 * Get the executor on which the actors make requests that may block,
+	 * such as a connectivity check or the renewal of a token, so that these
+	 * don't hold up the actors of other clients. Its threads are created on
+	 * demand, without limit, and exit when idle.
+	 */
+	private static synchronized ExecutorService getBlockingExecutor() {
+		if(blockingExecutor == null) {
+			blockingExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, ACTOR_THREAD_KEEPALIVE, TimeUnit.MILLISECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger threadCount = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ably-io-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 		}
+		return blockingExecutor;
 	}
 
 	private void handleStateRequest() {
@@ -758,8 +1149,11 @@ public class ConnectionManager implements ConnectListener {
 				break;
 			case connected:
 				setSuspendTime();
-				/* we were connected, so retry immediately */
-				if(!suppressRetry) {
+				/* we were connected, so retry immediately; or, if retries
+				 * are jittered, once the disconnected state's randomised
+				 * timeout expires, so that the clients of a server that
+				 * restarts do not all reconnect together */
+				if(!suppressRetry && !disconnectedBackoff.isJittered()) {
 					requestState(ConnectionState.connecting);
 				}
 				break;
@@ -797,104 +1191,79 @@ public class ConnectionManager implements ConnectListener {
 		 */
 
 		if(pendingConnect != null && (stateChange.reason == null || stateChange.reason.statusCode >= 500)) {
-			if (checkConnectivity()) {
-				/* we will try a fallback host */
-				String hostFallback = hosts.getFallback(pendingConnect.host);
-				if (hostFallback != null) {
-					Log.v(TAG, "checkSuspend: fallback to " + hostFallback);
-					requestState(new StateIndication(ConnectionState.connecting, null, hostFallback, pendingConnect.host));
-					/* returning null ensures we stay in the connecting state */
-					return null;
-				}
+			synchronized(this) {
+				if(connectivityCheck == null)
+					startConnectivityCheck(stateChange, pendingConnect.host);
 			}
+			/* returning null ensures we stay in the connecting state
+			 * until the result of the check is known */
+			return null;
 		}
+		return checkSuspendNoFallback(stateChange);
+	}
+
+	private StateIndication checkSuspendNoFallback(StateIndication stateChange) {
 		Log.v(TAG, "checkSuspend: not falling back");
 		boolean suspendMode = System.currentTimeMillis() > suspendTime;
 		ConnectionState expiredState = suspendMode ? ConnectionState.suspended : ConnectionState.disconnected;
 		return new StateIndication(expiredState, stateChange.reason);
 	}
 
-	private void tryWait(long timeout) {
-		if(requestedState == null && indicatedState == null && !pendingReauth) {
-			try {
-				if(timeout == 0) {
-					wait();
-				} else {
-					wait(timeout);
-				}
-			} catch (InterruptedException e) {}
+	/**
+	 * A check of connectivity after a failed connection attempt, made on
+	 * the blocking executor; its result is handled by the actor.
+	 */
+	private static class ConnectivityCheck {
+		final StateIndication stateChange;
+		final String host;
+		boolean done;
+		boolean connected;
+		ConnectivityCheck(StateIndication stateChange, String host) {
+			this.stateChange = stateChange;
+			this.host = host;
 		}
 	}
 
-	class CMThread extends Thread {
-
-		private boolean exiting = false;
-		private void setExiting() {
-			exiting = true;
-		}
-
-		public void run() {
-			ConnectionManager cm = ConnectionManager.this;
-			while(!exiting) {
-				/*
-				 * Until we're commited to exit we:
-				 * - get a state change;
-				 * - enact that change
-				 */
-				StateIndication stateChange = null;
-
-				/* Hold the lock until we obtain a state change */
-				synchronized(cm) {
-					/* if we're initialising, then tell the starting thread that
-					 * we're ready to receive events */
-					if (state.state == ConnectionState.initialized) {
-						synchronized(this) {
-							notify();
-						}
-					}
-
-					while(!exiting && stateChange == null) {
-						/* wait for a state change event or for expiry of the current state */
-						tryWait(state.timeout);
-
-						/* if during the wait some action was requested, handle it */
-						if (requestedState != null) {
-							handleStateRequest();
-							continue;
-						}
-
-						/* if during the wait we were told that a transition
-						 * needs to be enacted, handle that (outside the lock) */
-						if (indicatedState != null) {
-							stateChange = indicatedState;
-							indicatedState = null;
-							break;
-						}
-
-						/* if our state wants us to retry on timer expiry, do that */
-						if (state.retry && !suppressRetry) {
-							requestState(ConnectionState.connecting);
-							continue;
-						}
-
-						if (pendingReauth) {
-							handleReauth();
-							break;
-						}
-
-						/* no indicated state or requested action, so the timer
-						 * expired while we were in the connecting/closing state */
-						stateChange = checkSuspend(new StateIndication(ConnectionState.disconnected, REASON_TIMEDOUT));
-					}
+	/**
+	 * Start a connectivity check. Called with the lock held.
+	 */
+	private void startConnectivityCheck(StateIndication stateChange, String host) {
+		final ConnectivityCheck check = new ConnectivityCheck(stateChange, host);
+		connectivityCheck = check;
+		getBlockingExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean connected = checkConnectivity();
+				synchronized(ConnectionManager.this) {
+					/* ignore if superseded by a change of state */
+					if(connectivityCheck != check)
+						return;
+					check.connected = connected;
+					check.done = true;
+					scheduleActor();
 				}
-				if(exiting) { break; }
+			}
+		});
+	}
 
-				/* Enact the change without the lock */
-				if (stateChange != null) {
-					handleStateChange(stateChange);
-				}
+	/**
+	 * Try a fallback host if the connectivity check succeeded; otherwise
+	 * become disconnected or suspended. Called by the actor with the lock held.
+	 * @return the state change, or null if trying a fallback host
+	 */
+	private StateIndication onConnectivityChecked(ConnectivityCheck check) {
+		if(state.state != ConnectionState.connecting)
+			return null;
+		if(check.connected) {
+			/* we will try a fallback host */
+			String hostFallback = hosts.getFallback(check.host);
+			if (hostFallback != null) {
+				Log.v(TAG, "checkSuspend: fallback to " + hostFallback);
+				requestState(new StateIndication(ConnectionState.connecting, null, hostFallback, check.host));
+				return null;
 			}
 		}
+		return checkSuspendNoFallback(check.stateChange);
 	}
 
 	private void handleReauth() {
@@ -903,22 +1272,24 @@ public class ConnectionManager implements ConnectListener {
 		if (state.state == ConnectionState.connected) {
 			Log.v(TAG, "Server initiated reauth");
 
-			ErrorInfo errorInfo = null;
-
 			/*
 			 * It is a server initiated reauth, it is issued while previous token is still valid for ~30 seconds,
-			 * we have to clear cached token and get a new one
+			 * we have to clear cached token and get a new one; this may make a request, or call the
+			 * authCallback, so is done on the blocking executor, and any error is reported by the actor
 			 */
-			try {
-				ably.auth.renew();
-			} catch (AblyException e) {
-				errorInfo = e.errorInfo;
-			}
-
-			/* report error in UPDATE event */
-			if (state.state == ConnectionState.connected && errorInfo != null) {
-				connection.emitUpdate(errorInfo);
-			}
+			getBlockingExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ably.auth.renew();
+					} catch (AblyException e) {
+						synchronized(ConnectionManager.this) {
+							reauthError = e.errorInfo;
+							scheduleActor();
+						}
+					}
+				}
+			});
 		}
 	}
 
@@ -967,6 +1338,8 @@ public class ConnectionManager implements ConnectListener {
 		if (host == null)
 			host = hosts.getHost();
 		checkConnectionStale();
+		/* this attempt supersedes any connectivity check after the last */
+		connectivityCheck = null;
 		pendingConnect = new ConnectParams(options);
 		pendingConnect.host = host;
 		lastUsedHost = host;
@@ -990,10 +1363,35 @@ public class ConnectionManager implements ConnectListener {
 		}
 		if (oldTransport != null)
 			oldTransport.abort(REASON_TIMEDOUT);
-		transport.connect(this);
+		connectTransport(transport);
 		return true;
 	}
 
+	/**
+	 * Connect the given transport on the blocking executor: connecting may
+	 * obtain a token, making a request or calling the authCallback, and may
+	 * resolve the host, so it must not hold up the actors of other clients.
+	 * The outcome is indicated to the actor by the transport, as before.
+	 */
+	private void connectTransport(final ITransport transport) {
+		getBlockingExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				if(isSuperseded(transport))
+					return;
+				transport.connect(ConnectionManager.this);
+				/* a close or abort made while connecting may have found
+				 * nothing yet to close */
+				if(isSuperseded(transport))
+					transport.close(false);
+			}
+		});
+	}
+
+	private synchronized boolean isSuperseded(ITransport transport) {
+		return this.transport != transport;
+	}
+
 	private void closeImpl(StateIndication request) {
 		boolean isConnected = state.state == ConnectionState.connected;
 
@@ -1053,90 +1451,230 @@ public class ConnectionManager implements ConnectListener {
 	public static class QueuedMessage {
 		public final ProtocolMessage msg;
 		public CompletionListener listener;
-		private boolean isMerged;
+		/* whether the message may be queued while not connected */
+		public final boolean queueEvents;
 		public QueuedMessage(ProtocolMessage msg, CompletionListener listener) {
+			this(msg, listener, true);
+		}
+		public QueuedMessage(ProtocolMessage msg, CompletionListener listener, boolean queueEvents) {
 			this.msg = msg;
 			this.listener = listener;
+			this.queueEvents = queueEvents;
 		}
 	}
 
 	public void send(ProtocolMessage msg, boolean queueEvents, CompletionListener listener) throws AblyException {
+		/* when connected, publishers only enqueue the message, and don't contend
+		 * for the lock that guards the state machine */
+		if(state.sendEvents) {
+			sendOutbound(new QueuedMessage(msg, listener, queueEvents));
+			return;
+		}
 		StateInfo state;
+		QueuedMessage queued = new QueuedMessage(msg, listener, queueEvents);
+		List<OfflineMessageQueue.Failed> failed = null;
 		synchronized(this) {
 			state = this.state;
 			if(state.sendEvents) {
-				sendImpl(msg, listener);
+				sendOutbound(queued);
 				return;
 			}
-			if(state.queueEvents && queueEvents) {
-				int queueSize = queuedMessages.size();
-				if(queueSize > 0) {
-					QueuedMessage lastQueued = queuedMessages.get(queueSize - 1);
-					ProtocolMessage lastMessage = lastQueued.msg;
-					if(ProtocolMessage.mergeTo(lastMessage, msg)) {
-						if(!lastQueued.isMerged) {
-							lastQueued.listener = new CompletionListener.Multicaster(lastQueued.listener);
-							lastQueued.isMerged = true;
+			/* the message is queued even if the queue is full and the
+			 * overflow policy is block, unless published on a library
+			 * thread; publishers wait beforehand, in awaitQueueSpace(),
+			 * without holding any other lock */
+			if(state.queueEvents && queueEvents)
+				failed = queuedMessages.add(queued);
+		}
+		if(state.queueEvents && queueEvents) {
+			OfflineMessageQueue.notifyFailed(failed);
+			return;
+		}
+		throw AblyException.fromErrorInfo(state.defaultErrorInfo);
+	}
+
+	/**
+	 * Wait until there is space in the offline queue for the given message,
+	 * if the connection is queueing messages and the queue's overflow policy
+	 * is block. This must be called before send(), without holding any lock,
+	 * as the wait may only end once received messages have been processed.
+	 * A library thread does not wait; its message fails instead when sent
+	 * if the queue is full.
+	 */
+	public void awaitQueueSpace(ProtocolMessage msg) {
+		if(state.sendEvents || LibraryThread.isCurrent())
+			return;
+		QueuedMessage queued = new QueuedMessage(msg, null);
+		synchronized(this) {
+			while(!state.sendEvents && state.queueEvents && queuedMessages.mustWait(queued)) {
+				/* releases the lock while waiting, then check the state again */
+				queuedMessages.await();
+			}
+		}
+	}
+
+	/**
+	 * Add a message to the outbound queue, and drain the queue unless
+	 * another thread is already doing so. Any number of threads may add
+	 * messages concurrently, but only one at a time writes to the transport,
+	 * so messages are assigned serials and sent in the order they are
+	 * dequeued.
+	 */
+	private void sendOutbound(QueuedMessage msg) {
+		outboundQueue.add(msg);
+		drainOutbound();
+	}
+
+	private void drainOutbound() {
+		/* after releasing the drain flag, check again for messages added by
+		 * other threads that saw the flag set before it was released */
+		while((outboundHeld != null || !outboundQueue.isEmpty()) && outboundDraining.compareAndSet(false, true)) {
+			boolean held = false;
+			try {
+				QueuedMessage msg;
+				while((msg = nextOutbound()) != null) {
+					ErrorInfo sendError = null;
+					boolean sent = false;
+					synchronized(outboundLock) {
+						if(state.sendEvents && transport != null) {
+							try {
+								sendImpl(msg);
+							} catch(AblyException e) {
+								sendError = e.errorInfo;
+							}
+							sent = true;
 						}
-						((CompletionListener.Multicaster)lastQueued.listener).add(listener);
-						return;
+					}
+					if(sent) {
+						if(sendError != null)
+							failOutbound(msg, sendError);
+						continue;
+					}
+					if(!requeueOutbound(msg)) {
+						/* keep the message ahead of those queued after it */
+						outboundHeld = msg;
+						held = true;
+						break;
 					}
 				}
-				queuedMessages.add(new QueuedMessage(msg, listener));
-				return;
+			} finally {
+				outboundDraining.set(false);
 			}
+			/* the transport has gone, but the state is yet to change; the
+			 * actor drains the queue again once it has changed */
+			if(held && state.sendEvents && transport == null)
+				return;
 		}
-		throw AblyException.fromErrorInfo(state.defaultErrorInfo);
 	}
 
-	private void sendImpl(ProtocolMessage message, CompletionListener listener) throws AblyException {
-		if(transport == null) {
-			Log.v(TAG, "sendImpl(): Discarding message; transport unavailable");
-			return;
-		}
-		if(ProtocolMessage.ackRequired(message)) {
-			message.msgSerial = msgSerial++;
-			pendingMessages.push(new QueuedMessage(message, listener));
+	/**
+	 * Get the next message to send: any message held after a failed
+	 * attempt, or otherwise the head of the outbound queue. Must be
+	 * called holding the drain flag.
+	 */
+	private QueuedMessage nextOutbound() {
+		QueuedMessage msg = outboundHeld;
+		if(msg != null) {
+			outboundHeld = null;
+			return msg;
 		}
-		if(protocolListener != null) {
-			protocolListener.onRawMessageSend(message);
+		return outboundQueue.poll();
+	}
+
+	/**
+	 * Handle a message from the outbound queue that couldn't be sent because
+	 * the connection was no longer connected when it was dequeued: queue it
+	 * until the connection is resumed, if both the state and the message
+	 * permit, and otherwise fail it.
+	 * @return false if the message could be neither sent nor requeued,
+	 * because the state has yet to change from connected
+	 */
+	private boolean requeueOutbound(QueuedMessage msg) {
+		ErrorInfo reason = null;
+		List<OfflineMessageQueue.Failed> failed = null;
+		synchronized(this) {
+			if(state.sendEvents)
+				return false;
+			if(state.queueEvents && msg.queueEvents)
+				failed = queuedMessages.add(msg);
+			else
+				reason = state.defaultErrorInfo;
+		}
+		OfflineMessageQueue.notifyFailed(failed);
+		if(reason != null)
+			failOutbound(msg, reason);
+		return true;
+	}
+
+	private void failOutbound(QueuedMessage msg, ErrorInfo reason) {
+		Log.e(TAG, "send(): Unable to send message; reason = " + reason);
+		if(msg.listener != null) {
+			try {
+				msg.listener.onError(reason);
+			} catch(Throwable t) {
+				Log.e(TAG, "send(): Unexpected error calling listener", t);
+			}
 		}
-		transport.send(message);
 	}
 
+	/**
+	 * Send a message on the transport, assigning it a serial if it requires
+	 * an ack. Must be called holding outboundLock.
+	 * @throws AblyException if the transport fails to send the message, in
+	 * which case the message has not been assigned a serial
+	 */
 	private void sendImpl(QueuedMessage msg) throws AblyException {
 		if(transport == null) {
 			Log.v(TAG, "sendImpl(): Discarding message; transport unavailable");
 			return;
 		}
 		ProtocolMessage message = msg.msg;
-		if(ProtocolMessage.ackRequired(message)) {
+		boolean ackRequired = ProtocolMessage.ackRequired(message);
+		if(ackRequired) {
 			message.msgSerial = msgSerial++;
 			pendingMessages.push(msg);
 		}
 		if(protocolListener != null) {
 			protocolListener.onRawMessageSend(message);
 		}
-		transport.send(message);
+		try {
+			transport.send(message);
+		} catch(AblyException e) {
+			if(ackRequired && pendingMessages.removeLast(msg))
+				--msgSerial;
+			throw e;
+		}
 	}
 
+	/**
+	 * Send the messages queued while not connected, coalescing them into
+	 * as few protocol messages as the maximum message size allows.
+	 */
 	private void sendQueuedMessages() {
+		List<OfflineMessageQueue.Failed> expired = new ArrayList<OfflineMessageQueue.Failed>();
 		synchronized(this) {
-			while(queuedMessages.size() > 0) {
+			List<QueuedMessage> backlog = new ArrayList<QueuedMessage>();
+			QueuedMessage queued;
+			while((queued = queuedMessages.poll(expired)) != null)
+				backlog.add(queued);
+			for(QueuedMessage batch : MessageBatcher.batch(backlog, maxMessageSize)) {
 				try {
-					sendImpl(queuedMessages.get(0));
+					synchronized(outboundLock) {
+						sendImpl(batch);
+					}
 				} catch (AblyException e) {
 					Log.e(TAG, "sendQueuedMessages(): Unexpected error sending queued messages", e);
-				} finally {
-					queuedMessages.remove(0);
 				}
 			}
 		}
+		OfflineMessageQueue.notifyFailed(expired);
+		/* send anything that was requeued while the connection was not connected */
+		drainOutbound();
 	}
 
 	private void failQueuedMessages(ErrorInfo reason) {
 		synchronized(this) {
-			for (QueuedMessage queued: queuedMessages) {
+			for (QueuedMessage queued: queuedMessages.clear()) {
 				if (queued.listener != null) {
 					try {
 						queued.listener.onError(reason);
@@ -1145,16 +1683,42 @@ public class ConnectionManager implements ConnectListener {
 					}
 				}
 			}
-			queuedMessages.clear();
 		}
 	}
 
+	/**
+	 * The messages awaiting acknowledgement, in order of msgSerial.
+	 * These are held in a ring buffer so that acknowledging a range of
+	 * messages at the head of the queue takes time proportional only to
+	 * the number of messages acknowledged.
+	 */
 	private class PendingMessageQueue {
+		private static final int INITIAL_CAPACITY = 64;
 		private long startSerial = 0L;
-		private ArrayList<QueuedMessage> queue = new ArrayList<QueuedMessage>();
+		private QueuedMessage[] ring = new QueuedMessage[INITIAL_CAPACITY];
+		private int head = 0;
+		private int size = 0;
 
 		public synchronized void push(QueuedMessage msg) {
-			queue.add(msg);
+			if(size == ring.length)
+				grow();
+			ring[(head + size) & (ring.length - 1)] = msg;
+			++size;
+		}
+
+		/**
+		 * Remove the most recently pushed message, if it is the given message.
+		 * Used when a message could not be sent after it was pushed.
+		 */
+		public synchronized boolean removeLast(QueuedMessage msg) {
+			if(size == 0)
+				return false;
+			int last = (head + size - 1) & (ring.length - 1);
+			if(ring[last] != msg)
+				return false;
+			ring[last] = null;
+			--size;
+			return true;
 		}
 
 		public void ack(long msgSerial, int count, ErrorInfo reason) {
@@ -1172,45 +1736,22 @@ public class ConnectionManager implements ConnectListener {
 				if(msgSerial > startSerial) {
 					/* this counts as a nack of the messages earlier than serial,
 					 * as well as an ack */
-					int nCount = (int)(msgSerial - startSerial);
-					List<QueuedMessage> nackList = queue.subList(0, nCount);
-					nackMessages = nackList.toArray(new QueuedMessage[nCount]);
-					nackList.clear();
+					nackMessages = removeFirst((int)(msgSerial - startSerial));
 					startSerial = msgSerial;
 				}
 				if(msgSerial == startSerial) {
-					List<QueuedMessage> ackList = queue.subList(0, count);
-					ackMessages = ackList.toArray(new QueuedMessage[count]);
-					ackList.clear();
+					ackMessages = removeFirst(count);
 					startSerial += count;
 				}
 			}
-			if(nackMessages != null) {
-				if(reason == null)
-					reason = new ErrorInfo("Unknown error", 500, 50000);
-				for(QueuedMessage msg : nackMessages) {
-					try {
-						if(msg.listener != null)
-							msg.listener.onError(reason);
-					} catch(Throwable t) {
-						Log.e(TAG, "ack(): listener exception", t);
-					}
-				}
-			}
-			if(ackMessages != null) {
-				for(QueuedMessage msg : ackMessages) {
-					try {
-						if(msg.listener != null)
-							msg.listener.onSuccess();
-					} catch(Throwable t) {
-						Log.e(TAG, "ack(): listener exception", t);
-					}
-				}
-			}
+			if(nackMessages != null)
+				fail(nackMessages, reason);
+			if(ackMessages != null)
+				succeed(ackMessages);
 		}
 
-		public synchronized void nack(long serial, int count, ErrorInfo reason) {
-			QueuedMessage[] nackMessages = null;
+		public void nack(long serial, int count, ErrorInfo reason) {
+			QueuedMessage[] nackMessages;
 			synchronized(this) {
 				if(serial != startSerial) {
 					/* this is an error condition and shouldn't happen but
@@ -1219,23 +1760,10 @@ public class ConnectionManager implements ConnectListener {
 					count -= (int)(startSerial - serial);
 					serial = startSerial;
 				}
-				List<QueuedMessage> nackList = queue.subList(0, count);
-				nackMessages = nackList.toArray(new QueuedMessage[count]);
-				nackList.clear();
+				nackMessages = removeFirst(count);
 				startSerial += count;
 			}
-			if(nackMessages != null) {
-				if(reason == null)
-					reason = new ErrorInfo("Unknown error", 500, 50000);
-				for(QueuedMessage msg : nackMessages) {
-					try {
-						if(msg.listener != null)
-							msg.listener.onError(reason);
-					} catch(Throwable t) {
-						Log.e(TAG, "nack(): listener exception", t);
-					}
-				}
-			}
+			fail(nackMessages, reason);
 		}
 
 		/**
@@ -1245,11 +1773,68 @@ public class ConnectionManager implements ConnectListener {
 		 *		connection, and thus one more than the highest message serial
 		 *		in the queue.
 		 */
-		public synchronized void reset(long oldMsgSerial, ErrorInfo err) {
-			nack(startSerial, (int)(oldMsgSerial - startSerial), err);
-			startSerial = 0;
+		public void reset(long oldMsgSerial, ErrorInfo err) {
+			QueuedMessage[] nackMessages;
+			synchronized(this) {
+				nackMessages = removeFirst((int)(oldMsgSerial - startSerial));
+				startSerial = 0;
+			}
+			fail(nackMessages, err);
+		}
+
+		/**
+		 * Remove up to count messages from the head of the queue.
+		 * @return the removed messages, in order
+		 */
+		private QueuedMessage[] removeFirst(int count) {
+			count = Math.max(0, Math.min(count, size));
+			QueuedMessage[] result = new QueuedMessage[count];
+			int firstPart = Math.min(count, ring.length - head);
+			System.arraycopy(ring, head, result, 0, firstPart);
+			Arrays.fill(ring, head, head + firstPart, null);
+			if(firstPart < count) {
+				System.arraycopy(ring, 0, result, firstPart, count - firstPart);
+				Arrays.fill(ring, 0, count - firstPart, null);
+			}
+			head = (head + count) & (ring.length - 1);
+			size -= count;
+			return result;
+		}
+
+		private void grow() {
+			QueuedMessage[] grown = new QueuedMessage[ring.length * 2];
+			int firstPart = ring.length - head;
+			System.arraycopy(ring, head, grown, 0, firstPart);
+			System.arraycopy(ring, 0, grown, firstPart, head);
+			ring = grown;
+			head = 0;
 		}
 
+		private void succeed(QueuedMessage[] messages) {
+			for(QueuedMessage msg : messages) {
+				try {
+					if(msg.listener != null)
+						msg.listener.onSuccess();
+				} catch(Throwable t) {
+					Log.e(TAG, "ack(): listener exception", t);
+				}
+			}
+		}
+
+		private void fail(QueuedMessage[] messages, ErrorInfo reason) {
+			if(messages.length == 0)
+				return;
+			if(reason == null)
+				reason = new ErrorInfo("Unknown error", 500, 50000);
+			for(QueuedMessage msg : messages) {
+				try {
+					if(msg.listener != null)
+						msg.listener.onError(reason);
+				} catch(Throwable t) {
+					Log.e(TAG, "nack(): listener exception", t);
+				}
+			}
+		}
 	}
 
 	/*******************
@@ -1285,20 +1870,40 @@ public class ConnectionManager implements ConnectListener {
 	private final ClientOptions options;
 	private final Connection connection;
 	private final ITransport.Factory factory;
-	private final List<QueuedMessage> queuedMessages;
+	private final OfflineMessageQueue queuedMessages;
 	private final PendingMessageQueue pendingMessages;
-	private final HashSet<Object> heartbeatWaiters = new HashSet<Object>();
+	private final ConcurrentLinkedQueue<QueuedMessage> outboundQueue = new ConcurrentLinkedQueue<QueuedMessage>();
+	private final AtomicBoolean outboundDraining = new AtomicBoolean();
+	/* a message that could not be sent, to be sent before the outbound queue */
+	private volatile QueuedMessage outboundHeld;
+	private final Object outboundLock = new Object();
+	private final HashMap<String, PendingPing> pendingPings = new HashMap<String, PendingPing>();
+	private final String pingIdPrefix = Long.toString(System.nanoTime() & 0xffffffL, 36) + ":";
+	private final AtomicLong pingCount = new AtomicLong();
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private TimerWheel.Timeout latencyProbeTimer;
 	private final Hosts hosts;
-
-	private CMThread mgrThread;
-	private StateInfo state;
+	private final InboundMessageQueue inboundQueue;
+
+	private boolean actorStarted;
+	private boolean actorScheduled;
+	private Thread actorThread;
+	private TimerWheel.Timeout stateTimer;
+	private long stateTimeout;
+	/* the delays before retrying from the disconnected and suspended states */
+	private final RetryBackoff disconnectedBackoff;
+	private final RetryBackoff suspendedBackoff;
+	private boolean stateTimerExpired;
+	private volatile StateInfo state;
 	private StateIndication indicatedState, requestedState;
 	private ConnectParams pendingConnect;
 	private boolean pendingReauth;
+	private ErrorInfo reauthError;
+	private ConnectivityCheck connectivityCheck;
 	private boolean suppressRetry; /* for tests only; modified via reflection */
-	private ITransport transport;
+	private volatile ITransport transport;
 	private long suspendTime;
-	private long msgSerial;
+	private long msgSerial; /* guarded by outboundLock */
 	private long lastActivity;
 
 	/* for debug/test only */
@@ -1306,4 +1911,7 @@ public class ConnectionManager implements ConnectListener {
 	private String lastUsedHost;
 
 	private static final long HEARTBEAT_TIMEOUT = 5000L;
+	private static final long ACTOR_THREAD_KEEPALIVE = 60000L;
+	private static ExecutorService actorExecutor;
+	private static ExecutorService blockingExecutor;
 }
@@ -38,9 +38,35 @@ public class Defaults {
 	public static long maxIdleInterval = 20000L;
 	/* DF1a */
 	public static long connectionStateTtl = 60000L;
+	/* CD2c; used if not given by the server */
+	public static long maxMessageSize = 65536L;
 
 	public static final String[] TRANSPORTS         = new String[]{"web_socket"};
 	public static String TRANSPORT = "io.ably.lib.transport.WebSocketTransport$Factory";
+	/* number of selector threads shared by all NioWebSocketTransport connections */
+	public static int NIO_SELECTOR_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	/* zlib compression level for websocket permessage-deflate; -1 selects the zlib default */
+	public static int WEBSOCKET_COMPRESSION_LEVEL = -1;
+	/* capacity of the inbound message queue; 0 means messages are processed on the transport thread */
+	public static int INBOUND_QUEUE_SIZE = 0;
+	/* limits on messages queued while they cannot be sent; 0 means unlimited */
+	public static int OFFLINE_QUEUE_MAX_MESSAGES = 0;
+	public static long OFFLINE_QUEUE_MAX_BYTES = 0;
+	public static long OFFLINE_QUEUE_TTL = 0;
+	/* number of threads shared by all clients for processing connection state changes */
+	public static int CONNECTION_MANAGER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	/* interval between latency probes, in milliseconds; 0 means no probes are sent */
+	public static long LATENCY_PROBE_INTERVAL = 0;
+	/* growth factor and limit, in milliseconds, of the delay between reconnection attempts */
+	public static double RETRY_BACKOFF_MULTIPLIER = 1.0;
+	public static long RETRY_BACKOFF_MAX_DELAY = 300000L;
+	/* number of threads shared by all clients for encoding large batches of published messages;
+	 * the publishing thread also takes part. 0, the default, means batches are encoded on the
+	 * publishing thread; the handoff to other threads is only worthwhile for batches of many
+	 * thousands of messages, and takes processors from the application's own threads */
+	public static int ENCODER_THREADS = 0;
+	/* the minimum number of messages encoded as one task when a batch is encoded in parallel */
+	public static int ENCODER_BATCH_SIZE = 64;
 	public static final int HTTP_MAX_RETRY_COUNT    = 3;
 	public static final int HTTP_ASYNC_THREADPOOL_SIZE = 64;
 
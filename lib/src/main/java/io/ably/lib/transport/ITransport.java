@@ -89,6 +89,9 @@ public interface ITransport {
 	/**
 	 * Initiate a connection attempt; the transport will be activated,
 	 * and attempt to remain connected, until disconnect() is called.
+	 * This may block, to obtain a token or to resolve the host; it is
+	 * called on a thread of the ConnectionManager's blocking executor,
+	 * never on the threads shared by the state machines of all clients.
 	 * @throws AblyException 
 	 */
 	public void connect(ConnectListener connectListener);
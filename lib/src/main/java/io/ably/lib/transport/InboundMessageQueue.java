@@ -0,0 +1,240 @@
+package io.ably.lib.transport;
+
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.util.Log;
+
+/**
+ * A bounded queue that decouples the transport's read thread from the
+ * processing of received protocol messages.
+ *
+ * The transport thread adds each received message to a fixed-size ring
+ * buffer; a single dispatcher thread removes messages in order and processes
+ * them, including calling any application listeners. A slow listener then
+ * delays only the dispatcher, instead of stalling reads from the socket.
+ *
+ * The dispatcher thread is started when a message is queued, and exits once
+ * the queue has been idle for a while.
+ */
+public class InboundMessageQueue {
+
+	private static final String TAG = InboundMessageQueue.class.getName();
+
+	/**
+	 * The action taken when a message is received while the queue is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The transport thread waits until there is space in the queue. This
+		 * applies backpressure to the connection, but a transport that shares
+		 * its thread between connections will stall all of them while waiting.
+		 */
+		block,
+
+		/**
+		 * The message is discarded and the connection is disconnected. The
+		 * library then reconnects and resumes the connection, so that the
+		 * discarded and any subsequent messages are received again.
+		 *
+		 * No further message from the same transport is processed, whether
+		 * already queued or received later, so that the connection serial
+		 * never advances past the discarded message.
+		 */
+		disconnect
+	}
+
+	InboundMessageQueue(ConnectionManager connectionManager, int capacity, OverflowPolicy policy) {
+		this.connectionManager = connectionManager;
+		this.capacity = capacity;
+		this.policy = (policy == null) ? OverflowPolicy.block : policy;
+		transports = new ITransport[capacity];
+		messages = new ProtocolMessage[capacity];
+		queuedTimes = new long[capacity];
+	}
+
+	/**
+	 * Add a message to the queue, waiting for space if the queue is full
+	 * and the overflow policy is block.
+	 * @return false if the message was discarded because the queue was full;
+	 * the transport is then poisoned, and any later message from it is
+	 * discarded silently
+	 */
+	boolean offer(ITransport transport, ProtocolMessage message) {
+		synchronized(this) {
+			if(poisoned != null) {
+				if(transport == poisoned) {
+					Log.v(TAG, "offer(): discarding message from poisoned transport");
+					return true;
+				}
+				/* the poisoned transport has been superseded */
+				poisoned = null;
+			}
+			if(count == capacity) {
+				++overflowCount;
+				if(policy == OverflowPolicy.disconnect) {
+					Log.e(TAG, "offer(): queue full; discarding message");
+					poisoned = transport;
+					return false;
+				}
+				while(count == capacity) {
+					try { wait(); } catch(InterruptedException ie) {}
+				}
+			}
+			int tail = (head + count) % capacity;
+			transports[tail] = transport;
+			messages[tail] = message;
+			queuedTimes[tail] = System.nanoTime();
+			if(++count > maxDepth)
+				maxDepth = count;
+			if(dispatcher == null) {
+				dispatcher = new Dispatcher();
+				dispatcher.start();
+			} else {
+				notifyAll();
+			}
+		}
+		return true;
+	}
+
+	/******************
+	 * metrics
+	 ******************/
+
+	/**
+	 * The maximum number of messages that can be held in the queue.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * The number of messages currently waiting in the queue.
+	 */
+	public synchronized int getDepth() {
+		return count;
+	}
+
+	/**
+	 * The largest number of messages that have been waiting in the queue at any one time.
+	 */
+	public synchronized int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * The number of messages that have been removed from the queue and processed.
+	 */
+	public synchronized long getDispatchedCount() {
+		return dispatchedCount;
+	}
+
+	/**
+	 * The number of messages that were received when the queue was full.
+	 */
+	public synchronized long getOverflowCount() {
+		return overflowCount;
+	}
+
+	/**
+	 * The mean time, in milliseconds, that dispatched messages waited in the queue.
+	 */
+	public synchronized double getMeanWaitMillis() {
+		return (dispatchedCount == 0) ? 0 : (double)totalWaitNanos / dispatchedCount / 1000000;
+	}
+
+	/**
+	 * The longest time, in milliseconds, that any dispatched message waited in the queue.
+	 */
+	public synchronized double getMaxWaitMillis() {
+		return (double)maxWaitNanos / 1000000;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("depth = %d/%d; maxDepth = %d; dispatched = %d; overflows = %d; wait(ms) mean = %.3f, max = %.3f",
+				count, capacity, maxDepth, dispatchedCount, overflowCount, getMeanWaitMillis(), getMaxWaitMillis());
+	}
+
+	/******************
+	 * dispatcher
+	 ******************/
+
+	private class Dispatcher extends Thread {
+
+		Dispatcher() {
+			super("ably-inbound-dispatcher");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			InboundMessageQueue queue = InboundMessageQueue.this;
+			while(true) {
+				ITransport transport;
+				ProtocolMessage message;
+				synchronized(queue) {
+					if(count == 0) {
+						long idleUntil = System.currentTimeMillis() + DISPATCHER_IDLE_TIMEOUT;
+						long remaining = DISPATCHER_IDLE_TIMEOUT;
+						while(count == 0 && remaining > 0) {
+							try { queue.wait(remaining); } catch(InterruptedException ie) {}
+							remaining = idleUntil - System.currentTimeMillis();
+						}
+						if(count == 0) {
+							dispatcher = null;
+							return;
+						}
+					}
+					transport = transports[head];
+					message = messages[head];
+					long waitNanos = System.nanoTime() - queuedTimes[head];
+					transports[head] = null;
+					messages[head] = null;
+					head = (head + 1) % capacity;
+					--count;
+					/* wake any blocked transport thread */
+					queue.notifyAll();
+					if(transport == poisoned) {
+						/* the connection will resume from before this message */
+						continue;
+					}
+					++dispatchedCount;
+					totalWaitNanos += waitNanos;
+					if(waitNanos > maxWaitNanos)
+						maxWaitNanos = waitNanos;
+				}
+				try {
+					connectionManager.dispatchMessage(transport, message);
+				} catch(AblyException e) {
+					Log.e(TAG, "Unexpected exception processing received message", e);
+				} catch(Throwable t) {
+					Log.e(TAG, "Unexpected exception in dispatcher", t);
+				}
+			}
+		}
+	}
+
+	/******************
+	 * private members
+	 ******************/
+
+	private static final long DISPATCHER_IDLE_TIMEOUT = 10000L;
+
+	private final ConnectionManager connectionManager;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final ITransport[] transports;
+	private final ProtocolMessage[] messages;
+	private final long[] queuedTimes;
+	private int head;
+	private int count;
+	private Dispatcher dispatcher;
+	/* the transport from which a message was discarded on overflow */
+	private ITransport poisoned;
+
+	private int maxDepth;
+	private long dispatchedCount;
+	private long overflowCount;
+	private long totalWaitNanos;
+	private long maxWaitNanos;
+}
@@ -0,0 +1,132 @@
+package io.ably.lib.transport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.transport.ConnectionManager.QueuedMessage;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.PresenceMessage;
+import io.ably.lib.types.ProtocolMessage;
+
+/**
+ * Coalesces a backlog of queued messages into as few protocol messages as
+ * possible before they are sent.
+ *
+ * MESSAGE and PRESENCE protocol messages for the same channel are merged,
+ * up to the maximum message size, so a backlog that would exceed that size
+ * is split across several protocol messages. Messages are merged only with
+ * others for the same channel and action that are not separated by a
+ * message of a different action for that channel, so the order of the
+ * messages on each channel is preserved; messages for different channels
+ * may be reordered with respect to each other. Each merged message keeps
+ * its own listener.
+ */
+class MessageBatcher {
+
+	/**
+	 * @param queued the messages, in the order in which they were queued
+	 * @param maxSize the maximum estimated size of a merged message, in bytes
+	 * @return the messages to send, in order
+	 */
+	static List<QueuedMessage> batch(List<QueuedMessage> queued, long maxSize) {
+		List<Batch> batches = new ArrayList<Batch>(queued.size());
+		HashMap<String, Batch> open = new HashMap<String, Batch>();
+		for(QueuedMessage msg : queued) {
+			ProtocolMessage message = msg.msg;
+			String channel = message.channel;
+			if(!isBatchable(message)) {
+				/* later messages for this channel must follow this one */
+				if(channel != null)
+					open.remove(channel);
+				batches.add(new Batch(msg, 0));
+				continue;
+			}
+			long size = OfflineMessageQueue.payloadSize(message);
+			Batch batch = open.get(channel);
+			if(batch != null && batch.action == message.action && batch.size + size <= maxSize) {
+				batch.add(msg, size);
+				continue;
+			}
+			batch = new Batch(msg, size);
+			batches.add(batch);
+			open.put(channel, batch);
+		}
+
+		List<QueuedMessage> result = new ArrayList<QueuedMessage>(batches.size());
+		for(Batch batch : batches)
+			result.add(batch.toQueuedMessage());
+		return result;
+	}
+
+	/******************
+	 * private
+	 ******************/
+
+	private static boolean isBatchable(ProtocolMessage message) {
+		if(message.channel == null)
+			return false;
+		switch(message.action) {
+		case message:
+			return message.messages != null;
+		case presence:
+			return message.presence != null;
+		default:
+			return false;
+		}
+	}
+
+	private static class Batch {
+		final ProtocolMessage.Action action;
+		final List<QueuedMessage> members = new ArrayList<QueuedMessage>(1);
+		long size;
+		int count;
+
+		Batch(QueuedMessage first, long size) {
+			this.action = first.msg.action;
+			add(first, size);
+		}
+
+		void add(QueuedMessage msg, long size) {
+			members.add(msg);
+			this.size += size;
+			count += (action == ProtocolMessage.Action.message) ? lengthOf(msg.msg.messages) : lengthOf(msg.msg.presence);
+		}
+
+		QueuedMessage toQueuedMessage() {
+			if(members.size() == 1)
+				return members.get(0);
+
+			ProtocolMessage merged = new ProtocolMessage(action, members.get(0).msg.channel);
+			List<CompletionListener> listeners = new ArrayList<CompletionListener>(members.size());
+			int offset = 0;
+			if(action == ProtocolMessage.Action.message) {
+				merged.messages = new Message[count];
+				for(QueuedMessage member : members) {
+					Message[] messages = member.msg.messages;
+					System.arraycopy(messages, 0, merged.messages, offset, messages.length);
+					offset += messages.length;
+				}
+			} else {
+				merged.presence = new PresenceMessage[count];
+				for(QueuedMessage member : members) {
+					PresenceMessage[] presence = member.msg.presence;
+					System.arraycopy(presence, 0, merged.presence, offset, presence.length);
+					offset += presence.length;
+				}
+			}
+			for(QueuedMessage member : members) {
+				if(member.listener != null)
+					listeners.add(member.listener);
+			}
+			CompletionListener listener = listeners.isEmpty() ? null
+					: new CompletionListener.Multicaster(listeners.toArray(new CompletionListener[listeners.size()]));
+			return new QueuedMessage(merged, listener);
+		}
+
+		private static int lengthOf(Object[] array) {
+			return (array == null) ? 0 : array.length;
+		}
+	}
+}
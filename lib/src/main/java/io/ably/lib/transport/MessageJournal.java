@@ -0,0 +1,289 @@
+package io.ably.lib.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolSerializer;
+import io.ably.lib.util.Log;
+
+/**
+ * An append-only journal of msgpack-encoded protocol messages, held in a
+ * memory-mapped file, so that queued messages are held off the heap and
+ * survive a restart of the process.
+ *
+ * The file starts with a header holding the offsets of the first and
+ * next records; each record holds its length, the time it was queued,
+ * the number of messages it contains and the encoded protocol message.
+ *
+ * Records are read in order, to be sent, but remain in the file until they
+ * are released, once the message is acknowledged or failed; the head
+ * offset is advanced past each run of released records at the head. So a
+ * message that was sent, but not acknowledged, before the failure of the
+ * process is read again when the journal is next opened, and delivery is
+ * at least once. When the journal is empty, or the file is full and more
+ * than half of it has been consumed, the remaining records are moved back
+ * to the start of the file.
+ *
+ * The header is updated after each record is written, so a record is
+ * recovered after a restart only if it was written completely. Changes are
+ * written back to the file by the operating system, and so survive the
+ * failure of the process, but not necessarily of the host.
+ *
+ * The file is locked while the journal is open, so that it is used by only
+ * one client at a time; opening a journal that is already open fails.
+ */
+class MessageJournal {
+
+	private static final String TAG = MessageJournal.class.getName();
+
+	/**
+	 * A record read from the journal when it is opened.
+	 */
+	static class Record {
+		final long queuedAt;
+		final int count;
+		final int size;
+		Record(long queuedAt, int count, int size) {
+			this.queuedAt = queuedAt;
+			this.count = count;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * A record read from the journal, to be released once its message has
+	 * been acknowledged or failed.
+	 */
+	static class Read {
+		/* the decoded message, or null if discarded or not decodable */
+		final ProtocolMessage msg;
+		final int size;
+		boolean released;
+		Read(ProtocolMessage msg, int size) {
+			this.msg = msg;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Open a journal, creating the file if it does not exist.
+	 * Any records in an existing file are retained.
+	 * @throws IOException if the file cannot be opened, or is in use
+	 */
+	MessageJournal(File file) throws IOException {
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		try {
+			FileLock lock = null;
+			try {
+				lock = channel.tryLock();
+			} catch(OverlappingFileLockException e) {
+				/* locked by another journal in this process */
+			}
+			if(lock == null)
+				throw new IOException("Journal " + file + " is in use");
+			this.lock = lock;
+			long length = channel.size();
+			map(Math.max(length, INITIAL_SIZE));
+			if(length < HEADER_SIZE || buffer.getInt(0) != MAGIC || !recover()) {
+				if(length > 0)
+					Log.e(TAG, "MessageJournal(): discarding invalid journal " + file);
+				head = tail = HEADER_SIZE;
+				buffer.putInt(0, MAGIC);
+				writeHeader();
+			}
+			next = head;
+		} catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Close the journal, releasing the file. The records remain in the file.
+	 * The mapping is released once the buffer is garbage collected.
+	 */
+	synchronized void close() {
+		if(buffer == null)
+			return;
+		buffer.force();
+		buffer = null;
+		reads.clear();
+		try {
+			lock.release();
+			channel.close();
+		} catch(IOException e) {
+			Log.e(TAG, "close(): unable to close journal", e);
+		}
+	}
+
+	/**
+	 * The records present when the journal was opened, in order, including
+	 * any that were read but not released before it was last closed.
+	 */
+	List<Record> getRecords() {
+		List<Record> records = new ArrayList<Record>();
+		for(int offset = head; offset < tail; offset += RECORD_HEADER_SIZE + buffer.getInt(offset)) {
+			records.add(new Record(buffer.getLong(offset + 4), buffer.getInt(offset + 12), RECORD_HEADER_SIZE + buffer.getInt(offset)));
+		}
+		return records;
+	}
+
+	/**
+	 * Append a message to the journal.
+	 * @return the size of the record, in bytes
+	 */
+	synchronized int append(ProtocolMessage msg, long queuedAt, int count) throws IOException {
+		if(buffer == null)
+			throw new IOException("Journal closed");
+		byte[] packed = ProtocolSerializer.writeMsgpack(msg);
+		int size = RECORD_HEADER_SIZE + packed.length;
+		ensureCapacity(size);
+		buffer.putInt(tail, packed.length);
+		buffer.putLong(tail + 4, queuedAt);
+		buffer.putInt(tail + 12, count);
+		ByteBuffer dest = buffer.duplicate();
+		dest.position(tail + RECORD_HEADER_SIZE);
+		dest.put(packed);
+		tail += size;
+		writeHeader();
+		return size;
+	}
+
+	/**
+	 * Read the next record, and decode it unless discard is set; a discarded
+	 * record is released at once.
+	 * @return the record, or null if the journal is closed or there are no
+	 * more records to read
+	 */
+	synchronized Read readNext(boolean discard) {
+		if(buffer == null || next == tail)
+			return null;
+		int length = buffer.getInt(next);
+		ProtocolMessage msg = null;
+		if(!discard) {
+			ByteBuffer packed = buffer.duplicate();
+			packed.position(next + RECORD_HEADER_SIZE);
+			packed.limit(next + RECORD_HEADER_SIZE + length);
+			try {
+				msg = ProtocolSerializer.readMsgpack(packed.slice());
+			} catch(AblyException e) {
+				Log.e(TAG, "readNext(): unable to decode journal record", e);
+			}
+		}
+		next += RECORD_HEADER_SIZE + length;
+		Read read = new Read(msg, RECORD_HEADER_SIZE + length);
+		reads.addLast(read);
+		if(discard)
+			release(read);
+		return read;
+	}
+
+	/**
+	 * Release a record that has been read, removing it from the journal
+	 * once all records read before it have also been released. Records
+	 * read from a journal that has since been closed are left in the file.
+	 */
+	synchronized void release(Read read) {
+		if(buffer == null || read.released)
+			return;
+		read.released = true;
+		boolean advanced = false;
+		while(!reads.isEmpty() && reads.peekFirst().released) {
+			head += reads.removeFirst().size;
+			advanced = true;
+		}
+		if(!advanced)
+			return;
+		if(head == tail)
+			head = tail = next = HEADER_SIZE;
+		writeHeader();
+	}
+
+	/******************
+	 * private
+	 ******************/
+
+	private void map(long size) throws IOException {
+		if(size > Integer.MAX_VALUE)
+			throw new IOException("Journal size limit exceeded");
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	private void writeHeader() {
+		buffer.putInt(4, head);
+		buffer.putInt(8, tail);
+	}
+
+	/**
+	 * Read and validate the header and records of an existing file.
+	 */
+	private boolean recover() {
+		int capacity = buffer.capacity();
+		head = buffer.getInt(4);
+		tail = buffer.getInt(8);
+		if(head < HEADER_SIZE || tail < head || tail > capacity)
+			return false;
+		int offset = head;
+		while(offset < tail) {
+			if(offset + RECORD_HEADER_SIZE > tail)
+				return false;
+			int length = buffer.getInt(offset);
+			if(length < 0 || length > tail - offset - RECORD_HEADER_SIZE)
+				return false;
+			offset += RECORD_HEADER_SIZE + length;
+		}
+		return true;
+	}
+
+	private void ensureCapacity(int size) throws IOException {
+		int capacity = buffer.capacity();
+		if(tail + size <= capacity)
+			return;
+		int live = tail - head;
+		if(head - HEADER_SIZE >= capacity / 2 && HEADER_SIZE + live + size <= capacity) {
+			/* move the remaining records to the start of the file */
+			ByteBuffer src = buffer.duplicate();
+			src.position(head);
+			src.limit(tail);
+			ByteBuffer dest = buffer.duplicate();
+			dest.position(HEADER_SIZE);
+			dest.put(src.slice());
+			next -= head - HEADER_SIZE;
+			head = HEADER_SIZE;
+			tail = HEADER_SIZE + live;
+			writeHeader();
+			return;
+		}
+		long newCapacity = capacity;
+		while(tail + size > newCapacity)
+			newCapacity *= 2;
+		map(newCapacity);
+	}
+
+	private static final int MAGIC = 0x41424a31;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_HEADER_SIZE = 16;
+	private static final long INITIAL_SIZE = 64 * 1024;
+
+	private final FileChannel channel;
+	private FileLock lock;
+	private MappedByteBuffer buffer;
+	/* the first record not yet released, and the end of the last record */
+	private int head;
+	private int tail;
+	/* the next record to be read; records in [head, next) have been read */
+	private int next;
+	/* the records read and not yet removed, in order */
+	private final ArrayDeque<Read> reads = new ArrayDeque<Read>();
+}
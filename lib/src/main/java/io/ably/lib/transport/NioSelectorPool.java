@@ -0,0 +1,198 @@
+package io.ably.lib.transport;
+
+import io.ably.lib.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of selector threads shared by all NIO transports in the process.
+ * Each connection is assigned to one selector thread for its lifetime, and all
+ * I/O and protocol processing for that connection happens on that thread.
+ */
+class NioSelectorPool {
+
+	private static final String TAG = NioSelectorPool.class.getName();
+
+	/**
+	 * Interval at which each registered handler is given the opportunity to
+	 * perform housekeeping such as idle connection checks.
+	 */
+	static final long TICK_INTERVAL = 1000L;
+
+	/**
+	 * Callbacks from a selector thread to a registered connection.
+	 * All methods are called on the selector thread that owns the connection.
+	 */
+	interface Handler {
+		/**
+		 * The channel is ready for one or more of the operations in
+		 * its interest set.
+		 */
+		void onSelected(SelectionKey key);
+
+		/**
+		 * Periodic housekeeping callback.
+		 * @param now the current time in milliseconds
+		 */
+		void onTick(long now);
+	}
+
+	/******************
+	 * shared instance
+	 ******************/
+
+	static synchronized NioSelectorPool getInstance() throws IOException {
+		if(instance == null)
+			instance = new NioSelectorPool(Defaults.NIO_SELECTOR_THREADS);
+		return instance;
+	}
+
+	private NioSelectorPool(int size) throws IOException {
+		if(size < 1)
+			size = 1;
+		threads = new SelectorThread[size];
+		for(int i = 0; i < size; i++) {
+			threads[i] = new SelectorThread(i);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Get the selector thread to which the next connection should be assigned.
+	 */
+	SelectorThread next() {
+		int index = (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % threads.length;
+		return threads[index];
+	}
+
+	/**
+	 * The number of selector threads in this pool.
+	 */
+	int size() {
+		return threads.length;
+	}
+
+	/**
+	 * A single selector thread, multiplexing the I/O of all connections
+	 * assigned to it.
+	 */
+	static class SelectorThread extends Thread {
+
+		private SelectorThread(int index) throws IOException {
+			super("ably-nio-selector-" + index);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		/**
+		 * Run a task on this selector thread. If called on the selector thread
+		 * itself, the task is run after the current selection has been processed.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			if(Thread.currentThread() != this)
+				selector.wakeup();
+		}
+
+		/**
+		 * Register a channel with this thread's selector. Must be called on
+		 * the selector thread.
+		 */
+		SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+			SelectionKey key = channel.register(selector, ops, handler);
+			handlers.add(handler);
+			return key;
+		}
+
+		/**
+		 * Remove a handler so it no longer receives ticks. Must be called on
+		 * the selector thread.
+		 */
+		void unregister(SelectionKey key, Handler handler) {
+			if(key != null)
+				key.cancel();
+			handlers.remove(handler);
+		}
+
+		/**
+		 * A read buffer, shared by all connections on this thread. Received
+		 * data is fully processed before the buffer is reused, so it is only
+		 * valid for use on the selector thread.
+		 */
+		ByteBuffer readBuffer() {
+			return readBuffer;
+		}
+
+		@Override
+		public void run() {
+			long nextTick = System.currentTimeMillis() + TICK_INTERVAL;
+			while(true) {
+				try {
+					selector.select(TICK_INTERVAL);
+					runTasks();
+					Set<SelectionKey> selected = selector.selectedKeys();
+					for(Iterator<SelectionKey> it = selected.iterator(); it.hasNext();) {
+						SelectionKey key = it.next();
+						it.remove();
+						if(!key.isValid())
+							continue;
+						try {
+							((Handler)key.attachment()).onSelected(key);
+						} catch(CancelledKeyException e) {
+							/* the channel was closed while being processed */
+						}
+					}
+					runTasks();
+					long now = System.currentTimeMillis();
+					if(now >= nextTick) {
+						nextTick = now + TICK_INTERVAL;
+						for(Handler handler : new ArrayList<Handler>(handlers))
+							handler.onTick(now);
+					}
+				} catch(Throwable t) {
+					/* keep the thread alive; a failure in one connection
+					 * must not affect the others */
+					Log.e(TAG, "Unexpected exception in selector thread", t);
+				}
+			}
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch(Throwable t) {
+					Log.e(TAG, "Unexpected exception running selector task", t);
+				}
+			}
+		}
+
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final HashSet<Handler> handlers = new HashSet<Handler>();
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	}
+
+	/******************
+	 * private members
+	 ******************/
+
+	private static final int READ_BUFFER_SIZE = 16384;
+	private static NioSelectorPool instance;
+
+	private final SelectorThread[] threads;
+	private final AtomicInteger nextIndex = new AtomicInteger();
+}
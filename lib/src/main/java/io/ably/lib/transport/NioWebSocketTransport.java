@@ -0,0 +1,530 @@
+package io.ably.lib.transport;
+
+import io.ably.lib.http.HttpUtils;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.transport.ConnectionManager.StateIndication;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Param;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolSerializer;
+import io.ably.lib.types.ProtocolMessage.Action;
+import io.ably.lib.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.java_websocket.SSLSocketChannel2;
+import org.java_websocket.SocketChannelIOHelper;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WrappedByteChannel;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_17;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.handshake.Handshakedata;
+import org.java_websocket.handshake.HandshakeImpl1Client;
+
+/**
+ * A WebSocket transport that performs all I/O on a small, fixed set of shared
+ * NIO selector threads (see {@link Defaults#NIO_SELECTOR_THREADS}) instead of
+ * dedicating threads to each connection. This is intended for processes that
+ * run a large number of realtime clients concurrently.
+ *
+ * Select this transport by setting {@link io.ably.lib.types.ClientOptions#transportFactory}
+ * to an instance of {@link NioWebSocketTransport.Factory}, or by setting
+ * {@link Defaults#TRANSPORT} to the name of that class.
+ */
+public class NioWebSocketTransport implements ITransport {
+
+	private static final String TAG = NioWebSocketTransport.class.getName();
+
+	/******************
+	 * public factory API
+	 ******************/
+
+	public static class Factory implements ITransport.Factory {
+		@Override
+		public NioWebSocketTransport getTransport(TransportParams params, ConnectionManager connectionManager) {
+			return new NioWebSocketTransport(params, connectionManager);
+		}
+	}
+
+	/******************
+	 * protected constructor
+	 ******************/
+
+	protected NioWebSocketTransport(TransportParams params, ConnectionManager connectionManager) {
+		this.params = params;
+		this.connectionManager = connectionManager;
+		this.channelBinaryMode = params.options.useBinaryProtocol;
+		/* We do not require Ably heartbeats, as we can use WebSocket pings instead. */
+		params.heartbeats = false;
+	}
+
+	/******************
+	 * ITransport methods
+	 ******************/
+
+	@Override
+	public void connect(ConnectListener connectListener) {
+		try {
+			boolean isTls = params.options.tls;
+			String wsScheme = isTls ? "wss://" : "ws://";
+			wsUri = wsScheme + params.host + ':' + String.valueOf(params.port) + "/";
+			Param[] authParams = connectionManager.ably.auth.getAuthParams();
+			Param[] connectParams = params.getConnectParams(authParams);
+			if(connectParams.length > 0)
+				wsUri = HttpUtils.encodeParams(wsUri, connectParams);
+
+			/* resolve the host here, on the connection manager's blocking
+			 * executor, so that a slow lookup blocks neither the shared
+			 * selector threads nor the state machines of other clients */
+			InetSocketAddress address = new InetSocketAddress(params.host, params.port);
+			if(address.isUnresolved())
+				throw new UnknownHostException(params.host);
+
+			SSLEngine sslEngine = null;
+			if(isTls) {
+				SSLContext sslContext = SSLContext.getInstance("TLS");
+				sslContext.init( null, null, null );
+				sslEngine = sslContext.createSSLEngine(params.host, params.port);
+				sslEngine.setUseClientMode(true);
+			}
+
+			Endpoint endpoint = new Endpoint(URI.create(wsUri), NioSelectorPool.getInstance().next(), sslEngine, connectListener);
+			synchronized(this) {
+				wsConnection = endpoint;
+			}
+			endpoint.connect(address);
+		} catch(AblyException e) {
+			Log.e(TAG, "Unexpected exception attempting connection; wsUri = " + wsUri, e);
+			connectListener.onTransportUnavailable(this, params, e.errorInfo);
+		} catch(Throwable t) {
+			Log.e(TAG, "Unexpected exception attempting connection; wsUri = " + wsUri, t);
+			connectListener.onTransportUnavailable(this, params, AblyException.fromThrowable(t).errorInfo);
+		}
+	}
+
+	@Override
+	public void close(boolean sendClose) {
+		synchronized(this) {
+			if(wsConnection != null) {
+				if(sendClose) {
+					try {
+						send(new ProtocolMessage(Action.close));
+					} catch (AblyException e) {
+						Log.e(TAG, "Unexpected exception sending close", e);
+					}
+				}
+				wsConnection.close();
+				wsConnection = null;
+			}
+		}
+	}
+
+	@Override
+	public void abort(ErrorInfo reason) {
+		synchronized(this) {
+			if(wsConnection != null) {
+				wsConnection.close();
+				wsConnection = null;
+			}
+		}
+		connectionManager.notifyState(this, new StateIndication(ConnectionState.failed, reason));
+	}
+
+	@Override
+	public void send(ProtocolMessage msg) throws AblyException {
+		try {
+			if(channelBinaryMode) {
+				/* the encoded buffer is only valid until the next message is
+				 * encoded on this thread; the websocket copies it into a frame
+				 * before send() returns */
+				ByteBuffer encodedMsg = ProtocolSerializer.writeMsgpackBuffer(msg);
+				if (Log.level <= Log.VERBOSE) {
+					ProtocolMessage decodedMsg = ProtocolSerializer.readMsgpack(encodedMsg);
+					Log.v(TAG, "send(): " + decodedMsg.action + ": " + new String(ProtocolSerializer.writeJSON(decodedMsg)));
+				}
+				/* frames are created and queued under the lock so that, when
+				 * compressing, the shared compression context sees messages in
+				 * the order in which they are sent */
+				synchronized(this) {
+					wsConnection.ws.send(encodedMsg);
+				}
+			} else {
+				if (Log.level <= Log.VERBOSE)
+					Log.v(TAG, "send(): " + new String(ProtocolSerializer.writeJSON(msg)));
+				byte[] encodedMsg = ProtocolSerializer.writeJSON(msg);
+				synchronized(this) {
+					wsConnection.ws.send(encodedMsg);
+				}
+			}
+		} catch (Exception e) {
+			throw AblyException.fromThrowable(e);
+		}
+	}
+
+	@Override
+	public String getHost() {
+		return params.host;
+	}
+
+	/**
+	 * Get the statistics for websocket compression on this transport.
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+
+	/**************************
+	 * WebSocketListener methods
+	 **************************/
+
+	/**
+	 * A single WebSocket connection. Apart from send(), which may be called
+	 * on any thread, all methods are called on the owning selector thread.
+	 */
+	class Endpoint extends WebSocketAdapter implements NioSelectorPool.Handler {
+
+		Endpoint(URI uri, NioSelectorPool.SelectorThread selectorThread, SSLEngine sslEngine, ConnectListener connectListener) {
+			this.uri = uri;
+			this.selectorThread = selectorThread;
+			this.sslEngine = sslEngine;
+			this.connectListener = connectListener;
+			Draft draft = params.options.webSocketCompression ? new PerMessageDeflateDraft(params.options, compressionStats) : new Draft_17();
+			this.ws = new WebSocketImpl(this, draft);
+		}
+
+		void connect(InetSocketAddress address) throws IOException {
+			socketChannel = SocketChannel.open();
+			socketChannel.configureBlocking(false);
+			socketChannel.socket().setTcpNoDelay(true);
+			socketChannel.connect(address);
+			selectorThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					if(!socketChannel.isOpen())
+						return;
+					try {
+						key = selectorThread.register(socketChannel, SelectionKey.OP_CONNECT, Endpoint.this);
+					} catch(IOException e) {
+						onFailure(e);
+					}
+				}
+			});
+		}
+
+		void close() {
+			selectorThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					if(ws.isOpen()) {
+						closeRequestTime = System.currentTimeMillis();
+						ws.close(CloseFrame.NORMAL);
+					} else {
+						ws.closeConnection(CloseFrame.NORMAL, "closed");
+					}
+				}
+			});
+		}
+
+		/**************************
+		 * NioSelectorPool.Handler
+		 **************************/
+
+		@Override
+		public void onSelected(SelectionKey key) {
+			try {
+				if(key.isConnectable()) {
+					onConnected();
+					return;
+				}
+				if(key.isReadable())
+					read();
+				if(key.isValid() && key.isWritable())
+					flush();
+			} catch(IOException e) {
+				onFailure(e);
+			}
+		}
+
+		@Override
+		public void onTick(long now) {
+			if(closeRequestTime != 0) {
+				/* the remote end has not completed the close handshake in time */
+				if(now > closeRequestTime + connectionManager.ably.options.realtimeRequestTimeout)
+					ws.closeConnection(CloseFrame.NORMAL, "close timed out");
+				return;
+			}
+			if(lastActivityTime == 0)
+				return;
+			long timeout = connectionManager.maxIdleInterval;
+			if(timeout == 0)
+				return;
+			timeout += connectionManager.ably.options.realtimeRequestTimeout;
+			if(now >= lastActivityTime + timeout) {
+				/* Timeout has been reached. Close the connection. */
+				Log.e(TAG, "No activity for " + timeout + "ms, closing connection");
+				ws.closeConnection(CloseFrame.ABNORMAL_CLOSE, "timed out");
+			}
+		}
+
+		private void onConnected() throws IOException {
+			socketChannel.finishConnect();
+			key.interestOps(SelectionKey.OP_READ);
+			if(sslEngine != null)
+				channel = wrappedChannel = new SSLSocketChannel2(socketChannel, sslEngine, INLINE_EXECUTOR, key);
+			else
+				channel = socketChannel;
+			ws.channel = channel;
+			ws.key = key;
+
+			String path = uri.getRawPath();
+			if(path == null || path.length() == 0)
+				path = "/";
+			String query = uri.getRawQuery();
+			if(query != null)
+				path += '?' + query;
+			int defaultPort = (sslEngine != null) ? WebSocket.DEFAULT_WSS_PORT : WebSocket.DEFAULT_PORT;
+			HandshakeImpl1Client handshake = new HandshakeImpl1Client();
+			handshake.setResourceDescriptor(path);
+			handshake.put("Host", uri.getHost() + (uri.getPort() != defaultPort ? ":" + uri.getPort() : ""));
+			try {
+				ws.startHandshake(handshake);
+			} catch(Exception e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+
+		private void read() throws IOException {
+			ByteBuffer buf = selectorThread.readBuffer();
+			if(SocketChannelIOHelper.read(buf, ws, channel) && buf.hasRemaining())
+				ws.decode(buf);
+			if(wrappedChannel != null) {
+				/* drain any data already decrypted by the TLS layer */
+				while(key.isValid() && wrappedChannel.isNeedRead()) {
+					boolean more = SocketChannelIOHelper.readMore(buf, ws, wrappedChannel);
+					if(buf.hasRemaining())
+						ws.decode(buf);
+					if(!more)
+						break;
+				}
+			}
+		}
+
+		private void flush() throws IOException {
+			writePending.set(false);
+			if(key == null || !key.isValid() || channel == null)
+				return;
+			if(SocketChannelIOHelper.batch(ws, channel)) {
+				if(key.isValid())
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			} else {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			}
+		}
+
+		private void onFailure(Exception e) {
+			Log.e(TAG, "Unexpected exception in Endpoint", e);
+			if(connectListener != null) {
+				connectListener.onTransportUnavailable(NioWebSocketTransport.this, params, new ErrorInfo(e.getMessage(), 503, 80000));
+				connectListener = null;
+			}
+			ws.eot();
+			/* ensure resources are released even if the connection was already closed */
+			dispose();
+		}
+
+		private void dispose() {
+			selectorThread.unregister(key, this);
+			try {
+				if(channel != null)
+					channel.close();
+				else if(socketChannel != null)
+					socketChannel.close();
+			} catch(IOException e) {}
+		}
+
+		private void flagActivity() {
+			lastActivityTime = System.currentTimeMillis();
+			connectionManager.setLastActivity(lastActivityTime);
+		}
+
+		/**************************
+		 * WebSocketListener
+		 **************************/
+
+		@Override
+		public void onWebsocketOpen(WebSocket conn, Handshakedata handshake) {
+			if(connectListener != null) {
+				connectListener.onTransportAvailable(NioWebSocketTransport.this, params);
+				connectListener = null;
+			}
+			flagActivity();
+		}
+
+		@Override
+		public void onWebsocketMessage(WebSocket conn, ByteBuffer blob) {
+			try {
+				connectionManager.onMessage(NioWebSocketTransport.this, ProtocolSerializer.readMsgpack(blob));
+			} catch (AblyException e) {
+				String msg = "Unexpected exception processing received binary message";
+				Log.e(TAG, msg, e);
+			}
+			flagActivity();
+		}
+
+		@Override
+		public void onWebsocketMessage(WebSocket conn, String string) {
+			try {
+				connectionManager.onMessage(NioWebSocketTransport.this, ProtocolSerializer.fromJSON(string));
+			} catch (AblyException e) {
+				String msg = "Unexpected exception processing received text message";
+				Log.e(TAG, msg, e);
+			}
+			flagActivity();
+		}
+
+		/* This allows us to detect a websocket ping, so we don't need Ably pings. */
+		@Override
+		public void onWebsocketPing(WebSocket conn, Framedata f) {
+			/* Call superclass to ensure the pong is sent. */
+			super.onWebsocketPing(conn, f);
+			flagActivity();
+		}
+
+		@Override
+		public void onWebsocketClose(WebSocket conn, int wsCode, String wsReason, boolean remote) {
+			dispose();
+			synchronized(NioWebSocketTransport.this) {
+				if(wsConnection == this)
+					wsConnection = null;
+			}
+			if(compressionStats.isNegotiated())
+				Log.d(TAG, "onWebsocketClose(): compression: " + compressionStats);
+			connectionManager.notifyState(NioWebSocketTransport.this, WebSocketTransport.closeIndication(wsCode));
+		}
+
+		@Override
+		public void onWebsocketClosing(WebSocket conn, int code, String reason, boolean remote) {}
+
+		@Override
+		public void onWebsocketCloseInitiated(WebSocket conn, int code, String reason) {}
+
+		@Override
+		public void onWebsocketError(WebSocket conn, Exception e) {
+			String msg = "Unexpected exception in Endpoint";
+			Log.e(TAG, msg, e);
+			if(connectListener != null) {
+				connectListener.onTransportUnavailable(NioWebSocketTransport.this, params, new ErrorInfo(e.getMessage(), 503, 80000));
+				connectListener = null;
+			}
+		}
+
+		@Override
+		public void onWriteDemand(WebSocket conn) {
+			/* coalesce write requests so that a burst of sends results
+			 * in a single flush on the selector thread */
+			if(writePending.compareAndSet(false, true)) {
+				selectorThread.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							flush();
+						} catch(IOException e) {
+							onFailure(e);
+						}
+					}
+				});
+			}
+		}
+
+		@Override
+		public InetSocketAddress getLocalSocketAddress(WebSocket conn) {
+			Socket socket = (socketChannel != null) ? socketChannel.socket() : null;
+			return (socket != null) ? (InetSocketAddress)socket.getLocalSocketAddress() : null;
+		}
+
+		@Override
+		public InetSocketAddress getRemoteSocketAddress(WebSocket conn) {
+			Socket socket = (socketChannel != null) ? socketChannel.socket() : null;
+			return (socket != null) ? (InetSocketAddress)socket.getRemoteSocketAddress() : null;
+		}
+
+		/***************************
+		 * Endpoint private members
+		 ***************************/
+
+		final WebSocketImpl ws;
+		private final URI uri;
+		private final NioSelectorPool.SelectorThread selectorThread;
+		private final SSLEngine sslEngine;
+		private final AtomicBoolean writePending = new AtomicBoolean();
+		private ConnectListener connectListener;
+		private SocketChannel socketChannel;
+		private ByteChannel channel;
+		private WrappedByteChannel wrappedChannel;
+		private SelectionKey key;
+		private long lastActivityTime;
+		private long closeRequestTime;
+	}
+
+	/**
+	 * Runs TLS delegated tasks directly on the selector thread, so that the
+	 * TLS handshake completes without needing an additional wakeup.
+	 */
+	private static class InlineExecutorService extends AbstractExecutorService {
+		@Override
+		public void execute(Runnable command) { command.run(); }
+		@Override
+		public void shutdown() {}
+		@Override
+		public List<Runnable> shutdownNow() { return Collections.emptyList(); }
+		@Override
+		public boolean isShutdown() { return false; }
+		@Override
+		public boolean isTerminated() { return false; }
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) { return false; }
+	}
+
+	public String toString() {
+		return NioWebSocketTransport.class.getName() + " [" + getURL() + "]";
+	}
+
+	public String getURL() {
+		return wsUri;
+	}
+
+	/******************
+	 * private members
+	 ******************/
+
+	private static final InlineExecutorService INLINE_EXECUTOR = new InlineExecutorService();
+
+	private final TransportParams params;
+	private final ConnectionManager connectionManager;
+	private final boolean channelBinaryMode;
+	private final CompressionStats compressionStats = new CompressionStats();
+	private String wsUri;
+
+	private Endpoint wsConnection;
+}
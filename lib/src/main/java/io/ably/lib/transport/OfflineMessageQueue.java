@@ -0,0 +1,543 @@
+package io.ably.lib.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.transport.ConnectionManager.QueuedMessage;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.PresenceMessage;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.util.LibraryThread;
+import io.ably.lib.util.Log;
+
+/**
+ * A queue of messages published while they cannot yet be sent: by the
+ * connection while it is connecting or disconnected, or by a channel
+ * while it is attaching.
+ *
+ * The queue may be bounded, by number of messages and by an estimate of
+ * their size in bytes, with a policy determining what happens when a
+ * message is published to a full queue. Queued messages may also expire
+ * after a time to live.
+ *
+ * The connection's queue may be held in a {@link MessageJournal} instead
+ * of on the heap, so that queued messages survive a restart of the
+ * process. Only the listeners of journaled messages are held on the heap.
+ * Journaled messages are not failed with the rest of the queue, but remain
+ * pending, and their listeners are called once they are sent when next
+ * connected. A journaled message that requires an acknowledgement remains
+ * in the journal, after it is taken from the queue to be sent, until it is
+ * acknowledged or failed, so that a message in flight when the process
+ * fails is sent again by a later client.
+ *
+ * When the owner is closed, the journal is closed, and the listeners of
+ * the journaled messages still queued are failed, as this client will not
+ * send them; the messages themselves remain in the journal, to be sent by
+ * a later client. Messages recovered from the journal of an earlier client
+ * have no listener. If the journal is in use by another client, messages
+ * are held on the heap.
+ *
+ * The queue is not itself thread-safe; it is guarded by its owner's lock,
+ * which must be held when calling any method other than the metrics
+ * accessors. Blocked publishers wait on that lock, so that the owner can
+ * continue to make progress, and are woken whenever messages are removed.
+ */
+public class OfflineMessageQueue {
+
+	private static final String TAG = OfflineMessageQueue.class.getName();
+
+	/**
+	 * The action taken when a message is published while the queue is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The publishing thread waits until there is space in the queue, or
+		 * until the messages in the queue have been sent or failed. A
+		 * publisher called back on one of the library's threads cannot
+		 * wait, so its publish fails immediately, as for {@link #fail}.
+		 */
+		block,
+
+		/**
+		 * The message is not queued, and the publish fails immediately
+		 * with an error passed to its listener.
+		 */
+		fail,
+
+		/**
+		 * The oldest queued messages are discarded, and fail with an error
+		 * passed to their listeners, until there is space for the new message.
+		 */
+		dropOldest
+	}
+
+	/**
+	 * A message removed from the queue without being sent, together with
+	 * the reason. Listeners are called by {@link #notifyFailed(List)}, which
+	 * should be done without holding the owner's lock.
+	 */
+	public static class Failed {
+		public final QueuedMessage msg;
+		public final ErrorInfo reason;
+		Failed(QueuedMessage msg, ErrorInfo reason) {
+			this.msg = msg;
+			this.reason = reason;
+		}
+	}
+
+	/**
+	 * Create a queue with the limits given in the client options.
+	 * @param lock the owner's lock, on which blocked publishers wait
+	 */
+	public OfflineMessageQueue(Object lock, ClientOptions options) {
+		this(lock, options, null);
+	}
+
+	/**
+	 * Create a queue with the limits given in the client options, whose
+	 * messages are held in the given journal file. Messages already in the
+	 * journal are added to the queue. If the journal cannot be opened,
+	 * messages are held on the heap.
+	 * @param lock the owner's lock, on which blocked publishers wait
+	 * @param journalFile the journal file, or null if none
+	 */
+	public OfflineMessageQueue(Object lock, ClientOptions options, File journalFile) {
+		this.lock = lock;
+		this.maxMessages = Math.max(0, options.offlineQueueMaxMessages);
+		this.maxBytes = Math.max(0, options.offlineQueueMaxBytes);
+		this.ttl = Math.max(0, options.offlineQueueTtl);
+		this.policy = (options.offlineQueueOverflowPolicy == null) ? OverflowPolicy.fail : options.offlineQueueOverflowPolicy;
+		MessageJournal journal = null;
+		if(journalFile != null) {
+			try {
+				journal = new MessageJournal(journalFile);
+				for(MessageJournal.Record record : journal.getRecords()) {
+					entries.addLast(new Entry(null, null, record.count, record.size, record.queuedAt));
+					messageCount += record.count;
+					byteCount += record.size;
+				}
+				if(messageCount > 0)
+					Log.v(TAG, "OfflineMessageQueue(): recovered " + messageCount + " messages from journal " + journalFile);
+				peakMessageCount = messageCount;
+			} catch(IOException e) {
+				Log.e(TAG, "OfflineMessageQueue(): unable to open journal " + journalFile + "; queueing messages on the heap", e);
+			}
+		}
+		this.journal = journal;
+	}
+
+	/**
+	 * Whether or not a publisher of the given message must wait before
+	 * adding it: that is, if the overflow policy is block and the queue is
+	 * full. A message that would exceed the limits on its own is accepted
+	 * once the queue is empty.
+	 */
+	public boolean mustWait(QueuedMessage msg) {
+		return policy == OverflowPolicy.block
+				&& !entries.isEmpty()
+				&& exceedsLimits(messageCount(msg.msg), sizeOf(msg.msg));
+	}
+
+	/**
+	 * Wait on the owner's lock until messages are removed from the queue,
+	 * or until the oldest queued message expires.
+	 */
+	public void await() {
+		++waitCount;
+		long timeout = 0;
+		if(ttl > 0 && !entries.isEmpty())
+			timeout = Math.max(1, entries.peekFirst().queuedAt + ttl - System.currentTimeMillis());
+		try { lock.wait(timeout); } catch(InterruptedException ie) {}
+	}
+
+	/**
+	 * Add a message to the queue. Expired messages are removed first, and the
+	 * overflow policy is applied if the message would exceed the limits.
+	 * Under the block policy, a message published on a library thread, which
+	 * does not wait as directed by {@link #mustWait}, is rejected; other
+	 * publishers are allowed to exceed the limits.
+	 * @return the messages that were removed, or not queued, and must be failed
+	 */
+	public List<Failed> add(QueuedMessage msg) {
+		List<Failed> failed = expire(null);
+		int count = messageCount(msg.msg);
+		long bytes = sizeOf(msg.msg);
+		if(exceedsLimits(count, bytes)) {
+			switch(policy) {
+			case block:
+				/* a library thread cannot wait for space, so rather than
+				 * exceed the limits its message is rejected */
+				if(!LibraryThread.isCurrent() || entries.isEmpty())
+					break;
+			case fail:
+				++rejectedCount;
+				Log.e(TAG, "add(): queue full; rejecting message");
+				failed = addFailed(failed, msg, REASON_QUEUE_FULL);
+				return failed;
+			case dropOldest:
+				while(!entries.isEmpty() && exceedsLimits(count, bytes)) {
+					droppedCount += entries.peekFirst().count;
+					failed = addFailed(failed, removeFirst(true), REASON_DROPPED);
+				}
+				Log.e(TAG, "add(): queue full; dropped oldest messages");
+				break;
+			default:
+				break;
+			}
+		}
+
+		Entry entry = null;
+		if(journal != null) {
+			/* hold only the listener on the heap */
+			long queuedAt = System.currentTimeMillis();
+			try {
+				bytes = journal.append(msg.msg, queuedAt, count);
+				entry = new Entry(null, msg.listener, count, bytes, queuedAt);
+			} catch(IOException e) {
+				Log.e(TAG, "add(): unable to write to journal; queueing message on the heap", e);
+			}
+		}
+		if(entry == null)
+			entry = new Entry(msg, msg.listener, count, bytes, System.currentTimeMillis());
+		entries.addLast(entry);
+		messageCount += count;
+		byteCount += bytes;
+		if(messageCount > peakMessageCount)
+			peakMessageCount = messageCount;
+		return failed;
+	}
+
+	/**
+	 * Remove and return the oldest message, or null if the queue is empty.
+	 * Expired messages are not returned, but added to the given list.
+	 */
+	public QueuedMessage poll(List<Failed> failed) {
+		expire(failed);
+		while(!entries.isEmpty()) {
+			QueuedMessage msg = removeFirst(false);
+			if(msg.msg != null)
+				return msg;
+			/* the journal record could not be decoded */
+			failed.add(new Failed(msg, REASON_UNREADABLE));
+		}
+		return null;
+	}
+
+	/**
+	 * Remove all messages held on the heap, so that they can be failed.
+	 * Messages held in a journal remain queued, with their listeners.
+	 * @return the messages to be failed, in order
+	 */
+	public List<QueuedMessage> clear() {
+		List<QueuedMessage> result = new ArrayList<QueuedMessage>(entries.size());
+		Iterator<Entry> it = entries.iterator();
+		while(it.hasNext()) {
+			Entry entry = it.next();
+			if(entry.msg != null) {
+				it.remove();
+				messageCount -= entry.count;
+				byteCount -= entry.bytes;
+				result.add(entry.msg);
+			}
+		}
+		/* wake any blocked publishers */
+		lock.notifyAll();
+		return result;
+	}
+
+	/**
+	 * Close the journal, if any, when the owner is closed. Journaled messages
+	 * are removed from the queue but remain in the journal; any later
+	 * messages are held on the heap.
+	 * @param reason the reason for the close, or null
+	 * @return the journaled messages, holding only their listeners, which
+	 * must be failed, as this client will not send them
+	 */
+	public List<Failed> close(ErrorInfo reason) {
+		if(journal == null)
+			return null;
+		if(reason == null)
+			reason = REASON_CLOSED;
+		List<Failed> failed = null;
+		Iterator<Entry> it = entries.iterator();
+		while(it.hasNext()) {
+			Entry entry = it.next();
+			if(entry.msg == null) {
+				it.remove();
+				messageCount -= entry.count;
+				byteCount -= entry.bytes;
+				if(entry.listener != null)
+					failed = addFailed(failed, new QueuedMessage(null, entry.listener), reason);
+			}
+		}
+		journal.close();
+		journal = null;
+		/* wake any blocked publishers */
+		lock.notifyAll();
+		return failed;
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * Call the listeners of failed messages.
+	 */
+	public static void notifyFailed(List<Failed> failed) {
+		if(failed == null)
+			return;
+		for(Failed f : failed) {
+			if(f.msg.listener != null) {
+				try {
+					f.msg.listener.onError(f.reason);
+				} catch(Throwable t) {
+					Log.e(TAG, "notifyFailed(): Unexpected exception calling listener", t);
+				}
+			}
+		}
+	}
+
+	/******************
+	 * metrics
+	 ******************/
+
+	/**
+	 * The number of messages currently queued.
+	 */
+	public int getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * The estimated size, in bytes, of the messages currently queued.
+	 */
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * The largest number of messages that have been queued at any one time.
+	 */
+	public int getPeakMessageCount() {
+		return peakMessageCount;
+	}
+
+	/**
+	 * The limit on the number of queued messages, or 0 if unlimited.
+	 */
+	public int getMaxMessages() {
+		return maxMessages;
+	}
+
+	/**
+	 * The limit on the estimated size of queued messages, or 0 if unlimited.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * The number of messages rejected because the queue was full.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * The number of queued messages discarded to make space for newer messages.
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * The number of queued messages that expired before they could be sent.
+	 */
+	public long getExpiredCount() {
+		return expiredCount;
+	}
+
+	/**
+	 * The number of times a publisher has waited for space in the queue.
+	 */
+	public long getWaitCount() {
+		return waitCount;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("messages = %d/%d; bytes = %d/%d; peak = %d; rejected = %d; dropped = %d; expired = %d; waits = %d",
+				messageCount, maxMessages, byteCount, maxBytes, peakMessageCount, rejectedCount, droppedCount, expiredCount, waitCount);
+	}
+
+	/**
+	 * An estimate of the size of a queued protocol message.
+	 */
+	static long sizeOf(ProtocolMessage msg) {
+		return ENTRY_OVERHEAD + payloadSize(msg);
+	}
+
+	/**
+	 * An estimate of the encoded size of a protocol message's payload.
+	 */
+	static long payloadSize(ProtocolMessage msg) {
+		long size = 0;
+		if(msg.messages != null) {
+			for(Message message : msg.messages)
+				size += sizeOf(message.name) + sizeOf(message.id) + sizeOf(message.clientId) + sizeOf(message.encoding) + sizeOf(message.data);
+		}
+		if(msg.presence != null) {
+			for(PresenceMessage message : msg.presence)
+				size += sizeOf(message.id) + sizeOf(message.clientId) + sizeOf(message.encoding) + sizeOf(message.data);
+		}
+		return size;
+	}
+
+	/******************
+	 * private
+	 ******************/
+
+	/**
+	 * A queued message; either the message itself, or, if the message
+	 * is in the journal, its listener.
+	 */
+	private static class Entry {
+		final QueuedMessage msg;
+		final CompletionListener listener;
+		final long queuedAt;
+		int count;
+		long bytes;
+		Entry(QueuedMessage msg, CompletionListener listener, int count, long bytes, long queuedAt) {
+			this.msg = msg;
+			this.listener = listener;
+			this.count = count;
+			this.bytes = bytes;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+	private boolean exceedsLimits(int count, long bytes) {
+		return (maxMessages > 0 && messageCount + count > maxMessages)
+				|| (maxBytes > 0 && byteCount + bytes > maxBytes);
+	}
+
+	/**
+	 * Remove the first entry, and its journal record if it has one.
+	 * @param discard if set, the journal record is not decoded, and the
+	 * returned message holds only the listener
+	 */
+	private QueuedMessage removeFirst(boolean discard) {
+		Entry entry = entries.removeFirst();
+		messageCount -= entry.count;
+		byteCount -= entry.bytes;
+		/* wake any blocked publishers */
+		lock.notifyAll();
+		if(entry.msg != null)
+			return entry.msg;
+		MessageJournal.Read read = journal.readNext(discard);
+		if(read == null || read.msg == null)
+			return new QueuedMessage(null, releasing(read, entry.listener));
+		if(!ProtocolMessage.ackRequired(read.msg)) {
+			/* there is no acknowledgement to wait for */
+			journal.release(read);
+			return new QueuedMessage(read.msg, entry.listener);
+		}
+		return new QueuedMessage(read.msg, releasing(read, entry.listener));
+	}
+
+	/**
+	 * A listener that releases the given journal record when the message
+	 * read from it is acknowledged or failed, and then calls the message's
+	 * own listener, if any.
+	 */
+	private CompletionListener releasing(final MessageJournal.Read read, final CompletionListener listener) {
+		if(read == null || read.released)
+			return listener;
+		final MessageJournal journal = this.journal;
+		return new CompletionListener() {
+			@Override
+			public void onSuccess() {
+				journal.release(read);
+				if(listener != null)
+					listener.onSuccess();
+			}
+
+			@Override
+			public void onError(ErrorInfo reason) {
+				journal.release(read);
+				if(listener != null)
+					listener.onError(reason);
+			}
+		};
+	}
+
+	/**
+	 * Remove expired messages from the head of the queue.
+	 * @return the given list of failed messages, with the expired messages added
+	 */
+	private List<Failed> expire(List<Failed> failed) {
+		if(ttl == 0)
+			return failed;
+		long expiredBefore = System.currentTimeMillis() - ttl;
+		while(!entries.isEmpty() && entries.peekFirst().queuedAt <= expiredBefore) {
+			expiredCount += entries.peekFirst().count;
+			failed = addFailed(failed, removeFirst(true), REASON_EXPIRED);
+		}
+		return failed;
+	}
+
+	private static List<Failed> addFailed(List<Failed> failed, QueuedMessage msg, ErrorInfo reason) {
+		if(failed == null)
+			failed = new ArrayList<Failed>();
+		failed.add(new Failed(msg, reason));
+		return failed;
+	}
+
+	private static int messageCount(ProtocolMessage msg) {
+		if(msg.messages != null)
+			return msg.messages.length;
+		if(msg.presence != null)
+			return msg.presence.length;
+		return 1;
+	}
+
+	private static long sizeOf(Object value) {
+		if(value == null)
+			return 0;
+		if(value instanceof String)
+			return ((String)value).length();
+		if(value instanceof byte[])
+			return ((byte[])value).length;
+		return value.toString().length();
+	}
+
+	private static final long ENTRY_OVERHEAD = 64;
+	private static final ErrorInfo REASON_QUEUE_FULL = new ErrorInfo("Unable to queue message; queue full", 400, 40000);
+	private static final ErrorInfo REASON_DROPPED = new ErrorInfo("Queued message discarded; queue full", 400, 40000);
+	private static final ErrorInfo REASON_UNREADABLE = new ErrorInfo("Queued message could not be read from journal", 500, 50000);
+	private static final ErrorInfo REASON_CLOSED = new ErrorInfo("Queued message not sent before the client was closed", 400, 80017);
+	private static final ErrorInfo REASON_EXPIRED = new ErrorInfo("Queued message expired before it could be sent", 400, 40000);
+
+	private final Object lock;
+	private final int maxMessages;
+	private final long maxBytes;
+	private final long ttl;
+	private final OverflowPolicy policy;
+	private MessageJournal journal;
+	private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	private volatile int messageCount;
+	private volatile long byteCount;
+	private volatile int peakMessageCount;
+	private volatile long rejectedCount;
+	private volatile long droppedCount;
+	private volatile long expiredCount;
+	private volatile long waitCount;
+}
@@ -0,0 +1,512 @@
+package io.ably.lib.transport;
+
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_17;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.exceptions.InvalidHandshakeException;
+import org.java_websocket.exceptions.LimitExedeedException;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.Framedata.Opcode;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ClientHandshakeBuilder;
+import org.java_websocket.handshake.ServerHandshake;
+
+/**
+ * A websocket draft that adds client support for the permessage-deflate
+ * extension (RFC 7692) to the standard RFC 6455 framing.
+ *
+ * The underlying framing implementation rejects frames with the RSV1 bit
+ * set, so received frames belonging to compressed messages are decompressed
+ * and rewritten as plain frames before they are passed on to it. Outbound
+ * data frames are compressed as they are serialised.
+ */
+class PerMessageDeflateDraft extends Draft_17 {
+
+	private static final String TAG = PerMessageDeflateDraft.class.getName();
+
+	static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+	static final String EXTENSION_NAME = "permessage-deflate";
+
+	PerMessageDeflateDraft(ClientOptions options, CompressionStats stats) {
+		this(options.webSocketCompressionLevel, options.webSocketServerMaxWindowBits, options.webSocketNoContextTakeover, stats);
+	}
+
+	private PerMessageDeflateDraft(int compressionLevel, int serverMaxWindowBits, boolean requestNoContextTakeover, CompressionStats stats) {
+		this.compressionLevel = compressionLevel;
+		this.serverMaxWindowBits = serverMaxWindowBits;
+		this.requestNoContextTakeover = requestNoContextTakeover;
+		this.stats = stats;
+	}
+
+	@Override
+	public Draft copyInstance() {
+		return new PerMessageDeflateDraft(compressionLevel, serverMaxWindowBits, requestNoContextTakeover, stats);
+	}
+
+	/******************
+	 * handshake
+	 ******************/
+
+	@Override
+	public ClientHandshakeBuilder postProcessHandshakeRequestAsClient(ClientHandshakeBuilder request) {
+		super.postProcessHandshakeRequestAsClient(request);
+		StringBuilder offer = new StringBuilder(EXTENSION_NAME);
+		if(requestNoContextTakeover)
+			offer.append("; client_no_context_takeover; server_no_context_takeover");
+		if(serverMaxWindowBits != 0)
+			offer.append("; server_max_window_bits=").append(serverMaxWindowBits);
+		request.put(EXTENSIONS_HEADER, offer.toString());
+		return request;
+	}
+
+	@Override
+	public HandshakeState acceptHandshakeAsClient(ClientHandshake request, ServerHandshake response) throws InvalidHandshakeException {
+		HandshakeState state = super.acceptHandshakeAsClient(request, response);
+		if(state != HandshakeState.MATCHED)
+			return state;
+		String extensions = response.getFieldValue(EXTENSIONS_HEADER);
+		if(extensions == null || extensions.trim().length() == 0) {
+			/* the server declined compression */
+			return state;
+		}
+		return acceptExtension(extensions) ? state : HandshakeState.NOT_MATCHED;
+	}
+
+	/**
+	 * Process the extension parameters accepted by the server.
+	 * @return false if the response is not a valid acceptance of our offer
+	 */
+	private synchronized boolean acceptExtension(String extensions) {
+		if(extensions.indexOf(',') != -1) {
+			Log.e(TAG, "Server accepted unrequested extensions: " + extensions);
+			return false;
+		}
+		String[] params = extensions.split(";");
+		if(!EXTENSION_NAME.equals(params[0].trim())) {
+			Log.e(TAG, "Server accepted unrequested extension: " + extensions);
+			return false;
+		}
+		boolean canCompress = SYNC_FLUSH_SUPPORTED;
+		for(int i = 1; i < params.length; i++) {
+			String param = params[i].trim();
+			String value = null;
+			int eq = param.indexOf('=');
+			if(eq != -1) {
+				value = param.substring(eq + 1).trim().replace("\"", "");
+				param = param.substring(0, eq).trim();
+			}
+			if(param.equals("server_no_context_takeover")) {
+				inboundNoContextTakeover = true;
+			} else if(param.equals("client_no_context_takeover")) {
+				outboundNoContextTakeover = true;
+			} else if(param.equals("server_max_window_bits")) {
+				/* we can always decompress with the largest window */
+				if(parseWindowBits(value) == -1)
+					return false;
+			} else if(param.equals("client_max_window_bits")) {
+				/* the compressor's window size can't be limited, so
+				 * we have to send uncompressed messages instead */
+				int bits = parseWindowBits(value);
+				if(bits == -1)
+					return false;
+				if(bits < MAX_WINDOW_BITS)
+					canCompress = false;
+			} else {
+				Log.e(TAG, "Unrecognised permessage-deflate parameter: " + param);
+				return false;
+			}
+		}
+		inflater = new Inflater(true);
+		if(canCompress)
+			deflater = new Deflater(compressionLevel, true);
+		negotiated = true;
+		stats.setNegotiated(true);
+		Log.v(TAG, "acceptExtension(): negotiated " + extensions);
+		return true;
+	}
+
+	private static int parseWindowBits(String value) {
+		if(value == null)
+			return MAX_WINDOW_BITS;
+		try {
+			int bits = Integer.parseInt(value);
+			return (bits >= 8 && bits <= MAX_WINDOW_BITS) ? bits : -1;
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		/* release native resources; the draft is reset when the connection closes */
+		if(inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+		if(deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+		pendingLength = 0;
+		inboundCompressedMessage = false;
+	}
+
+	/******************
+	 * inbound
+	 ******************/
+
+	@Override
+	public List<Framedata> translateFrame(ByteBuffer buffer) throws LimitExedeedException, InvalidDataException {
+		if(!negotiated)
+			return super.translateFrame(buffer);
+		ByteBuffer frames = rewriteFrames(buffer);
+		if(frames == null)
+			return Collections.emptyList();
+		return super.translateFrame(frames);
+	}
+
+	/**
+	 * Process all complete frames in the received data, together with any
+	 * data remaining from previous calls. Frames of compressed messages are
+	 * replaced by equivalent uncompressed frames; other frames are copied
+	 * unchanged. Incomplete frame data is retained for the next call.
+	 * @return a buffer containing the resulting complete frames, or null if none
+	 */
+	private synchronized ByteBuffer rewriteFrames(ByteBuffer buffer) throws LimitExedeedException, InvalidDataException {
+		ByteBuffer in;
+		if(pendingLength == 0) {
+			in = buffer;
+		} else {
+			appendPending(buffer, buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+			in = ByteBuffer.wrap(pending, 0, pendingLength);
+		}
+
+		ByteArray out = null;
+		int pos = in.position();
+		int limit = in.limit();
+		while(true) {
+			int available = limit - pos;
+			if(available < 2)
+				break;
+			int b0 = in.get(pos) & 0xff;
+			int b1 = in.get(pos + 1) & 0xff;
+			int headerLength = 2;
+			long payloadLength = b1 & 0x7f;
+			if(payloadLength == 126) {
+				if(available < 4)
+					break;
+				payloadLength = ((in.get(pos + 2) & 0xff) << 8) | (in.get(pos + 3) & 0xff);
+				headerLength = 4;
+			} else if(payloadLength == 127) {
+				if(available < 10)
+					break;
+				payloadLength = in.getLong(pos + 2);
+				headerLength = 10;
+			}
+			boolean masked = (b1 & 0x80) != 0;
+			if(masked)
+				headerLength += 4;
+			if(payloadLength < 0 || payloadLength > Integer.MAX_VALUE - headerLength)
+				throw new LimitExedeedException("Payload limit reached.");
+			int frameLength = headerLength + (int)payloadLength;
+			if(available < frameLength)
+				break;
+
+			if(out == null)
+				out = new ByteArray(frameLength);
+			rewriteFrame(in, pos, b0, masked, headerLength, (int)payloadLength, out);
+			pos += frameLength;
+		}
+
+		/* retain any incomplete frame */
+		int remaining = limit - pos;
+		if(in == buffer) {
+			pendingLength = 0;
+			if(remaining > 0)
+				appendPending(buffer, pos, remaining);
+			buffer.position(limit);
+		} else {
+			System.arraycopy(pending, pos, pending, 0, remaining);
+			pendingLength = remaining;
+		}
+		return (out == null) ? null : ByteBuffer.wrap(out.bytes, 0, out.length);
+	}
+
+	private void rewriteFrame(ByteBuffer in, int pos, int b0, boolean masked, int headerLength, int payloadLength, ByteArray out) throws InvalidDataException {
+		boolean fin = (b0 & 0x80) != 0;
+		boolean rsv1 = (b0 & 0x40) != 0;
+		int opcode = b0 & 0x0f;
+		boolean compressed = false;
+		if(opcode == OPCODE_TEXT || opcode == OPCODE_BINARY) {
+			compressed = rsv1;
+			inboundCompressedMessage = compressed && !fin;
+		} else if(opcode == OPCODE_CONTINUATION) {
+			compressed = inboundCompressedMessage;
+			if(fin)
+				inboundCompressedMessage = false;
+		} else {
+			/* control frame: pass through unchanged */
+			out.append(in, pos, headerLength + payloadLength);
+			return;
+		}
+
+		if(!compressed) {
+			out.append(in, pos, headerLength + payloadLength);
+			stats.addInbound(payloadLength, payloadLength);
+			return;
+		}
+
+		byte[] payload = new byte[payloadLength];
+		int payloadStart = pos + headerLength;
+		for(int i = 0; i < payloadLength; i++)
+			payload[i] = in.get(payloadStart + i);
+		if(masked) {
+			int maskStart = payloadStart - 4;
+			for(int i = 0; i < payloadLength; i++)
+				payload[i] ^= in.get(maskStart + (i & 3));
+		}
+		ByteArray inflated = inflate(payload, fin);
+		stats.addInbound(payloadLength, inflated.length);
+		writeFrameHeader(out, b0 & ~0x40, inflated.length, null);
+		out.append(inflated.bytes, 0, inflated.length);
+	}
+
+	private ByteArray inflate(byte[] payload, boolean fin) throws InvalidDataException {
+		if(inflater == null)
+			throw new InvalidDataException(CloseFrame.ABNORMAL_CLOSE, "Connection closed");
+		ByteArray result = new ByteArray(payload.length * 4);
+		try {
+			inflater.setInput(payload);
+			drainInflater(result);
+			if(fin) {
+				inflater.setInput(TAIL);
+				drainInflater(result);
+				if(inboundNoContextTakeover)
+					inflater.reset();
+			}
+		} catch(DataFormatException e) {
+			throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR, "Invalid compressed data: " + e.getMessage());
+		}
+		return result;
+	}
+
+	private void drainInflater(ByteArray result) throws DataFormatException {
+		while(true) {
+			result.ensureCapacity(INFLATE_CHUNK);
+			int n = inflater.inflate(result.bytes, result.length, result.bytes.length - result.length);
+			result.length += n;
+			if(inflater.finished()) {
+				/* the sender ended the stream with a final block; any
+				 * remaining input is the trailer and is discarded */
+				inflater.reset();
+				break;
+			}
+			if(n == 0)
+				break;
+		}
+	}
+
+	/******************
+	 * outbound
+	 ******************/
+
+	@Override
+	public ByteBuffer createBinaryFrame(Framedata frame) {
+		Opcode opcode = frame.getOpcode();
+		boolean data = (opcode == Opcode.TEXT || opcode == Opcode.BINARY);
+		if(!negotiated || !data || !frame.isFin())
+			return super.createBinaryFrame(frame);
+
+		ByteBuffer payload = frame.getPayloadData();
+		int payloadLength = payload.remaining();
+		ByteArray compressed = deflate(payload);
+		if(compressed == null) {
+			stats.addOutbound(payloadLength, payloadLength);
+			return super.createBinaryFrame(frame);
+		}
+		stats.addOutbound(compressed.length, payloadLength);
+
+		byte[] mask = null;
+		if(frame.getTransfereMasked()) {
+			mask = new byte[4];
+			random.nextBytes(mask);
+		}
+		ByteArray out = new ByteArray(compressed.length + 14);
+		int b0 = 0x80 | 0x40 | (opcode == Opcode.TEXT ? OPCODE_TEXT : OPCODE_BINARY);
+		writeFrameHeader(out, b0, compressed.length, mask);
+		if(mask != null) {
+			for(int i = 0; i < compressed.length; i++)
+				compressed.bytes[i] ^= mask[i & 3];
+		}
+		out.append(compressed.bytes, 0, compressed.length);
+		return ByteBuffer.wrap(out.bytes, 0, out.length);
+	}
+
+	/**
+	 * Compress a message payload.
+	 * @return the compressed payload, or null if the message is to be sent uncompressed
+	 */
+	private synchronized ByteArray deflate(ByteBuffer payload) {
+		if(deflater == null)
+			return null;
+		int payloadLength = payload.remaining();
+		if(payload.hasArray()) {
+			deflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payloadLength);
+		} else {
+			byte[] input = new byte[payloadLength];
+			payload.duplicate().get(input);
+			deflater.setInput(input);
+		}
+		ByteArray result = new ByteArray(payloadLength / 2 + 64);
+		while(true) {
+			result.ensureCapacity(DEFLATE_CHUNK);
+			int space = result.bytes.length - result.length;
+			int n = deflater.deflate(result.bytes, result.length, space, Deflater.SYNC_FLUSH);
+			result.length += n;
+			if(n < space)
+				break;
+		}
+		/* remove the empty block trailer; the receiver restores it */
+		if(result.endsWith(TAIL))
+			result.length -= TAIL.length;
+		if(outboundNoContextTakeover) {
+			deflater.reset();
+			/* with no shared context there's no need to send a message
+			 * compressed if that didn't make it smaller */
+			if(result.length >= payloadLength)
+				return null;
+		}
+		return result;
+	}
+
+	private static void writeFrameHeader(ByteArray out, int b0, int payloadLength, byte[] mask) {
+		int maskBit = (mask != null) ? 0x80 : 0;
+		out.ensureCapacity(14);
+		out.bytes[out.length++] = (byte)b0;
+		if(payloadLength < 126) {
+			out.bytes[out.length++] = (byte)(maskBit | payloadLength);
+		} else if(payloadLength < 65536) {
+			out.bytes[out.length++] = (byte)(maskBit | 126);
+			out.bytes[out.length++] = (byte)(payloadLength >>> 8);
+			out.bytes[out.length++] = (byte)payloadLength;
+		} else {
+			out.bytes[out.length++] = (byte)(maskBit | 127);
+			for(int shift = 56; shift >= 0; shift -= 8)
+				out.bytes[out.length++] = (byte)((long)payloadLength >>> shift);
+		}
+		if(mask != null)
+			out.append(mask, 0, mask.length);
+	}
+
+	private void appendPending(ByteBuffer buffer, int from, int length) {
+		int required = pendingLength + length;
+		if(required > pending.length) {
+			byte[] newPending = new byte[Math.max(required, pending.length * 2)];
+			System.arraycopy(pending, 0, newPending, 0, pendingLength);
+			pending = newPending;
+		}
+		for(int i = 0; i < length; i++)
+			pending[pendingLength + i] = buffer.get(from + i);
+		pendingLength = required;
+	}
+
+	/**
+	 * A simple growable byte array
+	 */
+	private static class ByteArray {
+		byte[] bytes;
+		int length;
+
+		ByteArray(int capacity) {
+			bytes = new byte[Math.max(capacity, 16)];
+		}
+
+		void ensureCapacity(int additional) {
+			int required = length + additional;
+			if(required > bytes.length) {
+				byte[] newBytes = new byte[Math.max(required, bytes.length * 2)];
+				System.arraycopy(bytes, 0, newBytes, 0, length);
+				bytes = newBytes;
+			}
+		}
+
+		void append(byte[] src, int offset, int count) {
+			ensureCapacity(count);
+			System.arraycopy(src, offset, bytes, length, count);
+			length += count;
+		}
+
+		void append(ByteBuffer src, int offset, int count) {
+			ensureCapacity(count);
+			for(int i = 0; i < count; i++)
+				bytes[length + i] = src.get(offset + i);
+			length += count;
+		}
+
+		boolean endsWith(byte[] suffix) {
+			if(length < suffix.length)
+				return false;
+			for(int i = 0; i < suffix.length; i++) {
+				if(bytes[length - suffix.length + i] != suffix[i])
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Deflater.SYNC_FLUSH is not available on older Android versions; in that
+	 * case received messages can still be decompressed, but all messages are
+	 * sent uncompressed.
+	 */
+	private static boolean isSyncFlushSupported() {
+		try {
+			Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+			return true;
+		} catch(NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/******************
+	 * private members
+	 ******************/
+
+	private static final boolean SYNC_FLUSH_SUPPORTED = isSyncFlushSupported();
+	private static final byte[] TAIL = new byte[] { 0, 0, (byte)0xff, (byte)0xff };
+	private static final int MAX_WINDOW_BITS = 15;
+	private static final int INFLATE_CHUNK = 4096;
+	private static final int DEFLATE_CHUNK = 1024;
+	private static final int OPCODE_CONTINUATION = 0;
+	private static final int OPCODE_TEXT = 1;
+	private static final int OPCODE_BINARY = 2;
+
+	private final int compressionLevel;
+	private final int serverMaxWindowBits;
+	private final boolean requestNoContextTakeover;
+	private final CompressionStats stats;
+	private final Random random = new Random();
+
+	private volatile boolean negotiated;
+	private boolean inboundNoContextTakeover;
+	private boolean outboundNoContextTakeover;
+	private boolean inboundCompressedMessage;
+	private Inflater inflater;
+	private Deflater deflater;
+	private byte[] pending = new byte[0];
+	private int pendingLength;
+}
@@ -0,0 +1,146 @@
+package io.ably.lib.transport;
+
+import java.util.Random;
+
+import io.ably.lib.types.ClientOptions;
+
+/**
+ * Computes the delay before each successive attempt to reconnect from the
+ * disconnected or suspended state, so that many clients that lose their
+ * connections at the same time do not all reconnect at the same time.
+ *
+ * The delay for the nth consecutive attempt grows from the retry timeout
+ * of the current state by a multiplier, up to a maximum, and may be
+ * randomised as determined by the {@link Jitter}. The sequence starts
+ * again once connected. The connection manager keeps a separate sequence
+ * for each of the disconnected and suspended states, so entering the
+ * suspended state starts a sequence of its own rather than continuing the
+ * one reached by retries from the disconnected state.
+ *
+ * The first attempt after a connection is lost is made at once, unless
+ * delays are randomised, in which case it too is delayed, by up to the
+ * retry timeout; see {@link #firstDelay}.
+ */
+public class RetryBackoff {
+
+	/**
+	 * The way in which retry delays are randomised.
+	 */
+	public enum Jitter {
+		/**
+		 * The delay is base * multiplier^n, up to the maximum.
+		 */
+		none,
+
+		/**
+		 * The delay is chosen uniformly between zero and
+		 * base * multiplier^n, up to the maximum.
+		 */
+		full,
+
+		/**
+		 * The delay is chosen uniformly between the base and three times
+		 * the previous delay, up to the maximum; the multiplier is not used.
+		 */
+		decorrelated
+	}
+
+	public RetryBackoff(ClientOptions options) {
+		this(options.retryJitter, options.retryBackoffMultiplier, options.retryBackoffMaxDelay, new Random());
+	}
+
+	/**
+	 * @param jitter the way in which delays are randomised
+	 * @param multiplier the factor by which the delay grows with each attempt
+	 * @param maxDelay the maximum delay, in milliseconds, or 0 for no maximum
+	 * @param random the source of randomness
+	 */
+	public RetryBackoff(Jitter jitter, double multiplier, long maxDelay, Random random) {
+		this.jitter = (jitter == null) ? Jitter.none : jitter;
+		this.multiplier = Math.max(1.0, multiplier);
+		this.maxDelay = maxDelay;
+		this.random = random;
+	}
+
+	/**
+	 * Get the delay before the next attempt, and count the attempt.
+	 * @param base the retry timeout of the current state, in milliseconds
+	 * @return the delay, in milliseconds
+	 */
+	public synchronized long nextDelay(long base) {
+		long delay;
+		switch(jitter) {
+		case full:
+			delay = (long)(random.nextDouble() * cap(base * Math.pow(multiplier, attempts)));
+			break;
+		case decorrelated:
+			long upper = cap(Math.max(base, previous) * 3.0);
+			long lower = Math.min(base, upper);
+			delay = lower + (long)(random.nextDouble() * (upper - lower));
+			break;
+		case none:
+		default:
+			delay = cap(base * Math.pow(multiplier, attempts));
+			break;
+		}
+		++attempts;
+		previous = delay;
+		return delay;
+	}
+
+	/**
+	 * Get the delay before the first attempt to reconnect after a connection
+	 * is lost, and count the attempt. Without jitter the attempt is made at
+	 * once, and the delay is zero; otherwise the delay is chosen uniformly
+	 * between zero and the base, up to the maximum, so that clients that
+	 * lose their connections at the same time, as when a server restarts,
+	 * do not all reconnect at the same time.
+	 * @param base the retry timeout of the disconnected state, in milliseconds
+	 * @return the delay, in milliseconds
+	 */
+	public synchronized long firstDelay(long base) {
+		long delay = (jitter == Jitter.none) ? 0 : (long)(random.nextDouble() * cap(base));
+		++attempts;
+		previous = delay;
+		return delay;
+	}
+
+	/**
+	 * Whether or not delays are randomised.
+	 */
+	public boolean isJittered() {
+		return jitter != Jitter.none;
+	}
+
+	/**
+	 * Start the sequence of delays again.
+	 */
+	public synchronized void reset() {
+		attempts = 0;
+		previous = 0;
+	}
+
+	/**
+	 * The number of attempts since the sequence was started.
+	 */
+	public synchronized int getAttempts() {
+		return attempts;
+	}
+
+	/******************
+	 * private
+	 ******************/
+
+	private long cap(double delay) {
+		if(maxDelay > 0 && delay > maxDelay)
+			return maxDelay;
+		return (long)Math.min(delay, Long.MAX_VALUE);
+	}
+
+	private final Jitter jitter;
+	private final double multiplier;
+	private final long maxDelay;
+	private final Random random;
+	private int attempts;
+	private long previous;
+}
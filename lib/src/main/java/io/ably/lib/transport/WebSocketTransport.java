@@ -10,16 +10,17 @@ import io.ably.lib.types.ProtocolMessage;
 import io.ably.lib.types.ProtocolSerializer;
 import io.ably.lib.types.ProtocolMessage.Action;
 import io.ably.lib.util.Log;
+import io.ably.lib.util.TimerWheel;
 
 import java.net.URI;
 import java.nio.ByteBuffer;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_17;
 import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ServerHandshake;
@@ -68,7 +69,8 @@ public class WebSocketTransport implements ITransport {
 			if(connectParams.length > 0)
 				wsUri = HttpUtils.encodeParams(wsUri, connectParams);
 			synchronized(this) {
-				wsConnection = new WsClient(URI.create(wsUri));
+				Draft draft = params.options.webSocketCompression ? new PerMessageDeflateDraft(params.options, compressionStats) : new Draft_17();
+				wsConnection = new WsClient(URI.create(wsUri), draft);
 				if(isTls) {
 					SSLContext sslContext = SSLContext.getInstance("TLS");
 					sslContext.init( null, null, null );
@@ -118,16 +120,27 @@ public class WebSocketTransport implements ITransport {
 	public void send(ProtocolMessage msg) throws AblyException {
 		try {
 			if(channelBinaryMode) {
-				byte[] encodedMsg = ProtocolSerializer.writeMsgpack(msg);
+				/* the encoded buffer is only valid until the next message is
+				 * encoded on this thread; the websocket copies it into a frame
+				 * before send() returns */
+				ByteBuffer encodedMsg = ProtocolSerializer.writeMsgpackBuffer(msg);
 				if (Log.level <= Log.VERBOSE) {
 					ProtocolMessage decodedMsg = ProtocolSerializer.readMsgpack(encodedMsg);
 					Log.v(TAG, "send(): " + decodedMsg.action + ": " + new String(ProtocolSerializer.writeJSON(decodedMsg)));
 				}
-				wsConnection.send(encodedMsg);
+				/* frames are created and queued under the lock so that, when
+				 * compressing, the shared compression context sees messages in
+				 * the order in which they are sent */
+				synchronized(this) {
+					wsConnection.getConnection().send(encodedMsg);
+				}
 			} else {
 				if (Log.level <= Log.VERBOSE)
 					Log.v(TAG, "send(): " + new String(ProtocolSerializer.writeJSON(msg)));
-				wsConnection.send(ProtocolSerializer.writeJSON(msg));
+				byte[] encodedMsg = ProtocolSerializer.writeJSON(msg);
+				synchronized(this) {
+					wsConnection.send(encodedMsg);
+				}
 			}
 		} catch (Exception e) {
 			throw AblyException.fromThrowable(e);
@@ -139,14 +152,21 @@ public class WebSocketTransport implements ITransport {
 		return params.host;
 	}
 
+	/**
+	 * Get the statistics for websocket compression on this transport.
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+
 	/**************************
 	 * WebSocketHandler methods
 	 **************************/
 
 	class WsClient extends WebSocketClient {
 
-		public WsClient(URI serverUri) {
-			super(serverUri);
+		public WsClient(URI serverUri, Draft draft) {
+			super(serverUri, draft);
 		}
 
 		@Override
@@ -161,7 +181,7 @@ public class WebSocketTransport implements ITransport {
 		@Override
 		public void onMessage(ByteBuffer blob) {
 			try {
-				connectionManager.onMessage(WebSocketTransport.this, ProtocolSerializer.readMsgpack(blob.array()));
+				connectionManager.onMessage(WebSocketTransport.this, ProtocolSerializer.readMsgpack(blob));
 			} catch (AblyException e) {
 				String msg = "Unexpected exception processing received binary message";
 				Log.e(TAG, msg, e);
@@ -191,50 +211,13 @@ public class WebSocketTransport implements ITransport {
 		@Override
 		public void onClose(int wsCode, String wsReason, boolean remote) {
 			flagActivity();
-			ConnectionState newState;
-			ErrorInfo reason;
-			switch(wsCode) {
-			case NEVER_CONNECTED:
-				newState = ConnectionState.disconnected;
-				reason = ConnectionManager.REASON_NEVER_CONNECTED;
-				break;
-			case CLOSE_NORMAL:
-			case BUGGYCLOSE:
-			case GOING_AWAY:
-			case ABNORMAL_CLOSE:
-				/* we don't know the specific reason that the connection closed in these cases,
-				 * but we have to assume it's a problem with connectivity rather than some other
-				 * application problem */
-				newState = ConnectionState.disconnected;
-				reason = ConnectionManager.REASON_DISCONNECTED;
-				break;
-			case REFUSE:
-			case POLICY_VALIDATION:
-				newState = ConnectionState.failed;
-				reason = ConnectionManager.REASON_REFUSED;
-				break;
-			case TOOBIG:
-				newState = ConnectionState.failed;
-				reason = ConnectionManager.REASON_TOO_BIG;
-				break;
-			case NO_UTF8:
-			case CLOSE_PROTOCOL_ERROR:
-			case UNEXPECTED_CONDITION:
-			case EXTENSION:
-			case TLS_ERROR:
-			default:
-				/* we don't know the specific reason that the connection closed in these cases,
-				 * but we have to assume it's an application problem, and the problem will
-				 * recur if we try again. The failed state means that we won't automatically
-				 * try again. */
-				newState = ConnectionState.failed;
-				reason = ConnectionManager.REASON_FAILED;
-				break;
-			}
+			StateIndication indication = closeIndication(wsCode);
 			synchronized(WebSocketTransport.this) {
 				wsConnection = null;
 			}
-			connectionManager.notifyState(WebSocketTransport.this, new StateIndication(newState, reason));
+			if(compressionStats.isNegotiated())
+				Log.d(TAG, "onClose(): compression: " + compressionStats);
+			connectionManager.notifyState(WebSocketTransport.this, indication);
 			dispose();
 		}
 
@@ -248,18 +231,18 @@ public class WebSocketTransport implements ITransport {
 			}
 		}
 
-		private void dispose() {
-			/* dispose timer */
-			if(timer != null) {
-				timer.cancel();
-				timer = null;
+		private synchronized void dispose() {
+			/* cancel activity timer */
+			if(activityTimer != null) {
+				activityTimer.cancel();
+				activityTimer = null;
 			}
 		}
 
 		private void flagActivity() {
 			lastActivityTime = System.currentTimeMillis();
 			connectionManager.setLastActivity(lastActivityTime);
-			if (timer == null && connectionManager.maxIdleInterval != 0) {
+			if (activityTimer == null && connectionManager.maxIdleInterval != 0) {
 				/* No timer currently running because previously there was no
 				 * maxIdleInterval configured, but now there is a
 				 * maxIdleInterval configured.  Call checkActivity so a timer
@@ -272,55 +255,96 @@ public class WebSocketTransport implements ITransport {
 
 		private void checkActivity() {
 			long timeout = connectionManager.maxIdleInterval;
-			if (timeout == 0) {
-				Log.v(TAG, "checkActivity: infinite timeout");
-				timer = null;
-				return;
-			}
-			timeout += connectionManager.ably.options.realtimeRequestTimeout;
-			long now = System.currentTimeMillis();
-			long next = lastActivityTime + timeout;
-			if (now < next) {
-				/* We have not reached maxIdleInterval+realtimeRequestTimeout
-				 * of inactivity.  Schedule a new timer for that long after the
-				 * last activity time. */
-				Log.v(TAG, "checkActivity: ok");
-				if (timer == null) {
-					synchronized(this) {
-						if (timer == null)
-							timer = new Timer();
-					}
+			synchronized(this) {
+				if (activityTimer != null) {
+					activityTimer.cancel();
+					activityTimer = null;
+				}
+				if (timeout == 0) {
+					Log.v(TAG, "checkActivity: infinite timeout");
+					return;
+				}
+				timeout += connectionManager.ably.options.realtimeRequestTimeout;
+				long now = System.currentTimeMillis();
+				long next = lastActivityTime + timeout;
+				if (now < next) {
+					/* We have not reached maxIdleInterval+realtimeRequestTimeout
+					 * of inactivity.  Schedule a new timer for that long after the
+					 * last activity time. */
+					Log.v(TAG, "checkActivity: ok");
+					activityTimer = TimerWheel.getInstance().schedule(new TimerWheel.Task() {
+						@Override
+						public void run(TimerWheel.Timeout expired) {
+							synchronized(WsClient.this) {
+								/* ignore if superseded or disposed */
+								if (activityTimer != expired)
+									return;
+								activityTimer = null;
+							}
+							checkActivity();
+						}
+					}, next - now);
+					return;
 				}
-				timer.schedule(new WsClientTimerTask(this), next - now);
-			} else {
-				/* Timeout has been reached. Close the connection. */
-				Log.e(TAG, "No activity for " + timeout + "ms, closing connection");
-				closeConnection(CloseFrame.ABNORMAL_CLOSE, "timed out");
 			}
+			/* Timeout has been reached. Close the connection. */
+			Log.e(TAG, "No activity for " + timeout + "ms, closing connection");
+			closeConnection(CloseFrame.ABNORMAL_CLOSE, "timed out");
 		}
 
-		/* The TimerTask used to implement disconnection if no activity (inc
-		 * pings) is seen within a certain time.
-		 */
-		class WsClientTimerTask extends TimerTask {
-			private final WsClient client;
+		/* The timeout used to implement disconnection if no activity (inc
+		 * pings) is seen within a certain time. */
+		private TimerWheel.Timeout activityTimer;
+		private long lastActivityTime;
 
-			public WsClientTimerTask(WsClient client) {
-				this.client = client;
-			}
+	}
 
-			public void run() {
-				client.checkActivity();
-			}
+	/**
+	 * Determine the connection state indication that results from the
+	 * websocket being closed with the given close code.
+	 */
+	static StateIndication closeIndication(int wsCode) {
+		ConnectionState newState;
+		ErrorInfo reason;
+		switch(wsCode) {
+		case NEVER_CONNECTED:
+			newState = ConnectionState.disconnected;
+			reason = ConnectionManager.REASON_NEVER_CONNECTED;
+			break;
+		case CLOSE_NORMAL:
+		case BUGGYCLOSE:
+		case GOING_AWAY:
+		case ABNORMAL_CLOSE:
+			/* we don't know the specific reason that the connection closed in these cases,
+			 * but we have to assume it's a problem with connectivity rather than some other
+			 * application problem */
+			newState = ConnectionState.disconnected;
+			reason = ConnectionManager.REASON_DISCONNECTED;
+			break;
+		case REFUSE:
+		case POLICY_VALIDATION:
+			newState = ConnectionState.failed;
+			reason = ConnectionManager.REASON_REFUSED;
+			break;
+		case TOOBIG:
+			newState = ConnectionState.failed;
+			reason = ConnectionManager.REASON_TOO_BIG;
+			break;
+		case NO_UTF8:
+		case CLOSE_PROTOCOL_ERROR:
+		case UNEXPECTED_CONDITION:
+		case EXTENSION:
+		case TLS_ERROR:
+		default:
+			/* we don't know the specific reason that the connection closed in these cases,
+			 * but we have to assume it's an application problem, and the problem will
+			 * recur if we try again. The failed state means that we won't automatically
+			 * try again. */
+			newState = ConnectionState.failed;
+			reason = ConnectionManager.REASON_FAILED;
+			break;
 		}
-
-		/***************************
-		 * WsClient private members
-		 ***************************/
-
-		private Timer timer;
-		private long lastActivityTime;
-
+		return new StateIndication(newState, reason);
 	}
 
 	public String toString() {
@@ -338,6 +362,7 @@ public class WebSocketTransport implements ITransport {
 	private final TransportParams params;
 	private final ConnectionManager connectionManager;
 	private final boolean channelBinaryMode;
+	private final CompressionStats compressionStats = new CompressionStats();
 	private String wsUri;
 	private ConnectListener connectListener;
 
@@ -3,10 +3,15 @@ package io.ably.lib.types;
 import io.ably.lib.rest.Auth.AuthOptions;
 import io.ably.lib.rest.Auth.TokenParams;
 import io.ably.lib.transport.Defaults;
+import io.ably.lib.transport.ITransport;
+import io.ably.lib.transport.InboundMessageQueue;
+import io.ably.lib.transport.OfflineMessageQueue;
+import io.ably.lib.transport.RetryBackoff;
 import io.ably.lib.util.Log;
 import io.ably.lib.util.Log.LogHandler;
 
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * Options: Ably library options for REST and Realtime APIs
@@ -179,4 +184,140 @@ public class ClientOptions extends AuthOptions {
 	 * Allows the caller to specify a non-default size for the asyncHttp threadpool
 	 */
 	public int asyncHttpThreadpoolSize = Defaults.HTTP_ASYNC_THREADPOOL_SIZE;
+
+	/**
+	 * Allows the caller to specify the factory used to create realtime transports.
+	 * If not set, the factory class named by {@link Defaults#TRANSPORT} is used.
+	 * Set this to an instance of {@link io.ably.lib.transport.NioWebSocketTransport.Factory}
+	 * to multiplex the connections of many clients onto a small fixed set of threads.
+	 */
+	public ITransport.Factory transportFactory;
+
+	/**
+	 * If true, the websocket transport offers the permessage-deflate extension
+	 * (RFC 7692) so that messages are compressed on the wire when the server
+	 * supports it. Compression reduces bandwidth at the cost of CPU and
+	 * per-connection memory for the compression contexts.
+	 */
+	public boolean webSocketCompression;
+
+	/**
+	 * The zlib compression level (0-9) used for sent messages when
+	 * websocket compression is in use; -1 selects the default level.
+	 */
+	public int webSocketCompressionLevel = Defaults.WEBSOCKET_COMPRESSION_LEVEL;
+
+	/**
+	 * If non-zero, the maximum LZ77 window size, as a base-2 logarithm in
+	 * the range 8-15, that the server may use when compressing messages
+	 * sent to this client. Smaller windows reduce the server's memory
+	 * use per connection at the cost of compression ratio.
+	 */
+	public int webSocketServerMaxWindowBits;
+
+	/**
+	 * If true, compression contexts are not retained between messages in
+	 * either direction. This reduces memory held per connection between
+	 * messages, but generally worsens the compression ratio.
+	 */
+	public boolean webSocketNoContextTakeover;
+
+	/**
+	 * If non-zero, received messages are passed from the transport to a
+	 * dedicated dispatcher thread through a queue of this capacity, and
+	 * message, presence and connection listeners are called on that thread.
+	 * This allows the transport to continue reading from the network while
+	 * listeners are busy. If zero (the default), received messages are
+	 * processed, and listeners called, on the transport thread.
+	 */
+	public int inboundQueueSize = Defaults.INBOUND_QUEUE_SIZE;
+
+	/**
+	 * The action to take when a message is received and the inbound queue
+	 * is full; see {@link InboundMessageQueue.OverflowPolicy}.
+	 */
+	public InboundMessageQueue.OverflowPolicy inboundQueueOverflowPolicy = InboundMessageQueue.OverflowPolicy.block;
+
+	/**
+	 * The maximum number of messages that may be queued while they cannot
+	 * be sent, for the connection while it is not connected, and for each
+	 * channel while it is attaching. If zero (the default), the number of
+	 * queued messages is not limited.
+	 */
+	public int offlineQueueMaxMessages = Defaults.OFFLINE_QUEUE_MAX_MESSAGES;
+
+	/**
+	 * The maximum estimated size, in bytes, of the messages that may be
+	 * queued, applied in the same way as {@link #offlineQueueMaxMessages}.
+	 * If zero (the default), the size of queued messages is not limited.
+	 */
+	public long offlineQueueMaxBytes = Defaults.OFFLINE_QUEUE_MAX_BYTES;
+
+	/**
+	 * The action to take when a message is published and the queue
+	 * is full; see {@link OfflineMessageQueue.OverflowPolicy}.
+	 */
+	public OfflineMessageQueue.OverflowPolicy offlineQueueOverflowPolicy = OfflineMessageQueue.OverflowPolicy.fail;
+
+	/**
+	 * If non-zero, the time in milliseconds after which a queued message
+	 * that has not been sent fails. Expiry is checked when messages are
+	 * added to or removed from the queue.
+	 */
+	public long offlineQueueTtl = Defaults.OFFLINE_QUEUE_TTL;
+
+	/**
+	 * If set, the path of a file in which messages are queued while the
+	 * connection is not connected, instead of on the heap. Messages in the
+	 * file survive a restart of the process, and are sent when a client
+	 * using the same file next connects. The file must not be used by more
+	 * than one client at a time.
+	 */
+	public String offlineQueueJournal;
+
+	/**
+	 * If non-zero, the interval in milliseconds at which a heartbeat is
+	 * sent while connected, to measure the connection's round-trip time.
+	 * Round-trip times, from these probes and from calls to
+	 * {@link io.ably.lib.realtime.Connection#ping}, are available from
+	 * {@link io.ably.lib.realtime.Connection#getLatency}.
+	 */
+	public long latencyProbeInterval = Defaults.LATENCY_PROBE_INTERVAL;
+
+	/**
+	 * The way in which the delay before reconnecting from the disconnected
+	 * or suspended state is randomised; see {@link RetryBackoff.Jitter}.
+	 * Randomising the delay spreads out the reconnection attempts of many
+	 * clients that were disconnected at the same time. If randomised, the
+	 * first attempt after a connection is lost, which is otherwise made at
+	 * once, is also delayed, by up to the disconnected state's retry timeout.
+	 */
+	public RetryBackoff.Jitter retryJitter = RetryBackoff.Jitter.none;
+
+	/**
+	 * The factor by which the delay before reconnecting grows with each
+	 * consecutive failed attempt. The first delay is the retry timeout
+	 * of the disconnected or suspended state. If 1 (the default), the
+	 * delay does not grow.
+	 */
+	public double retryBackoffMultiplier = Defaults.RETRY_BACKOFF_MULTIPLIER;
+
+	/**
+	 * The maximum delay, in milliseconds, before reconnecting.
+	 * If zero, the delay is not limited.
+	 */
+	public long retryBackoffMaxDelay = Defaults.RETRY_BACKOFF_MAX_DELAY;
+
+	/**
+	 * An Executor on which to call message, presence and completion
+	 * listeners of realtime channels, the listeners of bulk attach and
+	 * detach operations, and connection state listeners. The listeners of
+	 * each channel, and those of the connection, are called in order, one
+	 * at a time, while those of different channels may be called in
+	 * parallel by the Executor.
+	 * If null, listeners are called on the library's own threads; connection
+	 * state listeners are then called on a thread of their own, so that a
+	 * slow listener does not hold up the connections of other clients.
+	 */
+	public Executor callbackExecutor;
 }
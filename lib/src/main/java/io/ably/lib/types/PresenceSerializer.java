@@ -1,6 +1,5 @@
 package io.ably.lib.types;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import io.ably.lib.http.HttpCore;
@@ -9,6 +8,7 @@ import io.ably.lib.util.Log;
 import org.msgpack.core.MessagePacker;
 import org.msgpack.core.MessageUnpacker;
 
+import io.ably.lib.util.MsgpackEncoder;
 import io.ably.lib.util.Serialisation;
 
 /**
@@ -45,11 +45,9 @@ public class PresenceSerializer {
 
 	static byte[] writeMsgpackArray(PresenceMessage[] messages) {
 		try {
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
-			MessagePacker packer = Serialisation.msgpackPackerConfig.newPacker(out);
-			writeMsgpackArray(messages, packer);
-			packer.flush();
-			return out.toByteArray();
+			MsgpackEncoder encoder = MsgpackEncoder.forCurrentThread();
+			writeMsgpackArray(messages, encoder.begin());
+			return encoder.endAsByteArray();
 		} catch(IOException e) { return null; }
 	}
 
@@ -62,7 +62,7 @@ public class ProtocolMessage {
 	public static boolean mergeTo(ProtocolMessage dest, ProtocolMessage src) {
 		boolean result = false;
 		Action action;
-		if(dest.channel == src.channel) {
+		if(dest.channel == null ? src.channel == null : dest.channel.equals(src.channel)) {
 			if((action = dest.action) == src.action) {
 				switch(action) {
 				case message: {
@@ -78,8 +78,8 @@ public class ProtocolMessage {
 						PresenceMessage[] srcMessages = src.presence;
 						PresenceMessage[] destMessages = dest.presence;
 						PresenceMessage[] mergedMessages = dest.presence = new PresenceMessage[destMessages.length + srcMessages.length];
-						System.arraycopy(mergedMessages, 0, destMessages, 0, destMessages.length);
-						System.arraycopy(mergedMessages, destMessages.length, srcMessages, 0, srcMessages.length);
+						System.arraycopy(destMessages, 0, mergedMessages, 0, destMessages.length);
+						System.arraycopy(srcMessages, 0, mergedMessages, destMessages.length, srcMessages.length);
 						result = true;
 					}
 					break;
@@ -123,6 +123,7 @@ public class ProtocolMessage {
 
 	void writeMsgpack(MessagePacker packer) throws IOException {
 		int fieldCount = 1; //action
+		if(id != null) ++fieldCount;
 		if(channel != null) ++fieldCount;
 		if(msgSerial != null) ++fieldCount;
 		if(messages != null) ++fieldCount;
@@ -131,6 +132,10 @@ public class ProtocolMessage {
 		packer.packMapHeader(fieldCount);
 		packer.packString("action");
 		packer.packInt(action.getValue());
+		if(id != null) {
+			packer.packString("id");
+			packer.packString(id);
+		}
 		if(channel != null) {
 			packer.packString("channel");
 			packer.packString(channel);
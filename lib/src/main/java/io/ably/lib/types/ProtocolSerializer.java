@@ -1,12 +1,14 @@
 package io.ably.lib.types;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
-import org.msgpack.core.MessagePacker;
 import org.msgpack.core.MessageUnpacker;
+import org.msgpack.core.buffer.MessageBuffer;
+import org.msgpack.core.buffer.MessageBufferInput;
 
+import io.ably.lib.util.MsgpackEncoder;
 import io.ably.lib.util.Serialisation;
 
 public class ProtocolSerializer {
@@ -24,18 +26,83 @@ public class ProtocolSerializer {
 		}
 	}
 
+	/**
+	 * Decode a ProtocolMessage from the remaining bytes of the given buffer,
+	 * without first copying the buffer to an array. The position of the
+	 * given buffer is not modified.
+	 */
+	public static ProtocolMessage readMsgpack(ByteBuffer packed) throws AblyException {
+		try {
+			MessageUnpacker unpacker;
+			if(packed.hasArray()) {
+				/* read in place from the backing array */
+				unpacker = Serialisation.msgpackUnpackerConfig.newUnpacker(packed.array(), packed.arrayOffset() + packed.position(), packed.remaining());
+			} else {
+				/* direct and read-only buffers cannot be wrapped portably,
+				 * so are read incrementally through a small reusable chunk */
+				unpacker = Serialisation.msgpackUnpackerConfig.newUnpacker(new ChunkedBufferInput(packed.duplicate()));
+			}
+			return ProtocolMessage.fromMsgpack(unpacker);
+		} catch (IOException ioe) {
+			throw AblyException.fromThrowable(ioe);
+		}
+	}
+
+	/**
+	 * A MessageBufferInput that presents the content of an arbitrary
+	 * ByteBuffer as a sequence of chunks copied into a per-thread array.
+	 */
+	private static class ChunkedBufferInput implements MessageBufferInput {
+		private final ByteBuffer source;
+
+		ChunkedBufferInput(ByteBuffer source) {
+			this.source = source;
+		}
+
+		@Override
+		public MessageBuffer next() {
+			int len = Math.min(source.remaining(), CHUNK_SIZE);
+			if(len == 0)
+				return null;
+			byte[] chunk = chunks.get();
+			source.get(chunk, 0, len);
+			return MessageBuffer.wrap(chunk, 0, len);
+		}
+
+		@Override
+		public void close() {}
+
+		private static final int CHUNK_SIZE = 8192;
+		private static final ThreadLocal<byte[]> chunks = new ThreadLocal<byte[]>() {
+			@Override
+			protected byte[] initialValue() {
+				return new byte[CHUNK_SIZE];
+			}
+		};
+	}
+
 	/****************************************
 	 *            Msgpack encode
 	 ****************************************/
 	
 	public static byte[] writeMsgpack(ProtocolMessage message) {
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		MessagePacker packer = Serialisation.msgpackPackerConfig.newPacker(out);
+		MsgpackEncoder encoder = MsgpackEncoder.forCurrentThread();
 		try {
-			message.writeMsgpack(packer);
-	
-			packer.flush();
-			return out.toByteArray();
+			message.writeMsgpack(encoder.begin());
+			return encoder.endAsByteArray();
+		} catch(IOException e) { return null; }
+	}
+
+	/**
+	 * Encode a ProtocolMessage without copying the result out of the encoder.
+	 * The returned buffer shares storage with the current thread's encoder,
+	 * so it must be consumed before anything else is encoded on this thread.
+	 */
+	public static ByteBuffer writeMsgpackBuffer(ProtocolMessage message) {
+		MsgpackEncoder encoder = MsgpackEncoder.forCurrentThread();
+		try {
+			message.writeMsgpack(encoder.begin());
+			return encoder.end();
 		} catch(IOException e) { return null; }
 	}
 
@@ -1,13 +1,22 @@
 package io.ably.lib.util;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * An interface exposing the ability to register listeners for a class of events
+ *
+ * The registered listeners are held in an immutable snapshot, which is
+ * replaced whenever a listener is registered or removed. Events are emitted
+ * to the snapshot current at the time, without taking any lock; a listener
+ * may register or remove listeners, on any thread, while an event is being
+ * emitted.
+ *
  * @author paddy
  *
  * @param <Event> an Enum containing the event names that listeners may be registered for
@@ -18,51 +27,60 @@ public abstract class EventEmitter<Event, Listener> {
 	/**
 	 * Remove all registered listeners irrespective of type
 	 */
-	public synchronized void off() {
-		listeners.clear();
-		filters.clear();
+	public void off() {
+		registry.set(new Registry<Event, Listener>());
 	}
 
 	/**
 	 * Register the given listener for all events
 	 * @param listener
 	 */
-	public synchronized void on(Listener listener) {
-		if(!listeners.contains(listener))
-			listeners.add(listener);
+	public void on(Listener listener) {
+		Registry<Event, Listener> current, updated;
+		do {
+			current = registry.get();
+			if(current.listeners.contains(listener))
+				return;
+			updated = current.withListener(listener);
+		} while(!registry.compareAndSet(current, updated));
 	}
 
 	/**
 	 * Register the given listener for a single occurrence of any event
 	 * @param listener
 	 */
-	public synchronized void once(Listener listener) {
-		filters.put(listener, new Filter(null, listener, true));
+	public void once(Listener listener) {
+		putFilter(new Filter(null, listener, true));
 	}
 
 	/**
 	 * Remove a previously registered listener irrespective of type
 	 * @param listener
 	 */
-	public synchronized void off(Listener listener) {
-		listeners.remove(listener);
-		filters.remove(listener);
+	public void off(Listener listener) {
+		Registry<Event, Listener> current, updated;
+		do {
+			current = registry.get();
+			if(!current.listeners.contains(listener) && !current.filters.containsKey(listener))
+				return;
+			updated = current.without(listener, true);
+		} while(!registry.compareAndSet(current, updated));
 	}
 
 	/**
 	 * Register the given listener for a specific event
 	 * @param listener
 	 */
-	public synchronized void on(Event event, Listener listener) {
-		filters.put(listener, new Filter(event, listener, false));
+	public void on(Event event, Listener listener) {
+		putFilter(new Filter(event, listener, false));
 	}
 
 	/**
 	 * Register the given listener for a single occurrence of a specific event
 	 * @param listener
 	 */
-	public synchronized void once(Event event, Listener listener) {
-		filters.put(listener, new Filter(event, listener, true));
+	public void once(Event event, Listener listener) {
+		putFilter(new Filter(event, listener, true));
 	}
 
 	/**
@@ -70,10 +88,15 @@ public abstract class EventEmitter<Event, Listener> {
 	 * @param listener
 	 * @param event
 	 */
-	public synchronized void off(Event event, Listener listener) {
-		Filter filter = filters.get(listener);
-		if(filter != null && filter.event == event)
-			filters.remove(listener);
+	public void off(Event event, Listener listener) {
+		Registry<Event, Listener> current, updated;
+		do {
+			current = registry.get();
+			EventEmitter<Event, Listener>.Filter filter = current.filters.get(listener);
+			if(filter == null || filter.event != event)
+				return;
+			updated = current.without(listener, false);
+		} while(!registry.compareAndSet(current, updated));
 	}
 
 	/**
@@ -81,14 +104,16 @@ public abstract class EventEmitter<Event, Listener> {
 	 * @param event the Event
 	 * @param args the arguments to pass to listeners
 	 */
-	public synchronized void emit(Event event, Object... args) {
+	public void emit(Event event, Object... args) {
+		Registry<Event, Listener> current = registry.get();
+		List<Listener> listeners = current.listeners;
 		for (int i = listeners.size() - 1; i >= 0; i--) {
 			apply(listeners.get(i), event, args);
 		}
 
-		for(Iterator<Map.Entry<Listener, Filter>> it = filters.entrySet().iterator(); it.hasNext(); )
-			if(it.next().getValue().apply(event, args))
-				it.remove();
+		for(EventEmitter<Event, Listener>.Filter filter : current.filters.values())
+			if(filter.apply(event, args))
+				removeFilter(filter);
 	}
 
 	protected abstract void apply(Listener listener, Event event, Object... args);
@@ -98,8 +123,13 @@ public abstract class EventEmitter<Event, Listener> {
 		private Event event;
 		private Listener listener;
 		private boolean once;
+		/* set when a once filter has been applied, so that it is applied
+		 * once only by concurrent emits of the same snapshot */
+		private final AtomicBoolean fired = new AtomicBoolean();
 		protected boolean apply(Event event, Object... args) {
 			if(this.event == event || this.event == null) {
+				if(once && !fired.compareAndSet(false, true))
+					return false;
 				EventEmitter.this.apply(listener, event, args);
 				return once;
 			}
@@ -107,6 +137,75 @@ public abstract class EventEmitter<Event, Listener> {
 		}
 	}
 
-	Map<Listener, Filter> filters = new HashMap<Listener, Filter>();
-	List<Listener> listeners = new ArrayList<Listener>();
+	/******************
+	 * private
+	 ******************/
+
+	/**
+	 * An immutable snapshot of the registered listeners.
+	 */
+	private static class Registry<Event, Listener> {
+		final Map<Listener, EventEmitter<Event, Listener>.Filter> filters;
+		final List<Listener> listeners;
+
+		Registry() {
+			this(Collections.<Listener, EventEmitter<Event, Listener>.Filter>emptyMap(), Collections.<Listener>emptyList());
+		}
+
+		Registry(Map<Listener, EventEmitter<Event, Listener>.Filter> filters, List<Listener> listeners) {
+			this.filters = filters;
+			this.listeners = listeners;
+		}
+
+		Registry<Event, Listener> withListener(Listener listener) {
+			List<Listener> updated = new ArrayList<Listener>(listeners.size() + 1);
+			updated.addAll(listeners);
+			updated.add(listener);
+			return new Registry<Event, Listener>(filters, Collections.unmodifiableList(updated));
+		}
+
+		Registry<Event, Listener> withFilter(EventEmitter<Event, Listener>.Filter filter) {
+			Map<Listener, EventEmitter<Event, Listener>.Filter> updated = new HashMap<Listener, EventEmitter<Event, Listener>.Filter>(filters);
+			updated.put(filter.listener, filter);
+			return new Registry<Event, Listener>(Collections.unmodifiableMap(updated), listeners);
+		}
+
+		Registry<Event, Listener> without(Listener listener, boolean includeListeners) {
+			Map<Listener, EventEmitter<Event, Listener>.Filter> updatedFilters = filters;
+			if(filters.containsKey(listener)) {
+				updatedFilters = new HashMap<Listener, EventEmitter<Event, Listener>.Filter>(filters);
+				updatedFilters.remove(listener);
+				updatedFilters = Collections.unmodifiableMap(updatedFilters);
+			}
+			List<Listener> updatedListeners = listeners;
+			if(includeListeners && listeners.contains(listener)) {
+				updatedListeners = new ArrayList<Listener>(listeners);
+				updatedListeners.remove(listener);
+				updatedListeners = Collections.unmodifiableList(updatedListeners);
+			}
+			return new Registry<Event, Listener>(updatedFilters, updatedListeners);
+		}
+	}
+
+	private void putFilter(Filter filter) {
+		Registry<Event, Listener> current;
+		do {
+			current = registry.get();
+		} while(!registry.compareAndSet(current, current.withFilter(filter)));
+	}
+
+	/**
+	 * Remove a once filter that has been applied, unless the listener
+	 * has since been registered again.
+	 */
+	private void removeFilter(Filter filter) {
+		Registry<Event, Listener> current;
+		do {
+			current = registry.get();
+			if(current.filters.get(filter.listener) != filter)
+				return;
+		} while(!registry.compareAndSet(current, current.without(filter.listener, false)));
+	}
+
+	private final AtomicReference<Registry<Event, Listener>> registry = new AtomicReference<Registry<Event, Listener>>(new Registry<Event, Listener>());
 }
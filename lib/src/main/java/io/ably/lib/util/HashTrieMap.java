@@ -0,0 +1,473 @@
+package io.ably.lib.util;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable map, held as a hash array mapped trie.
+ *
+ * A map is never modified once created; plus() and minus() return a new map
+ * that shares all but the path to the changed entry with the original, so
+ * that an update costs O(log32 n) and a reader of any map needs no lock.
+ *
+ * A Builder applies a sequence of updates to a map, modifying in place the
+ * nodes that it has itself created since the last build(), so that a batch
+ * of updates allocates little more than the nodes that are new. Maps
+ * returned by build() are immutable; a Builder is not safe for use by
+ * multiple threads.
+ *
+ * Keys and values may not be null.
+ */
+public final class HashTrieMap<K, V> {
+
+	/**
+	 * The empty map
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> HashTrieMap<K, V> empty() {
+		return (HashTrieMap<K, V>)EMPTY;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the value for the given key, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		return (root == null) ? null : (V)root.find(0, hash(key), key);
+	}
+
+	/**
+	 * @return a map with the given value for the given key
+	 */
+	public HashTrieMap<K, V> plus(K key, V value) {
+		if(value == null)
+			throw new NullPointerException();
+		int hash = hash(key);
+		if(root == null)
+			return new HashTrieMap<K, V>(new BitmapNode(null, bit(hash, 0), new Object[] {key, value}), 1);
+		Box added = new Box();
+		Node node = root.put(null, 0, hash, key, value, added);
+		return (node == root) ? this : new HashTrieMap<K, V>(node, added.value ? size + 1 : size);
+	}
+
+	/**
+	 * @return a map without the given key
+	 */
+	public HashTrieMap<K, V> minus(Object key) {
+		if(root == null)
+			return this;
+		Node node = root.remove(null, 0, hash(key), key, new Box());
+		if(node == root)
+			return this;
+		return (node == null) ? HashTrieMap.<K, V>empty() : new HashTrieMap<K, V>(node, size - 1);
+	}
+
+	/**
+	 * @return an unmodifiable view of the values of this map
+	 */
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			@Override
+			public Iterator<V> iterator() { return new ValueIterator<V>(root); }
+			@Override
+			public int size() { return size; }
+		};
+	}
+
+	/**
+	 * @return a Builder whose updates start from this map
+	 */
+	public Builder<K, V> builder() {
+		return new Builder<K, V>(this);
+	}
+
+	/**
+	 * Applies a sequence of updates to a map
+	 */
+	public static final class Builder<K, V> {
+
+		private Builder(HashTrieMap<K, V> map) {
+			this.root = map.root;
+			this.size = map.size;
+			this.built = map;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return the value for the given key, or null if there is none
+		 */
+		@SuppressWarnings("unchecked")
+		public V get(Object key) {
+			return (root == null) ? null : (V)root.find(0, hash(key), key);
+		}
+
+		/**
+		 * Set the value for the given key
+		 */
+		public Builder<K, V> put(K key, V value) {
+			if(value == null)
+				throw new NullPointerException();
+			changed.value = false;
+			Node node = (root == null) ? new BitmapNode(edit, 0, new Object[0]) : root;
+			node = node.put(edit, 0, hash(key), key, value, changed);
+			update(node, changed.value ? 1 : 0);
+			return this;
+		}
+
+		/**
+		 * Remove the value, if any, for the given key
+		 */
+		public Builder<K, V> remove(Object key) {
+			if(root == null)
+				return this;
+			changed.value = false;
+			Node node = root.remove(edit, 0, hash(key), key, changed);
+			update(node, changed.value ? -1 : 0);
+			return this;
+		}
+
+		/**
+		 * Remove all entries
+		 */
+		public Builder<K, V> clear() {
+			update(null, -size);
+			return this;
+		}
+
+		/**
+		 * @return an immutable map with the updates applied so far; later
+		 * updates do not affect it
+		 */
+		public HashTrieMap<K, V> build() {
+			if(built == null) {
+				built = (size == 0) ? HashTrieMap.<K, V>empty() : new HashTrieMap<K, V>(root, size);
+				/* nodes created so far now belong to the built map */
+				edit = new Object();
+			}
+			return built;
+		}
+
+		private void update(Node node, int delta) {
+			if(node != root || delta != 0) {
+				root = node;
+				size += delta;
+				built = null;
+			}
+		}
+
+		private Node root;
+		private int size;
+		private HashTrieMap<K, V> built;
+		private Object edit = new Object();
+		private final Box changed = new Box();
+	}
+
+	/******************
+	 * private
+	 ******************/
+
+	private HashTrieMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	private static int bit(int hash, int shift) {
+		return 1 << ((hash >>> shift) & MASK);
+	}
+
+	private static class Box {
+		boolean value;
+	}
+
+	/**
+	 * A node of the trie; an update returns the node itself if it was
+	 * modified in place or unchanged, a new node, or null if it is now empty
+	 */
+	private static abstract class Node {
+		Node(Object edit) { this.edit = edit; }
+		abstract Object find(int shift, int hash, Object key);
+		abstract Node put(Object edit, int shift, int hash, Object key, Object value, Box added);
+		abstract Node remove(Object edit, int shift, int hash, Object key, Box removed);
+		boolean editable(Object edit) { return edit != null && edit == this.edit; }
+		/* the token of the Builder, if any, that may modify this node in place */
+		final Object edit;
+	}
+
+	/**
+	 * A node with an entry for each 5 bits of hash in use at its level;
+	 * array holds a key and value for each entry, or null and a child node
+	 */
+	private static final class BitmapNode extends Node {
+		BitmapNode(Object edit, int bitmap, Object[] array) {
+			super(edit);
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+
+		private int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		@Override
+		Object find(int shift, int hash, Object key) {
+			int bit = bit(hash, shift);
+			if((bitmap & bit) == 0)
+				return null;
+			int i = 2 * index(bit);
+			Object k = array[i];
+			if(k == null)
+				return ((Node)array[i + 1]).find(shift + BITS, hash, key);
+			return key.equals(k) ? array[i + 1] : null;
+		}
+
+		@Override
+		Node put(Object edit, int shift, int hash, Object key, Object value, Box added) {
+			int bit = bit(hash, shift);
+			int i = 2 * index(bit);
+			if((bitmap & bit) != 0) {
+				Object k = array[i];
+				Object v = array[i + 1];
+				if(k == null) {
+					Node child = ((Node)v).put(edit, shift + BITS, hash, key, value, added);
+					return (child == v) ? this : set(edit, i + 1, child);
+				}
+				if(key.equals(k))
+					return (value == v) ? this : set(edit, i + 1, value);
+				added.value = true;
+				Node child = createNode(edit, shift + BITS, k, v, hash, key, value);
+				BitmapNode result = (BitmapNode)set(edit, i, null);
+				result.array[i + 1] = child;
+				return result;
+			}
+			added.value = true;
+			Object[] updated = new Object[array.length + 2];
+			System.arraycopy(array, 0, updated, 0, i);
+			updated[i] = key;
+			updated[i + 1] = value;
+			System.arraycopy(array, i, updated, i + 2, array.length - i);
+			if(editable(edit)) {
+				bitmap |= bit;
+				array = updated;
+				return this;
+			}
+			return new BitmapNode(edit, bitmap | bit, updated);
+		}
+
+		@Override
+		Node remove(Object edit, int shift, int hash, Object key, Box removed) {
+			int bit = bit(hash, shift);
+			if((bitmap & bit) == 0)
+				return this;
+			int i = 2 * index(bit);
+			Object k = array[i];
+			if(k == null) {
+				Node child = (Node)array[i + 1];
+				Node updated = child.remove(edit, shift + BITS, hash, key, removed);
+				if(updated == child)
+					return this;
+				if(updated != null)
+					return set(edit, i + 1, updated);
+			} else if(!key.equals(k)) {
+				return this;
+			} else {
+				removed.value = true;
+			}
+			if(bitmap == bit)
+				return null;
+			Object[] updated = new Object[array.length - 2];
+			System.arraycopy(array, 0, updated, 0, i);
+			System.arraycopy(array, i + 2, updated, i, array.length - i - 2);
+			if(editable(edit)) {
+				bitmap ^= bit;
+				array = updated;
+				return this;
+			}
+			return new BitmapNode(edit, bitmap ^ bit, updated);
+		}
+
+		private Node set(Object edit, int i, Object value) {
+			BitmapNode result = editable(edit) ? this : new BitmapNode(edit, bitmap, array.clone());
+			result.array[i] = value;
+			return result;
+		}
+
+		private static Node createNode(Object edit, int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+			int hash1 = hash(key1);
+			if(hash1 == hash2)
+				return new CollisionNode(edit, hash1, new Object[] {key1, value1, key2, value2});
+			Box added = new Box();
+			return new BitmapNode(edit, 0, new Object[0])
+				.put(edit, shift, hash1, key1, value1, added)
+				.put(edit, shift, hash2, key2, value2, added);
+		}
+
+		private int bitmap;
+		private Object[] array;
+	}
+
+	/**
+	 * A node for keys whose hashes are the same; array holds a key and value for each
+	 */
+	private static final class CollisionNode extends Node {
+		CollisionNode(Object edit, int hash, Object[] array) {
+			super(edit);
+			this.hash = hash;
+			this.array = array;
+		}
+
+		private int indexOf(Object key) {
+			for(int i = 0; i < array.length; i += 2)
+				if(key.equals(array[i]))
+					return i;
+			return -1;
+		}
+
+		@Override
+		Object find(int shift, int hash, Object key) {
+			int i = (hash == this.hash) ? indexOf(key) : -1;
+			return (i < 0) ? null : array[i + 1];
+		}
+
+		@Override
+		Node put(Object edit, int shift, int hash, Object key, Object value, Box added) {
+			if(hash != this.hash) {
+				/* nest this node in a BitmapNode at this level */
+				return new BitmapNode(edit, bit(this.hash, shift), new Object[] {null, this})
+					.put(edit, shift, hash, key, value, added);
+			}
+			int i = indexOf(key);
+			if(i >= 0) {
+				if(array[i + 1] == value)
+					return this;
+				CollisionNode result = editable(edit) ? this : new CollisionNode(edit, hash, array.clone());
+				result.array[i + 1] = value;
+				return result;
+			}
+			added.value = true;
+			Object[] updated = new Object[array.length + 2];
+			System.arraycopy(array, 0, updated, 0, array.length);
+			updated[array.length] = key;
+			updated[array.length + 1] = value;
+			if(editable(edit)) {
+				array = updated;
+				return this;
+			}
+			return new CollisionNode(edit, hash, updated);
+		}
+
+		@Override
+		Node remove(Object edit, int shift, int hash, Object key, Box removed) {
+			int i = (hash == this.hash) ? indexOf(key) : -1;
+			if(i < 0)
+				return this;
+			removed.value = true;
+			if(array.length == 2)
+				return null;
+			Object[] updated = new Object[array.length - 2];
+			System.arraycopy(array, 0, updated, 0, i);
+			System.arraycopy(array, i + 2, updated, i, array.length - i - 2);
+			if(editable(edit)) {
+				array = updated;
+				return this;
+			}
+			return new CollisionNode(edit, hash, updated);
+		}
+
+		private final int hash;
+		private Object[] array;
+	}
+
+	/**
+	 * An iterator over the values of the trie, depth first
+	 */
+	private static final class ValueIterator<V> implements Iterator<V> {
+		ValueIterator(Node root) {
+			if(root != null)
+				push(root);
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V next() {
+			if(next == null)
+				throw new NoSuchElementException();
+			Object result = next;
+			advance();
+			return (V)result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void push(Node node) {
+			if(depth == arrays.length) {
+				Object[][] updatedArrays = new Object[depth * 2][];
+				System.arraycopy(arrays, 0, updatedArrays, 0, depth);
+				arrays = updatedArrays;
+				int[] updatedPositions = new int[depth * 2];
+				System.arraycopy(positions, 0, updatedPositions, 0, depth);
+				positions = updatedPositions;
+			}
+			arrays[depth] = (node instanceof BitmapNode) ? ((BitmapNode)node).array : ((CollisionNode)node).array;
+			positions[depth++] = 0;
+		}
+
+		private void advance() {
+			next = null;
+			while(depth > 0) {
+				Object[] array = arrays[depth - 1];
+				int i = positions[depth - 1];
+				if(i >= array.length) {
+					arrays[--depth] = null;
+					continue;
+				}
+				positions[depth - 1] = i + 2;
+				if(array[i] == null) {
+					push((Node)array[i + 1]);
+				} else {
+					next = array[i + 1];
+					return;
+				}
+			}
+		}
+
+		private Object[][] arrays = new Object[8][];
+		private int[] positions = new int[8];
+		private int depth;
+		private Object next;
+	}
+
+	private static final HashTrieMap<Object, Object> EMPTY = new HashTrieMap<Object, Object>(null, 0);
+
+	private final Node root;
+	private final int size;
+}
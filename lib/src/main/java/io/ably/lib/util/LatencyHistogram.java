@@ -0,0 +1,179 @@
+package io.ably.lib.util;
+
+/**
+ * A histogram of latency samples with bounded relative error, for
+ * computing percentiles in constant space.
+ *
+ * Samples are recorded in microseconds into log-linear buckets: each
+ * power-of-two range is divided into SUB_BUCKETS equal buckets, so a
+ * percentile is accurate to within 1/SUB_BUCKETS of its value. The maximum
+ * and minimum are recorded exactly. Recording takes constant time.
+ */
+public class LatencyHistogram {
+
+	/**
+	 * An immutable summary of the samples in a histogram.
+	 */
+	public static class Snapshot {
+		/** The number of samples. */
+		public final long count;
+		/** The number of probes that received no response. */
+		public final long timeouts;
+		/** The median, in milliseconds. */
+		public final double p50;
+		/** The 90th percentile, in milliseconds. */
+		public final double p90;
+		/** The 99th percentile, in milliseconds. */
+		public final double p99;
+		/** The smallest sample, in milliseconds. */
+		public final double min;
+		/** The largest sample, in milliseconds. */
+		public final double max;
+		/** The mean, in milliseconds. */
+		public final double mean;
+		/** The most recent sample, in milliseconds. */
+		public final double last;
+
+		Snapshot(long count, long timeouts, double p50, double p90, double p99, double min, double max, double mean, double last) {
+			this.count = count;
+			this.timeouts = timeouts;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.min = min;
+			this.max = max;
+			this.mean = mean;
+			this.last = last;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count = %d; timeouts = %d; last = %.3f; min = %.3f; p50 = %.3f; p90 = %.3f; p99 = %.3f; max = %.3f; mean = %.3f",
+					count, timeouts, last, min, p50, p90, p99, max, mean);
+		}
+	}
+
+	/**
+	 * Record a sample.
+	 * @param nanos the latency, in nanoseconds
+	 */
+	public synchronized void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		++counts[bucketFor(micros)];
+		++count;
+		total += micros;
+		if(count == 1 || micros < min)
+			min = micros;
+		if(micros > max)
+			max = micros;
+		last = micros;
+	}
+
+	/**
+	 * Record a probe that received no response.
+	 */
+	public synchronized void recordTimeout() {
+		++timeouts;
+	}
+
+	/**
+	 * The value, in milliseconds, below which the given fraction of samples lie.
+	 * @param fraction the fraction, between 0 and 1
+	 */
+	public synchronized double getPercentile(double fraction) {
+		return percentileMicros(fraction) / 1000.0;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized Snapshot getSnapshot() {
+		return new Snapshot(count, timeouts,
+				percentileMicros(0.5) / 1000.0,
+				percentileMicros(0.9) / 1000.0,
+				percentileMicros(0.99) / 1000.0,
+				min / 1000.0,
+				max / 1000.0,
+				(count == 0) ? 0 : (double)total / count / 1000.0,
+				last / 1000.0);
+	}
+
+	/**
+	 * Discard all samples.
+	 */
+	public synchronized void reset() {
+		for(int i = 0; i < counts.length; i++)
+			counts[i] = 0;
+		count = timeouts = total = min = max = last = 0;
+	}
+
+	@Override
+	public String toString() {
+		return getSnapshot().toString();
+	}
+
+	/******************
+	 * private
+	 ******************/
+
+	private long percentileMicros(double fraction) {
+		if(count == 0)
+			return 0;
+		long rank = (long)Math.ceil(Math.min(1, Math.max(0, fraction)) * count);
+		if(rank < 1)
+			rank = 1;
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if(seen >= rank) {
+				/* report the bucket's midpoint, within the exact range */
+				long value = (lowerBound(i) + upperBound(i)) / 2;
+				return Math.min(max, Math.max(min, value));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Values below SUB_BUCKETS each have their own bucket; above that, the
+	 * range [2^k, 2^(k+1)) is divided into SUB_BUCKETS buckets.
+	 */
+	private static int bucketFor(long value) {
+		if(value < SUB_BUCKETS)
+			return (int)value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int sub = (int)((value >>> shift) - SUB_BUCKETS);
+		int index = SUB_BUCKETS + (magnitude - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+		return Math.min(index, BUCKET_COUNT - 1);
+	}
+
+	private static long lowerBound(int index) {
+		if(index < SUB_BUCKETS)
+			return index;
+		int magnitude = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		return (long)(SUB_BUCKETS + sub) << (magnitude - SUB_BUCKET_BITS);
+	}
+
+	private static long upperBound(int index) {
+		if(index < SUB_BUCKETS)
+			return index;
+		int magnitude = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		return lowerBound(index) + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+	}
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/* enough buckets for values up to 2^40us, about 12 days */
+	private static final int BUCKET_COUNT = SUB_BUCKETS + (40 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKET_COUNT];
+	private long count;
+	private long timeouts;
+	private long total;
+	private long min;
+	private long max;
+	private long last;
+}
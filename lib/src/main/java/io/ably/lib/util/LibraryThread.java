@@ -0,0 +1,41 @@
+package io.ably.lib.util;
+
+/**
+ * Identifies the threads on which the library processes events, and calls
+ * application listeners: the transport, dispatcher, connection and timer
+ * callback threads.
+ *
+ * These threads must not block waiting for an event, such as space in a
+ * queue, that only they can bring about; so a publisher called back on one
+ * of them is not made to wait, and its publish fails if the queue is full.
+ */
+public class LibraryThread {
+
+	/**
+	 * Mark the current thread as a library thread, for as long as it runs.
+	 */
+	public static void mark() {
+		if(!marked.get())
+			marked.set(Boolean.TRUE);
+	}
+
+	/**
+	 * Whether or not the current thread is a library thread.
+	 */
+	public static boolean isCurrent() {
+		return marked.get();
+	}
+
+	/******************
+	 * private
+	 ******************/
+
+	private LibraryThread() {}
+
+	private static final ThreadLocal<Boolean> marked = new ThreadLocal<Boolean>() {
+		@Override
+		protected Boolean initialValue() {
+			return Boolean.FALSE;
+		}
+	};
+}
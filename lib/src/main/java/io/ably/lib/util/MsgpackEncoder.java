@@ -0,0 +1,140 @@
+package io.ably.lib.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.buffer.MessageBuffer;
+import org.msgpack.core.buffer.MessageBufferOutput;
+
+/**
+ * A reusable msgpack encoder. Each thread has its own encoder, whose packer
+ * and output buffer are recycled between messages, so encoding a message
+ * allocates no intermediate streams or buffers once the buffer has grown to
+ * the size of the messages being sent.
+ *
+ * Usage: call {@link #begin()}, write a single value to the returned packer,
+ * then call {@link #end()} to obtain the encoded bytes. The returned buffer
+ * is only valid until the next call to begin() on the same thread.
+ */
+public class MsgpackEncoder {
+
+	/**
+	 * Get the encoder for the current thread.
+	 */
+	public static MsgpackEncoder forCurrentThread() {
+		return encoders.get();
+	}
+
+	private MsgpackEncoder() {
+		output = new RecyclingOutput();
+	}
+
+	/**
+	 * Start encoding a new value, discarding anything previously encoded.
+	 * @return the packer to which the value is to be written
+	 */
+	public MessagePacker begin() {
+		output.clear();
+		if(packer == null || inProgress) {
+			/* a previous encode did not complete, so the packer
+			 * may hold partially written state */
+			packer = Serialisation.msgpackPackerConfig.newPacker(output);
+		}
+		inProgress = true;
+		return packer;
+	}
+
+	/**
+	 * Complete encoding.
+	 * @return a buffer wrapping the encoded bytes; this shares the
+	 * encoder's storage, so must not be retained beyond the next call to begin().
+	 */
+	public ByteBuffer end() throws IOException {
+		packer.flush();
+		inProgress = false;
+		return ByteBuffer.wrap(output.buf, 0, output.size);
+	}
+
+	/**
+	 * Complete encoding, returning a copy of the encoded bytes.
+	 */
+	public byte[] endAsByteArray() throws IOException {
+		packer.flush();
+		inProgress = false;
+		byte[] result = new byte[output.size];
+		System.arraycopy(output.buf, 0, result, 0, output.size);
+		return result;
+	}
+
+	/**
+	 * A MessageBufferOutput that writes into a single growable array,
+	 * which is retained between messages.
+	 */
+	private static class RecyclingOutput implements MessageBufferOutput {
+
+		@Override
+		public MessageBuffer next(int minimumSize) {
+			ensureCapacity(minimumSize);
+			return MessageBuffer.wrap(buf, size, buf.length - size);
+		}
+
+		@Override
+		public void writeBuffer(int length) {
+			size += length;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			ensureCapacity(length);
+			System.arraycopy(buffer, offset, buf, size, length);
+			size += length;
+		}
+
+		@Override
+		public void add(byte[] buffer, int offset, int length) {
+			/* the given array can't be referenced, because our content is
+			 * returned as a single contiguous buffer */
+			write(buffer, offset, length);
+		}
+
+		@Override
+		public void flush() {}
+
+		@Override
+		public void close() {}
+
+		void clear() {
+			size = 0;
+			/* don't hold on indefinitely to the storage used by an unusually large message */
+			if(buf.length > MAX_RETAINED_SIZE)
+				buf = new byte[INITIAL_SIZE];
+		}
+
+		private void ensureCapacity(int length) {
+			int required = size + length;
+			if(required > buf.length) {
+				byte[] newBuf = new byte[Math.max(required, buf.length * 2)];
+				System.arraycopy(buf, 0, newBuf, 0, size);
+				buf = newBuf;
+			}
+		}
+
+		private byte[] buf = new byte[INITIAL_SIZE];
+		private int size;
+	}
+
+	private static final int INITIAL_SIZE = 16384;
+	private static final int MAX_RETAINED_SIZE = 262144;
+
+	private static final ThreadLocal<MsgpackEncoder> encoders = new ThreadLocal<MsgpackEncoder>() {
+		@Override
+		protected MsgpackEncoder initialValue() {
+			return new MsgpackEncoder();
+		}
+	};
+
+	private final RecyclingOutput output;
+	private MessagePacker packer;
+	private boolean inProgress;
+}
@@ -1,14 +1,23 @@
 package io.ably.lib.util;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * A list of listeners to which calls are dispatched.
+ *
+ * The members are held in a copy-on-write list, so that dispatch iterates
+ * a snapshot of the members without taking a lock, and members may be
+ * added or removed on other threads, or by a member being called, without
+ * affecting a dispatch in progress.
+ */
 public abstract class Multicaster<T> {
 
-	protected final List<T> members = new ArrayList<T>();
+	protected final List<T> members = new CopyOnWriteArrayList<T>();
 
-	public Multicaster(T... members) { for(T m : members) this.members.add(m); }
+	public Multicaster(T... members) { this.members.addAll(Arrays.asList(members)); }
 	
 	public void add(T member) { members.add(member); }
 	public void remove(T member) { members.remove(member); }
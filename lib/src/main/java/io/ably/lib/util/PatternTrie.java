@@ -0,0 +1,285 @@
+package io.ably.lib.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of values by hierarchical name pattern, for finding the values
+ * whose patterns match a given name.
+ *
+ * Names and patterns consist of segments separated by '.'. In a pattern,
+ * a segment "*" matches exactly one segment of a name, and a segment "#"
+ * matches zero or more segments; any other segment matches only itself.
+ * For example, "orders.*" matches "orders.created" but not "orders" or
+ * "orders.eu.created", and "orders.#" matches all three.
+ *
+ * Patterns are held in a trie of their segments, so that a match visits
+ * only the nodes along the segments of the name, irrespective of the
+ * number of patterns in the index. Consecutive "#" segments are
+ * equivalent to one, and are stored as one; and a match visits each node
+ * at most once for each position in the name, so that patterns with many
+ * "#" segments cost at most O(n * s^2) for n nodes and a name of s
+ * segments, instead of a number of paths that grows combinatorially.
+ *
+ * Instances are safe for use by multiple threads.
+ */
+public class PatternTrie<T> {
+
+	public static final char SEPARATOR = '.';
+	public static final String ANY_SEGMENT = "*";
+	public static final String ANY_SEGMENTS = "#";
+
+	/**
+	 * Whether the given string is a valid pattern; the wildcards "*" and
+	 * "#" are only valid as entire segments.
+	 */
+	public static boolean isValid(String pattern) {
+		if(pattern == null)
+			return false;
+		for(String segment : split(pattern)) {
+			if(segment.length() > 1 && (segment.indexOf('*') >= 0 || segment.indexOf('#') >= 0))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the given string contains any wildcard segments.
+	 */
+	public static boolean isPattern(String pattern) {
+		if(pattern == null)
+			return false;
+		for(String segment : split(pattern)) {
+			if(segment.equals(ANY_SEGMENT) || segment.equals(ANY_SEGMENTS))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Add a value for a pattern.
+	 * @throws IllegalArgumentException if the pattern is not valid
+	 */
+	public synchronized void add(String pattern, T value) {
+		if(!isValid(pattern))
+			throw new IllegalArgumentException("Invalid pattern: " + pattern);
+		Node<T> node = root;
+		for(String segment : segments(pattern))
+			node = node.child(segment, true);
+		node.values.add(value);
+		++size;
+	}
+
+	/**
+	 * Remove a value for a pattern.
+	 * @return true if the value was present for the pattern
+	 */
+	public synchronized boolean remove(String pattern, T value) {
+		if(!isValid(pattern))
+			return false;
+		if(!remove(root, segments(pattern), 0, value))
+			return false;
+		--size;
+		return true;
+	}
+
+	/**
+	 * Remove a value for all patterns.
+	 */
+	public synchronized void removeAll(T value) {
+		size -= removeAll(root, value);
+	}
+
+	public synchronized void clear() {
+		root = new Node<T>();
+		size = 0;
+	}
+
+	/**
+	 * Whether there are no values in the index.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Add the values of all patterns matching the given name to a collection.
+	 * A value may be added more than once, if it was added for several
+	 * matching patterns; a Set collects each value once.
+	 */
+	public synchronized void match(String name, Collection<T> result) {
+		if(name != null && size != 0)
+			new Matcher<T>(split(name), result).match(root, 0);
+	}
+
+	/******************
+	 * private
+	 ******************/
+
+	private static class Node<T> {
+		Map<String, Node<T>> children;
+		Node<T> anySegment;
+		Node<T> anySegments;
+		final List<T> values = new ArrayList<T>(1);
+
+		Node<T> child(String segment, boolean create) {
+			if(segment.equals(ANY_SEGMENT)) {
+				if(anySegment == null && create)
+					anySegment = new Node<T>();
+				return anySegment;
+			}
+			if(segment.equals(ANY_SEGMENTS)) {
+				if(anySegments == null && create)
+					anySegments = new Node<T>();
+				return anySegments;
+			}
+			Node<T> child = (children == null) ? null : children.get(segment);
+			if(child == null && create) {
+				if(children == null)
+					children = new HashMap<String, Node<T>>();
+				child = new Node<T>();
+				children.put(segment, child);
+			}
+			return child;
+		}
+
+		void removeChild(String segment) {
+			if(segment.equals(ANY_SEGMENT))
+				anySegment = null;
+			else if(segment.equals(ANY_SEGMENTS))
+				anySegments = null;
+			else if(children != null) {
+				children.remove(segment);
+				if(children.isEmpty())
+					children = null;
+			}
+		}
+
+		boolean isEmpty() {
+			return values.isEmpty() && children == null && anySegment == null && anySegments == null;
+		}
+	}
+
+	private static String[] split(String name) {
+		int count = 1;
+		for(int i = name.indexOf(SEPARATOR); i >= 0; i = name.indexOf(SEPARATOR, i + 1))
+			++count;
+		String[] segments = new String[count];
+		int start = 0;
+		for(int i = 0; i < count - 1; i++) {
+			int end = name.indexOf(SEPARATOR, start);
+			segments[i] = name.substring(start, end);
+			start = end + 1;
+		}
+		segments[count - 1] = name.substring(start);
+		return segments;
+	}
+
+	/**
+	 * The segments of a pattern, with each run of "#" segments as one
+	 */
+	private static String[] segments(String pattern) {
+		String[] segments = split(pattern);
+		int count = 0;
+		for(int i = 0; i < segments.length; i++) {
+			if(count > 0 && segments[i].equals(ANY_SEGMENTS) && segments[count - 1].equals(ANY_SEGMENTS))
+				continue;
+			segments[count++] = segments[i];
+		}
+		return (count == segments.length) ? segments : Arrays.copyOf(segments, count);
+	}
+
+	/**
+	 * The state of a single match of a name.
+	 */
+	private static class Matcher<T> {
+		private final String[] segments;
+		private final Collection<T> result;
+		/* the positions at which each node has been visited; only a node
+		 * below a "#" can be reached more than once, so this is created
+		 * on reaching the first "#" */
+		private IdentityHashMap<Node<T>, BitSet> visited;
+
+		Matcher(String[] segments, Collection<T> result) {
+			this.segments = segments;
+			this.result = result;
+		}
+
+		void match(Node<T> node, int index) {
+			if(visited != null) {
+				BitSet positions = visited.get(node);
+				if(positions == null)
+					visited.put(node, positions = new BitSet(segments.length + 1));
+				else if(positions.get(index))
+					return;
+				positions.set(index);
+			}
+			if(node.anySegments != null) {
+				/* "#" matches any number of the remaining segments */
+				if(visited == null)
+					visited = new IdentityHashMap<Node<T>, BitSet>();
+				for(int i = index; i <= segments.length; i++)
+					match(node.anySegments, i);
+			}
+			if(index == segments.length) {
+				result.addAll(node.values);
+				return;
+			}
+			if(node.children != null) {
+				Node<T> child = node.children.get(segments[index]);
+				if(child != null)
+					match(child, index + 1);
+			}
+			if(node.anySegment != null)
+				match(node.anySegment, index + 1);
+		}
+	}
+
+	private static <T> boolean remove(Node<T> node, String[] segments, int index, T value) {
+		if(index == segments.length)
+			return node.values.remove(value);
+		Node<T> child = node.child(segments[index], false);
+		if(child == null || !remove(child, segments, index + 1, value))
+			return false;
+		if(child.isEmpty())
+			node.removeChild(segments[index]);
+		return true;
+	}
+
+	private static <T> int removeAll(Node<T> node, T value) {
+		int removed = 0;
+		while(node.values.remove(value))
+			++removed;
+		if(node.children != null) {
+			for(Iterator<Node<T>> it = node.children.values().iterator(); it.hasNext();) {
+				Node<T> child = it.next();
+				removed += removeAll(child, value);
+				if(child.isEmpty())
+					it.remove();
+			}
+			if(node.children.isEmpty())
+				node.children = null;
+		}
+		if(node.anySegment != null) {
+			removed += removeAll(node.anySegment, value);
+			if(node.anySegment.isEmpty())
+				node.anySegment = null;
+		}
+		if(node.anySegments != null) {
+			removed += removeAll(node.anySegments, value);
+			if(node.anySegments.isEmpty())
+				node.anySegments = null;
+		}
+		return removed;
+	}
+
+	private Node<T> root = new Node<T>();
+	private volatile int size;
+}
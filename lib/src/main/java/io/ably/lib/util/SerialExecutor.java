@@ -0,0 +1,77 @@
+package io.ably.lib.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An Executor that runs its tasks one at a time, in the order in which
+ * they were submitted, on an underlying Executor that may run tasks in
+ * parallel. Any number of SerialExecutors may share the same underlying
+ * Executor; tasks of different SerialExecutors may then run in parallel,
+ * while those of each SerialExecutor remain ordered.
+ *
+ * A SerialExecutor occupies at most one thread of the underlying Executor
+ * at a time, and yields that thread after running a limited number of
+ * tasks so that others sharing the Executor are not starved.
+ */
+public class SerialExecutor implements Executor {
+
+	private static final String TAG = SerialExecutor.class.getName();
+
+	/* the number of tasks run before yielding the thread */
+	private static final int BATCH_SIZE = 64;
+
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		schedule();
+	}
+
+	/******************
+	 * private
+	 ******************/
+
+	private void schedule() {
+		if(!scheduled.compareAndSet(false, true))
+			return;
+		try {
+			executor.execute(drain);
+		} catch(RejectedExecutionException e) {
+			/* the underlying executor is unavailable; run the tasks here
+			 * rather than lose them */
+			Log.e(TAG, "Callback executor rejected task; running on the calling thread", e);
+			drain.run();
+		}
+	}
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			for(int i = 0; i < BATCH_SIZE; i++) {
+				Runnable task = tasks.poll();
+				if(task == null)
+					break;
+				try {
+					task.run();
+				} catch(Throwable t) {
+					Log.e(TAG, "Unexpected exception running task", t);
+				}
+			}
+			scheduled.set(false);
+			/* tasks added while draining, or remaining after a full batch */
+			if(!tasks.isEmpty())
+				schedule();
+		}
+	};
+
+	private final Executor executor;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+}
@@ -0,0 +1,267 @@
+package io.ably.lib.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timer wheel: a single thread that runs scheduled tasks, where
+ * scheduling and cancellation take constant time regardless of the number
+ * of pending timeouts.
+ *
+ * Time is divided into ticks; a timeout is placed in the bucket for the tick
+ * in which it expires, and on each tick only the timeouts in the current
+ * bucket are examined. Tasks are run at, or up to one tick after, their
+ * scheduled time. The thread sleeps through ticks with no timeouts to
+ * expire. All tasks run on the wheel's thread, so they must not block;
+ * nor should they call application code, which may be slow, but instead
+ * hand that work to {@link #getCallbackExecutor()}.
+ *
+ * The library's timeouts share a single instance, obtained via {@link #getInstance()}.
+ */
+public class TimerWheel {
+
+	private static final String TAG = TimerWheel.class.getName();
+
+	/**
+	 * A task to be run on expiry of a timeout.
+	 */
+	public interface Task {
+		/**
+		 * @param timeout the timeout that has expired
+		 */
+		void run(Timeout timeout);
+	}
+
+	/**
+	 * A handle on a scheduled task.
+	 */
+	public static class Timeout {
+
+		/**
+		 * Cancel the timeout, if it has not already expired.
+		 * @return true if the timeout was pending and is now cancelled
+		 */
+		public boolean cancel() {
+			return wheel.cancel(this);
+		}
+
+		/**
+		 * Whether or not the task is still waiting to be run.
+		 */
+		public boolean isPending() {
+			synchronized(wheel) {
+				return bucket != -1;
+			}
+		}
+
+		private Timeout(TimerWheel wheel, Task task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		private final TimerWheel wheel;
+		private final Task task;
+		private final long deadline;
+		private int bucket = -1;
+		private Timeout prev, next;
+	}
+
+	/**
+	 * Get the shared instance.
+	 */
+	public static synchronized TimerWheel getInstance() {
+		if(instance == null)
+			instance = new TimerWheel("ably-timer", DEFAULT_TICK_INTERVAL, DEFAULT_WHEEL_SIZE);
+		return instance;
+	}
+
+	/**
+	 * Get the executor on which timeout tasks call application listeners,
+	 * so that a slow listener does not delay other timeouts. Its threads
+	 * are created on demand, and exit when idle.
+	 */
+	public static synchronized Executor getCallbackExecutor() {
+		if(callbackExecutor == null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, CALLBACK_THREAD_KEEPALIVE, TimeUnit.MILLISECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger threadCount = new AtomicInteger();
+				@Override
+				public Thread newThread(final Runnable r) {
+					Thread thread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							LibraryThread.mark();
+							r.run();
+						}
+					}, "ably-timer-callback-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			callbackExecutor = executor;
+		}
+		return callbackExecutor;
+	}
+
+	/**
+	 * Create a timer wheel. Its thread is started when the first task is scheduled.
+	 * @param name the name of the wheel's thread
+	 * @param tickInterval the tick interval, in milliseconds
+	 * @param wheelSize the number of buckets
+	 */
+	public TimerWheel(String name, long tickInterval, int wheelSize) {
+		this.name = name;
+		this.tickNanos = tickInterval * 1000000L;
+		this.buckets = new Timeout[wheelSize];
+		this.startTime = System.nanoTime();
+	}
+
+	/**
+	 * Schedule a task.
+	 * @param task the task to run
+	 * @param delay the delay, in milliseconds, before the task is run
+	 * @return a handle by which the task can be cancelled
+	 */
+	public synchronized Timeout schedule(Task task, long delay) {
+		if(pendingCount == 0) {
+			/* the wheel has been idle, so bring the current tick up to date;
+			 * there are no timeouts in any of the skipped buckets */
+			currentTick = Math.max(currentTick, (System.nanoTime() - startTime) / tickNanos);
+		}
+		long deadline = System.nanoTime() - startTime + Math.max(delay, 0) * 1000000L;
+		/* the first tick at or after the deadline, but not in the past */
+		long deadlineTick = Math.max(currentTick, (deadline + tickNanos - 1) / tickNanos);
+		Timeout timeout = new Timeout(this, task, deadlineTick);
+		int bucket = (int)(deadlineTick % buckets.length);
+		timeout.bucket = bucket;
+		timeout.next = buckets[bucket];
+		if(timeout.next != null)
+			timeout.next.prev = timeout;
+		buckets[bucket] = timeout;
+		++pendingCount;
+
+		if(thread == null) {
+			thread = new Thread(new Worker(), name);
+			thread.setDaemon(true);
+			thread.start();
+		} else {
+			/* the worker may be waiting for a later tick */
+			notify();
+		}
+		return timeout;
+	}
+
+	/**
+	 * The number of timeouts that have been scheduled and have neither
+	 * expired nor been cancelled.
+	 */
+	public synchronized int getPendingCount() {
+		return pendingCount;
+	}
+
+	private synchronized boolean cancel(Timeout timeout) {
+		if(timeout.bucket == -1)
+			return false;
+		unlink(timeout);
+		return true;
+	}
+
+	private void unlink(Timeout timeout) {
+		if(timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			buckets[timeout.bucket] = timeout.next;
+		if(timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = timeout.next = null;
+		timeout.bucket = -1;
+		--pendingCount;
+	}
+
+	/**
+	 * Find the first tick, from the current tick onwards, whose bucket is
+	 * not empty. Empty buckets are skipped, so the worker only wakes when
+	 * there may be timeouts to expire.
+	 */
+	private long nextOccupiedTick() {
+		for(int i = 0; i < buckets.length; i++) {
+			if(buckets[(int)((currentTick + i) % buckets.length)] != null)
+				return currentTick + i;
+		}
+		return currentTick;
+	}
+
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			List<Timeout> expired = new ArrayList<Timeout>();
+			while(true) {
+				synchronized(TimerWheel.this) {
+					/* wait for the next tick with an occupied bucket,
+					 * or indefinitely if there are no timeouts */
+					while(true) {
+						if(pendingCount == 0) {
+							try { TimerWheel.this.wait(); } catch(InterruptedException ie) {}
+							continue;
+						}
+						long nextTick = nextOccupiedTick();
+						long waitNanos = startTime + nextTick * tickNanos - System.nanoTime();
+						if(waitNanos <= 0) {
+							currentTick = nextTick;
+							break;
+						}
+						try {
+							TimerWheel.this.wait(waitNanos / 1000000L, (int)(waitNanos % 1000000L));
+						} catch(InterruptedException ie) {}
+					}
+
+					/* collect the timeouts that expire on this tick */
+					Timeout timeout = buckets[(int)(currentTick % buckets.length)];
+					while(timeout != null) {
+						Timeout next = timeout.next;
+						if(timeout.deadline <= currentTick) {
+							unlink(timeout);
+							expired.add(timeout);
+						}
+						timeout = next;
+					}
+					++currentTick;
+				}
+
+				for(Timeout timeout : expired) {
+					try {
+						timeout.task.run(timeout);
+					} catch(Throwable t) {
+						Log.e(TAG, "Unexpected exception in timer task", t);
+					}
+				}
+				expired.clear();
+			}
+		}
+	}
+
+	/******************
+	 * private members
+	 ******************/
+
+	private static final long DEFAULT_TICK_INTERVAL = 10L;
+	private static final int DEFAULT_WHEEL_SIZE = 1024;
+	private static final long CALLBACK_THREAD_KEEPALIVE = 60000L;
+	private static TimerWheel instance;
+	private static Executor callbackExecutor;
+
+	private final String name;
+	private final long tickNanos;
+	private final long startTime;
+	private final Timeout[] buckets;
+	private long currentTick;
+	private int pendingCount;
+	private Thread thread;
+}
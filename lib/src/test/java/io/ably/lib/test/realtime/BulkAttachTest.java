@@ -0,0 +1,257 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.BulkCompletionListener;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.ProtocolMessage;
+
+/**
+ * Tests for attaching and detaching many channels in one operation
+ */
+public class BulkAttachTest {
+
+	private static class ResultListener implements BulkCompletionListener {
+		final AtomicReference<Result> result = new AtomicReference<Result>();
+		final CountDownLatch done = new CountDownLatch(1);
+		int calls;
+		volatile String threadName;
+		@Override
+		public synchronized void onComplete(Result result) {
+			++calls;
+			threadName = Thread.currentThread().getName();
+			this.result.set(result);
+			done.countDown();
+		}
+		Result await() throws InterruptedException {
+			assertTrue("Verify operation completed", done.await(30, TimeUnit.SECONDS));
+			return result.get();
+		}
+	}
+
+	private static AblyRealtime createClient(LoopbackTransportFactory factory) throws AblyException {
+		return createClient(factory, null);
+	}
+
+	private static AblyRealtime createClient(LoopbackTransportFactory factory, Executor callbackExecutor) throws AblyException {
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = factory;
+		opts.callbackExecutor = callbackExecutor;
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		AblyRealtime ably = new AblyRealtime(opts);
+		ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+		ably.connection.connect();
+		assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+		return ably;
+	}
+
+	private static List<String> names(String prefix, int count) {
+		List<String> names = new ArrayList<String>(count);
+		for(int i = 0; i < count; i++)
+			names.add(prefix + i);
+		return names;
+	}
+
+	private static int countSent(LoopbackTransportFactory factory, ProtocolMessage.Action action) {
+		int count = 0;
+		for(ProtocolMessage msg : factory.getLastTransport().getSentMessages()) {
+			if(msg.action == action)
+				++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Verify that 20k channels are attached, and then detached, in
+	 * one operation each
+	 */
+	@Test
+	public void bulk_attach_detach() throws AblyException, InterruptedException {
+		int channelCount = 20000;
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, true);
+		AblyRealtime ably = createClient(factory);
+		try {
+			List<String> names = names("bulk_", channelCount);
+			ResultListener attachListener = new ResultListener();
+			long start = System.nanoTime();
+			ably.channels.attach(names, attachListener);
+			BulkCompletionListener.Result result = attachListener.await();
+			long elapsed = System.nanoTime() - start;
+			System.out.println("bulk_attach_detach: attached " + channelCount + " channels; ms = " + elapsed / 1000000);
+
+			assertTrue("Verify attach succeeded", result.isSuccess());
+			assertEquals("Verify count", channelCount, result.count);
+			assertEquals("Verify succeeded count", channelCount, result.succeeded);
+			assertEquals("Verify one ATTACH per channel", channelCount, countSent(factory, ProtocolMessage.Action.attach));
+			for(String name : names)
+				assertEquals("Verify channel attached", ChannelState.attached, ably.channels.get(name).state);
+
+			/* attaching channels that are already attached sends nothing more */
+			ResultListener reattachListener = new ResultListener();
+			ably.channels.attach(names.subList(0, 100), reattachListener);
+			assertTrue("Verify attach succeeded", reattachListener.await().isSuccess());
+			assertEquals("Verify no further ATTACH sent", channelCount, countSent(factory, ProtocolMessage.Action.attach));
+
+			List<String> detachNames = new ArrayList<String>(names);
+			detachNames.add("bulk_nonexistent");
+			ResultListener detachListener = new ResultListener();
+			ably.channels.detach(detachNames, detachListener);
+			result = detachListener.await();
+			assertTrue("Verify detach succeeded", result.isSuccess());
+			assertEquals("Verify count", channelCount + 1, result.count);
+			for(String name : names)
+				assertEquals("Verify channel detached", ChannelState.detached, ably.channels.get(name).state);
+			assertEquals("Verify listener called once", 1, attachListener.calls);
+			assertEquals("Verify listener called once", 1, detachListener.calls);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that the result reports the channels that failed and timed
+	 * out, and that the others are attached
+	 */
+	@Test
+	public void bulk_attach_partial_failure() throws AblyException, InterruptedException {
+		long oldRealtimeTimeout = Defaults.realtimeRequestTimeout;
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		factory.setAttachErrors("bulk_fail_", new ErrorInfo("Channel denied", 401, 40160), "bulk_silent_");
+		AblyRealtime ably = createClient(factory);
+		try {
+			Defaults.realtimeRequestTimeout = 500;
+			List<String> names = new ArrayList<String>();
+			names.addAll(names("bulk_ok_", 100));
+			names.addAll(names("bulk_fail_", 10));
+			names.addAll(names("bulk_silent_", 5));
+			ResultListener listener = new ResultListener();
+			ably.channels.attach(names, listener);
+			BulkCompletionListener.Result result = listener.await();
+
+			assertEquals("Verify count", 115, result.count);
+			assertEquals("Verify succeeded count", 100, result.succeeded);
+			assertEquals("Verify failed count", 15, result.failed.size());
+			for(int i = 0; i < 10; i++) {
+				ErrorInfo reason = result.failed.get("bulk_fail_" + i);
+				assertNotNull("Verify failure reported", reason);
+				assertEquals("Verify failure reason", 40160, reason.code);
+				assertEquals("Verify channel failed", ChannelState.failed, ably.channels.get("bulk_fail_" + i).state);
+			}
+			for(int i = 0; i < 5; i++) {
+				ErrorInfo reason = result.failed.get("bulk_silent_" + i);
+				assertNotNull("Verify timeout reported", reason);
+				assertEquals("Verify timeout reason", 91200, reason.code);
+				assertEquals("Verify channel suspended", ChannelState.suspended, ably.channels.get("bulk_silent_" + i).state);
+			}
+			for(int i = 0; i < 100; i++)
+				assertEquals("Verify channel attached", ChannelState.attached, ably.channels.get("bulk_ok_" + i).state);
+		} finally {
+			Defaults.realtimeRequestTimeout = oldRealtimeTimeout;
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that operations that join an attach already in progress are
+	 * resolved with it, and that the expiry of a joined operation's timer
+	 * neither suspends the channel nor repeats the attach
+	 */
+	@Test
+	public void bulk_attach_joined() throws AblyException, InterruptedException {
+		long oldRealtimeTimeout = Defaults.realtimeRequestTimeout;
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, true);
+		factory.setAttachErrors(null, null, "bulk_silent_");
+		AblyRealtime ably = createClient(factory);
+		try {
+			List<String> names = names("bulk_silent_", 5);
+			Defaults.realtimeRequestTimeout = 2000;
+			ResultListener owner = new ResultListener();
+			ably.channels.attach(names, owner);
+			Defaults.realtimeRequestTimeout = 200;
+			ResultListener shortJoined = new ResultListener();
+			ably.channels.attach(names, shortJoined);
+			Defaults.realtimeRequestTimeout = 60000;
+			ResultListener longJoined = new ResultListener();
+			ably.channels.attach(names, longJoined);
+
+			BulkCompletionListener.Result result = shortJoined.await();
+			assertEquals("Verify joined operation timed out", 5, result.failed.size());
+			assertEquals("Verify timeout reason", 91200, result.failed.get("bulk_silent_0").code);
+			for(String name : names)
+				assertEquals("Verify channel still attaching", ChannelState.attaching, ably.channels.get(name).state);
+			assertEquals("Verify one ATTACH per channel", 5, countSent(factory, ProtocolMessage.Action.attach));
+			assertEquals("Verify owner not yet complete", 1, owner.done.getCount());
+
+			result = owner.await();
+			assertEquals("Verify owner timed out", 5, result.failed.size());
+			/* the owner's timeout suspends the channels, which resolves the other operation */
+			assertTrue("Verify joined operation resolved", longJoined.done.await(5, TimeUnit.SECONDS));
+			assertEquals("Verify joined operation failed", 5, longJoined.result.get().failed.size());
+			for(String name : names)
+				assertEquals("Verify channel suspended", ChannelState.suspended, ably.channels.get(name).state);
+		} finally {
+			Defaults.realtimeRequestTimeout = oldRealtimeTimeout;
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that the listener is called on the callback executor if one
+	 * is given, and otherwise on a library callback thread, rather than on
+	 * the thread that resolved the last channel
+	 */
+	@Test
+	public void bulk_attach_listener_executor() throws AblyException, InterruptedException {
+		ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "bulk-callback");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		AblyRealtime ably = createClient(new LoopbackTransportFactory(true, false), executor);
+		try {
+			ResultListener listener = new ResultListener();
+			ably.channels.attach(names("executor_", 100), listener);
+			assertTrue("Verify attach succeeded", listener.await().isSuccess());
+			assertEquals("Verify listener called on executor", "bulk-callback", listener.threadName);
+		} finally {
+			ably.close();
+			executor.shutdown();
+		}
+
+		ably = createClient(new LoopbackTransportFactory(true, false));
+		try {
+			ResultListener listener = new ResultListener();
+			ably.channels.attach(names("executor_", 100), listener);
+			assertTrue("Verify attach succeeded", listener.await().isSuccess());
+			assertTrue("Verify listener called on callback thread", listener.threadName.startsWith("ably-timer-callback"));
+		} finally {
+			ably.close();
+		}
+	}
+}
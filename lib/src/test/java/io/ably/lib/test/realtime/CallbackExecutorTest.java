@@ -0,0 +1,186 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+
+/**
+ * Tests for calling channel listeners on an executor given by the client
+ */
+public class CallbackExecutorTest {
+
+	private static final String THREAD_PREFIX = "callback-test-";
+
+	private static ExecutorService createExecutor(int threadCount) {
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, THREAD_PREFIX + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private static AblyRealtime createClient(LoopbackTransportFactory factory, ExecutorService executor) throws AblyException {
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = factory;
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		opts.callbackExecutor = executor;
+		AblyRealtime ably = new AblyRealtime(opts);
+		ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+		ably.connection.connect();
+		assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+		return ably;
+	}
+
+	/**
+	 * A listener that checks that it is called for messages in order,
+	 * one at a time, on the executor.
+	 */
+	private static class OrderedListener implements Channel.MessageListener {
+		final AtomicInteger active;
+		final AtomicInteger maxActive;
+		final CountDownLatch done;
+		final AtomicReference<String> error;
+		int next;
+		boolean running;
+
+		OrderedListener(AtomicInteger active, AtomicInteger maxActive, CountDownLatch done, AtomicReference<String> error) {
+			this.active = active;
+			this.maxActive = maxActive;
+			this.done = done;
+			this.error = error;
+		}
+
+		@Override
+		public void onMessage(Message message) {
+			if(running)
+				error.set("Listener called concurrently");
+			running = true;
+			int nowActive = active.incrementAndGet();
+			int max;
+			while((max = maxActive.get()) < nowActive && !maxActive.compareAndSet(max, nowActive));
+			if(!Thread.currentThread().getName().startsWith(THREAD_PREFIX))
+				error.set("Listener called on thread " + Thread.currentThread().getName());
+			int seq = Integer.parseInt((String)message.data);
+			if(seq != next)
+				error.set("Message out of order; expected " + next + ", received " + seq);
+			next = seq + 1;
+			/* hold the first call so that other channels are seen to run meanwhile */
+			if(seq == 0) {
+				try { Thread.sleep(20); } catch(InterruptedException e) {}
+			}
+			active.decrementAndGet();
+			running = false;
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Verify that messages on many channels, received interleaved, are
+	 * delivered in order for each channel, with channels handled in parallel
+	 */
+	@Test
+	public void callback_executor_ordering() throws AblyException, InterruptedException {
+		int channelCount = 64;
+		int messageCount = 200;
+		int threadCount = 8;
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		ExecutorService executor = createExecutor(threadCount);
+		AblyRealtime ably = createClient(factory, executor);
+		try {
+			AtomicInteger active = new AtomicInteger();
+			AtomicInteger maxActive = new AtomicInteger();
+			CountDownLatch done = new CountDownLatch(channelCount * messageCount);
+			AtomicReference<String> error = new AtomicReference<String>();
+			List<String> names = new ArrayList<String>();
+			for(int i = 0; i < channelCount; i++) {
+				String name = "callback_" + i;
+				names.add(name);
+				ably.channels.get(name).subscribe(new OrderedListener(active, maxActive, done, error));
+			}
+
+			long start = System.nanoTime();
+			LoopbackTransportFactory.LoopbackTransport transport = factory.getLastTransport();
+			for(int seq = 0; seq < messageCount; seq++) {
+				for(String name : names) {
+					ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, name);
+					msg.messages = new Message[] { new Message("seq", String.valueOf(seq)) };
+					transport.deliver(msg);
+				}
+			}
+			assertTrue("Verify all messages delivered", done.await(30, TimeUnit.SECONDS));
+			long elapsed = System.nanoTime() - start;
+			System.out.println("callback_executor_ordering: channels = " + channelCount + "; messages = " + channelCount * messageCount
+					+ "; ms = " + elapsed / 1000000 + "; max parallel callbacks = " + maxActive.get());
+
+			assertEquals("Verify no ordering or threading errors", null, error.get());
+			assertTrue("Verify channels handled in parallel", maxActive.get() > 1);
+			assertTrue("Verify parallelism bounded by executor", maxActive.get() <= threadCount);
+		} finally {
+			ably.close();
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Verify that publish completion listeners are called on the executor
+	 */
+	@Test
+	public void callback_executor_completion() throws AblyException, InterruptedException {
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		ExecutorService executor = createExecutor(2);
+		AblyRealtime ably = createClient(factory, executor);
+		try {
+			final CountDownLatch done = new CountDownLatch(2);
+			final AtomicReference<String> threadName = new AtomicReference<String>();
+			Channel channel = ably.channels.get("callback_completion");
+			CompletionListener listener = new CompletionListener() {
+				@Override
+				public void onSuccess() {
+					if(threadName.get() == null || threadName.get().startsWith(THREAD_PREFIX))
+						threadName.set(Thread.currentThread().getName());
+					done.countDown();
+				}
+				@Override
+				public void onError(ErrorInfo reason) {
+					threadName.set("error: " + reason.message);
+					done.countDown();
+				}
+			};
+			channel.attach(listener);
+			channel.publish("event", "data", listener);
+			assertTrue("Verify listeners called", done.await(10, TimeUnit.SECONDS));
+			assertTrue("Verify listeners called on executor; thread = " + threadName.get(), threadName.get().startsWith(THREAD_PREFIX));
+		} finally {
+			ably.close();
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ProtocolMessage;
+
+/**
+ * Tests for the registry of a client's channels at scale, and under
+ * concurrent use
+ */
+public class ChannelRegistryTest {
+
+	private static AblyRealtime createClient() throws AblyException {
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = new LoopbackTransportFactory(true, false);
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		return new AblyRealtime(opts);
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Verify that when many threads get the same 100k channels at once,
+	 * each name maps to a single channel
+	 */
+	@Test
+	public void channels_concurrent_get() throws AblyException, InterruptedException {
+		final int channelCount = 100000;
+		final int threadCount = 8;
+		final AblyRealtime ably = createClient();
+		final Channel[][] results = new Channel[threadCount][channelCount];
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		try {
+			long memoryBefore = usedMemory();
+			Thread[] threads = new Thread[threadCount];
+			for(int t = 0; t < threadCount; t++) {
+				final int index = t;
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							/* each thread visits the channels in a different order */
+							for(int i = 0; i < channelCount; i++) {
+								int channel = (i * 7919 + index * 12347) % channelCount;
+								results[index][channel] = ably.channels.get("registry_" + channel);
+							}
+						} catch(Throwable t) {
+							error.set(t);
+						}
+					}
+				};
+				threads[t].start();
+			}
+			long startTime = System.nanoTime();
+			start.countDown();
+			for(Thread thread : threads)
+				thread.join();
+			long elapsed = System.nanoTime() - startTime;
+			long memoryAfter = usedMemory();
+			System.out.println("channels_concurrent_get: threads = " + threadCount + "; channels = " + channelCount
+					+ "; gets/s = " + (long)((double)threadCount * channelCount * 1e9 / elapsed)
+					+ "; bytes per channel = " + (memoryAfter - memoryBefore) / channelCount);
+
+			assertEquals("Verify no errors", null, error.get());
+			assertEquals("Verify channel count", channelCount, ably.channels.size());
+			for(int i = 0; i < channelCount; i++) {
+				Channel channel = results[0][i];
+				assertNotNull("Verify channel created", channel);
+				assertEquals("Verify channel name", "registry_" + i, channel.name);
+				for(int t = 1; t < threadCount; t++)
+					assertSame("Verify single channel per name", channel, results[t][i]);
+				assertSame("Verify channel retained", channel, ably.channels.get("registry_" + i));
+			}
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that channels can be released while others are being created,
+	 * and that a released channel is replaced when next requested
+	 */
+	@Test
+	public void channels_concurrent_release() throws AblyException, InterruptedException {
+		final int channelCount = 100000;
+		final AblyRealtime ably = createClient();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		try {
+			for(int i = 0; i < channelCount; i += 2)
+				ably.channels.get("release_" + i);
+			Thread creator = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int i = 1; i < channelCount; i += 2)
+							ably.channels.get("release_" + i);
+					} catch(Throwable t) {
+						error.set(t);
+					}
+				}
+			};
+			creator.start();
+			Channel released = ably.channels.get("release_0");
+			for(int i = 0; i < channelCount; i += 2)
+				ably.channels.release("release_" + i);
+			creator.join();
+
+			assertEquals("Verify no errors", null, error.get());
+			assertEquals("Verify channel count", channelCount / 2, ably.channels.size());
+			assertFalse("Verify channel released", ably.channels.containsKey("release_0"));
+			assertTrue("Verify channel retained", ably.channels.containsKey("release_1"));
+			assertTrue("Verify new channel created", released != ably.channels.get("release_0"));
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that a message received for an unknown channel does not
+	 * create the channel
+	 */
+	@Test
+	public void channels_inbound_unknown_channel() throws AblyException {
+		AblyRealtime ably = createClient();
+		try {
+			ably.channels.get("known");
+			ably.channels.onChannelMessage(null, new ProtocolMessage(ProtocolMessage.Action.message, "unknown"));
+			ably.channels.onChannelMessage(null, new ProtocolMessage(ProtocolMessage.Action.message));
+			assertEquals("Verify no channel created", 1, ably.channels.size());
+			assertFalse("Verify no channel created", ably.channels.containsKey("unknown"));
+		} finally {
+			ably.close();
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.realtime.ConnectionStateListener;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.transport.ConnectionManager;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+
+/**
+ * Tests for the connection state machine, which runs on threads shared
+ * by all clients
+ */
+public class ConnectionStateMachineTest {
+
+	private static ClientOptions createOptions(LoopbackTransportFactory factory) throws AblyException {
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = factory;
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		return opts;
+	}
+
+	private static CountDownLatch latchFor(AblyRealtime ably, ConnectionState state, CountDownLatch latch) {
+		final CountDownLatch result = latch;
+		ably.connection.on(state, new ConnectionStateListener() {
+			@Override
+			public void onConnectionStateChanged(ConnectionStateChange stateChange) {
+				result.countDown();
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Set the timeout of a state; the state information is shared
+	 * by all clients, and fixed when first used, so this is set directly.
+	 * @return the previous timeout
+	 */
+	private static long setStateTimeout(ConnectionState state, long timeout) throws Exception {
+		ConnectionManager.StateInfo stateInfo = ConnectionManager.states.get(state);
+		Field field = ConnectionManager.StateInfo.class.getDeclaredField("timeout");
+		field.setAccessible(true);
+		long previous = field.getLong(stateInfo);
+		field.setLong(stateInfo, timeout);
+		return previous;
+	}
+
+	private static int countConnectionThreads() {
+		Thread[] threads = new Thread[Thread.activeCount() * 2];
+		int count = Thread.enumerate(threads);
+		int result = 0;
+		for(int i = 0; i < count; i++) {
+			if(threads[i].getName().startsWith("ably-connection-"))
+				++result;
+		}
+		return result;
+	}
+
+	/**
+	 * Verify that many clients connect and close, with their state
+	 * changes processed by a bounded number of shared threads
+	 */
+	@Test
+	public void state_machine_many_clients() throws AblyException, InterruptedException {
+		int clientCount = 1000;
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		CountDownLatch connected = new CountDownLatch(clientCount);
+		CountDownLatch closed = new CountDownLatch(clientCount);
+		List<AblyRealtime> clients = new ArrayList<AblyRealtime>(clientCount);
+		try {
+			for(int i = 0; i < clientCount; i++) {
+				AblyRealtime ably = new AblyRealtime(createOptions(factory));
+				latchFor(ably, ConnectionState.connected, connected);
+				latchFor(ably, ConnectionState.closed, closed);
+				clients.add(ably);
+				ably.connection.connect();
+			}
+			assertTrue("Verify all clients connected", connected.await(30, TimeUnit.SECONDS));
+			int threadCount = countConnectionThreads();
+			assertTrue("Verify state machine threads bounded (" + threadCount + ")", threadCount <= Defaults.CONNECTION_MANAGER_THREADS);
+		} finally {
+			for(AblyRealtime ably : clients)
+				ably.close();
+		}
+		assertTrue("Verify all clients closed", closed.await(30, TimeUnit.SECONDS));
+		for(AblyRealtime ably : clients)
+			assertEquals("Verify closed state", ConnectionState.closed, ably.connection.state);
+	}
+
+	/**
+	 * Verify that the timeout of the connecting state, and the retry after
+	 * the timeout of the disconnected state, are scheduled without a thread
+	 * waiting for them
+	 */
+	@Test
+	public void state_machine_timeouts() throws Exception {
+		long connectTimeout = setStateTimeout(ConnectionState.connecting, 200);
+		long disconnectTimeout = setStateTimeout(ConnectionState.disconnected, 200);
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		factory.setHoldConnect(true);
+		AblyRealtime ably = null;
+		try {
+			ably = new AblyRealtime(createOptions(factory));
+			CountDownLatch disconnected = latchFor(ably, ConnectionState.disconnected, new CountDownLatch(1));
+			CountDownLatch connected = latchFor(ably, ConnectionState.connected, new CountDownLatch(1));
+			ably.connection.connect();
+			assertTrue("Verify connecting state timed out", disconnected.await(10, TimeUnit.SECONDS));
+			LoopbackTransportFactory.LoopbackTransport first = factory.getLastTransport();
+
+			/* the retry connects immediately */
+			factory.setHoldConnect(false);
+			assertTrue("Verify connection retried", connected.await(10, TimeUnit.SECONDS));
+			assertNotSame("Verify new transport created", first, factory.getLastTransport());
+		} finally {
+			setStateTimeout(ConnectionState.connecting, connectTimeout);
+			setStateTimeout(ConnectionState.disconnected, disconnectTimeout);
+			if(ably != null)
+				ably.close();
+		}
+	}
+
+	/**
+	 * Verify that connectivity checks that block, after failed connection
+	 * attempts of more clients than there are state machine threads, do
+	 * not delay the state changes of another client
+	 */
+	@Test
+	public void state_machine_blocked_connectivity_check() throws AblyException, InterruptedException {
+		int blockedCount = Defaults.CONNECTION_MANAGER_THREADS * 2 + 1;
+		final CountDownLatch checking = new CountDownLatch(blockedCount);
+		final CountDownLatch release = new CountDownLatch(1);
+		LoopbackTransportFactory refusing = new LoopbackTransportFactory(true, false);
+		refusing.setRefuseConnect(new ErrorInfo("Connection refused", 503, 80000));
+		List<AblyRealtime> clients = new ArrayList<AblyRealtime>();
+		List<ConnectionManager> blocked = new ArrayList<ConnectionManager>();
+		AblyRealtime ably = null;
+		try {
+			for(int i = 0; i < blockedCount; i++) {
+				AblyRealtime client = new AblyRealtime(createOptions(refusing));
+				clients.add(client);
+				ConnectionManager connectionManager = new ConnectionManager(client, client.connection) {
+					@Override
+					protected boolean checkConnectivity() {
+						checking.countDown();
+						try { release.await(); } catch(InterruptedException e) {}
+						return false;
+					}
+				};
+				blocked.add(connectionManager);
+				connectionManager.connect();
+			}
+			assertTrue("Verify connectivity checks started", checking.await(10, TimeUnit.SECONDS));
+
+			ably = new AblyRealtime(createOptions(new LoopbackTransportFactory(true, false)));
+			CountDownLatch connected = latchFor(ably, ConnectionState.connected, new CountDownLatch(1));
+			ably.connection.connect();
+			assertTrue("Verify connected while checks blocked", connected.await(10, TimeUnit.SECONDS));
+
+			release.countDown();
+			for(ConnectionManager connectionManager : blocked) {
+				for(int i = 0; i < 500 && connectionManager.getConnectionState().state == ConnectionState.connecting; i++)
+					Thread.sleep(10);
+				assertEquals("Verify disconnected after check", ConnectionState.disconnected, connectionManager.getConnectionState().state);
+			}
+		} finally {
+			release.countDown();
+			for(ConnectionManager connectionManager : blocked)
+				connectionManager.close();
+			for(AblyRealtime client : clients)
+				client.close();
+			if(ably != null)
+				ably.close();
+		}
+	}
+
+	/**
+	 * Verify that clients whose transports block while connecting, or
+	 * whose connection listeners block, do not hold up the connection of
+	 * another client, however many of them there are
+	 */
+	@Test
+	public void state_machine_blocked_connect_and_listener() throws AblyException, InterruptedException {
+		int blockedCount = Defaults.CONNECTION_MANAGER_THREADS * 2 + 1;
+		final CountDownLatch release = new CountDownLatch(1);
+		LoopbackTransportFactory gated = new LoopbackTransportFactory(true, false);
+		gated.setConnectGate(release);
+		final CountDownLatch listening = new CountDownLatch(blockedCount);
+		List<AblyRealtime> clients = new ArrayList<AblyRealtime>();
+		AblyRealtime ably = null;
+		try {
+			for(int i = 0; i < blockedCount; i++) {
+				AblyRealtime client = new AblyRealtime(createOptions(gated));
+				clients.add(client);
+				client.connection.connect();
+			}
+			for(int i = 0; i < blockedCount; i++) {
+				AblyRealtime client = new AblyRealtime(createOptions(new LoopbackTransportFactory(true, false)));
+				clients.add(client);
+				client.connection.on(ConnectionState.connecting, new ConnectionStateListener() {
+					@Override
+					public void onConnectionStateChanged(ConnectionStateChange stateChange) {
+						listening.countDown();
+						try { release.await(); } catch(InterruptedException e) {}
+					}
+				});
+				client.connection.connect();
+			}
+			assertTrue("Verify listeners called", listening.await(10, TimeUnit.SECONDS));
+
+			ably = new AblyRealtime(createOptions(new LoopbackTransportFactory(true, false)));
+			CountDownLatch connected = latchFor(ably, ConnectionState.connected, new CountDownLatch(1));
+			ably.connection.connect();
+			assertTrue("Verify connected while others blocked", connected.await(10, TimeUnit.SECONDS));
+
+			release.countDown();
+			for(AblyRealtime client : clients) {
+				for(int i = 0; i < 500 && client.connection.state != ConnectionState.connected; i++)
+					Thread.sleep(10);
+				assertEquals("Verify connected once released", ConnectionState.connected, client.connection.state);
+			}
+		} finally {
+			release.countDown();
+			for(AblyRealtime client : clients)
+				client.close();
+			if(ably != null)
+				ably.close();
+		}
+	}
+}
@@ -4,6 +4,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
@@ -175,4 +179,108 @@ public class EventEmitterTest {
 		assertNull(listener.counts.get(MyEvents.event_1));
 	}
 
+	/**
+	 * Register a listener that registers and removes listeners when
+	 * called, and verify that the emit in progress is unaffected
+	 */
+	@Test
+	public void on_off_during_emit() {
+		final MyEmitter emitter = new MyEmitter();
+		final CountingListener added = new CountingListener();
+		final CountingListener removed = new CountingListener();
+		emitter.on(MyEvents.event_0, removed);
+		emitter.on(new MyListener() {
+			@Override
+			public void onMyThingHappened(MyEventPayload theThing) {
+				emitter.on(added);
+				emitter.off(removed);
+			}
+		});
+		emitter.emit(MyEvents.event_0, "on_off_during_emit");
+		assertNull("Verify listener added during emit is not called", added.counts.get(MyEvents.event_0));
+		assertEquals("Verify listener removed during emit is still called", Integer.valueOf(1), removed.counts.get(MyEvents.event_0));
+		emitter.emit(MyEvents.event_0, "on_off_during_emit");
+		assertEquals(Integer.valueOf(1), added.counts.get(MyEvents.event_0));
+		assertEquals(Integer.valueOf(1), removed.counts.get(MyEvents.event_0));
+	}
+
+	/**
+	 * Emit events on several threads while other threads register and
+	 * remove listeners, and verify that nothing fails, and that "once"
+	 * listeners are called exactly once
+	 */
+	@Test
+	public void emit_concurrent() throws InterruptedException {
+		final MyEmitter emitter = new MyEmitter();
+		final int threadCount = 4;
+		final int iterations = 20000;
+		final AtomicInteger permanentCalls = new AtomicInteger();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final AtomicBoolean stop = new AtomicBoolean();
+		final CountDownLatch start = new CountDownLatch(1);
+		emitter.on(new MyListener() {
+			@Override
+			public void onMyThingHappened(MyEventPayload theThing) {
+				permanentCalls.incrementAndGet();
+			}
+		});
+
+		final AtomicInteger[] onceCalls = new AtomicInteger[iterations];
+		Thread registrar = new Thread() {
+			@Override
+			public void run() {
+				try {
+					start.await();
+					for(int i = 0; i < iterations; i++) {
+						final AtomicInteger calls = onceCalls[i] = new AtomicInteger();
+						emitter.once(new MyListener() {
+							@Override
+							public void onMyThingHappened(MyEventPayload theThing) {
+								calls.incrementAndGet();
+							}
+						});
+						MyListener transientListener = new CountingListener();
+						emitter.on(MyEvents.event_1, transientListener);
+						emitter.off(transientListener);
+					}
+				} catch(Throwable t) {
+					error.set(t);
+				}
+			}
+		};
+		Thread[] emitters = new Thread[threadCount];
+		final AtomicInteger emitCount = new AtomicInteger();
+		for(int t = 0; t < threadCount; t++) {
+			emitters[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						while(!stop.get()) {
+							emitter.emit(MyEvents.event_0, "emit_concurrent");
+							emitCount.incrementAndGet();
+						}
+					} catch(Throwable t) {
+						error.set(t);
+					}
+				}
+			};
+			emitters[t].start();
+		}
+		registrar.start();
+		start.countDown();
+		registrar.join();
+		/* ensure the last once listener is called */
+		emitter.emit(MyEvents.event_0, "emit_concurrent");
+		emitCount.incrementAndGet();
+		stop.set(true);
+		for(Thread thread : emitters)
+			thread.join();
+
+		assertNull("Verify no errors", error.get());
+		assertEquals("Verify permanent listener called for every emit", emitCount.get(), permanentCalls.get());
+		for(int i = 0; i < iterations; i++)
+			assertEquals("Verify once listener called exactly once", 1, onceCalls[i].get());
+	}
+
 }
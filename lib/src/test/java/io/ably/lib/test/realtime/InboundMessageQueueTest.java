@@ -0,0 +1,229 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ChannelWaiter;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.DeflateRealtimeServer;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.transport.ConnectionManager;
+import io.ably.lib.transport.ITransport;
+import io.ably.lib.transport.InboundMessageQueue;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+
+/**
+ * Tests for dispatch of received messages through the inbound queue,
+ * against a local server that echoes published messages
+ */
+public class InboundMessageQueueTest {
+
+	private static final int PORT = 27337;
+	private DeflateRealtimeServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new DeflateRealtimeServer(PORT);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	private ClientOptions createOptions(int queueSize, InboundMessageQueue.OverflowPolicy policy) throws AblyException {
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.realtimeHost = "localhost";
+		opts.restHost = "localhost";
+		opts.port = PORT;
+		opts.tls = false;
+		opts.useBinaryProtocol = false;
+		opts.inboundQueueSize = queueSize;
+		opts.inboundQueueOverflowPolicy = policy;
+		return opts;
+	}
+
+	/**
+	 * Verify that messages are delivered in order to a slow subscriber, on
+	 * the dispatcher thread, with the queue depth bounded by its capacity
+	 */
+	@Test
+	public void inbound_queue_slow_subscriber() throws AblyException, InterruptedException {
+		final int messageCount = 30;
+		final int queueSize = 4;
+		AblyRealtime ably = null;
+		try {
+			ably = new AblyRealtime(createOptions(queueSize, InboundMessageQueue.OverflowPolicy.block));
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+
+			final List<Object> received = new ArrayList<Object>();
+			final List<String> threadNames = new ArrayList<String>();
+			final CountDownLatch done = new CountDownLatch(messageCount);
+			Channel channel = ably.channels.get("inbound_queue");
+			channel.subscribe(new Channel.MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					try { Thread.sleep(20); } catch(InterruptedException e) {}
+					synchronized(received) {
+						received.add(message.data);
+						threadNames.add(Thread.currentThread().getName());
+					}
+					done.countDown();
+				}
+			});
+			for(int i = 0; i < messageCount; i++)
+				channel.publish("event", "message " + i);
+
+			assertTrue("Verify all messages received", done.await(20, TimeUnit.SECONDS));
+			for(int i = 0; i < messageCount; i++) {
+				assertEquals("Verify message order", "message " + i, received.get(i));
+				assertEquals("Verify listener called on dispatcher thread", "ably-inbound-dispatcher", threadNames.get(i));
+			}
+
+			InboundMessageQueue queue = ably.connection.connectionManager.getInboundQueue();
+			assertNotNull("Verify inbound queue exists", queue);
+			assertTrue("Verify messages dispatched", queue.getDispatchedCount() >= messageCount);
+			assertTrue("Verify queue depth bounded", queue.getMaxDepth() > 0 && queue.getMaxDepth() <= queueSize);
+			assertTrue("Verify wait time recorded", queue.getMaxWaitMillis() > 0 && queue.getMeanWaitMillis() <= queue.getMaxWaitMillis());
+		} finally {
+			if(ably != null)
+				ably.close();
+		}
+	}
+
+	/**
+	 * Verify that with the disconnect policy, overflow of the queue
+	 * disconnects the connection, and that the client then reconnects
+	 */
+	@Test
+	public void inbound_queue_overflow_disconnect() throws AblyException, InterruptedException {
+		AblyRealtime ably = null;
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			ably = new AblyRealtime(createOptions(2, InboundMessageQueue.OverflowPolicy.disconnect));
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+
+			Channel channel = ably.channels.get("inbound_queue");
+			channel.subscribe(new Channel.MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					try { release.await(); } catch(InterruptedException e) {}
+				}
+			});
+			for(int i = 0; i < 10; i++)
+				channel.publish("event", "message " + i);
+
+			assertTrue("Verify disconnected state reached", connectionWaiter.waitFor(ConnectionState.disconnected, 1, 10000));
+			InboundMessageQueue queue = ably.connection.connectionManager.getInboundQueue();
+			assertTrue("Verify overflow recorded", queue.getOverflowCount() > 0);
+
+			release.countDown();
+			assertTrue("Verify connected state reached again", connectionWaiter.waitFor(ConnectionState.connected, 2, 10000));
+		} finally {
+			release.countDown();
+			if(ably != null)
+				ably.close();
+		}
+	}
+
+	/**
+	 * Verify that with the disconnect policy, once a message has been
+	 * discarded on overflow, no later message from the same transport is
+	 * processed, even once the queue has space again
+	 */
+	@Test
+	public void inbound_queue_overflow_poisons_transport() throws AblyException, InterruptedException {
+		AblyRealtime ably = null;
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			ClientOptions opts = new ClientOptions("fake.key:secret");
+			LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+			opts.transportFactory = factory;
+			opts.useBinaryProtocol = false;
+			opts.autoConnect = false;
+			opts.inboundQueueSize = 2;
+			opts.inboundQueueOverflowPolicy = InboundMessageQueue.OverflowPolicy.disconnect;
+			ably = new AblyRealtime(opts);
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			ably.connection.connect();
+			assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+
+			Channel channel = ably.channels.get("inbound_queue");
+			channel.attach();
+			new ChannelWaiter(channel).waitFor(ChannelState.attached);
+			final List<Object> received = new ArrayList<Object>();
+			channel.subscribe(new Channel.MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					synchronized(received) {
+						received.add(message.data);
+					}
+					blocked.countDown();
+					try { release.await(); } catch(InterruptedException e) {}
+				}
+			});
+
+			ConnectionManager connectionManager = ably.connection.connectionManager;
+			InboundMessageQueue queue = connectionManager.getInboundQueue();
+			ITransport transport = factory.getLastTransport();
+			/* hold the lock, so that the transport is not superseded until the test has finished offering */
+			synchronized(connectionManager) {
+				connectionManager.onMessage(transport, message(channel, 0));
+				assertTrue("Verify listener called", blocked.await(10, TimeUnit.SECONDS));
+				/* fill the queue, then overflow it */
+				for(int i = 1; i <= 3; i++)
+					connectionManager.onMessage(transport, message(channel, i));
+				assertEquals("Verify overflow recorded", 1, queue.getOverflowCount());
+
+				/* once the queue has drained, later messages are still discarded */
+				release.countDown();
+				for(int i = 0; i < 100 && queue.getDepth() > 0; i++)
+					Thread.sleep(10);
+				assertEquals("Verify queue drained", 0, queue.getDepth());
+				for(int i = 4; i < 10; i++)
+					connectionManager.onMessage(transport, message(channel, i));
+				Thread.sleep(100);
+			}
+
+			assertTrue("Verify disconnected state reached", connectionWaiter.waitFor(ConnectionState.disconnected, 1, 10000));
+			assertEquals("Verify overflow recorded once", 1, queue.getOverflowCount());
+			synchronized(received) {
+				assertEquals("Verify no message processed after overflow", 1, received.size());
+				assertEquals("message 0", received.get(0));
+			}
+		} finally {
+			release.countDown();
+			if(ably != null)
+				ably.close();
+		}
+	}
+
+	private static ProtocolMessage message(Channel channel, int i) {
+		ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, channel.name);
+		msg.messages = new Message[] { new Message("event", "message " + i) };
+		msg.connectionSerial = (long)i;
+		return msg;
+	}
+}
@@ -0,0 +1,144 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.util.LatencyHistogram;
+
+/**
+ * Tests for measurement of connection round-trip times
+ */
+public class LatencyTest {
+
+	private static AblyRealtime createClient(LoopbackTransportFactory factory, long probeInterval) throws AblyException {
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = factory;
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		opts.latencyProbeInterval = probeInterval;
+		AblyRealtime ably = new AblyRealtime(opts);
+		ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+		ably.connection.connect();
+		assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+		return ably;
+	}
+
+	private static class PingListener implements CompletionListener {
+		final AtomicInteger successes = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch done;
+		PingListener(int expected) { done = new CountDownLatch(expected); }
+		@Override
+		public void onSuccess() { successes.incrementAndGet(); done.countDown(); }
+		@Override
+		public void onError(ErrorInfo reason) { failures.incrementAndGet(); done.countDown(); }
+	}
+
+	/**
+	 * Verify percentiles against a known distribution
+	 */
+	@Test
+	public void latency_histogram_percentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int ms = 10000; ms >= 1; ms--)
+			histogram.record(ms * 1000000L);
+		LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+		assertEquals("Verify count", 10000, snapshot.count);
+		assertEquals("Verify min", 1.0, snapshot.min, 0);
+		assertEquals("Verify max", 10000.0, snapshot.max, 0);
+		assertEquals("Verify mean", 5000.5, snapshot.mean, 0.001);
+		assertEquals("Verify last", 1.0, snapshot.last, 0);
+		assertEquals("Verify p50", 5000, snapshot.p50, 5000 / 32.0);
+		assertEquals("Verify p90", 9000, snapshot.p90, 9000 / 32.0);
+		assertEquals("Verify p99", 9900, snapshot.p99, 9900 / 32.0);
+
+		histogram.reset();
+		assertEquals("Verify reset", 0, histogram.getSnapshot().count);
+		assertEquals("Verify empty percentile", 0, histogram.getPercentile(0.5), 0);
+	}
+
+	/**
+	 * Verify that each ping is matched to its response and recorded,
+	 * without a thread per ping
+	 */
+	@Test
+	public void latency_ping_records_rtt() throws AblyException, InterruptedException {
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		AblyRealtime ably = createClient(factory, 0);
+		try {
+			int pingCount = 200;
+			int threadsBefore = Thread.activeCount();
+			PingListener listener = new PingListener(pingCount);
+			for(int i = 0; i < pingCount; i++)
+				ably.connection.ping(listener);
+			assertTrue("Verify no thread per ping", Thread.activeCount() < threadsBefore + 10);
+			assertTrue("Verify all pings completed", listener.done.await(10, TimeUnit.SECONDS));
+			assertEquals("Verify all pings succeeded", pingCount, listener.successes.get());
+
+			LatencyHistogram.Snapshot snapshot = ably.connection.getLatency().getSnapshot();
+			assertEquals("Verify round-trip times recorded", pingCount, snapshot.count);
+			assertTrue("Verify percentiles ordered", snapshot.p50 <= snapshot.p99 && snapshot.p99 <= snapshot.max);
+			assertEquals("Verify no timeouts", 0, snapshot.timeouts);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that the periodic probe records samples while connected,
+	 * and stops when the connection is closed
+	 */
+	@Test
+	public void latency_probe() throws AblyException, InterruptedException {
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		AblyRealtime ably = createClient(factory, 20);
+		LatencyHistogram histogram = ably.connection.getLatency();
+		ConnectionWaiter closeWaiter = new ConnectionWaiter(ably.connection);
+		try {
+			for(int i = 0; i < 200 && histogram.getCount() < 5; i++)
+				Thread.sleep(10);
+			assertTrue("Verify probes recorded", histogram.getCount() >= 5);
+		} finally {
+			ably.close();
+		}
+		assertTrue("Verify closed state reached", closeWaiter.waitFor(ConnectionState.closed, 1, 10000));
+		long count = histogram.getCount();
+		Thread.sleep(200);
+		assertEquals("Verify probes stopped", count, histogram.getCount());
+	}
+
+	/**
+	 * Verify that a ping with no response fails, and is counted as a timeout
+	 */
+	@Test
+	public void latency_ping_timeout() throws AblyException, InterruptedException {
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		factory.setAnswerHeartbeats(false);
+		AblyRealtime ably = createClient(factory, 0);
+		try {
+			PingListener listener = new PingListener(1);
+			ably.connection.ping(listener);
+			assertTrue("Verify ping completed", listener.done.await(10, TimeUnit.SECONDS));
+			assertEquals("Verify ping failed", 1, listener.failures.get());
+			LatencyHistogram.Snapshot snapshot = ably.connection.getLatency().getSnapshot();
+			assertEquals("Verify timeout recorded", 1, snapshot.timeouts);
+			assertEquals("Verify no sample recorded", 0, snapshot.count);
+		} finally {
+			ably.close();
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.transport.ConnectionManager;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.PresenceMessage;
+import io.ably.lib.types.ProtocolMessage;
+
+/**
+ * Tests for the coalescing of messages queued while not connected
+ */
+public class MessageBatchingTest {
+
+	private static class CountingListener implements CompletionListener {
+		final AtomicInteger successes = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch done;
+		CountingListener(int expected) { done = new CountDownLatch(expected); }
+		@Override
+		public void onSuccess() { successes.incrementAndGet(); done.countDown(); }
+		@Override
+		public void onError(ErrorInfo reason) { failures.incrementAndGet(); done.countDown(); }
+	}
+
+	private static AblyRealtime createClient(LoopbackTransportFactory factory) throws AblyException {
+		factory.setHoldConnect(true);
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = factory;
+		opts.useBinaryProtocol = false;
+		return new AblyRealtime(opts);
+	}
+
+	private static void sendMessage(ConnectionManager connectionManager, String channel, String data, CompletionListener listener) throws AblyException {
+		ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, channel);
+		msg.messages = new Message[] { new Message("event", data) };
+		connectionManager.send(msg, true, listener);
+	}
+
+	private static void sendPresence(ConnectionManager connectionManager, String channel, String clientId, CompletionListener listener) throws AblyException {
+		ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.presence, channel);
+		msg.presence = new PresenceMessage[] { new PresenceMessage(PresenceMessage.Action.enter, clientId) };
+		connectionManager.send(msg, true, listener);
+	}
+
+	/**
+	 * Connect, and wait until the given number of messages and presence
+	 * messages have been sent
+	 * @return the MESSAGE and PRESENCE protocol messages sent
+	 */
+	private static List<ProtocolMessage> connectAndCollect(LoopbackTransportFactory factory, CountingListener listener) throws InterruptedException {
+		for(int i = 0; i < 500 && factory.getLastTransport() == null; i++)
+			Thread.sleep(10);
+		LoopbackTransportFactory.LoopbackTransport transport = factory.getLastTransport();
+		transport.completeConnect();
+		assertTrue("Verify all listeners called", listener.done.await(10, TimeUnit.SECONDS));
+		List<ProtocolMessage> sent = new ArrayList<ProtocolMessage>();
+		for(ProtocolMessage msg : transport.getSentMessages()) {
+			if(msg.action == ProtocolMessage.Action.message || msg.action == ProtocolMessage.Action.presence)
+				sent.add(msg);
+		}
+		return sent;
+	}
+
+	/**
+	 * Verify that presence messages are merged in order
+	 */
+	@Test
+	public void batching_merge_presence() {
+		ProtocolMessage dest = new ProtocolMessage(ProtocolMessage.Action.presence, "merge_presence");
+		dest.presence = new PresenceMessage[] { new PresenceMessage(PresenceMessage.Action.enter, "client0") };
+		ProtocolMessage src = new ProtocolMessage(ProtocolMessage.Action.presence, new String("merge_presence"));
+		src.presence = new PresenceMessage[] { new PresenceMessage(PresenceMessage.Action.enter, "client1"), new PresenceMessage(PresenceMessage.Action.leave, "client2") };
+		assertTrue("Verify messages merged", ProtocolMessage.mergeTo(dest, src));
+		assertEquals("Verify merged count", 3, dest.presence.length);
+		for(int i = 0; i < 3; i++)
+			assertEquals("Verify merged order", "client" + i, dest.presence[i].clientId);
+	}
+
+	/**
+	 * Verify that a backlog of messages and presence messages for several
+	 * channels is sent in a few protocol messages, preserving the order on
+	 * each channel, and that every publish is acknowledged
+	 */
+	@Test
+	public void batching_backlog_by_channel() throws AblyException, InterruptedException {
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, true);
+		AblyRealtime ably = createClient(factory);
+		try {
+			ConnectionManager connectionManager = ably.connection.connectionManager;
+			int perChannel = 300;
+			String[] channels = new String[] { "batch_a", "batch_b", "batch_c" };
+			CountingListener listener = new CountingListener(perChannel * channels.length + 10);
+			for(int i = 0; i < perChannel; i++) {
+				for(String channel : channels)
+					sendMessage(connectionManager, channel, channel + ":" + i, listener);
+			}
+			for(int i = 0; i < 10; i++)
+				sendPresence(connectionManager, "batch_a", "client" + i, listener);
+
+			List<ProtocolMessage> sent = connectAndCollect(factory, listener);
+			assertEquals("Verify all publishes succeeded", perChannel * channels.length + 10, listener.successes.get());
+			assertEquals("Verify one protocol message per channel and action", 4, sent.size());
+
+			Map<String, Integer> next = new HashMap<String, Integer>();
+			int presenceCount = 0;
+			for(ProtocolMessage msg : sent) {
+				if(msg.action == ProtocolMessage.Action.presence) {
+					for(PresenceMessage presence : msg.presence)
+						assertEquals("Verify presence order", "client" + presenceCount++, presence.clientId);
+					continue;
+				}
+				for(Message message : msg.messages) {
+					Integer expected = next.get(msg.channel);
+					if(expected == null)
+						expected = 0;
+					assertEquals("Verify order on channel", msg.channel + ":" + expected, message.data);
+					next.put(msg.channel, expected + 1);
+				}
+			}
+			assertEquals("Verify all presence messages sent", 10, presenceCount);
+			for(String channel : channels)
+				assertEquals("Verify all messages sent", Integer.valueOf(perChannel), next.get(channel));
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that a backlog larger than the maximum message size is split,
+	 * with each protocol message within the limit
+	 */
+	@Test
+	public void batching_split_oversized() throws AblyException, InterruptedException {
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, true);
+		AblyRealtime ably = createClient(factory);
+		try {
+			ConnectionManager connectionManager = ably.connection.connectionManager;
+			int messageCount = 40;
+			int messageSize = 10 * 1024;
+			char[] payload = new char[messageSize - "event".length()];
+			CountingListener listener = new CountingListener(messageCount);
+			for(int i = 0; i < messageCount; i++) {
+				payload[0] = (char)('A' + i);
+				sendMessage(connectionManager, "batch_split", new String(payload), listener);
+			}
+
+			List<ProtocolMessage> sent = connectAndCollect(factory, listener);
+			assertEquals("Verify all publishes succeeded", messageCount, listener.successes.get());
+			int perMessage = (int)(Defaults.maxMessageSize / messageSize);
+			assertEquals("Verify backlog split", (messageCount + perMessage - 1) / perMessage, sent.size());
+			int index = 0;
+			for(ProtocolMessage msg : sent) {
+				assertTrue("Verify within size limit", msg.messages.length * (long)messageSize <= Defaults.maxMessageSize);
+				for(Message message : msg.messages)
+					assertEquals("Verify order", (char)('A' + index++), ((String)message.data).charAt(0));
+			}
+			assertEquals("Verify all messages sent", messageCount, index);
+		} finally {
+			ably.close();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoWSD.WebSocketFrame.CloseCode;
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.FakeRealtimeServer;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.transport.NioWebSocketTransport;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+
+/**
+ * Tests for the shared-selector websocket transport, against a local server
+ */
+public class NioWebSocketTransportTest {
+
+	private static final int PORT = 27335;
+	private FakeRealtimeServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new FakeRealtimeServer(PORT);
+		server.startAndWait();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	private ClientOptions createOptions() throws AblyException {
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.realtimeHost = "localhost";
+		opts.restHost = "localhost";
+		opts.port = PORT;
+		opts.tls = false;
+		opts.useBinaryProtocol = false;
+		opts.transportFactory = new NioWebSocketTransport.Factory();
+		return opts;
+	}
+
+	private static int countSelectorThreads() {
+		int count = 0;
+		for(Thread thread : Thread.getAllStackTraces().keySet()) {
+			if(thread.getName().startsWith("ably-nio-selector-"))
+				++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Connect many clients, and verify that they all connect and close
+	 * while sharing a bounded number of I/O threads
+	 */
+	@Test
+	public void nio_connect_many() throws AblyException {
+		int clientCount = 50;
+		AblyRealtime[] clients = new AblyRealtime[clientCount];
+		ConnectionWaiter[] waiters = new ConnectionWaiter[clientCount];
+		try {
+			for(int i = 0; i < clientCount; i++) {
+				clients[i] = new AblyRealtime(createOptions());
+				waiters[i] = new ConnectionWaiter(clients[i].connection);
+			}
+			for(int i = 0; i < clientCount; i++)
+				assertTrue("Verify connected state reached for client " + i, waiters[i].waitFor(ConnectionState.connected, 1, 10000));
+
+			assertEquals("Verify all connections open on server", clientCount, server.getOpenCount());
+			int selectorThreads = countSelectorThreads();
+			assertTrue("Verify selector threads are bounded", selectorThreads > 0 && selectorThreads <= Defaults.NIO_SELECTOR_THREADS);
+
+			for(int i = 0; i < clientCount; i++)
+				clients[i].close();
+			for(int i = 0; i < clientCount; i++)
+				assertTrue("Verify closed state reached for client " + i, waiters[i].waitFor(ConnectionState.closed, 1, 10000));
+		} finally {
+			for(AblyRealtime client : clients) {
+				if(client != null)
+					client.close();
+			}
+		}
+	}
+
+	/**
+	 * Verify that a connection dropped by the server results in the
+	 * disconnected state, and that the client then reconnects
+	 */
+	@Test
+	public void nio_server_disconnect() throws AblyException {
+		AblyRealtime ably = null;
+		try {
+			ably = new AblyRealtime(createOptions());
+			ConnectionWaiter waiter = new ConnectionWaiter(ably.connection);
+			assertTrue("Verify connected state reached", waiter.waitFor(ConnectionState.connected, 1, 10000));
+
+			server.closeAll(CloseCode.GoingAway);
+			assertTrue("Verify disconnected state reached", waiter.waitFor(ConnectionState.disconnected, 1, 10000));
+			assertTrue("Verify connected state reached again", waiter.waitFor(ConnectionState.connected, 2, 10000));
+		} finally {
+			if(ably != null)
+				ably.close();
+		}
+	}
+}
@@ -0,0 +1,460 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ChannelWaiter;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.transport.ConnectionManager;
+import io.ably.lib.transport.OfflineMessageQueue;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+
+/**
+ * Tests for the limits and overflow policies of the queues that hold
+ * messages published before they can be sent
+ */
+public class OfflineQueueTest {
+
+	private static class CountingListener implements CompletionListener {
+		final AtomicInteger successes = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch done;
+		CountingListener(int expected) { done = new CountDownLatch(expected); }
+		@Override
+		public void onSuccess() { successes.incrementAndGet(); done.countDown(); }
+		@Override
+		public void onError(ErrorInfo reason) { failures.incrementAndGet(); done.countDown(); }
+	}
+
+	private static AblyRealtime createClient(LoopbackTransportFactory factory, int maxMessages, long maxBytes, OfflineMessageQueue.OverflowPolicy policy, long ttl) throws AblyException {
+		factory.setHoldConnect(true);
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = factory;
+		opts.useBinaryProtocol = false;
+		opts.offlineQueueMaxMessages = maxMessages;
+		opts.offlineQueueMaxBytes = maxBytes;
+		opts.offlineQueueOverflowPolicy = policy;
+		opts.offlineQueueTtl = ttl;
+		return new AblyRealtime(opts);
+	}
+
+	private static void send(ConnectionManager connectionManager, String data, CompletionListener listener) throws AblyException {
+		ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, "offline_queue");
+		msg.messages = new Message[] { new Message("event", data) };
+		connectionManager.awaitQueueSpace(msg);
+		connectionManager.send(msg, true, listener);
+	}
+
+	private static void waitForTransport(LoopbackTransportFactory factory) throws InterruptedException {
+		for(int i = 0; i < 500 && factory.getLastTransport() == null; i++)
+			Thread.sleep(10);
+	}
+
+	/**
+	 * Verify that with the fail policy, messages beyond the limit fail
+	 * immediately, and the queued messages are sent once connected
+	 */
+	@Test
+	public void offline_queue_fail() throws AblyException, InterruptedException {
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		AblyRealtime ably = createClient(factory, 5, 0, OfflineMessageQueue.OverflowPolicy.fail, 0);
+		try {
+			ConnectionManager connectionManager = ably.connection.connectionManager;
+			OfflineMessageQueue queue = connectionManager.getOfflineQueue();
+			CountingListener listener = new CountingListener(8);
+			for(int i = 0; i < 8; i++)
+				send(connectionManager, "message " + i, listener);
+
+			assertEquals("Verify excess messages failed", 3, listener.failures.get());
+			assertEquals("Verify queue depth", 5, queue.getMessageCount());
+			assertEquals("Verify rejected count", 3, queue.getRejectedCount());
+			assertTrue("Verify byte count", queue.getByteCount() > 0);
+
+			waitForTransport(factory);
+			factory.getLastTransport().completeConnect();
+			assertTrue("Verify all listeners called", listener.done.await(10, TimeUnit.SECONDS));
+			assertEquals("Verify queued messages sent", 5, listener.successes.get());
+			assertEquals("Verify queue empty", 0, queue.getMessageCount());
+			assertEquals("Verify queue bytes released", 0, queue.getByteCount());
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that with the dropOldest policy and a byte limit, the oldest
+	 * messages in a channel's queue are discarded to make space
+	 */
+	@Test
+	public void offline_queue_drop_oldest() throws AblyException, InterruptedException {
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		AblyRealtime ably = createClient(factory, 0, 3 * 1024, OfflineMessageQueue.OverflowPolicy.dropOldest, 0);
+		try {
+			Channel channel = ably.channels.get("offline_queue");
+			OfflineMessageQueue queue = channel.getOfflineQueue();
+			char[] payload = new char[900];
+			final StringBuilder order = new StringBuilder();
+			CountDownLatch done = new CountDownLatch(5);
+			for(int i = 0; i < 5; i++) {
+				payload[0] = (char)('0' + i);
+				final String data = new String(payload);
+				final CountDownLatch latch = done;
+				channel.publish("event", data, new CompletionListener() {
+					@Override
+					public void onSuccess() { synchronized(order) { order.append('+').append(data.charAt(0)); } latch.countDown(); }
+					@Override
+					public void onError(ErrorInfo reason) { synchronized(order) { order.append('-').append(data.charAt(0)); } latch.countDown(); }
+				});
+			}
+			assertEquals("Verify oldest messages dropped", "-0-1", order.toString());
+			assertEquals("Verify queue depth", 3, queue.getMessageCount());
+			assertEquals("Verify dropped count", 2, queue.getDroppedCount());
+			assertTrue("Verify byte limit respected", queue.getByteCount() <= 3 * 1024);
+
+			waitForTransport(factory);
+			factory.getLastTransport().completeConnect();
+			assertTrue("Verify all listeners called", done.await(10, TimeUnit.SECONDS));
+			assertEquals("Verify remaining messages sent in order", "-0-1+2+3+4", order.toString());
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that with the block policy, a publisher waits while the queue
+	 * is full, and continues once the connection is established
+	 */
+	@Test
+	public void offline_queue_block() throws AblyException, InterruptedException {
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		AblyRealtime ably = createClient(factory, 2, 0, OfflineMessageQueue.OverflowPolicy.block, 0);
+		try {
+			final ConnectionManager connectionManager = ably.connection.connectionManager;
+			OfflineMessageQueue queue = connectionManager.getOfflineQueue();
+			final CountingListener listener = new CountingListener(4);
+			Thread publisher = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int i = 0; i < 4; i++)
+							send(connectionManager, "message " + i, listener);
+					} catch(AblyException e) {}
+				}
+			};
+			publisher.start();
+			publisher.join(500);
+			assertTrue("Verify publisher blocked", publisher.isAlive());
+			assertEquals("Verify queue depth", 2, queue.getMessageCount());
+			assertTrue("Verify wait recorded", queue.getWaitCount() > 0);
+
+			waitForTransport(factory);
+			factory.getLastTransport().completeConnect();
+			publisher.join(10000);
+			assertFalse("Verify publisher unblocked", publisher.isAlive());
+			assertTrue("Verify all listeners called", listener.done.await(10, TimeUnit.SECONDS));
+			assertEquals("Verify all messages sent", 4, listener.successes.get());
+			assertEquals("Verify peak depth bounded", 2, queue.getPeakMessageCount());
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that queued messages expire after the ttl
+	 */
+	@Test
+	public void offline_queue_ttl() throws AblyException, InterruptedException {
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		AblyRealtime ably = createClient(factory, 0, 0, OfflineMessageQueue.OverflowPolicy.fail, 200);
+		try {
+			ConnectionManager connectionManager = ably.connection.connectionManager;
+			OfflineMessageQueue queue = connectionManager.getOfflineQueue();
+			CountingListener expiring = new CountingListener(1);
+			send(connectionManager, "message 0", expiring);
+			Thread.sleep(300);
+
+			CountingListener fresh = new CountingListener(1);
+			ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, "other_channel");
+			msg.messages = new Message[] { new Message("event", "message 1") };
+			connectionManager.send(msg, true, fresh);
+			assertEquals("Verify expired message failed", 1, expiring.failures.get());
+			assertEquals("Verify expired count", 1, queue.getExpiredCount());
+			assertEquals("Verify queue depth", 1, queue.getMessageCount());
+
+			waitForTransport(factory);
+			factory.getLastTransport().completeConnect();
+			assertTrue("Verify listener called", fresh.done.await(10, TimeUnit.SECONDS));
+			assertEquals("Verify unexpired message sent", 1, fresh.successes.get());
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that messages queued in a journal by one client, and not
+	 * sent before it is closed, are not read by another client while the
+	 * first is open, and have their listeners failed on close, but are sent
+	 * by a later client using the same journal, and are then removed from
+	 * the journal
+	 */
+	@Test
+	public void offline_queue_journal_restart() throws AblyException, InterruptedException, IOException {
+		File journal = File.createTempFile("ably-journal", ".dat");
+		try {
+			LoopbackTransportFactory factory1 = new LoopbackTransportFactory(true, false);
+			ClientOptions opts = new ClientOptions("fake.key:secret");
+			opts.transportFactory = factory1;
+			opts.useBinaryProtocol = false;
+			opts.offlineQueueJournal = journal.getPath();
+			factory1.setHoldConnect(true);
+			AblyRealtime ably1 = new AblyRealtime(opts);
+			CountingListener listener = new CountingListener(5);
+			try {
+				ConnectionManager connectionManager = ably1.connection.connectionManager;
+				for(int i = 0; i < 5; i++)
+					send(connectionManager, "message " + i, listener);
+				assertEquals("Verify queue depth", 5, connectionManager.getOfflineQueue().getMessageCount());
+
+				/* the journal is in use, so another queue is held on the heap */
+				OfflineMessageQueue other = new OfflineMessageQueue(new Object(), opts, journal);
+				assertEquals("Verify journal not shared", 0, other.getMessageCount());
+			} finally {
+				ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably1.connection);
+				ably1.close();
+				assertTrue("Verify closed state reached", connectionWaiter.waitFor(ConnectionState.closed, 1, 10000));
+			}
+			assertTrue("Verify listeners called on close", listener.done.await(5, TimeUnit.SECONDS));
+			assertEquals("Verify journaled messages failed on close", 5, listener.failures.get());
+			assertEquals("Verify queue emptied on close", 0, ably1.connection.connectionManager.getOfflineQueue().getMessageCount());
+
+			/* a new client recovers and sends the journaled messages */
+			LoopbackTransportFactory factory2 = new LoopbackTransportFactory(true, true);
+			opts.transportFactory = factory2;
+			AblyRealtime ably2 = new AblyRealtime(opts);
+			try {
+				List<String> sent = new ArrayList<String>();
+				for(int i = 0; i < 500 && sent.size() < 5; i++) {
+					Thread.sleep(10);
+					sent.clear();
+					if(factory2.getLastTransport() == null)
+						continue;
+					for(ProtocolMessage msg : factory2.getLastTransport().getSentMessages()) {
+						if(msg.action != ProtocolMessage.Action.message)
+							continue;
+						for(Message message : msg.messages)
+							sent.add((String)message.data);
+					}
+				}
+				assertEquals("Verify journaled messages sent in order", "[message 0, message 1, message 2, message 3, message 4]", sent.toString());
+				assertEquals("Verify queue empty", 0, ably2.connection.connectionManager.getOfflineQueue().getMessageCount());
+			} finally {
+				ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably2.connection);
+				ably2.close();
+				assertTrue("Verify closed state reached", connectionWaiter.waitFor(ConnectionState.closed, 1, 10000));
+			}
+
+			Object lock = new Object();
+			OfflineMessageQueue reopened = new OfflineMessageQueue(lock, opts, journal);
+			assertEquals("Verify journal empty", 0, reopened.getMessageCount());
+			synchronized(lock) {
+				reopened.close(null);
+			}
+		} finally {
+			journal.delete();
+		}
+	}
+
+	private static List<String> sentData(LoopbackTransportFactory factory, int expected) throws InterruptedException {
+		List<String> sent = new ArrayList<String>();
+		for(int i = 0; i < 500 && sent.size() < expected; i++) {
+			Thread.sleep(10);
+			sent.clear();
+			if(factory.getLastTransport() == null)
+				continue;
+			for(ProtocolMessage msg : factory.getLastTransport().getSentMessages()) {
+				if(msg.action != ProtocolMessage.Action.message)
+					continue;
+				for(Message message : msg.messages)
+					sent.add((String)message.data);
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Verify that journaled messages that were sent, but not acknowledged,
+	 * before a client stopped remain in the journal and are sent again by a
+	 * later client, and are removed once acknowledged
+	 */
+	@Test
+	public void offline_queue_journal_unacked() throws AblyException, InterruptedException, IOException {
+		File journal = File.createTempFile("ably-journal", ".dat");
+		try {
+			/* a transport that does not acknowledge messages */
+			LoopbackTransportFactory factory1 = new LoopbackTransportFactory(false, true);
+			ClientOptions opts = new ClientOptions("fake.key:secret");
+			opts.transportFactory = factory1;
+			opts.useBinaryProtocol = false;
+			opts.offlineQueueJournal = journal.getPath();
+			factory1.setHoldConnect(true);
+			AblyRealtime ably1 = new AblyRealtime(opts);
+			CountingListener listener = new CountingListener(5);
+			try {
+				ConnectionManager connectionManager = ably1.connection.connectionManager;
+				for(int i = 0; i < 5; i++)
+					send(connectionManager, "message " + i, listener);
+				waitForTransport(factory1);
+				factory1.getLastTransport().completeConnect();
+				assertEquals("Verify journaled messages sent", 5, sentData(factory1, 5).size());
+				assertEquals("Verify queue empty", 0, connectionManager.getOfflineQueue().getMessageCount());
+			} finally {
+				ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably1.connection);
+				ably1.close();
+				assertTrue("Verify closed state reached", connectionWaiter.waitFor(ConnectionState.closed, 1, 10000));
+			}
+			assertEquals("Verify not acknowledged", 0, listener.successes.get());
+
+			/* the unacknowledged messages are still in the journal */
+			Object lock = new Object();
+			OfflineMessageQueue reopened = new OfflineMessageQueue(lock, opts, journal);
+			assertEquals("Verify unacknowledged messages retained", 5, reopened.getMessageCount());
+			synchronized(lock) {
+				reopened.close(null);
+			}
+
+			/* a new client sends them again */
+			LoopbackTransportFactory factory2 = new LoopbackTransportFactory(true, true);
+			opts.transportFactory = factory2;
+			AblyRealtime ably2 = new AblyRealtime(opts);
+			try {
+				assertEquals("Verify unacknowledged messages sent again in order",
+						"[message 0, message 1, message 2, message 3, message 4]", sentData(factory2, 5).toString());
+			} finally {
+				ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably2.connection);
+				ably2.close();
+				assertTrue("Verify closed state reached", connectionWaiter.waitFor(ConnectionState.closed, 1, 10000));
+			}
+
+			reopened = new OfflineMessageQueue(lock, opts, journal);
+			assertEquals("Verify acknowledged messages removed", 0, reopened.getMessageCount());
+			synchronized(lock) {
+				reopened.close(null);
+			}
+		} finally {
+			journal.delete();
+		}
+	}
+
+	/**
+	 * Verify that with the block policy, a publisher waiting for space in
+	 * the connection's queue does not hold the lock of its channel, and that
+	 * a listener that publishes, called on a library thread, does not wait
+	 */
+	@Test
+	public void offline_queue_block_no_lock_held() throws AblyException, InterruptedException {
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = factory;
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		opts.offlineQueueMaxMessages = 1;
+		opts.offlineQueueOverflowPolicy = OfflineMessageQueue.OverflowPolicy.block;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			ably.connection.connect();
+			assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+			final Channel channel = ably.channels.get("offline_queue");
+			channel.attach();
+			new ChannelWaiter(channel).waitFor(ChannelState.attached);
+
+			/* lose the transport, and hold the reconnection */
+			final ConnectionManager connectionManager = ably.connection.connectionManager;
+			LoopbackTransportFactory.LoopbackTransport lost = factory.getLastTransport();
+			factory.setHoldConnect(true);
+			connectionManager.onTransportUnavailable(lost, null, new ErrorInfo("Transport lost", 80003));
+			for(int i = 0; i < 500 && factory.getLastTransport() == lost; i++)
+				Thread.sleep(10);
+			LoopbackTransportFactory.LoopbackTransport transport = factory.getLastTransport();
+			assertEquals(ConnectionState.connecting, ably.connection.state);
+
+			/* fill the queue, and publish on the channel */
+			final CountingListener listener = new CountingListener(2);
+			send(connectionManager, "message 0", listener);
+			Thread publisher = new Thread() {
+				@Override
+				public void run() {
+					try {
+						channel.publish("event", "message 1", listener);
+					} catch(AblyException e) {}
+				}
+			};
+			publisher.start();
+			publisher.join(500);
+			assertTrue("Verify publisher blocked", publisher.isAlive());
+
+			/* the channel's lock is free */
+			final CountDownLatch locked = new CountDownLatch(1);
+			new Thread() {
+				@Override
+				public void run() {
+					synchronized(channel) {
+						locked.countDown();
+					}
+				}
+			}.start();
+			assertTrue("Verify channel lock not held by publisher", locked.await(5, TimeUnit.SECONDS));
+
+			/* a listener called on the transport's thread publishes without
+			 * waiting, and its publish fails rather than exceed the limits */
+			final CountDownLatch published = new CountDownLatch(1);
+			final CountingListener rejected = new CountingListener(1);
+			channel.subscribe(new Channel.MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					try {
+						channel.publish("event", "message 2", rejected);
+						published.countDown();
+					} catch(AblyException e) {}
+				}
+			});
+			ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, channel.name);
+			msg.messages = new Message[] { new Message("event", "received") };
+			transport.deliver(msg);
+			assertTrue("Verify listener did not wait", published.await(5, TimeUnit.SECONDS));
+			assertTrue("Verify listener's publish failed", rejected.done.await(5, TimeUnit.SECONDS));
+			assertEquals("Verify listener's publish failed", 1, rejected.failures.get());
+			assertEquals("Verify queue within limits", 1, connectionManager.getOfflineQueue().getMessageCount());
+			assertTrue("Verify publisher still blocked", publisher.isAlive());
+
+			transport.completeConnect();
+			publisher.join(10000);
+			assertFalse("Verify publisher unblocked", publisher.isAlive());
+			assertTrue("Verify all listeners called", listener.done.await(10, TimeUnit.SECONDS));
+			assertEquals("Verify all messages sent", 2, listener.successes.get());
+		} finally {
+			ably.close();
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.transport.ConnectionManager;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+
+/**
+ * Tests for concurrent publishing through the connection's outbound queue,
+ * using a transport that does not use the network
+ */
+public class OutboundQueueTest {
+
+	private static final int MESSAGES_PER_RUN = 40000;
+
+	/**
+	 * Publish from increasing numbers of threads, reporting the throughput
+	 * for each, and verify that every message is sent exactly once with
+	 * contiguous serials in the order in which they reach the transport
+	 */
+	@Test
+	public void outbound_queue_concurrent_publishers() throws AblyException, InterruptedException {
+		for(int threadCount : new int[] { 1, 2, 4, 8, 16, 32 }) {
+			LoopbackTransportFactory factory = new LoopbackTransportFactory(true, true);
+			ClientOptions opts = new ClientOptions("fake.key:secret");
+			opts.transportFactory = factory;
+			opts.useBinaryProtocol = false;
+			opts.autoConnect = false;
+			AblyRealtime ably = new AblyRealtime(opts);
+			try {
+				ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+				ably.connection.connect();
+				assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+				final ConnectionManager connectionManager = ably.connection.connectionManager;
+				final int perThread = MESSAGES_PER_RUN / threadCount;
+				final int total = perThread * threadCount;
+				final AtomicInteger errors = new AtomicInteger();
+				final CountDownLatch acked = new CountDownLatch(total);
+				final CompletionListener listener = new CompletionListener() {
+					@Override
+					public void onSuccess() { acked.countDown(); }
+					@Override
+					public void onError(ErrorInfo reason) { errors.incrementAndGet(); acked.countDown(); }
+				};
+				final CountDownLatch start = new CountDownLatch(1);
+				Thread[] publishers = new Thread[threadCount];
+				for(int i = 0; i < threadCount; i++) {
+					final int publisher = i;
+					publishers[i] = new Thread() {
+						@Override
+						public void run() {
+							try {
+								start.await();
+								for(int j = 0; j < perThread; j++) {
+									ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, "outbound_queue");
+									msg.messages = new Message[] { new Message("event", publisher + ":" + j) };
+									connectionManager.send(msg, true, listener);
+								}
+							} catch(Throwable t) {
+								errors.incrementAndGet();
+							}
+						}
+					};
+					publishers[i].start();
+				}
+
+				long startTime = System.nanoTime();
+				start.countDown();
+				for(Thread publisher : publishers)
+					publisher.join();
+				assertTrue("Verify all messages acknowledged", acked.await(30, TimeUnit.SECONDS));
+				long elapsed = System.nanoTime() - startTime;
+				System.out.println("outbound_queue_concurrent_publishers: threads = " + threadCount
+						+ "; messages = " + total
+						+ "; msgs/s = " + (long)(total * 1e9 / elapsed));
+				assertEquals("Verify no errors", 0, errors.get());
+
+				/* verify the serials, in transport order */
+				List<ProtocolMessage> sent = factory.getLastTransport().getSentMessages();
+				Set<String> payloads = new HashSet<String>();
+				long expectedSerial = 0;
+				for(ProtocolMessage msg : sent) {
+					if(msg.action != ProtocolMessage.Action.message)
+						continue;
+					assertEquals("Verify contiguous msgSerial", Long.valueOf(expectedSerial++), msg.msgSerial);
+					assertTrue("Verify message sent once", payloads.add((String)msg.messages[0].data));
+				}
+				assertEquals("Verify all messages sent", total, payloads.size());
+			} finally {
+				ably.close();
+			}
+		}
+	}
+
+	/**
+	 * With 10k messages in flight, acknowledge them one at a time, then
+	 * in ranges, reporting the time taken, and verify that each listener
+	 * is called once with the expected outcome
+	 */
+	@Test
+	public void outbound_queue_pending_acks() throws AblyException, InterruptedException {
+		final int inFlight = 10000;
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(false, false);
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = factory;
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			ably.connection.connect();
+			assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+			ConnectionManager connectionManager = ably.connection.connectionManager;
+			LoopbackTransportFactory.LoopbackTransport transport = factory.getLastTransport();
+
+			for(int round = 0; round < 2; round++) {
+				boolean singly = (round == 0);
+				long firstSerial = round * inFlight;
+				final AtomicInteger successes = new AtomicInteger();
+				final AtomicInteger failures = new AtomicInteger();
+				final CountDownLatch done = new CountDownLatch(inFlight);
+				CompletionListener listener = new CompletionListener() {
+					@Override
+					public void onSuccess() { successes.incrementAndGet(); done.countDown(); }
+					@Override
+					public void onError(ErrorInfo reason) { failures.incrementAndGet(); done.countDown(); }
+				};
+				for(int i = 0; i < inFlight; i++) {
+					ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, "pending_acks");
+					msg.messages = new Message[] { new Message("event", i) };
+					connectionManager.send(msg, true, listener);
+				}
+				assertEquals("Verify all messages sent", firstSerial + inFlight, transport.getSentCount());
+
+				long startTime = System.nanoTime();
+				if(singly) {
+					for(int i = 0; i < inFlight; i++)
+						transport.ack(firstSerial + i, 1);
+				} else {
+					/* ack in ranges of 100, nacking the first 100 and
+					 * implicitly nacking another 100 by acking beyond them */
+					transport.nack(firstSerial, 100, new ErrorInfo("test nack", 400, 40000));
+					transport.ack(firstSerial + 200, 100);
+					for(int i = 300; i < inFlight; i += 100)
+						transport.ack(firstSerial + i, 100);
+				}
+				assertTrue("Verify all listeners called", done.await(30, TimeUnit.SECONDS));
+				long elapsed = System.nanoTime() - startTime;
+				System.out.println("outbound_queue_pending_acks: " + (singly ? "single" : "range")
+						+ " acks of " + inFlight + " in-flight messages; ms = " + elapsed / 1000000);
+
+				assertEquals("Verify successes", singly ? inFlight : inFlight - 200, successes.get());
+				assertEquals("Verify failures", singly ? 0 : 200, failures.get());
+			}
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Publish while the transport has gone but the state has yet to change
+	 * from connected, and verify that the publisher does not wait for the
+	 * change, and that once reconnected the messages are sent in order,
+	 * except for one that was not to be queued, which fails
+	 */
+	@Test
+	public void outbound_queue_transport_lost() throws AblyException, InterruptedException {
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, true);
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = factory;
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			ably.connection.connect();
+			assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+			ConnectionManager connectionManager = ably.connection.connectionManager;
+			final AtomicInteger failures = new AtomicInteger();
+			final CountDownLatch acked = new CountDownLatch(3);
+			final CompletionListener listener = new CompletionListener() {
+				@Override
+				public void onSuccess() { acked.countDown(); }
+				@Override
+				public void onError(ErrorInfo reason) { failures.incrementAndGet(); acked.countDown(); }
+			};
+
+			/* hold the lock, so that the actor can't act on the loss of the transport */
+			synchronized(connectionManager) {
+				connectionManager.onTransportUnavailable(factory.getLastTransport(), null, new ErrorInfo("Transport lost", 80003));
+				assertEquals(ConnectionState.connected, connectionManager.getConnectionState().state);
+				for(int i = 0; i < 4; i++) {
+					ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, "outbound_queue");
+					msg.messages = new Message[] { new Message("event", "message " + i) };
+					connectionManager.send(msg, i != 2, listener);
+				}
+			}
+
+			assertTrue("Verify connected state reached again", connectionWaiter.waitFor(ConnectionState.connected, 2, 10000));
+			assertTrue("Verify all messages completed", acked.await(10, TimeUnit.SECONDS));
+			assertEquals("Verify unqueued message failed", 1, failures.get());
+			List<String> payloads = new ArrayList<String>();
+			for(ProtocolMessage msg : factory.getLastTransport().getSentMessages()) {
+				if(msg.action == ProtocolMessage.Action.message) {
+					for(Message message : msg.messages)
+						payloads.add((String)message.data);
+				}
+			}
+			assertEquals("Verify messages sent in order", "[message 0, message 1, message 3]", payloads.toString());
+		} finally {
+			ably.close();
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.util.PatternTrie;
+
+/**
+ * Tests for subscriptions to messages by event name pattern
+ */
+public class PatternSubscriptionTest {
+
+	private static Set<String> match(PatternTrie<String> trie, String name) {
+		Set<String> result = new HashSet<String>();
+		trie.match(name, result);
+		return result;
+	}
+
+	private static Set<String> set(String... values) {
+		return new HashSet<String>(Arrays.asList(values));
+	}
+
+	/**
+	 * Verify the names matched by literal and wildcard patterns
+	 */
+	@Test
+	public void pattern_trie_match() {
+		PatternTrie<String> trie = new PatternTrie<String>();
+		for(String pattern : new String[] {"orders.*", "orders.#", "orders.eu.#", "orders.*.created", "#.deleted", "orders.eu.created", "#"})
+			trie.add(pattern, pattern);
+
+		assertEquals(set("orders.#", "#"), match(trie, "orders"));
+		assertEquals(set("orders.*", "orders.#", "#"), match(trie, "orders.created"));
+		assertEquals(set("orders.*", "orders.#", "orders.eu.#", "#"), match(trie, "orders.eu"));
+		assertEquals(set("orders.#", "orders.eu.#", "orders.*.created", "orders.eu.created", "#"), match(trie, "orders.eu.created"));
+		assertEquals(set("orders.#", "orders.eu.#", "#"), match(trie, "orders.eu.fr.created"));
+		assertEquals(set("orders.#", "#.deleted", "#"), match(trie, "orders.us.deleted"));
+		assertEquals(set("#.deleted", "#"), match(trie, "deleted"));
+		assertEquals(set("#"), match(trie, "invoices.created"));
+		assertEquals(set(), match(trie, null));
+
+		assertTrue(trie.remove("#", "#"));
+		assertFalse("Verify pattern removed once", trie.remove("#", "#"));
+		assertTrue(trie.remove("orders.#", "orders.#"));
+		assertEquals(set(), match(trie, "invoices.created"));
+		assertEquals(set("orders.*"), match(trie, "orders.created"));
+
+		trie.removeAll("orders.*");
+		trie.removeAll("orders.eu.#");
+		trie.removeAll("orders.*.created");
+		trie.removeAll("#.deleted");
+		trie.removeAll("orders.eu.created");
+		assertTrue("Verify trie empty", trie.isEmpty());
+
+		assertTrue(PatternTrie.isValid("a.*.#"));
+		assertFalse(PatternTrie.isValid("a.b*"));
+		assertFalse(PatternTrie.isValid("a.##"));
+		assertTrue(PatternTrie.isPattern("a.*"));
+		assertFalse(PatternTrie.isPattern("a.b"));
+	}
+
+	/**
+	 * Verify that the cost of a match does not grow with the number of
+	 * patterns that do not match
+	 */
+	@Test
+	public void pattern_trie_scale() {
+		String[] names = new String[1000];
+		for(int i = 0; i < names.length; i++)
+			names[i] = "orders.region" + (i % 50) + ".item" + i + ".created";
+		int iterations = 200;
+
+		PatternTrie<String> small = new PatternTrie<String>();
+		small.add("orders.region7.#", "target");
+		long smallTime = timeMatches(small, names, iterations);
+
+		PatternTrie<String> large = new PatternTrie<String>();
+		large.add("orders.region7.#", "target");
+		for(int i = 0; i < 20000; i++) {
+			large.add("other" + i + ".#", "other" + i);
+			large.add("orders.region" + i + ".*.x", "item" + i);
+			large.add("orders.*.item" + (i + names.length) + ".created", "item" + i);
+		}
+		long largeTime = timeMatches(large, names, iterations);
+		System.out.println("pattern_trie_scale: ns per match; 1 pattern = " + smallTime / (iterations * names.length)
+				+ "; 60001 patterns = " + largeTime / (iterations * names.length));
+
+		for(String name : names) {
+			Set<String> expected = name.startsWith("orders.region7.") ? set("target") : set();
+			assertEquals("Verify match of " + name, expected, match(large, name));
+		}
+	}
+
+	/**
+	 * Verify that runs of "#" are equivalent to one, and that patterns with
+	 * many "#" segments match in time that does not grow combinatorially
+	 */
+	@Test(timeout = 10000)
+	public void pattern_trie_wildcards() {
+		PatternTrie<String> trie = new PatternTrie<String>();
+		trie.add("x.#.#.#.y", "x.#.#.#.y");
+		assertEquals(set("x.#.#.#.y"), match(trie, "x.y"));
+		assertEquals(set("x.#.#.#.y"), match(trie, "x.p.q.r.y"));
+		assertTrue("Verify equivalent pattern removed", trie.remove("x.#.y", "x.#.#.#.y"));
+		assertTrue("Verify trie empty", trie.isEmpty());
+
+		StringBuilder pattern = new StringBuilder("#");
+		for(int i = 0; i < 10; i++)
+			pattern.append(".a.#.#");
+		StringBuilder name = new StringBuilder("a");
+		for(int i = 1; i < 60; i++)
+			name.append(".a");
+		trie.add(pattern.toString(), "many");
+		trie.add(pattern + ".b", "many.b");
+
+		List<String> result = new ArrayList<String>();
+		trie.match(name.toString(), result);
+		assertEquals("Verify each pattern matched once", Arrays.asList("many"), result);
+		result.clear();
+		trie.match(name + ".c", result);
+		assertEquals("Verify no match", Arrays.asList("many"), result);
+		result.clear();
+		trie.match(name + ".b", result);
+		assertEquals("Verify match", set("many", "many.b"), new HashSet<String>(result));
+		assertEquals("Verify each pattern matched once", 2, result.size());
+	}
+
+	private static long timeMatches(PatternTrie<String> trie, String[] names, int iterations) {
+		List<String> result = new ArrayList<String>();
+		/* warm up */
+		for(String name : names)
+			trie.match(name, result);
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++) {
+			for(String name : names) {
+				result.clear();
+				trie.match(name, result);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static class CollectingListener implements Channel.MessageListener {
+		final List<String> names = new ArrayList<String>();
+		final CountDownLatch done;
+		CollectingListener(CountDownLatch done) { this.done = done; }
+		@Override
+		public synchronized void onMessage(Message message) {
+			names.add(message.name);
+			if(message.name.equals("end"))
+				done.countDown();
+		}
+	}
+
+	/**
+	 * Verify that pattern listeners on a channel receive each matching
+	 * message once, and none after unsubscribing
+	 */
+	@Test
+	public void channel_subscribe_pattern() throws AblyException, InterruptedException {
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = factory;
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			ably.connection.connect();
+			assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+
+			Channel channel = ably.channels.get("pattern_subscribe");
+			CountDownLatch done = new CountDownLatch(2);
+			CollectingListener euListener = new CollectingListener(done);
+			CollectingListener createdListener = new CollectingListener(done);
+			channel.subscribePattern("orders.eu.#", euListener);
+			channel.subscribePattern("orders.*.created", createdListener);
+			/* a second matching pattern does not duplicate delivery */
+			channel.subscribePattern("orders.#", createdListener);
+			channel.subscribePattern("end", euListener);
+			channel.subscribe("end", createdListener);
+			channel.subscribePattern("invoices.#", createdListener);
+			channel.unsubscribePattern("invoices.#", createdListener);
+
+			try {
+				channel.subscribePattern("orders.eu*", euListener);
+				fail("Verify invalid pattern rejected");
+			} catch(AblyException e) {
+				assertEquals(40000, e.errorInfo.code);
+			}
+
+			ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, channel.name);
+			msg.messages = new Message[] {
+				new Message("orders.eu.created", "1"),
+				new Message("orders.us.created", "2"),
+				new Message("orders.eu.fr.deleted", "3"),
+				new Message("invoices.eu.created", "4"),
+				new Message("end", "5")
+			};
+			factory.getLastTransport().deliver(msg);
+			assertTrue("Verify messages delivered", done.await(10, TimeUnit.SECONDS));
+
+			assertEquals(Arrays.asList("orders.eu.created", "orders.eu.fr.deleted", "end"), euListener.names);
+			assertEquals(Arrays.asList("orders.eu.created", "orders.us.created", "orders.eu.fr.deleted", "end"), createdListener.names);
+
+			channel.unsubscribe(euListener);
+			channel.unsubscribe(createdListener);
+			CollectingListener allListener = new CollectingListener(new CountDownLatch(1));
+			channel.subscribe(allListener);
+			factory.getLastTransport().deliver(msg);
+			allListener.done.await(10, TimeUnit.SECONDS);
+			assertEquals("Verify no delivery after unsubscribe", 3, euListener.names.size());
+			assertEquals("Verify no delivery after unsubscribe", 4, createdListener.names.size());
+		} finally {
+			ably.close();
+		}
+	}
+}
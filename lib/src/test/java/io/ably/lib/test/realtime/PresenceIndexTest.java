@@ -0,0 +1,168 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.realtime.Presence;
+import io.ably.lib.test.common.Helpers.ChannelWaiter;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.Param;
+import io.ably.lib.types.PresenceMessage;
+import io.ably.lib.types.ProtocolMessage;
+
+/**
+ * Tests for presence queries filtered by clientId and connectionId
+ */
+public class PresenceIndexTest {
+
+	/* each client is present on ten connections, and each connection has 100 clients */
+	private static final int CLIENTS = 10000;
+	private static final int CLIENTS_PER_CONNECTION = 100;
+
+	private static AblyRealtime createClient() throws AblyException {
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = new LoopbackTransportFactory(true, false);
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		AblyRealtime ably = new AblyRealtime(opts);
+		ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+		ably.connection.connect();
+		assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+		return ably;
+	}
+
+	private static Channel attach(AblyRealtime ably, String name) throws AblyException {
+		Channel channel = ably.channels.get(name);
+		channel.attach();
+		new ChannelWaiter(channel).waitFor(ChannelState.attached);
+		assertEquals("Verify attached state reached", ChannelState.attached, channel.state);
+		/* wait for the sync that ends the attach, so that it does not remove members entered by the test */
+		channel.presence.get(true);
+		return channel;
+	}
+
+	private static String clientId(int member) { return "client" + member % CLIENTS; }
+	private static String connectionId(int member) { return "connection" + member / CLIENTS_PER_CONNECTION; }
+
+	/**
+	 * Deliver presence messages for members [start, end) with the given action
+	 */
+	private static void deliver(AblyRealtime ably, Channel channel, ProtocolMessage.Action action, String channelSerial,
+			PresenceMessage.Action presenceAction, int start, int end) {
+		ProtocolMessage msg = new ProtocolMessage(action, channel.name);
+		msg.channelSerial = channelSerial;
+		msg.timestamp = 1234;
+		msg.presence = new PresenceMessage[end - start];
+		for(int i = start; i < end; i++) {
+			PresenceMessage member = new PresenceMessage(presenceAction, clientId(i));
+			member.connectionId = connectionId(i);
+			member.id = member.connectionId + ":" + (presenceAction == PresenceMessage.Action.leave ? 1 : 0) + ":" + i;
+			msg.presence[i - start] = member;
+		}
+		ably.channels.onChannelMessage(null, msg);
+	}
+
+	private static void enter(AblyRealtime ably, Channel channel, int count) {
+		for(int start = 0; start < count; start += 1000)
+			deliver(ably, channel, ProtocolMessage.Action.presence, null, PresenceMessage.Action.enter, start, Math.min(count, start + 1000));
+	}
+
+	/**
+	 * Verify the members returned by queries filtered by clientId,
+	 * connectionId, or both, as members enter, leave and are removed by sync
+	 */
+	@Test
+	public void presence_get_filtered() throws AblyException {
+		AblyRealtime ably = createClient();
+		try {
+			Channel channel = attach(ably, "presence_filtered");
+			enter(ably, channel, 2000);
+			Presence presence = channel.presence;
+
+			PresenceMessage[] members = presence.get(new Param(Presence.GET_CLIENTID, "client7"));
+			assertEquals("Verify members for clientId", 1, members.length);
+			assertEquals("connection0:client7", members[0].memberKey());
+			members = presence.get(new Param(Presence.GET_CONNECTIONID, "connection3"));
+			assertEquals("Verify members for connectionId", CLIENTS_PER_CONNECTION, members.length);
+			for(PresenceMessage member : members)
+				assertEquals("connection3", member.connectionId);
+			members = presence.get(new Param(Presence.GET_CLIENTID, "client350"), new Param(Presence.GET_CONNECTIONID, "connection3"));
+			assertEquals("Verify members for clientId and connectionId", 1, members.length);
+			assertEquals(0, presence.get(new Param(Presence.GET_CLIENTID, "client350"), new Param(Presence.GET_CONNECTIONID, "connection4")).length);
+			assertEquals(0, presence.get(new Param(Presence.GET_CLIENTID, "unknown")).length);
+
+			/* a member that leaves is no longer returned */
+			deliver(ably, channel, ProtocolMessage.Action.presence, null, PresenceMessage.Action.leave, 300, 310);
+			members = presence.get(new Param(Presence.GET_CONNECTIONID, "connection3"));
+			assertEquals("Verify members after leave", CLIENTS_PER_CONNECTION - 10, members.length);
+			assertEquals(0, presence.get(new Param(Presence.GET_CLIENTID, "client305")).length);
+
+			/* members not seen in a sync are removed */
+			deliver(ably, channel, ProtocolMessage.Action.sync, "serial:cursor", PresenceMessage.Action.present, 0, 1000);
+			deliver(ably, channel, ProtocolMessage.Action.sync, "serial:", PresenceMessage.Action.present, 1000, 1500);
+			assertEquals("Verify members after sync", 1500, presence.get(false).length);
+			assertEquals(0, presence.get(new Param(Presence.GET_CONNECTIONID, "connection15")).length);
+			assertEquals(0, presence.get(new Param(Presence.GET_CLIENTID, "client1999")).length);
+			members = presence.get(new Param(Presence.GET_CONNECTIONID, "connection14"));
+			assertEquals("Verify members after sync", CLIENTS_PER_CONNECTION, members.length);
+			assertEquals(1, presence.get(new Param(Presence.GET_CLIENTID, "client305")).length);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Compare the time for queries filtered by clientId and by connectionId
+	 * with that of an unfiltered query, on a channel with 100k members
+	 */
+	@Test
+	public void presence_get_filtered_benchmark() throws AblyException {
+		int count = 100000;
+		int queries = 2000;
+		AblyRealtime ably = createClient();
+		try {
+			Channel channel = attach(ably, "presence_benchmark");
+			enter(ably, channel, count);
+			Presence presence = channel.presence;
+			assertEquals("Verify all members present", count, presence.get(false).length);
+
+			/* warm up */
+			for(int i = 0; i < queries; i++) {
+				presence.get(new Param(Presence.GET_CLIENTID, clientId(i)));
+				presence.get(new Param(Presence.GET_CONNECTIONID, connectionId(i)));
+			}
+
+			long start = System.nanoTime();
+			for(int i = 0; i < queries; i++)
+				assertEquals(count / CLIENTS, presence.get(new Param(Presence.GET_CLIENTID, clientId(i * 7))).length);
+			long clientIdTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for(int i = 0; i < queries; i++)
+				assertEquals(CLIENTS_PER_CONNECTION, presence.get(new Param(Presence.GET_CONNECTIONID, connectionId((i * 700) % count))).length);
+			long connectionIdTime = System.nanoTime() - start;
+
+			int unfilteredQueries = 10;
+			start = System.nanoTime();
+			for(int i = 0; i < unfilteredQueries; i++)
+				presence.get(false);
+			long unfilteredTime = System.nanoTime() - start;
+
+			System.out.println("presence_get_filtered_benchmark: members = " + count
+					+ "; us per get; by clientId = " + clientIdTime / (queries * 1000L)
+					+ "; by connectionId = " + connectionIdTime / (queries * 1000L)
+					+ "; unfiltered = " + unfilteredTime / (unfilteredQueries * 1000L));
+		} finally {
+			ably.close();
+		}
+	}
+}
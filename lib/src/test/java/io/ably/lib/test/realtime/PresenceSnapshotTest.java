@@ -0,0 +1,207 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.realtime.Presence;
+import io.ably.lib.test.common.Helpers.ChannelWaiter;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.Param;
+import io.ably.lib.types.PresenceMessage;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.util.HashTrieMap;
+
+/**
+ * Tests for reads of presence state from published snapshots
+ */
+public class PresenceSnapshotTest {
+
+	/**
+	 * A key whose hash is shared with others, to exercise collisions
+	 */
+	private static class Key {
+		final int value;
+		Key(int value) { this.value = value; }
+		@Override
+		public boolean equals(Object o) { return (o instanceof Key) && ((Key)o).value == value; }
+		@Override
+		public int hashCode() { return value % 1000; }
+	}
+
+	private static void assertSame(Map<Key, Integer> expected, HashTrieMap<Key, Integer> map) {
+		assertEquals("Verify size", expected.size(), map.size());
+		for(Map.Entry<Key, Integer> entry : expected.entrySet())
+			assertEquals("Verify value", entry.getValue(), map.get(entry.getKey()));
+		assertEquals("Verify values", new HashSet<Integer>(expected.values()), new HashSet<Integer>(map.values()));
+		assertEquals("Verify values iterated once", expected.size(), new ArrayList<Integer>(map.values()).size());
+	}
+
+	/**
+	 * Verify a HashTrieMap against a HashMap under random updates, and that
+	 * maps already built are not affected by later updates
+	 */
+	@Test
+	public void hash_trie_map() {
+		Random random = new Random(1234);
+		HashMap<Key, Integer> expected = new HashMap<Key, Integer>();
+		HashTrieMap.Builder<Key, Integer> builder = HashTrieMap.<Key, Integer>empty().builder();
+		HashTrieMap<Key, Integer> persistent = HashTrieMap.empty();
+		List<HashTrieMap<Key, Integer>> built = new ArrayList<HashTrieMap<Key, Integer>>();
+		List<Map<Key, Integer>> builtExpected = new ArrayList<Map<Key, Integer>>();
+
+		for(int i = 0; i < 50000; i++) {
+			Key key = new Key(random.nextInt(5000));
+			if(random.nextInt(3) == 0) {
+				expected.remove(key);
+				builder.remove(key);
+				persistent = persistent.minus(key);
+			} else {
+				expected.put(key, i);
+				builder.put(key, i);
+				persistent = persistent.plus(key, i);
+			}
+			if(i % 5000 == 0) {
+				built.add(builder.build());
+				builtExpected.add(new HashMap<Key, Integer>(expected));
+			}
+		}
+		assertSame(expected, builder.build());
+		assertSame(expected, persistent);
+		for(int i = 0; i < built.size(); i++)
+			assertSame(builtExpected.get(i), built.get(i));
+
+		for(Key key : new ArrayList<Key>(expected.keySet()))
+			builder.remove(key);
+		assertTrue("Verify all removed", builder.build().isEmpty());
+		assertNull(builder.build().get(new Key(1)));
+		assertSame(expected, persistent);
+	}
+
+	private static AblyRealtime createClient() throws AblyException {
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = new LoopbackTransportFactory(true, false);
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		AblyRealtime ably = new AblyRealtime(opts);
+		ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+		ably.connection.connect();
+		assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+		return ably;
+	}
+
+	/**
+	 * Verify that readers during a sync see each batch of updates applied
+	 * completely or not at all, and measure the rate of reads, and the time
+	 * taken by the sync, with and without concurrent readers
+	 */
+	@Test
+	public void presence_get_during_sync() throws AblyException, InterruptedException {
+		final int count = 100000;
+		final int batchSize = 1000;
+		final int readerCount = 2;
+		AblyRealtime ably = createClient();
+		try {
+			final Channel channel = ably.channels.get("presence_snapshot");
+			channel.attach();
+			new ChannelWaiter(channel).waitFor(ChannelState.attached);
+			assertEquals("Verify attached state reached", ChannelState.attached, channel.state);
+			/* wait for the sync that ends the attach, so that it does not remove members entered by the test */
+			channel.presence.get(true);
+
+			/* a first sync without readers */
+			long start = System.nanoTime();
+			sync(ably, channel, 1, count, batchSize);
+			long syncTime = System.nanoTime() - start;
+
+			final AtomicBoolean done = new AtomicBoolean();
+			final AtomicReference<String> error = new AtomicReference<String>();
+			final long[] reads = new long[readerCount];
+			Thread[] readers = new Thread[readerCount];
+			for(int r = 0; r < readerCount; r++) {
+				final int reader = r;
+				readers[r] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							while(!done.get()) {
+								/* each batch updates the data of every member of ten connections */
+								PresenceMessage[] members = channel.presence.get(new Param(Presence.GET_WAITFORSYNC, "false"),
+										new Param(Presence.GET_CONNECTIONID, "connection" + (reads[reader] % (count / 100))));
+								if(members.length != 100)
+									error.set("Unexpected member count: " + members.length);
+								for(PresenceMessage member : members)
+									if(!member.data.equals(members[0].data))
+										error.set("Partial batch seen: " + member.data + ", " + members[0].data);
+								++reads[reader];
+							}
+						} catch(AblyException e) {
+							error.set(e.toString());
+						}
+					}
+				};
+				readers[r].start();
+			}
+
+			/* a second sync with readers */
+			start = System.nanoTime();
+			sync(ably, channel, 2, count, batchSize);
+			long concurrentSyncTime = System.nanoTime() - start;
+			done.set(true);
+			long totalReads = 0;
+			for(int r = 0; r < readerCount; r++) {
+				readers[r].join();
+				totalReads += reads[r];
+			}
+
+			System.out.println("presence_get_during_sync: members = " + count
+					+ "; sync ms = " + syncTime / 1000000 + "; sync ms with " + readerCount + " readers = " + concurrentSyncTime / 1000000
+					+ "; reads during sync = " + totalReads);
+			assertNull("Verify consistent reads", error.get());
+			assertEquals("Verify all members present", count, channel.presence.get(false).length);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Deliver a complete sync sequence of the given number of members, in
+	 * batches of whole connections, each member having the name of the sync
+	 * as its data; members of a later generation are newer
+	 */
+	private static void sync(AblyRealtime ably, Channel channel, int generation, int count, int batchSize) {
+		String serial = "sync" + generation;
+		for(int start = 0; start < count; start += batchSize) {
+			int end = Math.min(count, start + batchSize);
+			ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.sync, channel.name);
+			msg.channelSerial = serial + ":" + (end < count ? "cursor" + end : "");
+			msg.presence = new PresenceMessage[end - start];
+			for(int i = start; i < end; i++) {
+				PresenceMessage member = new PresenceMessage(PresenceMessage.Action.present, "client" + i, serial);
+				member.connectionId = "connection" + i / 100;
+				member.id = member.connectionId + ":" + ((long)generation * count + i) + ":0";
+				member.timestamp = 1000;
+				msg.presence[i - start] = member;
+			}
+			ably.channels.onChannelMessage(null, msg);
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.realtime.Presence;
+import io.ably.lib.test.common.Helpers.ChannelWaiter;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.Param;
+import io.ably.lib.types.PresenceMessage;
+import io.ably.lib.types.ProtocolMessage;
+
+/**
+ * Tests for the application of presence updates and sync to the presence map
+ */
+public class PresenceSyncTest {
+
+	private static AblyRealtime createClient() throws AblyException {
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = new LoopbackTransportFactory(true, false);
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		AblyRealtime ably = new AblyRealtime(opts);
+		ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+		ably.connection.connect();
+		assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+		return ably;
+	}
+
+	private static Channel attach(AblyRealtime ably, String name) throws AblyException {
+		Channel channel = ably.channels.get(name);
+		channel.attach();
+		new ChannelWaiter(channel).waitFor(ChannelState.attached);
+		assertEquals("Verify attached state reached", ChannelState.attached, channel.state);
+		/* wait for the sync that ends the attach, so that it does not remove members entered by the test */
+		channel.presence.get(true);
+		return channel;
+	}
+
+	private static PresenceMessage member(PresenceMessage.Action action, String clientId, String connectionId, String id, long timestamp) {
+		PresenceMessage member = new PresenceMessage(action, clientId, "data");
+		member.connectionId = connectionId;
+		member.id = id;
+		member.timestamp = timestamp;
+		return member;
+	}
+
+	private static void deliver(AblyRealtime ably, Channel channel, ProtocolMessage.Action action, String channelSerial, PresenceMessage... members) {
+		ProtocolMessage msg = new ProtocolMessage(action, channel.name);
+		msg.channelSerial = channelSerial;
+		msg.presence = members;
+		ably.channels.onChannelMessage(null, msg);
+	}
+
+	private static class CollectingListener implements Presence.PresenceListener {
+		final List<PresenceMessage> messages = new ArrayList<PresenceMessage>();
+		@Override
+		public synchronized void onPresenceMessage(PresenceMessage message) {
+			messages.add(message);
+		}
+	}
+
+	/**
+	 * Verify that only updates newer than the current state of a member
+	 * are applied and broadcast, by msgSerial and index, or by timestamp
+	 * for a synthesized leave
+	 */
+	@Test
+	public void presence_newness() throws AblyException {
+		AblyRealtime ably = createClient();
+		try {
+			Channel channel = attach(ably, "presence_newness");
+			CollectingListener listener = new CollectingListener();
+			channel.presence.subscribe(listener);
+			PresenceMessage.Action enter = PresenceMessage.Action.enter, update = PresenceMessage.Action.update,
+					present = PresenceMessage.Action.present, leave = PresenceMessage.Action.leave;
+
+			deliver(ably, channel, ProtocolMessage.Action.presence, null,
+					member(enter, "client1", "conn", "conn:10:2", 1000),
+					/* older msgSerial, or same msgSerial and older index */
+					member(update, "client1", "conn", "conn:9:5", 2000),
+					member(present, "client1", "conn", "conn:10:1", 2000),
+					/* ids that do not parse as msgSerial and index are taken to be newer */
+					member(enter, "client2", "conn", "conn:x:0", 1000),
+					member(update, "client2", "conn", "conn:007:1", 1000),
+					/* newer index */
+					member(update, "client1", "conn", "conn:10:12", 1000));
+			assertEquals("Verify newer updates broadcast", 4, listener.messages.size());
+			PresenceMessage[] members = channel.presence.get(new Param(Presence.GET_CLIENTID, "client1"));
+			assertEquals(1, members.length);
+			assertEquals("Verify id of member", "conn:10:12", members[0].id);
+			assertEquals("Verify action of member", present, members[0].action);
+			assertEquals("Verify data of member", "data", members[0].data);
+			members = channel.presence.get(new Param(Presence.GET_CLIENTID, "client2"));
+			assertEquals("Verify id of member", "conn:007:1", members[0].id);
+
+			/* a synthesized leave is compared by timestamp */
+			deliver(ably, channel, ProtocolMessage.Action.presence, null,
+					member(leave, "client1", "conn", "synthesized:0:0", 999),
+					member(leave, "client2", "conn", "synthesized:0:0", 1001));
+			assertEquals("Verify synthesized leave broadcast", 5, listener.messages.size());
+			assertEquals("client2", listener.messages.get(4).clientId);
+			assertEquals(1, channel.presence.get(false).length);
+
+			/* a leave with a newer msgSerial removes the member */
+			deliver(ably, channel, ProtocolMessage.Action.presence, null,
+					member(leave, "client1", "conn", "conn:11:0", 1000));
+			assertEquals("Verify leave broadcast", 6, listener.messages.size());
+			assertEquals(0, channel.presence.get(false).length);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that members present at the start of a sync, and not seen
+	 * during it, leave at the end of the sync, in successive syncs
+	 */
+	@Test
+	public void presence_sync_residual() throws AblyException {
+		AblyRealtime ably = createClient();
+		try {
+			Channel channel = attach(ably, "presence_residual");
+			CollectingListener listener = new CollectingListener();
+			channel.presence.subscribe(PresenceMessage.Action.leave, listener);
+			PresenceMessage.Action enter = PresenceMessage.Action.enter, present = PresenceMessage.Action.present;
+
+			deliver(ably, channel, ProtocolMessage.Action.presence, null,
+					member(enter, "a", "conn", "conn:1:0", 1000),
+					member(enter, "b", "conn", "conn:1:1", 1000),
+					member(enter, "c", "conn", "conn:1:2", 1000));
+
+			/* a is seen without change, d is new, and b is updated in the last message */
+			deliver(ably, channel, ProtocolMessage.Action.sync, "serial1:cursor",
+					member(present, "a", "conn", "conn:1:0", 1000),
+					member(present, "d", "conn", "conn:2:0", 1000));
+			deliver(ably, channel, ProtocolMessage.Action.sync, "serial1:",
+					member(present, "b", "conn", "conn:4:0", 1000));
+			assertEquals("Verify residual member left", 1, listener.messages.size());
+			assertEquals("c", listener.messages.get(0).clientId);
+			assertEquals("Verify leave has no id", null, listener.messages.get(0).id);
+			assertEquals(3, channel.presence.get(false).length);
+
+			/* a sync that sees only d */
+			deliver(ably, channel, ProtocolMessage.Action.sync, "serial2:cursor",
+					member(present, "d", "conn", "conn:2:0", 1000));
+			deliver(ably, channel, ProtocolMessage.Action.sync, "serial2:");
+			assertEquals("Verify residual members left", 3, listener.messages.size());
+			PresenceMessage[] members = channel.presence.get(false);
+			assertEquals(1, members.length);
+			assertEquals("d", members[0].clientId);
+
+			/* an empty sync removes all members */
+			deliver(ably, channel, ProtocolMessage.Action.sync, "serial3:");
+			assertEquals("Verify residual members left", 3, listener.messages.size());
+			deliver(ably, channel, ProtocolMessage.Action.sync, "serial4:cursor");
+			deliver(ably, channel, ProtocolMessage.Action.sync, "serial4:");
+			assertEquals("Verify residual members left", 4, listener.messages.size());
+			assertEquals(0, channel.presence.get(false).length);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Measure the time taken, and the memory allocated, to apply a sync of
+	 * 100k members and a re-sync of the same members
+	 */
+	@Test
+	public void presence_sync_benchmark() throws AblyException {
+		int count = 100000;
+		int batchSize = 100;
+		AblyRealtime ably = createClient();
+		try {
+			Channel channel = attach(ably, "presence_sync_benchmark");
+			/* warm up */
+			sync(ably, channel, "warmup", count / 10, batchSize);
+
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			sync(ably, channel, "sync1", count, batchSize);
+			long syncTime = System.nanoTime() - start;
+			long syncAllocated = allocatedBytes() - allocated;
+			assertEquals("Verify all members present", count, channel.presence.get(false).length);
+
+			allocated = allocatedBytes();
+			start = System.nanoTime();
+			sync(ably, channel, "sync2", count, batchSize);
+			long resyncTime = System.nanoTime() - start;
+			long resyncAllocated = allocatedBytes() - allocated;
+			assertEquals("Verify all members present", count, channel.presence.get(false).length);
+
+			System.out.println("presence_sync_benchmark: members = " + count
+					+ "; sync ms = " + syncTime / 1000000 + ", MB allocated = " + syncAllocated / (1024 * 1024)
+					+ "; re-sync ms = " + resyncTime / 1000000 + ", MB allocated = " + resyncAllocated / (1024 * 1024));
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Deliver a complete sync sequence of the given number of members
+	 */
+	private static void sync(AblyRealtime ably, Channel channel, String serial, int count, int batchSize) {
+		for(int start = 0; start < count; start += batchSize) {
+			int end = Math.min(count, start + batchSize);
+			PresenceMessage[] members = new PresenceMessage[end - start];
+			for(int i = start; i < end; i++) {
+				String connectionId = "connection" + i / 100;
+				members[i - start] = member(PresenceMessage.Action.present, "client" + i, connectionId, connectionId + ":" + i + ":0", 1000);
+			}
+			deliver(ably, channel, ProtocolMessage.Action.sync, serial + ":" + (end < count ? "cursor" + end : ""), members);
+		}
+	}
+
+	/**
+	 * @return the number of bytes allocated by this thread, if known
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+}
@@ -0,0 +1,99 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolSerializer;
+
+public class ProtocolSerializerTest {
+
+	private static ProtocolMessage createMessage() {
+		/* large enough that decoding spans several input chunks */
+		byte[] binary = new byte[20000];
+		for(int i = 0; i < binary.length; i++)
+			binary[i] = (byte)i;
+		char[] text = new char[12000];
+		Arrays.fill(text, 'x');
+
+		ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, "test_channel");
+		msg.msgSerial = 42L;
+		msg.messages = new Message[] {
+			new Message("binary", binary),
+			new Message("text", new String(text))
+		};
+		return msg;
+	}
+
+	private static void checkMessage(ProtocolMessage expected, ProtocolMessage actual) {
+		assertEquals("Verify action", expected.action, actual.action);
+		assertEquals("Verify channel", expected.channel, actual.channel);
+		assertEquals("Verify msgSerial", expected.msgSerial, actual.msgSerial);
+		assertEquals("Verify message count", expected.messages.length, actual.messages.length);
+		assertEquals("Verify message name", expected.messages[0].name, actual.messages[0].name);
+		assertArrayEquals("Verify binary data", (byte[])expected.messages[0].data, (byte[])actual.messages[0].data);
+		assertEquals("Verify text data", expected.messages[1].data, actual.messages[1].data);
+	}
+
+	/**
+	 * Decode from heap, direct and read-only buffers, including a
+	 * buffer whose content does not start at the beginning of its array
+	 */
+	@Test
+	public void msgpack_decode_bytebuffer() throws AblyException {
+		ProtocolMessage msg = createMessage();
+		byte[] packed = ProtocolSerializer.writeMsgpack(msg);
+
+		ByteBuffer heap = ByteBuffer.allocate(packed.length + 8);
+		heap.position(5);
+		heap.put(packed);
+		heap.position(5);
+		heap.limit(5 + packed.length);
+		checkMessage(msg, ProtocolSerializer.readMsgpack(heap));
+		checkMessage(msg, ProtocolSerializer.readMsgpack(heap.slice()));
+		assertEquals("Verify buffer position is unchanged", 5, heap.position());
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(packed.length);
+		direct.put(packed);
+		direct.flip();
+		checkMessage(msg, ProtocolSerializer.readMsgpack(direct));
+
+		ByteBuffer readOnly = ByteBuffer.wrap(packed).asReadOnlyBuffer();
+		checkMessage(msg, ProtocolSerializer.readMsgpack(readOnly));
+	}
+
+	/**
+	 * Verify that the reusable encoder produces a correct and consistent
+	 * encoding across successive messages of very different sizes
+	 */
+	@Test
+	public void msgpack_encode_reuse() throws AblyException {
+		ProtocolMessage large = createMessage();
+		large.messages = new Message[] { new Message("huge", new byte[400000]) };
+		ProtocolMessage[] msgs = new ProtocolMessage[] {
+			createMessage(),
+			new ProtocolMessage(ProtocolMessage.Action.heartbeat),
+			large,
+			createMessage(),
+			new ProtocolMessage(ProtocolMessage.Action.attach, "test_channel")
+		};
+		for(ProtocolMessage msg : msgs) {
+			byte[] packed = ProtocolSerializer.writeMsgpack(msg);
+			ByteBuffer encoded = ProtocolSerializer.writeMsgpackBuffer(msg);
+			assertEquals("Verify buffer encoding", ByteBuffer.wrap(packed), encoded);
+
+			ProtocolMessage decoded = ProtocolSerializer.readMsgpack(encoded);
+			assertEquals("Verify action", msg.action, decoded.action);
+			assertEquals("Verify channel", msg.channel, decoded.channel);
+			if(msg.messages != null)
+				assertArrayEquals("Verify data", (byte[])msg.messages[0].data, (byte[])decoded.messages[0].data);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ChannelWaiter;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+
+/**
+ * Tests for the encoding of published messages outside the channel lock,
+ * and in parallel for large batches
+ */
+public class PublishEncodeTest {
+
+	private static AblyRealtime createClient(LoopbackTransportFactory factory) throws AblyException {
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = factory;
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		AblyRealtime ably = new AblyRealtime(opts);
+		ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+		ably.connection.connect();
+		assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+		return ably;
+	}
+
+	private static Channel attach(AblyRealtime ably, String name) throws AblyException {
+		Channel channel = ably.channels.get(name);
+		channel.attach();
+		new ChannelWaiter(channel).waitFor(ChannelState.attached);
+		assertEquals("Verify attached state reached", ChannelState.attached, channel.state);
+		return channel;
+	}
+
+	private static Message[] createBatch(String name, int count) {
+		Message[] messages = new Message[count];
+		for(int i = 0; i < count; i++) {
+			JsonObject data = new JsonObject();
+			data.addProperty("seq", i);
+			for(int j = 0; j < 10; j++)
+				data.addProperty("field" + j, "value " + j + " of message " + i);
+			messages[i] = new Message(name, data);
+		}
+		return messages;
+	}
+
+	private static List<Message> sentMessages(LoopbackTransportFactory factory) {
+		List<Message> result = new ArrayList<Message>();
+		for(ProtocolMessage msg : factory.getLastTransport().getSentMessages()) {
+			if(msg.action == ProtocolMessage.Action.message)
+				for(Message message : msg.messages)
+					result.add(message);
+		}
+		return result;
+	}
+
+	private static class Completion implements CompletionListener {
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicReference<ErrorInfo> error = new AtomicReference<ErrorInfo>();
+		@Override
+		public void onSuccess() { done.countDown(); }
+		@Override
+		public void onError(ErrorInfo reason) { error.set(reason); done.countDown(); }
+		void await() throws InterruptedException {
+			assertTrue("Verify publish completed", done.await(30, TimeUnit.SECONDS));
+		}
+	}
+
+	/**
+	 * Verify that a large batch is encoded in parallel with its order
+	 * preserved, and compare the time taken with encoding on one thread
+	 */
+	@Test
+	public void publish_encode_large_batch() throws AblyException, InterruptedException {
+		int count = 20000;
+		int encoderThreads = Defaults.ENCODER_THREADS;
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, true);
+		AblyRealtime ably = createClient(factory);
+		try {
+			Channel channel = attach(ably, "encode_batch");
+			Defaults.ENCODER_THREADS = Math.max(3, encoderThreads);
+			/* warm up */
+			channel.publish(createBatch("warmup", count / 4));
+
+			Message[] parallelBatch = createBatch("parallel", count);
+			long start = System.nanoTime();
+			Completion completion = new Completion();
+			channel.publish(parallelBatch, completion);
+			long parallelTime = System.nanoTime() - start;
+			completion.await();
+			assertNull("Verify publish succeeded", completion.error.get());
+
+			Defaults.ENCODER_THREADS = 0;
+			Message[] serialBatch = createBatch("serial", count);
+			start = System.nanoTime();
+			channel.publish(serialBatch);
+			long serialTime = System.nanoTime() - start;
+			System.out.println("publish_encode_large_batch: messages = " + count
+					+ "; ms to publish; in parallel = " + parallelTime / 1000000 + "; on one thread = " + serialTime / 1000000);
+
+			int seq = 0;
+			for(Message message : sentMessages(factory)) {
+				if(!message.name.equals("parallel"))
+					continue;
+				assertEquals("Verify message encoded", "json", message.encoding);
+				assertTrue("Verify message encoded", message.data instanceof String);
+				assertTrue("Verify order preserved", ((String)message.data).startsWith("{\"seq\":" + seq + ","));
+				++seq;
+			}
+			assertEquals("Verify all messages sent", count, seq);
+		} finally {
+			Defaults.ENCODER_THREADS = encoderThreads;
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that an invalid message in a batch encoded in parallel fails
+	 * the whole batch
+	 */
+	@Test
+	public void publish_encode_invalid_message() throws AblyException, InterruptedException {
+		int encoderThreads = Defaults.ENCODER_THREADS;
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, true);
+		AblyRealtime ably = createClient(factory);
+		try {
+			Channel channel = attach(ably, "encode_invalid");
+			Defaults.ENCODER_THREADS = Math.max(3, encoderThreads);
+			Message[] batch = createBatch("invalid", 1000);
+			batch[700].clientId = "*";
+			Completion completion = new Completion();
+			channel.publish(batch, completion);
+			completion.await();
+			assertNotNull("Verify publish failed", completion.error.get());
+			assertEquals("Verify error code", 40000, completion.error.get().code);
+			assertEquals("Verify nothing sent", 0, sentMessages(factory).size());
+		} finally {
+			Defaults.ENCODER_THREADS = encoderThreads;
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that concurrent publishers on one channel each have their
+	 * messages sent in the order published
+	 */
+	@Test
+	public void publish_encode_concurrent() throws AblyException, InterruptedException {
+		final int threadCount = 8;
+		final int count = 2000;
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, true);
+		AblyRealtime ably = createClient(factory);
+		try {
+			final Channel channel = attach(ably, "encode_concurrent");
+			final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+			Thread[] threads = new Thread[threadCount];
+			for(int t = 0; t < threadCount; t++) {
+				final String name = "publisher" + t;
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							for(Message message : createBatch(name, count))
+								channel.publish(message);
+						} catch(Throwable t) {
+							error.set(t);
+						}
+					}
+				};
+			}
+			long start = System.nanoTime();
+			for(Thread thread : threads)
+				thread.start();
+			for(Thread thread : threads)
+				thread.join();
+			long elapsed = System.nanoTime() - start;
+			System.out.println("publish_encode_concurrent: threads = " + threadCount + "; messages = " + threadCount * count
+					+ "; ms = " + elapsed / 1000000);
+
+			assertNull("Verify no errors", error.get());
+			int[] next = new int[threadCount];
+			for(Message message : sentMessages(factory)) {
+				int publisher = Integer.parseInt(message.name.substring("publisher".length()));
+				assertTrue("Verify order preserved", ((String)message.data).startsWith("{\"seq\":" + next[publisher] + ","));
+				++next[publisher];
+			}
+			for(int t = 0; t < threadCount; t++)
+				assertEquals("Verify all messages sent", count, next[t]);
+		} finally {
+			ably.close();
+		}
+	}
+}
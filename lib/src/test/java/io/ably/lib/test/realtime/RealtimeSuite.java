@@ -14,8 +14,28 @@ import io.ably.lib.test.common.Setup;
 @RunWith(Suite.class)
 @SuiteClasses({
 	ConnectionManagerTest.class,
+	ConnectionStateMachineTest.class,
+	ReconnectBackoffTest.class,
 	HostsTest.class,
 	EventEmitterTest.class,
+	TimerWheelTest.class,
+	ProtocolSerializerTest.class,
+	NioWebSocketTransportTest.class,
+	WebSocketCompressionTest.class,
+	InboundMessageQueueTest.class,
+	OutboundQueueTest.class,
+	OfflineQueueTest.class,
+	MessageBatchingTest.class,
+	ChannelRegistryTest.class,
+	BulkAttachTest.class,
+	CallbackExecutorTest.class,
+	PatternSubscriptionTest.class,
+	ReceiveDecodeTest.class,
+	PublishEncodeTest.class,
+	PresenceIndexTest.class,
+	PresenceSyncTest.class,
+	PresenceSnapshotTest.class,
+	LatencyTest.class,
 	RealtimeHttpHeaderTest.class,
 	RealtimeAuthTest.class,
 	RealtimeJWTTest.class,
@@ -0,0 +1,166 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.util.Base64Coder;
+
+/**
+ * Tests for the decoding of received messages only when they have listeners
+ */
+public class ReceiveDecodeTest {
+
+	private static final String ENCODED_DATA;
+	static {
+		StringBuilder json = new StringBuilder("{\"items\":[");
+		for(int i = 0; i < 20; i++)
+			json.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"name\":\"item").append(i).append("\"}");
+		json.append("]}");
+		ENCODED_DATA = new String(Base64Coder.encode(json.toString().getBytes(Charset.forName("UTF-8"))));
+	}
+
+	private static AblyRealtime createClient() throws AblyException {
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.transportFactory = new LoopbackTransportFactory(true, false);
+		opts.useBinaryProtocol = false;
+		opts.autoConnect = false;
+		return new AblyRealtime(opts);
+	}
+
+	private static Message encodedMessage(String name) {
+		Message msg = new Message(name, ENCODED_DATA);
+		msg.encoding = "json/utf-8/base64";
+		return msg;
+	}
+
+	/**
+	 * A protocol message with one message in ten having the given name
+	 */
+	private static ProtocolMessage protocolMessage(String channel, String name, int serial) {
+		ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, channel);
+		msg.id = "connection:" + serial;
+		msg.connectionId = "connection";
+		msg.timestamp = 1234;
+		msg.messages = new Message[10];
+		for(int i = 0; i < msg.messages.length; i++)
+			msg.messages[i] = encodedMessage(i == 3 ? name : "other" + i);
+		return msg;
+	}
+
+	private static class CountingListener implements Channel.MessageListener {
+		int count;
+		@Override
+		public void onMessage(Message message) {
+			++count;
+		}
+	}
+
+	/**
+	 * Verify that only messages with listeners are decoded and given ids
+	 */
+	@Test
+	public void receive_decode_only_with_listeners() throws AblyException {
+		AblyRealtime ably = createClient();
+		try {
+			Channel channel = ably.channels.get("decode_filter");
+			CountingListener listener = new CountingListener();
+			channel.subscribe("wanted", listener);
+			ProtocolMessage msg = protocolMessage(channel.name, "wanted", 0);
+			ably.channels.onChannelMessage(null, msg);
+
+			assertEquals("Verify listener called", 1, listener.count);
+			for(int i = 0; i < msg.messages.length; i++) {
+				Message message = msg.messages[i];
+				if(i == 3) {
+					assertNull("Verify message decoded", message.encoding);
+					assertTrue("Verify data decoded", message.data instanceof JsonObject);
+					assertEquals("Verify id derived", "connection:0:3", message.id);
+					assertEquals("Verify connectionId derived", "connection", message.connectionId);
+				} else {
+					assertNotNull("Verify message not decoded", message.encoding);
+					assertTrue("Verify data not decoded", message.data instanceof String);
+					assertNull("Verify id not derived", message.id);
+				}
+			}
+
+			/* a listener for all messages needs every message decoded */
+			CountingListener allListener = new CountingListener();
+			channel.subscribe(allListener);
+			msg = protocolMessage(channel.name, "wanted", 1);
+			ably.channels.onChannelMessage(null, msg);
+			assertEquals("Verify listener called", 10, allListener.count);
+			for(Message message : msg.messages)
+				assertNull("Verify message decoded", message.encoding);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Compare the time to process messages on a channel whose listener
+	 * wants one message in ten, with that of one whose listener wants all
+	 */
+	@Test
+	public void receive_decode_benchmark() throws AblyException {
+		int count = 5000;
+		AblyRealtime ably = createClient();
+		try {
+			Channel filtered = ably.channels.get("decode_filtered");
+			CountingListener filteredListener = new CountingListener();
+			filtered.subscribe("wanted", filteredListener);
+			Channel unfiltered = ably.channels.get("decode_unfiltered");
+			CountingListener unfilteredListener = new CountingListener();
+			unfiltered.subscribe(unfilteredListener);
+
+			/* warm up */
+			runMessages(ably, filtered, count / 10);
+			runMessages(ably, unfiltered, count / 10);
+			filteredListener.count = unfilteredListener.count = 0;
+
+			long filteredTime = runMessages(ably, filtered, count);
+			long unfilteredTime = runMessages(ably, unfiltered, count);
+			System.out.println("receive_decode_benchmark: messages = " + count * 10
+					+ "; ns per message; one in ten wanted = " + filteredTime / (count * 10)
+					+ "; all wanted = " + unfilteredTime / (count * 10));
+
+			assertEquals("Verify filtered messages delivered", count, filteredListener.count);
+			assertEquals("Verify all messages delivered", count * 10, unfilteredListener.count);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * @return the time, in nanoseconds, spent processing the messages,
+	 * which are created in batches to limit the memory retained
+	 */
+	private static long runMessages(AblyRealtime ably, Channel channel, int count) {
+		int batchSize = 500;
+		ProtocolMessage[] messages = new ProtocolMessage[batchSize];
+		long elapsed = 0;
+		for(int sent = 0; sent < count; sent += batchSize) {
+			for(int i = 0; i < batchSize; i++)
+				messages[i] = protocolMessage(channel.name, "wanted", sent + i);
+			long start = System.nanoTime();
+			for(ProtocolMessage msg : messages)
+				ably.channels.onChannelMessage(null, msg);
+			elapsed += System.nanoTime() - start;
+		}
+		return elapsed;
+	}
+}
@@ -0,0 +1,332 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.realtime.ConnectionStateListener;
+import io.ably.lib.test.util.LoopbackTransportFactory;
+import io.ably.lib.transport.ConnectionManager;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.transport.RetryBackoff;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+
+/**
+ * Tests for the growth and randomisation of the delay between attempts
+ * to reconnect
+ */
+public class ReconnectBackoffTest {
+
+	private static final long BASE = 100;
+	private static final long MAX_DELAY = 400;
+	private static final int ATTEMPTS = 4;
+
+	/**
+	 * Set the timeout of a state; the state information is shared
+	 * by all clients, and fixed when first used, so this is set directly.
+	 * @return the previous timeout
+	 */
+	private static long setStateTimeout(ConnectionState state, long timeout) throws Exception {
+		ConnectionManager.StateInfo stateInfo = ConnectionManager.states.get(state);
+		Field field = ConnectionManager.StateInfo.class.getDeclaredField("timeout");
+		field.setAccessible(true);
+		long previous = field.getLong(stateInfo);
+		field.setLong(stateInfo, timeout);
+		return previous;
+	}
+
+	/**
+	 * The delays and times of the reconnection attempts of one client.
+	 */
+	private static class Attempts implements ConnectionStateListener {
+		final long[] delays = new long[ATTEMPTS];
+		final long[] times = new long[ATTEMPTS];
+		final CountDownLatch done;
+		int disconnects;
+		int connects;
+
+		Attempts(CountDownLatch done) { this.done = done; }
+
+		@Override
+		public synchronized void onConnectionStateChanged(ConnectionStateChange stateChange) {
+			if(stateChange.current == ConnectionState.disconnected && disconnects < ATTEMPTS) {
+				delays[disconnects++] = stateChange.retryIn;
+			} else if(stateChange.current == ConnectionState.connecting && stateChange.previous == ConnectionState.disconnected && connects < ATTEMPTS) {
+				times[connects++] = System.currentTimeMillis();
+				if(connects == ATTEMPTS)
+					done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Simulate the loss of a server with many connected clients: every
+	 * client fails to connect repeatedly, and reconnects after the delays
+	 * given by its backoff
+	 */
+	private static List<Attempts> simulate(RetryBackoff.Jitter jitter, int clientCount) throws Exception {
+		long disconnectTimeout = setStateTimeout(ConnectionState.disconnected, BASE);
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		factory.setRefuseConnect(new ErrorInfo("Connection refused", 400, 80003));
+		CountDownLatch done = new CountDownLatch(clientCount);
+		List<AblyRealtime> clients = new ArrayList<AblyRealtime>(clientCount);
+		List<Attempts> result = new ArrayList<Attempts>(clientCount);
+		try {
+			for(int i = 0; i < clientCount; i++) {
+				ClientOptions opts = new ClientOptions("fake.key:secret");
+				opts.transportFactory = factory;
+				opts.useBinaryProtocol = false;
+				opts.autoConnect = false;
+				opts.retryJitter = jitter;
+				opts.retryBackoffMultiplier = 2.0;
+				opts.retryBackoffMaxDelay = MAX_DELAY;
+				AblyRealtime ably = new AblyRealtime(opts);
+				Attempts attempts = new Attempts(done);
+				ably.connection.on(attempts);
+				clients.add(ably);
+				result.add(attempts);
+			}
+			for(AblyRealtime ably : clients)
+				ably.connection.connect();
+			assertTrue("Verify reconnection attempts made", done.await(30, TimeUnit.SECONDS));
+		} finally {
+			for(AblyRealtime ably : clients)
+				ably.close();
+			setStateTimeout(ConnectionState.disconnected, disconnectTimeout);
+		}
+
+		/* report the spread of the times of each attempt */
+		for(int attempt = 0; attempt < ATTEMPTS; attempt++) {
+			long min = Long.MAX_VALUE, max = 0, minDelay = Long.MAX_VALUE, maxDelay = 0;
+			for(Attempts attempts : result) {
+				long time = attempts.times[attempt] - attempts.times[0] + attempts.delays[0];
+				min = Math.min(min, time);
+				max = Math.max(max, time);
+				minDelay = Math.min(minDelay, attempts.delays[attempt]);
+				maxDelay = Math.max(maxDelay, attempts.delays[attempt]);
+			}
+			System.out.println("reconnect_backoff: jitter = " + jitter + "; attempt = " + attempt
+					+ "; delay = " + minDelay + ".." + maxDelay + "ms; spread of attempt times = " + (max - min) + "ms");
+		}
+		return result;
+	}
+
+	private static int countDistinct(List<Attempts> result, int attempt) {
+		Set<Long> delays = new HashSet<Long>();
+		for(Attempts attempts : result)
+			delays.add(attempts.delays[attempt]);
+		return delays.size();
+	}
+
+	/**
+	 * Verify that without jitter, all clients use the same delays, which
+	 * grow exponentially up to the maximum
+	 */
+	@Test
+	public void reconnect_backoff_no_jitter() throws Exception {
+		List<Attempts> result = simulate(RetryBackoff.Jitter.none, 200);
+		long[] expected = new long[] { BASE, 2 * BASE, MAX_DELAY, MAX_DELAY };
+		for(Attempts attempts : result) {
+			for(int attempt = 0; attempt < ATTEMPTS; attempt++)
+				assertEquals("Verify delay of attempt " + attempt, expected[attempt], attempts.delays[attempt]);
+		}
+	}
+
+	/**
+	 * Verify that with full jitter, the delays of the clients are spread
+	 * between zero and the exponential delay
+	 */
+	@Test
+	public void reconnect_backoff_full_jitter() throws Exception {
+		List<Attempts> result = simulate(RetryBackoff.Jitter.full, 200);
+		for(int attempt = 0; attempt < ATTEMPTS; attempt++) {
+			long limit = Math.min(MAX_DELAY, BASE << attempt);
+			for(Attempts attempts : result)
+				assertTrue("Verify delay within bounds", attempts.delays[attempt] >= 1 && attempts.delays[attempt] <= limit);
+			assertTrue("Verify delays spread", countDistinct(result, attempt) > limit / 4);
+		}
+	}
+
+	/**
+	 * Verify that with decorrelated jitter, the delays of the clients are
+	 * spread between the base and the maximum
+	 */
+	@Test
+	public void reconnect_backoff_decorrelated_jitter() throws Exception {
+		List<Attempts> result = simulate(RetryBackoff.Jitter.decorrelated, 200);
+		for(int attempt = 0; attempt < ATTEMPTS; attempt++) {
+			for(Attempts attempts : result)
+				assertTrue("Verify delay within bounds", attempts.delays[attempt] >= BASE && attempts.delays[attempt] <= MAX_DELAY);
+			assertTrue("Verify delays spread", countDistinct(result, attempt) > 50);
+		}
+	}
+
+	/**
+	 * Verify the distribution of delays over a large number of backoffs,
+	 * and that the sequence starts again after a reset
+	 */
+	@Test
+	public void reconnect_backoff_distribution() {
+		Random random = new Random(0);
+		int count = 40000;
+		long base = 15000;
+		long total = 0;
+		int[] buckets = new int[10];
+		for(int i = 0; i < count; i++) {
+			RetryBackoff backoff = new RetryBackoff(RetryBackoff.Jitter.full, 2.0, 0, random);
+			long delay = backoff.nextDelay(base);
+			total += delay;
+			++buckets[(int)(delay * buckets.length / base)];
+		}
+		for(int bucket : buckets)
+			assertTrue("Verify delays uniformly spread", Math.abs(bucket - count / buckets.length) < count / buckets.length / 5);
+		assertEquals("Verify mean delay", base / 2, total / count, base / 50);
+
+		RetryBackoff backoff = new RetryBackoff(RetryBackoff.Jitter.none, 2.0, 0, random);
+		assertEquals(base, backoff.nextDelay(base));
+		assertEquals(2 * base, backoff.nextDelay(base));
+		backoff.reset();
+		assertEquals("Verify sequence restarted", base, backoff.nextDelay(base));
+	}
+
+	/**
+	 * Lose the connections of many connected clients at once, as when a
+	 * server restarts
+	 * @return the delay before the first retry of each client
+	 */
+	private static List<Long> loseConnections(RetryBackoff.Jitter jitter, int clientCount) throws Exception {
+		long disconnectTimeout = setStateTimeout(ConnectionState.disconnected, BASE);
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		final CountDownLatch reconnected = new CountDownLatch(clientCount);
+		final List<Long> delays = new ArrayList<Long>();
+		List<AblyRealtime> clients = new ArrayList<AblyRealtime>(clientCount);
+		try {
+			for(int i = 0; i < clientCount; i++) {
+				ClientOptions opts = new ClientOptions("fake.key:secret");
+				opts.transportFactory = factory;
+				opts.useBinaryProtocol = false;
+				opts.autoConnect = false;
+				opts.retryJitter = jitter;
+				AblyRealtime ably = new AblyRealtime(opts);
+				clients.add(ably);
+				final CountDownLatch connected = new CountDownLatch(1);
+				ably.connection.on(new ConnectionStateListener() {
+					@Override
+					public void onConnectionStateChanged(ConnectionStateChange stateChange) {
+						if(stateChange.current == ConnectionState.connected) {
+							if(connected.getCount() == 0)
+								reconnected.countDown();
+							connected.countDown();
+						} else if(stateChange.current == ConnectionState.disconnected && stateChange.previous == ConnectionState.connected) {
+							synchronized(delays) {
+								delays.add(stateChange.retryIn);
+							}
+						}
+					}
+				});
+				ably.connection.connect();
+				assertTrue("Verify connected", connected.await(10, TimeUnit.SECONDS));
+			}
+			List<LoopbackTransportFactory.LoopbackTransport> transports = new ArrayList<LoopbackTransportFactory.LoopbackTransport>();
+			for(AblyRealtime ably : clients) {
+				Field field = ConnectionManager.class.getDeclaredField("transport");
+				field.setAccessible(true);
+				transports.add((LoopbackTransportFactory.LoopbackTransport)field.get(ably.connection.connectionManager));
+			}
+			for(int i = 0; i < clientCount; i++)
+				clients.get(i).connection.connectionManager.onTransportUnavailable(transports.get(i), null, new ErrorInfo("Server restarting", 80003));
+			assertTrue("Verify reconnected", reconnected.await(30, TimeUnit.SECONDS));
+		} finally {
+			for(AblyRealtime ably : clients)
+				ably.close();
+			setStateTimeout(ConnectionState.disconnected, disconnectTimeout);
+		}
+		return delays;
+	}
+
+	/**
+	 * Verify that without jitter, clients that lose their connections
+	 * retry at once, and that with jitter the first retry is spread between
+	 * zero and the disconnected state's retry timeout
+	 */
+	@Test
+	public void reconnect_backoff_first_retry() throws Exception {
+		int clientCount = 200;
+		List<Long> delays = loseConnections(RetryBackoff.Jitter.none, clientCount);
+		assertEquals(clientCount, delays.size());
+
+		delays = loseConnections(RetryBackoff.Jitter.full, clientCount);
+		assertEquals(clientCount, delays.size());
+		for(long delay : delays)
+			assertTrue("Verify delay within bounds", delay >= 1 && delay <= BASE);
+		assertTrue("Verify delays spread", new HashSet<Long>(delays).size() > BASE / 4);
+
+		delays = loseConnections(RetryBackoff.Jitter.decorrelated, clientCount);
+		for(long delay : delays)
+			assertTrue("Verify delay within bounds", delay >= 1 && delay <= BASE);
+		assertTrue("Verify delays spread", new HashSet<Long>(delays).size() > BASE / 4);
+	}
+
+	/**
+	 * Verify that the delays before retrying from the suspended state start
+	 * from its own retry timeout, not from the delay reached by retries from
+	 * the disconnected state
+	 */
+	@Test
+	public void reconnect_backoff_suspended() throws Exception {
+		long suspendedTimeout = 200;
+		long disconnectTimeout = setStateTimeout(ConnectionState.disconnected, BASE);
+		long previousSuspendedTimeout = setStateTimeout(ConnectionState.suspended, suspendedTimeout);
+		long connectionStateTtl = Defaults.connectionStateTtl;
+		LoopbackTransportFactory factory = new LoopbackTransportFactory(true, false);
+		factory.setRefuseConnect(new ErrorInfo("Connection refused", 400, 80003));
+		final List<Long> suspendedDelays = new ArrayList<Long>();
+		final CountDownLatch done = new CountDownLatch(2);
+		AblyRealtime ably = null;
+		try {
+			Defaults.connectionStateTtl = 500;
+			ClientOptions opts = new ClientOptions("fake.key:secret");
+			opts.transportFactory = factory;
+			opts.useBinaryProtocol = false;
+			opts.autoConnect = false;
+			opts.retryBackoffMultiplier = 2.0;
+			opts.retryBackoffMaxDelay = 0;
+			ably = new AblyRealtime(opts);
+			ably.connection.on(ConnectionState.suspended, new ConnectionStateListener() {
+				@Override
+				public void onConnectionStateChanged(ConnectionStateChange stateChange) {
+					synchronized(suspendedDelays) {
+						suspendedDelays.add(stateChange.retryIn);
+					}
+					done.countDown();
+				}
+			});
+			ably.connection.connect();
+			assertTrue("Verify suspended twice", done.await(30, TimeUnit.SECONDS));
+			synchronized(suspendedDelays) {
+				assertEquals("Verify first suspended delay", suspendedTimeout, (long)suspendedDelays.get(0));
+				assertEquals("Verify second suspended delay", 2 * suspendedTimeout, (long)suspendedDelays.get(1));
+			}
+		} finally {
+			if(ably != null)
+				ably.close();
+			Defaults.connectionStateTtl = connectionStateTtl;
+			setStateTimeout(ConnectionState.disconnected, disconnectTimeout);
+			setStateTimeout(ConnectionState.suspended, previousSuspendedTimeout);
+		}
+	}
+}
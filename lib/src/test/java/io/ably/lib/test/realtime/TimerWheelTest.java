@@ -0,0 +1,236 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelEvent;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ChannelStateListener;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.FakeRealtimeServer;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.util.TimerWheel;
+
+public class TimerWheelTest {
+
+	/**
+	 * Verify that tasks run no earlier than scheduled, in order of their
+	 * deadlines, including deadlines beyond one revolution of the wheel
+	 */
+	@Test
+	public void timerwheel_expiry_order() throws InterruptedException {
+		TimerWheel wheel = new TimerWheel("test-timer", 10, 8);
+		final long[] delays = new long[] { 250, 30, 120, 0, 60 };
+		final List<Long> expiries = new ArrayList<Long>();
+		final CountDownLatch done = new CountDownLatch(delays.length);
+		final long start = System.currentTimeMillis();
+		for(final long delay : delays) {
+			wheel.schedule(new TimerWheel.Task() {
+				@Override
+				public void run(TimerWheel.Timeout timeout) {
+					long elapsed = System.currentTimeMillis() - start;
+					synchronized(expiries) {
+						expiries.add(delay);
+					}
+					assertTrue("Verify task not run early", elapsed >= delay);
+					done.countDown();
+				}
+			}, delay);
+		}
+		assertEquals("Verify pending count", delays.length, wheel.getPendingCount());
+		assertTrue("Verify all tasks run", done.await(5, TimeUnit.SECONDS));
+		assertEquals("Verify expiry order", "[0, 30, 60, 120, 250]", expiries.toString());
+		assertEquals("Verify no pending timeouts", 0, wheel.getPendingCount());
+	}
+
+	/**
+	 * Schedule and cancel a large number of timeouts, and verify that only
+	 * the uncancelled ones run
+	 */
+	@Test
+	public void timerwheel_cancel() throws InterruptedException {
+		TimerWheel wheel = new TimerWheel("test-timer", 10, 64);
+		int count = 10000;
+		final AtomicInteger runCount = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(count / 2);
+		TimerWheel.Task task = new TimerWheel.Task() {
+			@Override
+			public void run(TimerWheel.Timeout timeout) {
+				runCount.incrementAndGet();
+				done.countDown();
+			}
+		};
+		TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[count];
+		for(int i = 0; i < count; i++)
+			timeouts[i] = wheel.schedule(task, 100 + (i % 500));
+		assertEquals("Verify pending count", count, wheel.getPendingCount());
+
+		for(int i = 0; i < count; i += 2)
+			assertTrue("Verify timeout cancelled", timeouts[i].cancel());
+		assertFalse("Verify second cancel has no effect", timeouts[0].cancel());
+		assertFalse("Verify cancelled timeout not pending", timeouts[0].isPending());
+		assertEquals("Verify pending count after cancel", count / 2, wheel.getPendingCount());
+
+		assertTrue("Verify remaining tasks run", done.await(5, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		assertEquals("Verify cancelled tasks not run", count / 2, runCount.get());
+		assertEquals("Verify no pending timeouts", 0, wheel.getPendingCount());
+	}
+
+	/**
+	 * Verify that a task may schedule a further task, and that the wheel
+	 * resumes correctly after being idle
+	 */
+	@Test
+	public void timerwheel_reschedule_after_idle() throws InterruptedException {
+		final TimerWheel wheel = new TimerWheel("test-timer", 10, 16);
+		final CountDownLatch first = new CountDownLatch(2);
+		wheel.schedule(new TimerWheel.Task() {
+			@Override
+			public void run(TimerWheel.Timeout timeout) {
+				first.countDown();
+				wheel.schedule(new TimerWheel.Task() {
+					@Override
+					public void run(TimerWheel.Timeout timeout) {
+						first.countDown();
+					}
+				}, 20);
+			}
+		}, 20);
+		assertTrue("Verify chained tasks run", first.await(2, TimeUnit.SECONDS));
+
+		/* idle for more than a revolution of the wheel */
+		Thread.sleep(400);
+		final CountDownLatch second = new CountDownLatch(1);
+		final long start = System.currentTimeMillis();
+		final long[] elapsed = new long[1];
+		wheel.schedule(new TimerWheel.Task() {
+			@Override
+			public void run(TimerWheel.Timeout timeout) {
+				elapsed[0] = System.currentTimeMillis() - start;
+				second.countDown();
+			}
+		}, 100);
+		assertTrue("Verify task run after idle", second.await(2, TimeUnit.SECONDS));
+		assertTrue("Verify task not run early after idle", elapsed[0] >= 100);
+	}
+
+	/**
+	 * Attach many channels to a server that never responds, and verify
+	 * that the attach timeouts share the timer thread rather than each
+	 * creating its own, and that they all expire
+	 */
+	@Test
+	public void timerwheel_channel_attach_timeouts() throws IOException, AblyException, InterruptedException {
+		int channelCount = 2000;
+		long oldRealtimeTimeout = Defaults.realtimeRequestTimeout;
+		FakeRealtimeServer server = new FakeRealtimeServer(27338);
+		server.startAndWait();
+		AblyRealtime ably = null;
+		try {
+			Defaults.realtimeRequestTimeout = 1000;
+			ClientOptions opts = new ClientOptions("fake.key:secret");
+			opts.realtimeHost = "localhost";
+			opts.restHost = "localhost";
+			opts.port = 27338;
+			opts.tls = false;
+			opts.useBinaryProtocol = false;
+			opts.autoConnect = false;
+			ably = new AblyRealtime(opts);
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			ably.connection.connect();
+			assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+
+			int threadsBefore = Thread.activeCount();
+			int pendingBefore = TimerWheel.getInstance().getPendingCount();
+			Channel[] channels = new Channel[channelCount];
+			for(int i = 0; i < channelCount; i++) {
+				channels[i] = ably.channels.get("timeout_" + i);
+				channels[i].attach();
+			}
+			assertTrue("Verify attach timeouts pending", TimerWheel.getInstance().getPendingCount() >= pendingBefore + channelCount);
+			assertTrue("Verify no thread per attach", Thread.activeCount() < threadsBefore + 10);
+
+			long deadline = System.currentTimeMillis() + 5000;
+			for(Channel channel : channels) {
+				while(channel.state != ChannelState.suspended && System.currentTimeMillis() < deadline)
+					Thread.sleep(10);
+				assertEquals("Verify attach timed out", ChannelState.suspended, channel.state);
+			}
+		} finally {
+			Defaults.realtimeRequestTimeout = oldRealtimeTimeout;
+			if(ably != null)
+				ably.close();
+			server.stop();
+		}
+	}
+
+	/**
+	 * Verify that a channel state listener that blocks, when called on
+	 * expiry of an attach timeout, does not delay other timeouts
+	 */
+	@Test
+	public void timerwheel_slow_listener() throws IOException, AblyException, InterruptedException {
+		long oldRealtimeTimeout = Defaults.realtimeRequestTimeout;
+		FakeRealtimeServer server = new FakeRealtimeServer(27338);
+		server.startAndWait();
+		AblyRealtime ably = null;
+		final CountDownLatch listenerCalled = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			Defaults.realtimeRequestTimeout = 500;
+			ClientOptions opts = new ClientOptions("fake.key:secret");
+			opts.realtimeHost = "localhost";
+			opts.restHost = "localhost";
+			opts.port = 27338;
+			opts.tls = false;
+			opts.useBinaryProtocol = false;
+			opts.autoConnect = false;
+			ably = new AblyRealtime(opts);
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			ably.connection.connect();
+			assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+
+			Channel channel = ably.channels.get("slow_listener");
+			channel.on(ChannelEvent.suspended, new ChannelStateListener() {
+				@Override
+				public void onChannelStateChanged(ChannelStateChange stateChange) {
+					listenerCalled.countDown();
+					try { release.await(); } catch(InterruptedException e) {}
+				}
+			});
+			channel.attach();
+			final CountDownLatch later = new CountDownLatch(1);
+			TimerWheel.getInstance().schedule(new TimerWheel.Task() {
+				@Override
+				public void run(TimerWheel.Timeout timeout) {
+					later.countDown();
+				}
+			}, 700);
+
+			assertTrue("Verify listener called on attach timeout", listenerCalled.await(5, TimeUnit.SECONDS));
+			assertTrue("Verify later timeout not delayed by listener", later.await(2, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			Defaults.realtimeRequestTimeout = oldRealtimeTimeout;
+			if(ably != null)
+				ably.close();
+			server.stop();
+		}
+	}
+}
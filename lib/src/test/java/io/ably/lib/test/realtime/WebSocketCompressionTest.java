@@ -0,0 +1,165 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.CompletionWaiter;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.common.Helpers.MessageWaiter;
+import io.ably.lib.test.util.DeflateRealtimeServer;
+import io.ably.lib.transport.CompressionStats;
+import io.ably.lib.transport.ITransport;
+import io.ably.lib.transport.NioWebSocketTransport;
+import io.ably.lib.transport.WebSocketTransport;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+
+/**
+ * Tests for permessage-deflate websocket compression, against a local server
+ */
+public class WebSocketCompressionTest {
+
+	private static final int PORT = 27336;
+	private static final int MESSAGE_COUNT = 5;
+	private DeflateRealtimeServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new DeflateRealtimeServer(PORT);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	private ClientOptions createOptions(ITransport.Factory transportFactory) throws AblyException {
+		ClientOptions opts = new ClientOptions("fake.key:secret");
+		opts.realtimeHost = "localhost";
+		opts.restHost = "localhost";
+		opts.port = PORT;
+		opts.tls = false;
+		opts.useBinaryProtocol = false;
+		opts.transportFactory = transportFactory;
+		return opts;
+	}
+
+	/**
+	 * Text that compresses moderately, and is large enough that its
+	 * compressed frames span several socket reads
+	 */
+	private static String createText(int seed) {
+		String[] words = new String[] { "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel" };
+		Random random = new Random(seed);
+		StringBuilder text = new StringBuilder();
+		while(text.length() < 200000)
+			text.append(words[random.nextInt(words.length)]).append(random.nextInt(100)).append(' ');
+		return text.toString();
+	}
+
+	/**
+	 * Publish messages and verify that they are echoed back intact
+	 * @return the compression stats for the connection
+	 */
+	private CompressionStats publishAndReceive(ClientOptions opts) throws AblyException {
+		AblyRealtime ably = null;
+		try {
+			ably = new AblyRealtime(opts);
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			assertTrue("Verify connected state reached", connectionWaiter.waitFor(ConnectionState.connected, 1, 10000));
+
+			Channel channel = ably.channels.get("compression_test");
+			MessageWaiter messageWaiter = new MessageWaiter(channel);
+			CompletionWaiter completionWaiter = new CompletionWaiter();
+			String[] texts = new String[MESSAGE_COUNT];
+			for(int i = 0; i < MESSAGE_COUNT; i++) {
+				texts[i] = createText(i);
+				channel.publish("text", texts[i], completionWaiter);
+			}
+			ErrorInfo error = completionWaiter.waitFor(MESSAGE_COUNT);
+			assertNull("Verify publish succeeded", error);
+			messageWaiter.waitFor(MESSAGE_COUNT, 10000);
+			assertEquals("Verify messages received", MESSAGE_COUNT, messageWaiter.receivedMessages.size());
+			for(int i = 0; i < MESSAGE_COUNT; i++)
+				assertEquals("Verify message data", texts[i], messageWaiter.receivedMessages.get(i).data);
+
+			CompressionStats stats = ably.connection.connectionManager.getCompressionStats();
+			ably.close();
+			assertTrue("Verify closed state reached", connectionWaiter.waitFor(ConnectionState.closed, 1, 10000));
+			return stats;
+		} finally {
+			if(ably != null)
+				ably.close();
+		}
+	}
+
+	private static void checkCompressed(CompressionStats stats) {
+		assertTrue("Verify compression negotiated", stats.isNegotiated());
+		assertTrue("Verify received messages compressed", stats.getInboundRatio() > 2.0);
+		assertTrue("Verify sent messages compressed", stats.getOutboundRatio() > 2.0);
+		assertTrue("Verify payload size accounted", stats.getPayloadBytesIn() > MESSAGE_COUNT * 200000);
+	}
+
+	/**
+	 * Verify compression in both directions with context takeover
+	 */
+	@Test
+	public void compression_context_takeover() throws AblyException {
+		ITransport.Factory[] factories = new ITransport.Factory[] { new WebSocketTransport.Factory(), new NioWebSocketTransport.Factory() };
+		for(ITransport.Factory factory : factories) {
+			ClientOptions opts = createOptions(factory);
+			opts.webSocketCompression = true;
+			CompressionStats stats = publishAndReceive(opts);
+			assertEquals("Verify extension offered", "permessage-deflate", server.getLastOffer());
+			checkCompressed(stats);
+		}
+		assertTrue("Verify server received compressed messages", server.getCompressedReceived() >= 2 * MESSAGE_COUNT);
+	}
+
+	/**
+	 * Verify compression in both directions without context takeover,
+	 * with a limited server window size
+	 */
+	@Test
+	public void compression_no_context_takeover() throws AblyException {
+		ITransport.Factory[] factories = new ITransport.Factory[] { new WebSocketTransport.Factory(), new NioWebSocketTransport.Factory() };
+		for(ITransport.Factory factory : factories) {
+			ClientOptions opts = createOptions(factory);
+			opts.webSocketCompression = true;
+			opts.webSocketNoContextTakeover = true;
+			opts.webSocketServerMaxWindowBits = 10;
+			opts.webSocketCompressionLevel = 9;
+			CompressionStats stats = publishAndReceive(opts);
+			assertEquals("Verify extension offered",
+					"permessage-deflate; client_no_context_takeover; server_no_context_takeover; server_max_window_bits=10",
+					server.getLastOffer());
+			checkCompressed(stats);
+		}
+		assertTrue("Verify server received compressed messages", server.getCompressedReceived() >= 2 * MESSAGE_COUNT);
+	}
+
+	/**
+	 * Verify that compression is not offered unless enabled
+	 */
+	@Test
+	public void compression_disabled() throws AblyException {
+		CompressionStats stats = publishAndReceive(createOptions(new WebSocketTransport.Factory()));
+		assertNull("Verify extension not offered", server.getLastOffer());
+		assertFalse("Verify compression not negotiated", stats.isNegotiated());
+		assertEquals("Verify server received no compressed messages", 0, server.getCompressedReceived());
+	}
+}
@@ -0,0 +1,381 @@
+package io.ably.lib.test.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import io.ably.lib.util.Base64Coder;
+
+/**
+ * A minimal local realtime endpoint that supports the websocket
+ * permessage-deflate extension, for testing websocket compression.
+ *
+ * Each connection is sent a CONNECTED message once the handshake completes.
+ * Heartbeats are echoed, ATTACH is answered with ATTACHED, published messages
+ * are acknowledged and echoed back to the publisher, and CLOSE is answered
+ * with CLOSED. Clients must use the JSON protocol.
+ *
+ * The websocket framing here is implemented directly, because the websocket
+ * server libraries available to the tests do not support compression.
+ */
+public class DeflateRealtimeServer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final byte[] TAIL = new byte[] { 0, 0, (byte)0xff, (byte)0xff };
+
+	public DeflateRealtimeServer(int port) {
+		this.port = port;
+	}
+
+	public void start() throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(port));
+		acceptThread = new Thread("DeflateRealtimeServer") {
+			@Override
+			public void run() {
+				while(true) {
+					Socket socket;
+					try {
+						socket = serverSocket.accept();
+					} catch (IOException e) {
+						return;
+					}
+					final Connection connection = new Connection(socket);
+					synchronized(DeflateRealtimeServer.this) {
+						connections.add(connection);
+					}
+					new Thread("DeflateRealtimeServer-connection") {
+						@Override
+						public void run() {
+							connection.run();
+						}
+					}.start();
+				}
+			}
+		};
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	public void stop() {
+		try {
+			serverSocket.close();
+			/* the port is only released once the accept thread has exited */
+			acceptThread.join();
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+		List<Connection> toClose;
+		synchronized(this) {
+			toClose = new ArrayList<Connection>(connections);
+		}
+		for(Connection connection : toClose)
+			connection.closeSocket();
+	}
+
+	/**
+	 * The Sec-WebSocket-Extensions header sent by the most recent client,
+	 * or null if it sent none.
+	 */
+	public synchronized String getLastOffer() {
+		return lastOffer;
+	}
+
+	/**
+	 * The number of compressed messages received from clients.
+	 */
+	public synchronized int getCompressedReceived() {
+		return compressedReceived;
+	}
+
+	/**
+	 * The number of uncompressed messages received from clients.
+	 */
+	public synchronized int getUncompressedReceived() {
+		return uncompressedReceived;
+	}
+
+	private class Connection {
+
+		Connection(Socket socket) {
+			this.socket = socket;
+		}
+
+		void run() {
+			try {
+				in = new DataInputStream(socket.getInputStream());
+				out = socket.getOutputStream();
+				if(!handshake())
+					return;
+				sendText("{\"action\":4,\"connectionId\":\"deflate-1\",\"connectionSerial\":-1,"
+						+ "\"connectionDetails\":{\"connectionKey\":\"deflate-key-1\","
+						+ "\"clientId\":\"*\",\"maxIdleInterval\":15000,\"connectionStateTtl\":120000}}");
+				while(readMessage()) {}
+			} catch(IOException e) {
+			} catch(DataFormatException e) {
+			} finally {
+				closeSocket();
+				synchronized(DeflateRealtimeServer.this) {
+					connections.remove(this);
+				}
+			}
+		}
+
+		void closeSocket() {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+
+		private boolean handshake() throws IOException {
+			Map<String, String> headers = new HashMap<String, String>();
+			String line = readLine();
+			while((line = readLine()) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				if(colon > 0)
+					headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+			String key = headers.get("sec-websocket-key");
+			if(key == null)
+				return false;
+			String offer = headers.get("sec-websocket-extensions");
+			synchronized(DeflateRealtimeServer.this) {
+				lastOffer = offer;
+			}
+
+			StringBuilder response = new StringBuilder();
+			response.append("HTTP/1.1 101 Switching Protocols\r\n")
+				.append("Upgrade: websocket\r\n")
+				.append("Connection: Upgrade\r\n")
+				.append("Sec-WebSocket-Accept: ").append(acceptKey(key)).append("\r\n");
+			if(offer != null && offer.startsWith("permessage-deflate")) {
+				compress = true;
+				StringBuilder accept = new StringBuilder("permessage-deflate");
+				if(offer.contains("server_no_context_takeover")) {
+					serverNoContextTakeover = true;
+					accept.append("; server_no_context_takeover");
+				}
+				if(offer.contains("client_no_context_takeover")) {
+					clientNoContextTakeover = true;
+					accept.append("; client_no_context_takeover");
+				}
+				response.append("Sec-WebSocket-Extensions: ").append(accept).append("\r\n");
+			}
+			response.append("\r\n");
+			out.write(response.toString().getBytes(UTF8));
+			out.flush();
+			return true;
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while((c = in.read()) != -1) {
+				if(c == '\n')
+					return line.toString();
+				if(c != '\r')
+					line.append((char)c);
+			}
+			return null;
+		}
+
+		/**
+		 * Read and respond to a single message.
+		 * @return false if the connection is to be closed
+		 */
+		private boolean readMessage() throws IOException, DataFormatException {
+			ByteArrayOutputStream message = new ByteArrayOutputStream();
+			boolean compressed = false;
+			int messageOpcode = -1;
+			while(true) {
+				int b0 = in.readUnsignedByte();
+				int b1 = in.readUnsignedByte();
+				boolean fin = (b0 & 0x80) != 0;
+				int opcode = b0 & 0x0f;
+				long length = b1 & 0x7f;
+				if(length == 126)
+					length = in.readUnsignedShort();
+				else if(length == 127)
+					length = in.readLong();
+				byte[] mask = new byte[4];
+				if((b1 & 0x80) != 0)
+					in.readFully(mask);
+				byte[] payload = new byte[(int)length];
+				in.readFully(payload);
+				for(int i = 0; i < payload.length; i++)
+					payload[i] ^= mask[i & 3];
+
+				if(opcode == 8) {
+					sendFrame(0x88, payload);
+					return false;
+				}
+				if(opcode == 9) {
+					sendFrame(0x8a, payload);
+					continue;
+				}
+				if(opcode == 10)
+					continue;
+				if(opcode != 0) {
+					messageOpcode = opcode;
+					compressed = (b0 & 0x40) != 0;
+				}
+				message.write(payload);
+				if(fin)
+					break;
+			}
+
+			byte[] data = message.toByteArray();
+			synchronized(DeflateRealtimeServer.this) {
+				if(compressed)
+					++compressedReceived;
+				else
+					++uncompressedReceived;
+			}
+			if(compressed)
+				data = inflate(data);
+			/* the client sends JSON in binary frames */
+			if(messageOpcode == 1 || messageOpcode == 2)
+				onProtocolMessage(new String(data, UTF8));
+			return true;
+		}
+
+		private void onProtocolMessage(String text) throws IOException {
+			JsonObject msg = new JsonParser().parse(text).getAsJsonObject();
+			int action = msg.get("action").getAsInt();
+			switch(action) {
+			case 0: /* heartbeat */
+				if(msg.has("id"))
+					sendText("{\"action\":0,\"id\":\"" + msg.get("id").getAsString() + "\"}");
+				else
+					sendText("{\"action\":0}");
+				break;
+			case 7: /* close */
+				sendText("{\"action\":8}");
+				break;
+			case 10: /* attach */
+				JsonObject attached = new JsonObject();
+				attached.addProperty("action", 11);
+				attached.addProperty("channel", msg.get("channel").getAsString());
+				sendText(attached.toString());
+				break;
+			case 15: /* message */
+				JsonObject ack = new JsonObject();
+				ack.addProperty("action", 1);
+				ack.add("msgSerial", msg.get("msgSerial"));
+				ack.addProperty("count", 1);
+				sendText(ack.toString());
+				JsonObject echo = new JsonObject();
+				echo.addProperty("action", 15);
+				echo.addProperty("channel", msg.get("channel").getAsString());
+				echo.addProperty("id", "deflate-1:" + (++echoSerial));
+				echo.addProperty("connectionId", "deflate-1");
+				echo.add("messages", msg.get("messages"));
+				sendText(echo.toString());
+				break;
+			default:
+				break;
+			}
+		}
+
+		private byte[] inflate(byte[] data) throws DataFormatException {
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			inflater.setInput(data);
+			int n;
+			while((n = inflater.inflate(buf)) > 0)
+				result.write(buf, 0, n);
+			inflater.setInput(TAIL);
+			while((n = inflater.inflate(buf)) > 0)
+				result.write(buf, 0, n);
+			if(clientNoContextTakeover)
+				inflater.reset();
+			return result.toByteArray();
+		}
+
+		private byte[] deflate(byte[] data) {
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			deflater.setInput(data);
+			int n;
+			while((n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH)) > 0)
+				result.write(buf, 0, n);
+			if(serverNoContextTakeover)
+				deflater.reset();
+			byte[] compressed = result.toByteArray();
+			byte[] stripped = new byte[compressed.length - TAIL.length];
+			System.arraycopy(compressed, 0, stripped, 0, stripped.length);
+			return stripped;
+		}
+
+		private void sendText(String text) throws IOException {
+			byte[] payload = text.getBytes(UTF8);
+			if(compress)
+				sendFrame(0xc1, deflate(payload));
+			else
+				sendFrame(0x81, payload);
+		}
+
+		private synchronized void sendFrame(int b0, byte[] payload) throws IOException {
+			ByteArrayOutputStream frame = new ByteArrayOutputStream();
+			frame.write(b0);
+			if(payload.length < 126) {
+				frame.write(payload.length);
+			} else if(payload.length < 65536) {
+				frame.write(126);
+				frame.write(payload.length >>> 8);
+				frame.write(payload.length);
+			} else {
+				frame.write(127);
+				for(int shift = 56; shift >= 0; shift -= 8)
+					frame.write((int)((long)payload.length >>> shift));
+			}
+			frame.write(payload);
+			out.write(frame.toByteArray());
+			out.flush();
+		}
+
+		private String acceptKey(String key) throws IOException {
+			try {
+				MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+				return new String(Base64Coder.encode(sha1.digest((key + WS_GUID).getBytes(UTF8))));
+			} catch (Exception e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+
+		private final Socket socket;
+		private DataInputStream in;
+		private OutputStream out;
+		private boolean compress;
+		private boolean serverNoContextTakeover;
+		private boolean clientNoContextTakeover;
+		private final Inflater inflater = new Inflater(true);
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		private int echoSerial;
+	}
+
+	private final int port;
+	private ServerSocket serverSocket;
+	private Thread acceptThread;
+	private final List<Connection> connections = new ArrayList<Connection>();
+	private String lastOffer;
+	private int compressedReceived;
+	private int uncompressedReceived;
+}
@@ -0,0 +1,110 @@
+package io.ably.lib.test.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.iki.elonen.NanoWSD;
+import fi.iki.elonen.NanoWSD.WebSocketFrame.CloseCode;
+
+/**
+ * A minimal local realtime endpoint for tests that do not need the Ably service.
+ * Each websocket connection is sent a CONNECTED message as soon as it is opened,
+ * and a CLOSE message is answered with CLOSED. Clients must use the JSON protocol.
+ */
+public class FakeRealtimeServer extends NanoWSD {
+
+	public FakeRealtimeServer(int port) {
+		super(port);
+	}
+
+	/**
+	 * Start the server and wait until it is accepting connections.
+	 */
+	public void startAndWait() throws IOException {
+		start(0, true);
+		while (!wasStarted()) {
+			try { Thread.sleep(50); } catch (InterruptedException e) {}
+		}
+	}
+
+	/**
+	 * The number of currently open websocket connections.
+	 */
+	public synchronized int getOpenCount() {
+		return connections.size();
+	}
+
+	/**
+	 * The total number of CONNECTED messages sent since the server started.
+	 */
+	public synchronized int getConnectedCount() {
+		return connectedCount;
+	}
+
+	/**
+	 * Close all open connections from the server side with the given code.
+	 */
+	public void closeAll(CloseCode code) {
+		List<Connection> toClose;
+		synchronized(this) {
+			toClose = new ArrayList<Connection>(connections);
+		}
+		for(Connection connection : toClose) {
+			try {
+				connection.close(code, "closed by server", false);
+			} catch (IOException e) {}
+		}
+	}
+
+	@Override
+	protected WebSocket openWebSocket(IHTTPSession handshake) {
+		return new Connection(handshake);
+	}
+
+	private class Connection extends WebSocket {
+		Connection(IHTTPSession handshake) {
+			super(handshake);
+		}
+
+		@Override
+		protected void onOpen() {
+			int id;
+			synchronized(FakeRealtimeServer.this) {
+				connections.add(this);
+				id = ++connectedCount;
+			}
+			try {
+				send("{\"action\":4,\"connectionId\":\"fake-" + id + "\",\"connectionSerial\":-1,"
+						+ "\"connectionDetails\":{\"connectionKey\":\"fake-key-" + id + "\","
+						+ "\"clientId\":\"*\",\"maxIdleInterval\":15000,\"connectionStateTtl\":120000}}");
+			} catch (IOException e) {}
+		}
+
+		@Override
+		protected void onClose(CloseCode code, String reason, boolean initiatedByRemote) {
+			synchronized(FakeRealtimeServer.this) {
+				connections.remove(this);
+			}
+		}
+
+		@Override
+		protected void onMessage(WebSocketFrame message) {
+			/* answer a CLOSE with CLOSED */
+			if(message.getTextPayload().contains("\"action\":7")) {
+				try {
+					send("{\"action\":8}");
+				} catch (IOException e) {}
+			}
+		}
+
+		@Override
+		protected void onPong(WebSocketFrame pong) {}
+
+		@Override
+		protected void onException(IOException exception) {}
+	}
+
+	private final List<Connection> connections = new ArrayList<Connection>();
+	private int connectedCount;
+}
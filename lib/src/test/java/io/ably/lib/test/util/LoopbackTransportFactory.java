@@ -0,0 +1,270 @@
+package io.ably.lib.test.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import io.ably.lib.transport.ConnectionManager;
+import io.ably.lib.transport.ITransport;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolSerializer;
+
+/**
+ * A transport factory whose transports do not use the network. Each
+ * transport becomes connected as soon as it is asked to connect, and records
+ * the messages sent on it. Messages may optionally be acknowledged as they
+ * are sent, and ATTACH and DETACH requests are answered. As with a real
+ * transport, responses are delivered on a separate thread, in order.
+ */
+public class LoopbackTransportFactory implements ITransport.Factory {
+
+	/**
+	 * @param autoAck if true, ack each message requiring an ack as soon as it is sent
+	 * @param record if true, retain the messages sent
+	 */
+	public LoopbackTransportFactory(boolean autoAck, boolean record) {
+		this.autoAck = autoAck;
+		this.record = record;
+	}
+
+	@Override
+	public ITransport getTransport(ITransport.TransportParams transportParams, ConnectionManager connectionManager) {
+		LoopbackTransport transport = new LoopbackTransport(connectionManager);
+		synchronized(this) {
+			lastTransport = transport;
+		}
+		return transport;
+	}
+
+	public synchronized LoopbackTransport getLastTransport() {
+		return lastTransport;
+	}
+
+	/**
+	 * If cleared, heartbeats are not answered.
+	 */
+	public void setAnswerHeartbeats(boolean answerHeartbeats) {
+		this.answerHeartbeats = answerHeartbeats;
+	}
+
+	/**
+	 * If set, transports do not become connected until
+	 * {@link LoopbackTransport#completeConnect()} is called.
+	 */
+	public void setHoldConnect(boolean holdConnect) {
+		this.holdConnect = holdConnect;
+	}
+
+	/**
+	 * If set, transports wait in connect() until the given latch is released,
+	 * as a real transport may wait for a token or for its host to be resolved.
+	 */
+	public void setConnectGate(CountDownLatch connectGate) {
+		this.connectGate = connectGate;
+	}
+
+	/**
+	 * If set, transports fail to connect, with the given reason.
+	 */
+	public void setRefuseConnect(ErrorInfo refuseReason) {
+		this.refuseReason = refuseReason;
+	}
+
+	/**
+	 * If set, ATTACH requests for channels with names starting with the
+	 * given prefix are answered with an ERROR with the given reason, and
+	 * requests for channels with names starting with ignorePrefix are
+	 * not answered.
+	 */
+	public void setAttachErrors(String errorPrefix, ErrorInfo errorReason, String ignorePrefix) {
+		this.attachErrorPrefix = errorPrefix;
+		this.attachErrorReason = errorReason;
+		this.attachIgnorePrefix = ignorePrefix;
+	}
+
+	public class LoopbackTransport implements ITransport {
+
+		LoopbackTransport(ConnectionManager connectionManager) {
+			this.connectionManager = connectionManager;
+		}
+
+		@Override
+		public void connect(ConnectListener connectListener) {
+			CountDownLatch connectGate = LoopbackTransportFactory.this.connectGate;
+			if(connectGate != null) {
+				try { connectGate.await(); } catch(InterruptedException e) {}
+			}
+			synchronized(this) {
+				this.connectListener = connectListener;
+			}
+			final ErrorInfo refuseReason = LoopbackTransportFactory.this.refuseReason;
+			if(refuseReason != null) {
+				final ConnectListener listener = connectListener;
+				receiver.execute(new Runnable() {
+					@Override
+					public void run() {
+						listener.onTransportUnavailable(LoopbackTransport.this, null, refuseReason);
+					}
+				});
+				return;
+			}
+			if(!holdConnect)
+				completeConnect();
+		}
+
+		/**
+		 * Become connected, if the factory was set to hold connections
+		 */
+		public void completeConnect() {
+			final ConnectListener connectListener;
+			synchronized(this) {
+				connectListener = this.connectListener;
+			}
+			receiver.execute(new Runnable() {
+				@Override
+				public void run() {
+					connectListener.onTransportAvailable(LoopbackTransport.this, null);
+				}
+			});
+			try {
+				deliver(ProtocolSerializer.fromJSON(CONNECTED));
+			} catch(AblyException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void close(boolean sendDisconnect) {
+			receiver.shutdown();
+		}
+
+		@Override
+		public void abort(ErrorInfo reason) {
+			receiver.shutdown();
+		}
+
+		@Override
+		public void send(ProtocolMessage msg) throws AblyException {
+			synchronized(this) {
+				++sentCount;
+				if(record)
+					sentMessages.add(msg);
+			}
+			switch(msg.action) {
+			case attach:
+				if(attachIgnorePrefix != null && msg.channel.startsWith(attachIgnorePrefix))
+					break;
+				if(attachErrorPrefix != null && msg.channel.startsWith(attachErrorPrefix)) {
+					ProtocolMessage error = new ProtocolMessage(ProtocolMessage.Action.error, msg.channel);
+					error.error = attachErrorReason;
+					deliver(error);
+					break;
+				}
+				ProtocolMessage attached = new ProtocolMessage(ProtocolMessage.Action.attached, msg.channel);
+				deliver(attached);
+				break;
+			case detach:
+				deliver(new ProtocolMessage(ProtocolMessage.Action.detached, msg.channel));
+				break;
+			case close:
+				deliver(new ProtocolMessage(ProtocolMessage.Action.closed));
+				break;
+			case heartbeat:
+				if(answerHeartbeats) {
+					ProtocolMessage heartbeat = new ProtocolMessage(ProtocolMessage.Action.heartbeat);
+					heartbeat.id = msg.id;
+					deliver(heartbeat);
+				}
+				break;
+			default:
+				if(autoAck && msg.msgSerial != null)
+					ack(msg.msgSerial, 1);
+				break;
+			}
+		}
+
+		/**
+		 * Acknowledge messages as if from the server
+		 */
+		public void ack(long msgSerial, int count) {
+			ProtocolMessage ack = new ProtocolMessage(ProtocolMessage.Action.ack);
+			ack.msgSerial = msgSerial;
+			ack.count = count;
+			deliver(ack);
+		}
+
+		/**
+		 * Reject messages as if from the server
+		 */
+		public void nack(long msgSerial, int count, ErrorInfo reason) {
+			ProtocolMessage nack = new ProtocolMessage(ProtocolMessage.Action.nack);
+			nack.msgSerial = msgSerial;
+			nack.count = count;
+			nack.error = reason;
+			deliver(nack);
+		}
+
+		/**
+		 * Deliver a message as if received from the server
+		 */
+		public void deliver(final ProtocolMessage msg) {
+			try {
+				receiver.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							connectionManager.onMessage(LoopbackTransport.this, msg);
+						} catch(AblyException e) {
+							e.printStackTrace();
+						}
+					}
+				});
+			} catch(RejectedExecutionException e) {
+				/* the transport is closed */
+			}
+		}
+
+		public synchronized long getSentCount() {
+			return sentCount;
+		}
+
+		public synchronized List<ProtocolMessage> getSentMessages() {
+			return new ArrayList<ProtocolMessage>(sentMessages);
+		}
+
+		@Override
+		public String getURL() {
+			return "loopback:";
+		}
+
+		@Override
+		public String getHost() {
+			return "localhost";
+		}
+
+		private final ConnectionManager connectionManager;
+		private final ExecutorService receiver = Executors.newSingleThreadExecutor();
+		private final List<ProtocolMessage> sentMessages = new ArrayList<ProtocolMessage>();
+		private long sentCount;
+		private ConnectListener connectListener;
+	}
+
+	private static final String CONNECTED = "{\"action\":4,\"connectionId\":\"loopback\",\"connectionSerial\":-1,"
+			+ "\"connectionDetails\":{\"connectionKey\":\"loopback-key\",\"clientId\":\"*\"}}";
+
+	private final boolean autoAck;
+	private final boolean record;
+	private LoopbackTransport lastTransport;
+	private volatile boolean holdConnect;
+	private volatile boolean answerHeartbeats = true;
+	private volatile ErrorInfo refuseReason;
+	private volatile CountDownLatch connectGate;
+	private volatile String attachErrorPrefix;
+	private volatile ErrorInfo attachErrorReason;
+	private volatile String attachIgnorePrefix;
+}